@@ -0,0 +1,108 @@
+package org.opentelecoms.gsm0348.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Logger argument rendering octets in hex only when the message is formatted, e.g.
+ * {@code LOGGER.debug("Packet: {}", LazyHex.string(buffer, start, length))}. Nothing is copied or rendered when the level is disabled.
+ * <p>
+ * The octets are read when {@linkplain #toString()} is called, not when the argument is created: the argument must be consumed by the
+ * logging call and not be kept once the array or buffer is reused.
+ *
+ * @see Util#toHexString(byte[])
+ * @see Util#toHexArray(byte[])
+ */
+public final class LazyHex {
+
+  private final byte[] array;
+  private final ByteBuffer buffer;
+  private final int offset;
+  private final int length;
+  private final boolean pairs;
+
+  private LazyHex(final byte[] array, final ByteBuffer buffer, final int offset, final int length, final boolean pairs) {
+    this.array = array;
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    this.pairs = pairs;
+  }
+
+  /**
+   * Renders the octets like {@linkplain Util#toHexString(byte[])}, e.g. {@code ABCD}.
+   *
+   * @param array - the octets, may be null.
+   * @return the logger argument
+   */
+  public static LazyHex string(final byte[] array) {
+    return new LazyHex(array, null, 0, array == null ? 0 : array.length, false);
+  }
+
+  /**
+   * Renders the octets like {@linkplain Util#toHexString(byte[])}, e.g. {@code ABCD}.
+   *
+   * @param array  - the array holding the octets.
+   * @param offset - the index of the first octet.
+   * @param length - the number of octets.
+   * @return the logger argument
+   */
+  public static LazyHex string(final byte[] array, final int offset, final int length) {
+    return new LazyHex(array, null, offset, length, false);
+  }
+
+  /**
+   * Renders a range of the buffer like {@linkplain Util#toHexString(byte[])}, e.g. {@code ABCD}. The position and limit of the buffer are
+   * not used.
+   *
+   * @param buffer - the buffer holding the octets.
+   * @param offset - the absolute index of the first octet.
+   * @param length - the number of octets.
+   * @return the logger argument
+   */
+  public static LazyHex string(final ByteBuffer buffer, final int offset, final int length) {
+    return new LazyHex(null, buffer, offset, length, false);
+  }
+
+  /**
+   * Renders the octets like {@linkplain Util#toHexArray(byte[])}, e.g. {@code 0xAB 0xCD}.
+   *
+   * @param array - the octets, may be null.
+   * @return the logger argument
+   */
+  public static LazyHex array(final byte[] array) {
+    return new LazyHex(array, null, 0, array == null ? 0 : array.length, true);
+  }
+
+  /**
+   * Renders a range of the buffer like {@linkplain Util#toHexArray(byte[])}, e.g. {@code 0xAB 0xCD}. The position and limit of the buffer
+   * are not used.
+   *
+   * @param buffer - the buffer holding the octets.
+   * @param offset - the absolute index of the first octet.
+   * @param length - the number of octets.
+   * @return the logger argument
+   */
+  public static LazyHex array(final ByteBuffer buffer, final int offset, final int length) {
+    return new LazyHex(null, buffer, offset, length, true);
+  }
+
+  @Override
+  public String toString() {
+    if (array == null && buffer == null) {
+      return "null";
+    }
+    final StringBuilder sb = new StringBuilder(length * (pairs ? 5 : 2));
+    for (int i = 0; i < length; i++) {
+      final byte b = (array != null) ? array[offset + i] : buffer.get(offset + i);
+      if (pairs) {
+        if (i > 0) {
+          sb.append(' ');
+        }
+        Util.appendHexPair(b, sb);
+      } else {
+        Util.appendHex(b, sb);
+      }
+    }
+    return sb.toString();
+  }
+}
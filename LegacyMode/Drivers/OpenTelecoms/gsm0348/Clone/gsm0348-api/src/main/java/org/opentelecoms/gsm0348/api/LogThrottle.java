@@ -0,0 +1,75 @@
+package org.opentelecoms.gsm0348.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of messages logged on a failure path, so that a flood of bad packets does not turn into a logging storm. At most
+ * {@code permits} messages are let through per interval, the others are counted and the count is handed to the next message let
+ * through, e.g.:
+ * <pre>
+ * final long suppressed = THROTTLE.acquire();
+ * if (suppressed &gt; 0) {
+ *   LOGGER.warn("{} signature mismatches were not logged", suppressed);
+ * }
+ * if (suppressed &gt;= 0) {
+ *   LOGGER.warn("Expecting signature {}, but found {}", signature, calculatedSignature);
+ * }
+ * </pre>
+ * Instances are thread-safe and do not block.
+ */
+public final class LogThrottle {
+
+  private final int permits;
+  private final long intervalNanos;
+  private final AtomicLong windowStart;
+  private final AtomicInteger used = new AtomicInteger();
+  private final AtomicLong suppressed = new AtomicLong();
+
+  /**
+   * @param permits  - the number of messages let through per interval.
+   * @param interval - the length of the interval.
+   * @param unit     - the unit of the interval.
+   */
+  public LogThrottle(final int permits, final long interval, final TimeUnit unit) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("At least one message must be let through per interval");
+    }
+    if (interval < 0) {
+      throw new IllegalArgumentException("Interval cannot be negative");
+    }
+    this.permits = permits;
+    this.intervalNanos = unit.toNanos(interval);
+    this.windowStart = new AtomicLong(System.nanoTime());
+  }
+
+  /**
+   * Asks to log a message.
+   *
+   * @return the number of messages suppressed since the last one let through, or -1 if this message must be suppressed.
+   */
+  public long acquire() {
+    return acquire(System.nanoTime());
+  }
+
+  long acquire(final long now) {
+    final long start = windowStart.get();
+    if (now - start >= intervalNanos && windowStart.compareAndSet(start, now)) {
+      used.set(0);
+    }
+    // Once the permits are used, a flood only increments the suppressed count
+    if (used.get() < permits && used.incrementAndGet() <= permits) {
+      return suppressed.getAndSet(0);
+    }
+    suppressed.incrementAndGet();
+    return -1;
+  }
+
+  /**
+   * @return the number of messages suppressed since the last one let through.
+   */
+  public long getSuppressed() {
+    return suppressed.get();
+  }
+}
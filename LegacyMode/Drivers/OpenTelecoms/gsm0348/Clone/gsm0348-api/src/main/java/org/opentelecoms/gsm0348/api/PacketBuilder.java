@@ -1,5 +1,7 @@
 package org.opentelecoms.gsm0348.api;
 
+import java.nio.ByteBuffer;
+
 import org.opentelecoms.gsm0348.api.model.CardProfile;
 import org.opentelecoms.gsm0348.api.model.CommandPacket;
 import org.opentelecoms.gsm0348.api.model.ResponsePacket;
@@ -62,6 +64,27 @@ public interface PacketBuilder {
   byte[] buildCommandPacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey)
       throws PacketBuilderConfigurationException, Gsm0348Exception;
 
+  /**
+   * Builds {@linkplain CommandPacket} into a buffer, e.g. a pooled direct buffer of a network connection. The packet is written at the
+   * current position of the buffer and signed and enciphered in place, without intermediate copies of the packet. On success the position
+   * is advanced past the packet.
+   *
+   * @param data         - data to be sent. Can be null if no data sending needed.
+   * @param counter      - counter value. If not used can be null.
+   * @param cipheringKey - ciphering key. Used only if enciphering is needed, otherwise
+   *                     can be null.
+   * @param signatureKey - signature key. Used only if signing is needed, otherwise can
+   *                     be null.
+   * @param buffer       - the buffer receiving the packet.
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException    if the packet does not fit in the remaining space of the buffer.
+   * @throws PacketBuilderConfigurationException if builder if not configured or if ciphering and/or signing
+   *                                             is on but key is not provided.
+   * @throws Gsm0348Exception                    in other cases.
+   */
+  int buildCommandPacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception;
+
   /**
    * Recovers {@linkplain ResponsePacket} from byte array.
    *
@@ -98,6 +121,28 @@ public interface PacketBuilder {
   byte[] buildResponsePacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey,
                              ResponsePacketStatus responseStatus) throws PacketBuilderConfigurationException, Gsm0348Exception;
 
+  /**
+   * Builds {@linkplain ResponsePacket} into a buffer. The packet is written at the current position of the buffer and signed and
+   * enciphered in place, without intermediate copies of the packet. On success the position is advanced past the packet.
+   *
+   * @param data           - data to be sent. Can be null if no data sending needed.
+   * @param counter        - counter value. If not used can be null.
+   * @param cipheringKey   - ciphering key. Used only if enciphering is needed, otherwise
+   *                       can be null.
+   * @param signatureKey   - signature key. Used only if signing is needed, otherwise can
+   *                       be null.
+   * @param responseStatus - {@linkplain ResponsePacketStatus} of the building
+   *                       message.
+   * @param buffer         - the buffer receiving the packet.
+   * @return the number of bytes written
+   * @throws java.nio.BufferOverflowException    if the packet does not fit in the remaining space of the buffer.
+   * @throws PacketBuilderConfigurationException if builder if not configured or if ciphering and/or signing
+   *                                             is on but key is not provided.
+   * @throws Gsm0348Exception                    in other cases.
+   */
+  int buildResponsePacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey,
+                          ResponsePacketStatus responseStatus, ByteBuffer buffer) throws PacketBuilderConfigurationException, Gsm0348Exception;
+
   /**
    * Recovers {@linkplain CommandPacket} from byte array.
    *
@@ -10,14 +10,14 @@ public class Util {
     return new String(new char[]{ '0', 'x', HEX_CHARS[(b & 0xf0) >> 4], HEX_CHARS[b & 0x0f] });
   }
 
-  private static void appendHex(byte b, StringBuilder hexString) {
+  static void appendHex(byte b, StringBuilder hexString) {
     final char highNibble = HEX_CHARS[(b & 0xf0) >> 4];
     final char lowNibble = HEX_CHARS[b & 0x0f];
     hexString.append(highNibble);
     hexString.append(lowNibble);
   }
 
-  private static void appendHexPair(final byte b, final StringBuilder hexString) {
+  static void appendHexPair(final byte b, final StringBuilder hexString) {
     hexString.append("0x");
     appendHex(b, hexString);
   }
@@ -68,6 +68,52 @@ public class Util {
     throw new IllegalArgumentException("ETSI 102 220 encoded length is invalid");
   }
 
+  /**
+   * @return the number of octets {@linkplain #encodeLength(int)} returns for the length
+   */
+  public static int encodeLengthSize(final int length) {
+    if (length >= 0 && length <= 127) {
+      return 1;
+    }
+    if (length >= 128 && length <= 255) {
+      return 2;
+    }
+    if (length >= 256 && length <= 65535) {
+      return 3;
+    }
+    if (length >= 65536 && length <= 16777215) {
+      return 4;
+    }
+    throw new IllegalArgumentException("ETSI 102 220 encoded length is invalid");
+  }
+
+  /**
+   * Puts the same octets as {@linkplain #encodeLength(int)} at the current position of the buffer.
+   */
+  public static void putEncodedLength(final ByteBuffer byteBuffer, final int length) {
+    switch (encodeLengthSize(length)) {
+      case 1:
+        byteBuffer.put((byte) length);
+        break;
+      case 2:
+        byteBuffer.put((byte) 0x81).put((byte) length);
+        break;
+      case 3:
+        byteBuffer.put((byte) 0x82).put((byte) (length >> 8)).put((byte) length);
+        break;
+      default:
+        byteBuffer.put((byte) 0x83).put((byte) (length >> 16)).put((byte) (length >> 8)).put((byte) length);
+        break;
+    }
+  }
+
+  /**
+   * Puts the same octets as {@linkplain #encodeTwoBytesLength(int)} at the current position of the buffer.
+   */
+  public static void putTwoBytesLength(final ByteBuffer byteBuffer, final int length) {
+    byteBuffer.put((byte) ((length >> 8) & 0xff)).put((byte) (length & 0xff));
+  }
+
   public static int decodeLengthOne(final byte[] bytes) {
     return (bytes[0] & 0xff);
   }
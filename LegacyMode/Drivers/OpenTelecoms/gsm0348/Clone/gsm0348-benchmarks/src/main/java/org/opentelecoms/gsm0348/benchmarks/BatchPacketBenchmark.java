@@ -0,0 +1,96 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.BatchPacketBuilder;
+import org.opentelecoms.gsm0348.impl.CardKeys;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+
+/**
+ * Building the same command for a batch of cards with their own keys and counters, in the calling thread and fanned out across a
+ * {@linkplain ForkJoinPool}. The scores are per packet.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchPacketBenchmark {
+
+  private static final int CARDS = 4096;
+
+  @Param({ "SMS_PP" })
+  public TransportProtocol transportProtocol;
+
+  @Param({ "TRIPLE_DES_2_KEYS", "AES_CMAC_64" })
+  public SecurityAlgorithm algorithm;
+
+  @Param({ "128" })
+  public int payloadSize;
+
+  private BatchPacketBuilder batch;
+  private ForkJoinPool pool;
+  private byte[] data;
+  private List<CardKeys> cards;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkProfiles.registerProvider();
+    batch = new BatchPacketBuilder(new ImmutablePacketBuilder(BenchmarkProfiles.createProfile(transportProtocol, algorithm, true)));
+    pool = new ForkJoinPool();
+    data = BenchmarkProfiles.randomBytes(payloadSize, 0);
+    cards = new ArrayList<>(CARDS);
+    for (int i = 0; i < CARDS; i++) {
+      cards.add(new CardKeys(BenchmarkProfiles.randomBytes(algorithm.getCipheringKeyLength(), 2 * i + 1),
+          BenchmarkProfiles.randomBytes(algorithm.getSignatureKeyLength(), 2 * i + 2), BenchmarkProfiles.counter()));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    pool.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CARDS)
+  public byte[][] buildBatch() throws Exception {
+    return batch.buildCommandPackets(data, cards);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CARDS)
+  public byte[][] buildBatchInPool() throws Exception {
+    return batch.buildCommandPackets(data, cards, pool);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CARDS)
+  public int streamBatch(final Blackhole blackhole) throws Exception {
+    return batch.buildCommandPackets(data, cards.iterator(), new BatchPacketBuilder.PacketSink() {
+      @Override
+      public void packetBuilt(final int index, final CardKeys card, final ByteBuffer packet) {
+        blackhole.consume(packet.get(packet.limit() - 1));
+      }
+    });
+  }
+}
@@ -0,0 +1,80 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import java.security.Security;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CommandSPI;
+import org.opentelecoms.gsm0348.api.model.KIC;
+import org.opentelecoms.gsm0348.api.model.KID;
+import org.opentelecoms.gsm0348.api.model.PoRMode;
+import org.opentelecoms.gsm0348.api.model.PoRProtocol;
+import org.opentelecoms.gsm0348.api.model.ResponseSPI;
+import org.opentelecoms.gsm0348.api.model.SPI;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+/**
+ * Profiles, keys and payloads shared by the benchmarks. The random data is seeded, so every run measures the same packets.
+ */
+public final class BenchmarkProfiles {
+
+  private static final long SEED = 0x0348L;
+
+  private BenchmarkProfiles() {
+  }
+
+  public static void registerProvider() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  public static CardProfile createProfile(final TransportProtocol transportProtocol, final SecurityAlgorithm algorithm,
+                                          final boolean ciphered) {
+    final CardProfile cardProfile = new CardProfile();
+    cardProfile.setName(transportProtocol.value() + " " + algorithm + " " + (ciphered ? "ciphered" : "plain"));
+    cardProfile.setTransportProtocol(transportProtocol);
+    cardProfile.setSignatureAlgorithm(algorithm.getSignatureAlgorithm());
+    cardProfile.setTAR(new byte[]{ (byte) 0xb0, 0x00, 0x10 });
+
+    final KIC kic = new KIC();
+    kic.setAlgorithmImplementation(algorithm.getCipheringImplementation());
+    kic.setCipheringAlgorithmMode(algorithm.getCipheringMode());
+    kic.setKeysetID((byte) 1);
+    cardProfile.setKIC(kic);
+
+    final KID kid = new KID();
+    kid.setAlgorithmImplementation(algorithm.getCertificationImplementation());
+    kid.setCertificationAlgorithmMode(algorithm.getCertificationAlgorithmMode());
+    kid.setKeysetID((byte) 1);
+    cardProfile.setKID(kid);
+
+    final SPI spi = new SPI();
+    final CommandSPI commandSPI = new CommandSPI();
+    commandSPI.setCertificationMode(algorithm.getCertificationMode());
+    commandSPI.setCiphered(ciphered);
+    commandSPI.setSynchroCounterMode(SynchroCounterMode.COUNTER_REPLAY_OR_CHECK);
+    spi.setCommandSPI(commandSPI);
+
+    final ResponseSPI responseSPI = new ResponseSPI();
+    responseSPI.setCiphered(ciphered);
+    responseSPI.setPoRCertificateMode(algorithm.getCertificationMode());
+    responseSPI.setPoRMode(PoRMode.REPLY_ALWAYS);
+    responseSPI.setPoRProtocol(PoRProtocol.SMS_SUBMIT);
+    spi.setResponseSPI(responseSPI);
+    cardProfile.setSPI(spi);
+    return cardProfile;
+  }
+
+  public static byte[] randomBytes(final int length, final int salt) {
+    final byte[] bytes = new byte[length];
+    new Random(SEED + salt).nextBytes(bytes);
+    return bytes;
+  }
+
+  public static byte[] counter() {
+    return new byte[]{ 0x00, 0x00, 0x00, 0x00, 0x01 };
+  }
+}
@@ -0,0 +1,88 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.KeyHandle;
+
+/**
+ * Building and recovering of command packets for every transport protocol and security algorithm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandPacketBenchmark {
+
+  @Param({ "SMS_PP", "SMS_CB", "CAT_TP", "TCP_IP", "USSD" })
+  public TransportProtocol transportProtocol;
+
+  @Param({ "DES", "TRIPLE_DES_2_KEYS", "TRIPLE_DES_3_KEYS", "AES_CMAC_32", "AES_CMAC_64", "CRC16", "CRC32", "XOR4", "XOR8" })
+  public SecurityAlgorithm algorithm;
+
+  @Param({ "true", "false" })
+  public boolean ciphered;
+
+  @Param({ "16", "128", "1024" })
+  public int payloadSize;
+
+  private ImmutablePacketBuilder builder;
+  private byte[] data;
+  private byte[] counter;
+  private byte[] cipheringKey;
+  private byte[] signatureKey;
+  private KeyHandle keys;
+  private byte[] packet;
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkProfiles.registerProvider();
+    builder = new ImmutablePacketBuilder(BenchmarkProfiles.createProfile(transportProtocol, algorithm, ciphered));
+    data = BenchmarkProfiles.randomBytes(payloadSize, 0);
+    counter = BenchmarkProfiles.counter();
+    cipheringKey = BenchmarkProfiles.randomBytes(algorithm.getCipheringKeyLength(), 1);
+    signatureKey = BenchmarkProfiles.randomBytes(algorithm.getSignatureKeyLength(), 2);
+    keys = builder.createKeyHandle(cipheringKey, signatureKey);
+    packet = builder.buildCommandPacket(data, counter, cipheringKey, signatureKey);
+    buffer = ByteBuffer.allocateDirect(packet.length);
+  }
+
+  @Benchmark
+  public byte[] buildCommandPacket() throws Exception {
+    return builder.buildCommandPacket(data, counter, cipheringKey, signatureKey);
+  }
+
+  @Benchmark
+  public int buildCommandPacketIntoDirectBuffer() throws Exception {
+    buffer.clear();
+    return builder.buildCommandPacket(data, counter, cipheringKey, signatureKey, buffer);
+  }
+
+  @Benchmark
+  public int buildCommandPacketWithKeyHandle() throws Exception {
+    buffer.clear();
+    return builder.buildCommandPacket(keys, data, counter, buffer);
+  }
+
+  @Benchmark
+  public CommandPacket recoverCommandPacket() throws Exception {
+    return builder.recoverCommandPacket(packet, cipheringKey, signatureKey);
+  }
+}
@@ -0,0 +1,115 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+
+/**
+ * Throughput of one {@linkplain ImmutablePacketBuilder} shared by a growing number of threads. The builder has no shared mutable state,
+ * so the total throughput is expected to grow linearly with the threads up to the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketBuilderScalingBenchmark {
+
+  @Param({ "SMS_PP" })
+  public TransportProtocol transportProtocol;
+
+  @Param({ "TRIPLE_DES_2_KEYS", "AES_CMAC_64" })
+  public SecurityAlgorithm algorithm;
+
+  @Param({ "128" })
+  public int payloadSize;
+
+  private ImmutablePacketBuilder builder;
+  private byte[] data;
+  private byte[] counter;
+  private byte[] cipheringKey;
+  private byte[] signatureKey;
+  private byte[] packet;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkProfiles.registerProvider();
+    builder = new ImmutablePacketBuilder(BenchmarkProfiles.createProfile(transportProtocol, algorithm, true));
+    data = BenchmarkProfiles.randomBytes(payloadSize, 0);
+    counter = BenchmarkProfiles.counter();
+    cipheringKey = BenchmarkProfiles.randomBytes(algorithm.getCipheringKeyLength(), 1);
+    signatureKey = BenchmarkProfiles.randomBytes(algorithm.getSignatureKeyLength(), 2);
+    packet = builder.buildCommandPacket(data, counter, cipheringKey, signatureKey);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public byte[] build_01_thread() throws Exception {
+    return build();
+  }
+
+  @Benchmark
+  @Threads(2)
+  public byte[] build_02_threads() throws Exception {
+    return build();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public byte[] build_04_threads() throws Exception {
+    return build();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public byte[] build_max_threads() throws Exception {
+    return build();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public CommandPacket recover_01_thread() throws Exception {
+    return recover();
+  }
+
+  @Benchmark
+  @Threads(2)
+  public CommandPacket recover_02_threads() throws Exception {
+    return recover();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public CommandPacket recover_04_threads() throws Exception {
+    return recover();
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  public CommandPacket recover_max_threads() throws Exception {
+    return recover();
+  }
+
+  private byte[] build() throws Exception {
+    return builder.buildCommandPacket(data, counter, cipheringKey, signatureKey);
+  }
+
+  private CommandPacket recover() throws Exception {
+    return builder.recoverCommandPacket(packet, cipheringKey, signatureKey);
+  }
+}
@@ -0,0 +1,89 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.ResponsePacketView;
+
+/**
+ * Building and recovering of response packets for every transport protocol (no response is defined for SMS_CB) and security algorithm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponsePacketBenchmark {
+
+  @Param({ "SMS_PP", "CAT_TP", "TCP_IP", "USSD" })
+  public TransportProtocol transportProtocol;
+
+  @Param({ "DES", "TRIPLE_DES_2_KEYS", "TRIPLE_DES_3_KEYS", "AES_CMAC_32", "AES_CMAC_64", "CRC16", "CRC32", "XOR4", "XOR8" })
+  public SecurityAlgorithm algorithm;
+
+  @Param({ "true", "false" })
+  public boolean ciphered;
+
+  @Param({ "16", "128", "1024" })
+  public int payloadSize;
+
+  private ImmutablePacketBuilder builder;
+  private byte[] data;
+  private byte[] counter;
+  private byte[] cipheringKey;
+  private byte[] signatureKey;
+  private byte[] packet;
+  private ByteBuffer buffer;
+  private ResponsePacketView view;
+
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkProfiles.registerProvider();
+    builder = new ImmutablePacketBuilder(BenchmarkProfiles.createProfile(transportProtocol, algorithm, ciphered));
+    data = BenchmarkProfiles.randomBytes(payloadSize, 0);
+    counter = BenchmarkProfiles.counter();
+    cipheringKey = BenchmarkProfiles.randomBytes(algorithm.getCipheringKeyLength(), 1);
+    signatureKey = BenchmarkProfiles.randomBytes(algorithm.getSignatureKeyLength(), 2);
+    packet = builder.buildResponsePacket(data, counter, cipheringKey, signatureKey, ResponsePacketStatus.POR_OK);
+    buffer = ByteBuffer.allocateDirect(packet.length);
+    view = new ResponsePacketView();
+  }
+
+  @Benchmark
+  public byte[] buildResponsePacket() throws Exception {
+    return builder.buildResponsePacket(data, counter, cipheringKey, signatureKey, ResponsePacketStatus.POR_OK);
+  }
+
+  @Benchmark
+  public ResponsePacket recoverResponsePacket() throws Exception {
+    return builder.recoverResponsePacket(packet, cipheringKey, signatureKey);
+  }
+
+  /**
+   * PoR ingestion: the packet is copied into a network buffer as a socket read would do, then only the TAR, counter and status are read.
+   */
+  @Benchmark
+  public long recoverResponsePacketView() throws Exception {
+    buffer.clear();
+    buffer.put(packet);
+    buffer.flip();
+    builder.recoverResponsePacket(buffer, cipheringKey, signatureKey, view);
+    return view.getTARValue() + view.getCounterValue() + view.getStatusCode();
+  }
+}
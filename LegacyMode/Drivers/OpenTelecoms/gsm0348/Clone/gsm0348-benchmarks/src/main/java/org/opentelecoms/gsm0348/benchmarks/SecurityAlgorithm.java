@@ -0,0 +1,86 @@
+package org.opentelecoms.gsm0348.benchmarks;
+
+import org.opentelecoms.gsm0348.api.model.AlgorithmImplementation;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CipheringAlgorithmMode;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+
+/**
+ * The KIC / KID combinations measured by the benchmarks.
+ */
+public enum SecurityAlgorithm {
+  DES(AlgorithmImplementation.DES, CipheringAlgorithmMode.DES_CBC, AlgorithmImplementation.DES, CertificationAlgorithmMode.DES_CBC,
+      CertificationMode.CC, null, 8, 8),
+  TRIPLE_DES_2_KEYS(AlgorithmImplementation.DES, CipheringAlgorithmMode.TRIPLE_DES_CBC_2_KEYS, AlgorithmImplementation.DES,
+      CertificationAlgorithmMode.TRIPLE_DES_CBC_2_KEYS, CertificationMode.CC, null, 16, 16),
+  TRIPLE_DES_3_KEYS(AlgorithmImplementation.DES, CipheringAlgorithmMode.TRIPLE_DES_CBC_3_KEYS, AlgorithmImplementation.DES,
+      CertificationAlgorithmMode.TRIPLE_DES_CBC_3_KEYS, CertificationMode.CC, null, 24, 24),
+  AES_CMAC_32(AlgorithmImplementation.AES, CipheringAlgorithmMode.AES_CBC, AlgorithmImplementation.AES, CertificationAlgorithmMode.AES_CMAC,
+      CertificationMode.CC, SignatureManager.AES_CMAC_32, 16, 16),
+  AES_CMAC_64(AlgorithmImplementation.AES, CipheringAlgorithmMode.AES_CBC, AlgorithmImplementation.AES, CertificationAlgorithmMode.AES_CMAC,
+      CertificationMode.CC, SignatureManager.AES_CMAC_64, 16, 16),
+  CRC16(AlgorithmImplementation.DES, CipheringAlgorithmMode.DES_CBC, AlgorithmImplementation.CRC, CertificationAlgorithmMode.CRC_16,
+      CertificationMode.RC, SignatureManager.CRC_16, 8, 8),
+  CRC32(AlgorithmImplementation.DES, CipheringAlgorithmMode.DES_CBC, AlgorithmImplementation.CRC, CertificationAlgorithmMode.CRC_32,
+      CertificationMode.RC, SignatureManager.CRC_32, 8, 8),
+  XOR4(AlgorithmImplementation.DES, CipheringAlgorithmMode.DES_CBC, AlgorithmImplementation.ALGORITHM_KNOWN_BY_BOTH_ENTITIES,
+      CertificationAlgorithmMode.XOR_4, CertificationMode.RC, SignatureManager.XOR4, 8, 8),
+  XOR8(AlgorithmImplementation.DES, CipheringAlgorithmMode.DES_CBC, AlgorithmImplementation.ALGORITHM_KNOWN_BY_BOTH_ENTITIES,
+      CertificationAlgorithmMode.XOR_8, CertificationMode.RC, SignatureManager.XOR8, 8, 8);
+
+  private final AlgorithmImplementation cipheringImplementation;
+  private final CipheringAlgorithmMode cipheringMode;
+  private final AlgorithmImplementation certificationImplementation;
+  private final CertificationAlgorithmMode certificationAlgorithmMode;
+  private final CertificationMode certificationMode;
+  private final String signatureAlgorithm;
+  private final int cipheringKeyLength;
+  private final int signatureKeyLength;
+
+  SecurityAlgorithm(final AlgorithmImplementation cipheringImplementation, final CipheringAlgorithmMode cipheringMode,
+                    final AlgorithmImplementation certificationImplementation, final CertificationAlgorithmMode certificationAlgorithmMode,
+                    final CertificationMode certificationMode, final String signatureAlgorithm, final int cipheringKeyLength,
+                    final int signatureKeyLength) {
+    this.cipheringImplementation = cipheringImplementation;
+    this.cipheringMode = cipheringMode;
+    this.certificationImplementation = certificationImplementation;
+    this.certificationAlgorithmMode = certificationAlgorithmMode;
+    this.certificationMode = certificationMode;
+    this.signatureAlgorithm = signatureAlgorithm;
+    this.cipheringKeyLength = cipheringKeyLength;
+    this.signatureKeyLength = signatureKeyLength;
+  }
+
+  public AlgorithmImplementation getCipheringImplementation() {
+    return cipheringImplementation;
+  }
+
+  public CipheringAlgorithmMode getCipheringMode() {
+    return cipheringMode;
+  }
+
+  public AlgorithmImplementation getCertificationImplementation() {
+    return certificationImplementation;
+  }
+
+  public CertificationAlgorithmMode getCertificationAlgorithmMode() {
+    return certificationAlgorithmMode;
+  }
+
+  public CertificationMode getCertificationMode() {
+    return certificationMode;
+  }
+
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+
+  public int getCipheringKeyLength() {
+    return cipheringKeyLength;
+  }
+
+  public int getSignatureKeyLength() {
+    return signatureKeyLength;
+  }
+}
@@ -1,20 +1,30 @@
 package org.opentelecoms.gsm0348.impl.crypto;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.Provider;
 import java.security.Security;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
-import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.api.LazyHex;
+import org.opentelecoms.gsm0348.api.LogThrottle;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,6 +36,8 @@ import org.slf4j.LoggerFactory;
  */
 public class CipheringManager {
   private static final Logger LOGGER = LoggerFactory.getLogger(CipheringManager.class);
+  // Failures mostly come from corrupted packets, at most 10 of them are logged per second
+  private static final LogThrottle FAILURE_LOG = new LogThrottle(10, 1, TimeUnit.SECONDS);
 
   static {
     if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
@@ -40,6 +52,29 @@ public class CipheringManager {
     }
   }
 
+  /*
+   * Cipher instances are not thread safe, so every thread keeps its own engine per transformation. The engine remembers the mode and key it was
+   * initialized with; as doFinal() resets a cipher to its initialized state, the next call with the same key skips the provider lookup, the key
+   * checks and the key schedule expansion.
+   */
+  private static final ThreadLocal<Map<String, CachedCipher>> CIPHERS = new ThreadLocal<Map<String, CachedCipher>>() {
+    @Override
+    protected Map<String, CachedCipher> initialValue() {
+      return new HashMap<>();
+    }
+  };
+
+  private static final int SCRATCH_SIZE = 512;
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private static final ConcurrentMap<String, Integer> BLOCK_SIZES = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Integer> MAX_KEY_LENGTHS = new ConcurrentHashMap<>();
+
   private CipheringManager() {
   }
 
@@ -48,6 +83,28 @@ public class CipheringManager {
     return Cipher.getInstance(alg);
   }
 
+  private static CachedCipher getCachedCipher(final String transformation) throws NoSuchAlgorithmException, NoSuchPaddingException {
+    final Map<String, CachedCipher> ciphers = CIPHERS.get();
+    CachedCipher cached = ciphers.get(transformation);
+    if (cached == null) {
+      cached = new CachedCipher(getCipher(transformation));
+      ciphers.put(transformation, cached);
+    }
+    return cached;
+  }
+
+  private static void evictCachedCipher(final String transformation) {
+    CIPHERS.get().remove(transformation);
+  }
+
+  /**
+   * @return the engine the current thread keeps for the transformation, null if none.
+   */
+  static Cipher getCachedCipherInstance(final String transformation) {
+    final CachedCipher cached = CIPHERS.get().get(transformation);
+    return cached == null ? null : cached.cipher;
+  }
+
   /**
    * Returns block size for transformation name specified. Name can be specified ether by only name, e.g., DES or with mode and padding, e.g.,
    * DES/EDE/ZeroBytePadding.
@@ -62,8 +119,13 @@ public class CipheringManager {
     if (transformation == null || transformation.length() == 0) {
       throw new IllegalArgumentException("Transformation name can not be null or empty");
     }
+    final Integer cachedBlockSize = BLOCK_SIZES.get(transformation);
+    if (cachedBlockSize != null) {
+      return cachedBlockSize;
+    }
     final int blockSize = getCipher(transformation).getBlockSize();
     LOGGER.trace("The block size for transformation {} is {}", transformation, blockSize);
+    BLOCK_SIZES.putIfAbsent(transformation, blockSize);
     return blockSize;
   }
 
@@ -88,14 +150,24 @@ public class CipheringManager {
     return doWork(transformation, key, data, Cipher.DECRYPT_MODE);
   }
 
+  private static int getMaxAllowedKeyLength(final String transformation) throws NoSuchAlgorithmException {
+    final Integer cachedMaxKeyLength = MAX_KEY_LENGTHS.get(transformation);
+    if (cachedMaxKeyLength != null) {
+      return cachedMaxKeyLength;
+    }
+    final int maxKeyLength = Cipher.getMaxAllowedKeyLength(transformation);
+    MAX_KEY_LENGTHS.putIfAbsent(transformation, maxKeyLength);
+    return maxKeyLength;
+  }
+
   private static void initCipher(final Cipher cipher, final int mode, final byte[] key)
       throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
     LOGGER.debug("Initializing cipher: {} key length: {} bits", cipher.getAlgorithm(), key.length * 8);
     final int blockSize = getBlockSize(cipher.getAlgorithm());
     LOGGER.trace("Block size for {}: {}", cipher.getAlgorithm(), blockSize);
     final SecretKeySpec keySpec = new SecretKeySpec(key, cipher.getAlgorithm());
-    if (key.length > Cipher.getMaxAllowedKeyLength(cipher.getAlgorithm())) {
-      LOGGER.error("The maximum allowed key length is {} for {}", Cipher.getMaxAllowedKeyLength(cipher.getAlgorithm()), cipher.getAlgorithm());
+    if (key.length > getMaxAllowedKeyLength(cipher.getAlgorithm())) {
+      LOGGER.error("The maximum allowed key length is {} for {}", getMaxAllowedKeyLength(cipher.getAlgorithm()), cipher.getAlgorithm());
       throw new IllegalArgumentException("The key length is above the maximum, please install JCE unlimited strength jurisdiction policy files");
     }
     final IvParameterSpec ivParameterSpec =
@@ -139,36 +211,186 @@ public class CipheringManager {
     }
     Cipher cipher = null;
     try {
-      cipher = getCipher(transformation);
-      initCipher(cipher, mode, key);
+      cipher = getInitializedCipher(transformation, key, mode);
       byte[] result = cipher.doFinal(data);
       return result;
     } catch (IllegalBlockSizeException e) {
-      LOGGER.error(
-          "Illegal block size. Input data size is " + data.length + " cipher block size is " + cipher.getBlockSize()
-              + " cipher name is " + cipher.getAlgorithm(), e);
+      evictCachedCipher(transformation);
+      logFailure("Illegal block size. Input data size is {} cipher block size is {} cipher name is {}", data.length,
+          cipher.getBlockSize(), cipher.getAlgorithm(), e);
       throw e;
     } catch (BadPaddingException e) {
-      LOGGER.error(
-          "Data is not padded correctly. Input data size is " + data.length + " cipher block size is "
-              + cipher.getBlockSize() + " cipher name is " + cipher.getAlgorithm() + " data=["
-              + Util.toHexArray(data) + "]", e);
+      evictCachedCipher(transformation);
+      logFailure("Data is not padded correctly. Input data size is {} cipher block size is {} cipher name is {} data=[{}]",
+          data.length, cipher.getBlockSize(), cipher.getAlgorithm(), LazyHex.array(data), e);
       throw e;
     } catch (InvalidAlgorithmParameterException e) {
-      LOGGER.error("Invalid algorithm parameters. Transformation name:" + transformation, e);
+      evictCachedCipher(transformation);
+      logFailure("Invalid algorithm parameters. Transformation name:{}", transformation, e);
       throw e;
     } catch (NoSuchAlgorithmException e) {
-      LOGGER.error("Algorithm not found. Transformation name:" + transformation, e);
+      logFailure("Algorithm not found. Transformation name:{}", transformation, e);
       throw e;
     } catch (NoSuchPaddingException e) {
-      LOGGER.error("Padding scheme not found. Transformation name:" + transformation, e);
+      logFailure("Padding scheme not found. Transformation name:{}", transformation, e);
       throw e;
     } catch (InvalidKeyException e) {
-      LOGGER.error("Invalid key provided. Key:" + Util.toHexArray(key), e);
+      evictCachedCipher(transformation);
+      logFailure("Invalid key provided. Key length: {} bytes", key.length, e);
+      throw e;
+    } catch (RuntimeException e) {
+      evictCachedCipher(transformation);
+      throw e;
+    }
+  }
+
+  /**
+   * Enciphers a range of the buffer in place. The transformation must not add padding, e.g. NoPadding with data aligned on the block size.
+   * Heap buffers are processed directly on their array, direct buffers through small per thread arrays, so the call does not allocate.
+   * The position and limit of the buffer are not changed.
+   *
+   * @param transformation - the name of the transformation, e.g., DES/CBC/NoPadding.
+   * @param key            - key for cipher.
+   * @param buffer         - the buffer holding the data.
+   * @param offset         - the absolute index of the first octet to encipher.
+   * @param length         - the number of octets to encipher.
+   * @return the number of octets written at offset
+   * @throws ShortBufferException if the enciphered data does not fit between offset and the limit of the buffer.
+   * @see #encipher(String, byte[], byte[])
+   */
+  public static int encipher(final String transformation, final byte[] key, final ByteBuffer buffer, final int offset, final int length)
+      throws IllegalBlockSizeException, BadPaddingException, ShortBufferException, InvalidAlgorithmParameterException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    return doWork(transformation, key, buffer, offset, length, Cipher.ENCRYPT_MODE);
+  }
+
+  /**
+   * Deciphers a range of the buffer in place. The position and limit of the buffer are not changed.
+   *
+   * @param transformation - the name of the transformation, e.g., DES/CBC/NoPadding.
+   * @param key            - key for cipher.
+   * @param buffer         - the buffer holding the data.
+   * @param offset         - the absolute index of the first octet to decipher.
+   * @param length         - the number of octets to decipher.
+   * @return the number of octets written at offset
+   * @throws ShortBufferException if the deciphered data does not fit between offset and the limit of the buffer.
+   * @see #decipher(String, byte[], byte[])
+   * @see #encipher(String, byte[], ByteBuffer, int, int)
+   */
+  public static int decipher(final String transformation, final byte[] key, final ByteBuffer buffer, final int offset, final int length)
+      throws IllegalBlockSizeException, BadPaddingException, ShortBufferException, InvalidAlgorithmParameterException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    return doWork(transformation, key, buffer, offset, length, Cipher.DECRYPT_MODE);
+  }
+
+  private static int doWork(final String transformation, final byte[] key, final ByteBuffer buffer, final int offset, final int length,
+                            final int mode)
+      throws IllegalBlockSizeException, BadPaddingException, ShortBufferException, InvalidAlgorithmParameterException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException {
+    if (transformation == null || transformation.length() == 0 || key == null || buffer == null) {
+      throw new IllegalArgumentException();
+    }
+    if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside of the buffer limit " + buffer.limit());
+    }
+    try {
+      return doFinal(getInitializedCipher(transformation, key, mode), buffer, offset, length);
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      logFailure("Cipher not available. Transformation name:{}", transformation, e);
+      throw e;
+    } catch (GeneralSecurityException | RuntimeException e) {
+      evictCachedCipher(transformation);
+      logFailure("Could not {} {} bytes with {}", mode == Cipher.ENCRYPT_MODE ? "encipher" : "decipher", length, transformation, e);
       throw e;
     }
   }
 
+  private static void logFailure(final String format, final Object... arguments) {
+    if (!LOGGER.isErrorEnabled()) {
+      return;
+    }
+    final long suppressed = FAILURE_LOG.acquire();
+    if (suppressed > 0) {
+      LOGGER.error("{} similar ciphering failures were not logged", suppressed);
+    }
+    if (suppressed >= 0) {
+      LOGGER.error(format, arguments);
+    }
+  }
+
+  /**
+   * Creates a cipher of its own for the caller, initialized with the key, e.g. to keep the expanded key schedule of a card across packets.
+   * The cipher is not thread-safe.
+   *
+   * @param transformation - the name of the transformation, e.g., DES/CBC/NoPadding.
+   * @param key            - key for cipher.
+   * @param mode           - {@linkplain Cipher#ENCRYPT_MODE} or {@linkplain Cipher#DECRYPT_MODE}.
+   * @return the initialized cipher
+   * @see #doFinal(Cipher, ByteBuffer, int, int)
+   */
+  public static Cipher createCipher(final String transformation, final byte[] key, final int mode)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+    if (transformation == null || transformation.length() == 0 || key == null) {
+      throw new IllegalArgumentException();
+    }
+    final Cipher cipher = getCipher(transformation);
+    initCipher(cipher, mode, key);
+    return cipher;
+  }
+
+  /**
+   * Enciphers or deciphers, depending on the mode of the initialized cipher, a range of the buffer in place. The cipher is back to its
+   * initialized state afterwards. The position and limit of the buffer are not changed.
+   *
+   * @param cipher - the initialized cipher.
+   * @param buffer - the buffer holding the data.
+   * @param offset - the absolute index of the first octet.
+   * @param length - the number of octets.
+   * @return the number of octets written at offset
+   * @throws ShortBufferException if the output does not fit between offset and the limit of the buffer.
+   * @see #encipher(String, byte[], ByteBuffer, int, int)
+   */
+  public static int doFinal(final Cipher cipher, final ByteBuffer buffer, final int offset, final int length)
+      throws IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+    if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+      throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " is outside of the buffer limit " + buffer.limit());
+    }
+    if (cipher.getOutputSize(length) > buffer.limit() - offset) {
+      throw new ShortBufferException("The output of " + cipher.getAlgorithm() + " does not fit in the buffer");
+    }
+    if (buffer.hasArray()) {
+      // Cipher is copy-safe, input and output may be the same array
+      final int position = buffer.arrayOffset() + offset;
+      return cipher.doFinal(buffer.array(), position, length, buffer.array(), position);
+    }
+    // The output never gets ahead of the input, so each chunk is read before it is overwritten
+    final Scratch scratch = SCRATCH.get();
+    final ByteBuffer input = buffer.duplicate();
+    input.position(offset);
+    final ByteBuffer output = buffer.duplicate();
+    output.position(offset);
+    int remaining = length;
+    while (remaining > 0) {
+      final int chunk = Math.min(remaining, scratch.input.length);
+      input.get(scratch.input, 0, chunk);
+      output.put(scratch.output, 0, cipher.update(scratch.input, 0, chunk, scratch.output, 0));
+      remaining -= chunk;
+    }
+    output.put(scratch.output, 0, cipher.doFinal(scratch.output, 0));
+    return output.position() - offset;
+  }
+
+  private static Cipher getInitializedCipher(final String transformation, final byte[] key, final int mode)
+      throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidAlgorithmParameterException, InvalidKeyException {
+    final CachedCipher cached = getCachedCipher(transformation);
+    if (!cached.isInitializedWith(mode, key)) {
+      cached.invalidate();
+      initCipher(cached.cipher, mode, key);
+      cached.initialized(mode, key);
+    }
+    return cached.cipher;
+  }
+
   protected static int aligned(final int length, final int blockSize) {
     final int align = length % blockSize;
     if (0 != align) {
@@ -176,4 +398,36 @@ public class CipheringManager {
     }
     return length;
   }
+
+  private static final class Scratch {
+    // A multiple of every block size, the output has room for one more block held back by the cipher
+    private final byte[] input = new byte[SCRATCH_SIZE];
+    private final byte[] output = new byte[SCRATCH_SIZE + 32];
+  }
+
+  private static final class CachedCipher {
+    private final Cipher cipher;
+    private int mode;
+    private byte[] key;
+
+    private CachedCipher(final Cipher cipher) {
+      this.cipher = cipher;
+    }
+
+    private boolean isInitializedWith(final int mode, final byte[] key) {
+      return this.key != null && this.mode == mode && Arrays.equals(this.key, key);
+    }
+
+    private void initialized(final int mode, final byte[] key) {
+      this.mode = mode;
+      this.key = key.clone();
+    }
+
+    private void invalidate() {
+      if (key != null) {
+        Arrays.fill(key, (byte) 0);
+        key = null;
+      }
+    }
+  }
 }
@@ -1,16 +1,21 @@
 package org.opentelecoms.gsm0348.impl.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.api.LazyHex;
+import org.opentelecoms.gsm0348.api.LogThrottle;
+import org.opentelecoms.gsm0348.impl.crypto.mac.AESCMAC;
+import org.opentelecoms.gsm0348.impl.crypto.mac.AbstractCipherMac;
 import org.opentelecoms.gsm0348.impl.crypto.mac.CRC16X25;
 import org.opentelecoms.gsm0348.impl.crypto.mac.CRC32;
 import org.opentelecoms.gsm0348.impl.crypto.mac.DESMACISO9797M1;
+import org.opentelecoms.gsm0348.impl.crypto.mac.JceMac;
 import org.opentelecoms.gsm0348.impl.crypto.mac.XOR4;
 import org.opentelecoms.gsm0348.impl.crypto.mac.XOR8;
 import org.opentelecoms.gsm0348.impl.crypto.params.KeyParameter;
@@ -34,77 +39,225 @@ public class SignatureManager {
   public static final String XOR4 = "XOR4";
   public static final String XOR8 = "XOR8";
   private static final Logger LOGGER = LoggerFactory.getLogger(SignatureManager.class);
+  // Mismatches come from the network, at most 10 of them are logged per second
+  private static final LogThrottle MISMATCH_LOG = new LogThrottle(10, 1, TimeUnit.SECONDS);
+
+  // Large enough for any signature
+  private static final int SCRATCH_SIZE = 256;
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[SCRATCH_SIZE];
+    }
+  };
+
+  /*
+   * MACs are not thread safe, so every thread keeps one engine per algorithm. The keyed engines skip the key schedule when they are
+   * initialized again with the same key.
+   */
+  private static final ThreadLocal<Map<String, Mac>> MACS = new ThreadLocal<Map<String, Mac>>() {
+    @Override
+    protected Map<String, Mac> initialValue() {
+      return new HashMap<>();
+    }
+  };
 
   private SignatureManager() {
   }
 
-  private static Mac getMac(String algName, byte[] key) throws InvalidKeyException, NoSuchAlgorithmException {
-    LOGGER.debug("Creating MAC for name: {} with key length {}", algName, key.length);
-    Mac mac = Mac.getInstance(algName);
-    SecretKeySpec keySpec = new SecretKeySpec(key, algName);
-    mac.init(keySpec);
+  /**
+   * Returns the MAC of the calling thread for the signature algorithm, initialized with the key. The MAC is reused by the next call for
+   * the same algorithm in this thread, so it must be completed before and must not be handed to other threads. Use
+   * {@linkplain #createMac(String, byte[])} for a MAC of your own.
+   *
+   * @param algName - the signature algorithm name.
+   * @param key     - the signature key.
+   * @return the initialized MAC
+   * @throws NoSuchAlgorithmException if the algorithm is not supported
+   * @throws InvalidKeyException      if the key is not valid for the algorithm
+   */
+  public static Mac getMac(String algName, byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
+    final Map<String, Mac> macs = MACS.get();
+    Mac mac = macs.get(algName);
+    if (mac == null) {
+      mac = createMac(algName, key);
+      macs.put(algName, mac);
+      return mac;
+    }
+    if (mac instanceof AbstractCipherMac) {
+      ((AbstractCipherMac) mac).init(key);
+    } else if (mac instanceof AESCMAC) {
+      ((AESCMAC) mac).init(key);
+    } else if (mac instanceof JceMac) {
+      ((JceMac) mac).init(key);
+    } else {
+      // The redundancy checks have no key
+      mac.reset();
+    }
     return mac;
   }
 
-  private static byte[] runOwnMac(org.opentelecoms.gsm0348.impl.crypto.Mac mac, byte[] key, byte[] data) {
-    // TODO: Fix incorrect IV value - should be the length of the block of underlying cipher not a magical constant
-    CipherParameters params = new ParametersWithIV(new KeyParameter(key), new byte[8]);
-    mac.init(params);
-    mac.update(data, 0, data.length);
-    byte[] result = new byte[mac.getMacSize()];
-    mac.doFinal(result, 0);
-    return result;
-  }
-
-  public static byte[] sign(String algName, byte[] key, byte[] data)
-      throws NoSuchAlgorithmException, InvalidKeyException {
-    LOGGER.debug("Signing with algorithm {}, data {} length {}", algName, Util.toHexString(data), data.length);
+  /**
+   * Creates a MAC for the signature algorithm, initialized with the key. Use it to sign data that is not in one array, e.g. with
+   * {@linkplain #update(Mac, ByteBuffer, int, int)} and {@linkplain #doFinal(Mac, ByteBuffer, int)}. The MAC is not thread-safe.
+   *
+   * @param algName - the signature algorithm name.
+   * @param key     - the signature key.
+   * @return the initialized MAC
+   * @throws NoSuchAlgorithmException if the algorithm is not supported
+   * @throws InvalidKeyException      if the key is not valid for the algorithm
+   */
+  public static Mac createMac(String algName, byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
     if (DES_MAC8_ISO9797_M1.equals(algName)) {
-      return runOwnMac(new DESMACISO9797M1(), key, data);
+      return initOwnMac(new DESMACISO9797M1(), key);
     }
     if (CRC_16.equals(algName)) {
-      return runOwnMac(new CRC16X25(), key, data);
+      return initOwnMac(new CRC16X25(), key);
     }
     if (CRC_32.equals(algName)) {
-      return runOwnMac(new CRC32(), key, data);
+      return initOwnMac(new CRC32(), key);
     }
     if (AES_CMAC_64.equals(algName)) {
-      return truncate(doWork("AESCMAC", key, data), 8);
+      return initAesCmac(new AESCMAC(8), key);
     }
     if (AES_CMAC_32.equals(algName)) {
-      return truncate(doWork("AESCMAC", key, data), 4);
+      return initAesCmac(new AESCMAC(4), key);
     }
     if (XOR4.equals(algName)) {
-      return runOwnMac(new XOR4(), key, data);
+      return initOwnMac(new XOR4(), key);
     }
     if (XOR8.equals(algName)) {
-      return runOwnMac(new XOR8(), key, data);
+      return initOwnMac(new XOR8(), key);
     }
-    return doWork(algName, key, data);
+    return initJceMac(new JceMac(algName), key);
+  }
+
+  private static Mac initOwnMac(Mac mac, byte[] key) {
+    // TODO: Fix incorrect IV value - should be the length of the block of underlying cipher not a magical constant
+    CipherParameters params = new ParametersWithIV(new KeyParameter(key), new byte[8]);
+    mac.init(params);
+    return mac;
   }
 
-  private static byte[] truncate(final byte[] signature, final int length) {
-    final byte[] value = new byte[length];
-    System.arraycopy(signature, 0, value, 0, length);
-    return value;
+  private static Mac initAesCmac(AESCMAC mac, byte[] key) throws InvalidKeyException {
+    mac.init(key);
+    return mac;
+  }
+
+  private static Mac initJceMac(JceMac mac, byte[] key) throws InvalidKeyException {
+    LOGGER.debug("Creating MAC for name: {} with key length {}", mac.getAlgorithmName(), key.length);
+    mac.init(key);
+    return mac;
+  }
+
+  public static byte[] sign(String algName, byte[] key, byte[] data)
+      throws NoSuchAlgorithmException, InvalidKeyException {
+    final boolean debug = LOGGER.isDebugEnabled();
+    if (debug) {
+      LOGGER.debug("Signing with algorithm {}, data {} length {}", algName, LazyHex.string(data), data.length);
+    }
+    final Mac mac = getMac(algName, key);
+    mac.update(data, 0, data.length);
+    final byte[] result = new byte[mac.getMacSize()];
+    mac.doFinal(result, 0);
+    if (debug) {
+      LOGGER.debug("MAC {} length: {} result: {}", algName, result.length, LazyHex.string(result));
+    }
+    return result;
+  }
+
+  /**
+   * Adds a range of the buffer to the MAC. The position and limit of the buffer are not changed, direct buffers are read through a small
+   * per thread array.
+   *
+   * @param mac    - the MAC to update.
+   * @param buffer - the buffer holding the data.
+   * @param offset - the absolute index of the first octet.
+   * @param length - the number of octets.
+   */
+  public static void update(Mac mac, ByteBuffer buffer, int offset, int length) {
+    if (buffer.hasArray()) {
+      mac.update(buffer.array(), buffer.arrayOffset() + offset, length);
+      return;
+    }
+    final byte[] scratch = SCRATCH.get();
+    final ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    int remaining = length;
+    while (remaining > 0) {
+      final int chunk = Math.min(remaining, scratch.length);
+      source.get(scratch, 0, chunk);
+      mac.update(scratch, 0, chunk);
+      remaining -= chunk;
+    }
+  }
+
+  /**
+   * Completes the MAC and puts the result into the buffer. The position and limit of the buffer are not changed.
+   *
+   * @param mac    - the MAC to complete.
+   * @param buffer - the buffer receiving the signature.
+   * @param offset - the absolute index of the signature in the buffer.
+   * @return the length of the signature
+   */
+  public static int doFinal(Mac mac, ByteBuffer buffer, int offset) {
+    if (buffer.hasArray()) {
+      return mac.doFinal(buffer.array(), buffer.arrayOffset() + offset);
+    }
+    final byte[] scratch = SCRATCH.get();
+    final int length = mac.doFinal(scratch, 0);
+    final ByteBuffer target = buffer.duplicate();
+    target.position(offset);
+    target.put(scratch, 0, length);
+    return length;
+  }
+
+  /**
+   * Completes the MAC and compares the result with the signature in the buffer. The comparison takes the same time wherever the first
+   * difference is. The position and limit of the buffer are not changed.
+   *
+   * @param mac    - the MAC to complete.
+   * @param buffer - the buffer holding the signature.
+   * @param offset - the absolute index of the signature in the buffer.
+   * @return true if the signature matches
+   */
+  public static boolean verify(Mac mac, ByteBuffer buffer, int offset) {
+    final byte[] scratch = SCRATCH.get();
+    final int length = mac.doFinal(scratch, 0);
+    int difference = 0;
+    for (int i = 0; i < length; i++) {
+      difference |= scratch[i] ^ buffer.get(offset + i);
+    }
+    final boolean ok = difference == 0;
+    if (!ok) {
+      logMismatch(LazyHex.string(buffer, offset, length), LazyHex.string(scratch, 0, length));
+    }
+    return ok;
   }
 
   public static boolean verify(String algName, byte[] key, byte[] data, byte[] signature)
       throws NoSuchAlgorithmException, InvalidKeyException {
     LOGGER.debug("Verifying with algorithm {}. Data length: {}", algName, data.length);
     final byte[] calculatedSignature = sign(algName, key, data);
-    final boolean ok = Arrays.equals(signature, calculatedSignature);
+    // Constant time comparison
+    final boolean ok = MessageDigest.isEqual(signature, calculatedSignature);
     if (!ok) {
-      LOGGER.warn("Expecting signature {}, but found {}", Util.toHexString(signature), Util.toHexString(calculatedSignature));
+      logMismatch(LazyHex.string(signature), LazyHex.string(calculatedSignature));
     }
     return ok;
   }
 
-  private static byte[] doWork(final String algName, byte[] key, byte[] data) throws InvalidKeyException, NoSuchAlgorithmException {
-    final Mac mac = getMac(algName, key);
-    final byte[] result = mac.doFinal(data);
-    LOGGER.debug("MAC {} length: {} result: {}", algName, mac.getMacLength(), Util.toHexString(result));
-    return result;
+  private static void logMismatch(final LazyHex signature, final LazyHex calculatedSignature) {
+    if (!LOGGER.isWarnEnabled()) {
+      return;
+    }
+    final long suppressed = MISMATCH_LOG.acquire();
+    if (suppressed > 0) {
+      LOGGER.warn("{} signature mismatches were not logged", suppressed);
+    }
+    if (suppressed >= 0) {
+      LOGGER.warn("Expecting signature {}, but found {}", signature, calculatedSignature);
+    }
   }
 
   public static int signLength(final String algName) throws NoSuchAlgorithmException {
@@ -124,7 +277,7 @@ public class SignatureManager {
       case XOR8:
         return 8;
     }
-    Mac mac = Mac.getInstance(algName);
+    javax.crypto.Mac mac = javax.crypto.Mac.getInstance(algName);
     return mac.getMacLength();
   }
 }
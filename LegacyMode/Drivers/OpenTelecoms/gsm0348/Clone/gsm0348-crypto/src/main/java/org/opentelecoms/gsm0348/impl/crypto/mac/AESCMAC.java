@@ -0,0 +1,234 @@
+package org.opentelecoms.gsm0348.impl.crypto.mac;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opentelecoms.gsm0348.impl.crypto.CipherParameters;
+import org.opentelecoms.gsm0348.impl.crypto.Mac;
+import org.opentelecoms.gsm0348.impl.crypto.params.KeyParameter;
+import org.opentelecoms.gsm0348.impl.crypto.params.ParametersWithIV;
+
+/**
+ * AES-CMAC of NIST SP 800-38B / RFC 4493, truncated to its leftmost octets as used by ETSI TS 102 225 (4 or 8 octets).
+ * <p>
+ * The engine keeps the AES key schedule and the K1/K2 subkeys of its key; they are only computed again when the key changes. The tag is
+ * written straight into the caller's array and nothing is allocated by {@linkplain #update(byte)}, {@linkplain #update(byte[], int, int)}
+ * and {@linkplain #doFinal(byte[], int)}, which resets the MAC for the next message.
+ */
+public class AESCMAC implements Mac {
+
+  private static final int BLOCK_SIZE = 16;
+  // Blocks are enciphered in chunks of this size
+  private static final int CHUNK_SIZE = 256;
+  private static final int RB = 0x87;
+
+  private final int size;
+  private final Cipher cipher;
+  private final byte[] k1 = new byte[BLOCK_SIZE];
+  private final byte[] k2 = new byte[BLOCK_SIZE];
+  // The last block is held back until more data comes, as it is combined with a subkey
+  private final byte[] block = new byte[BLOCK_SIZE];
+  private int blockOffset;
+  private final byte[] tag = new byte[BLOCK_SIZE];
+  private final byte[] chunk = new byte[CHUNK_SIZE];
+  private byte[] key;
+
+  public AESCMAC() throws NoSuchAlgorithmException {
+    this(BLOCK_SIZE);
+  }
+
+  /**
+   * @param size - the length of the truncated MAC, 1 to 16 octets.
+   * @throws NoSuchAlgorithmException if AES is not available
+   */
+  public AESCMAC(final int size) throws NoSuchAlgorithmException {
+    if (size < 1 || size > BLOCK_SIZE) {
+      throw new IllegalArgumentException("Invalid MAC size " + size + " for AES-CMAC");
+    }
+    this.size = size;
+    // CBC with a zero IV is CMAC before the last block, and the first block of zeros gives L
+    try {
+      this.cipher = Cipher.getInstance("AES/CBC/NoPadding");
+    } catch (NoSuchPaddingException e) {
+      throw new NoSuchAlgorithmException(e);
+    }
+  }
+
+  public void init(CipherParameters cipheringParams) throws IllegalArgumentException {
+    if (cipheringParams instanceof ParametersWithIV) {
+      cipheringParams = ((ParametersWithIV) cipheringParams).getParameters();
+    }
+    if (!(cipheringParams instanceof KeyParameter)) {
+      throw new IllegalArgumentException("cipheringParams must contain KeyParameter");
+    }
+    final byte[] key = ((KeyParameter) cipheringParams).getKey();
+    if (key == null) {
+      throw new IllegalArgumentException("Key cannot be null");
+    }
+    try {
+      init(key);
+    } catch (InvalidKeyException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+  }
+
+  /**
+   * Initializes the MAC with the key. When the key is the same as in the previous call the MAC is only reset, keeping its key schedule
+   * and subkeys.
+   *
+   * @param key - the AES key, 16, 24 or 32 octets.
+   * @throws InvalidKeyException if the key is not a valid AES key
+   */
+  public void init(final byte[] key) throws InvalidKeyException {
+    if (key == null) {
+      throw new IllegalArgumentException("Key cannot be null");
+    }
+    if (this.key != null && Arrays.equals(this.key, key)) {
+      reset();
+      return;
+    }
+    clearKey();
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(new byte[BLOCK_SIZE]));
+      // L = AES(K, 0^128)
+      Arrays.fill(tag, (byte) 0);
+      cipher.doFinal(tag, 0, BLOCK_SIZE, tag, 0);
+    } catch (InvalidKeyException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+    doubling(tag, k1);
+    doubling(k1, k2);
+    Arrays.fill(tag, (byte) 0);
+    this.key = key.clone();
+    blockOffset = 0;
+  }
+
+  public String getAlgorithmName() {
+    return "AESCMAC";
+  }
+
+  public int getMacSize() {
+    return size;
+  }
+
+  public void update(byte input) throws IllegalStateException {
+    checkInitialized();
+    if (blockOffset == BLOCK_SIZE) {
+      encipher(block, 0, BLOCK_SIZE);
+      blockOffset = 0;
+    }
+    block[blockOffset++] = input;
+  }
+
+  public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
+    checkInitialized();
+    if (inputLen <= 0) {
+      return;
+    }
+    int offset = inputOffset;
+    int remaining = inputLen;
+    final int free = BLOCK_SIZE - blockOffset;
+    if (remaining <= free) {
+      System.arraycopy(input, offset, block, blockOffset, remaining);
+      blockOffset += remaining;
+      return;
+    }
+    // The held back block is not the last one any more
+    System.arraycopy(input, offset, block, blockOffset, free);
+    encipher(block, 0, BLOCK_SIZE);
+    offset += free;
+    remaining -= free;
+    // Keep at least one octet, i.e. the last (partial or full) block, for doFinal
+    final int blocks = (remaining - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    if (blocks > 0) {
+      encipher(input, offset, blocks);
+    }
+    blockOffset = remaining - blocks;
+    System.arraycopy(input, offset + blocks, block, 0, blockOffset);
+  }
+
+  public int doFinal(byte[] output, int outputOffset) throws IllegalStateException {
+    checkInitialized();
+    final byte[] subkey;
+    if (blockOffset == BLOCK_SIZE) {
+      subkey = k1;
+    } else {
+      // Padding 10*
+      block[blockOffset] = (byte) 0x80;
+      Arrays.fill(block, blockOffset + 1, BLOCK_SIZE, (byte) 0);
+      subkey = k2;
+    }
+    for (int i = 0; i < BLOCK_SIZE; i++) {
+      block[i] ^= subkey[i];
+    }
+    try {
+      cipher.doFinal(block, 0, BLOCK_SIZE, tag, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not cipher", e);
+    }
+    System.arraycopy(tag, 0, output, outputOffset, size);
+    Arrays.fill(block, (byte) 0);
+    blockOffset = 0;
+    return size;
+  }
+
+  public void reset() {
+    if (key == null) {
+      return;
+    }
+    try {
+      // Brings the chaining back to the zero IV
+      cipher.doFinal(tag, 0);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not reset the cipher", e);
+    }
+    Arrays.fill(block, (byte) 0);
+    blockOffset = 0;
+  }
+
+  private void encipher(final byte[] input, final int offset, final int length) {
+    try {
+      for (int index = offset; index < offset + length; index += CHUNK_SIZE) {
+        cipher.update(input, index, Math.min(CHUNK_SIZE, offset + length - index), chunk, 0);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not cipher", e);
+    }
+  }
+
+  private void checkInitialized() {
+    if (key == null) {
+      throw new IllegalStateException("MAC is not initialized");
+    }
+  }
+
+  private void clearKey() {
+    if (key != null) {
+      Arrays.fill(key, (byte) 0);
+      key = null;
+    }
+    Arrays.fill(k1, (byte) 0);
+    Arrays.fill(k2, (byte) 0);
+  }
+
+  // Multiplication by x in GF(2^128)
+  private static void doubling(final byte[] input, final byte[] output) {
+    int carry = 0;
+    for (int i = BLOCK_SIZE - 1; i >= 0; i--) {
+      final int b = input[i] & 0xff;
+      output[i] = (byte) (b << 1 | carry);
+      carry = b >>> 7;
+    }
+    // Constant time: the mask is 0xff when the leftmost bit of the input was set
+    output[BLOCK_SIZE - 1] ^= (byte) (RB & -carry);
+  }
+}
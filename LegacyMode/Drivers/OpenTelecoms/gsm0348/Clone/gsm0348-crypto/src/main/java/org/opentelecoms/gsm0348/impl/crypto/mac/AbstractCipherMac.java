@@ -1,11 +1,10 @@
 package org.opentelecoms.gsm0348.impl.crypto.mac;
 
 import java.security.GeneralSecurityException;
-import java.security.Key;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -16,14 +15,32 @@ import org.opentelecoms.gsm0348.impl.crypto.params.ParametersWithIV;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * CBC-MAC with padding method 1 of ISO/IEC 9797-1: the data is padded with zeros to a multiple of the block size, an empty message being
+ * one block of zeros, and the MAC is the last block of the CBC encryption.
+ * <p>
+ * The engine is reusable: it keeps its keyed cipher and is only initialized again when the key or the IV changes.
+ * {@linkplain #doFinal(byte[], int)} and {@linkplain #reset()} bring it back to its initialized state. Nothing is allocated by
+ * {@linkplain #update(byte)}, {@linkplain #update(byte[], int, int)} and {@linkplain #doFinal(byte[], int)}.
+ */
 public abstract class AbstractCipherMac implements Mac {
   private static final Logger LOGGER = LoggerFactory.getLogger(AbstractCipherMac.class);
+  private static final int BLOCK_SIZE = 8;
+  // Data is enciphered in chunks of this size, a multiple of the block size
+  private static final int CHUNK_SIZE = 256;
   private final String m_algFullName;
   private final String m_algShortName;
   private final int m_size;
   private Cipher m_cipher;
   private byte[] m_key;
   private byte[] m_iv;
+  // The partial block not enciphered yet
+  private final byte[] m_block = new byte[BLOCK_SIZE];
+  private int m_blockOffset;
+  private boolean m_empty = true;
+  // The last enciphered block, i.e. the MAC of the data enciphered so far
+  private final byte[] m_mac = new byte[BLOCK_SIZE];
+  private byte[] m_chunk;
 
   AbstractCipherMac(String algFullName, String algShortName, int size) {
     m_algFullName = algFullName;
@@ -32,9 +49,10 @@ public abstract class AbstractCipherMac implements Mac {
   }
 
   public void init(CipherParameters cipheringParams) throws IllegalArgumentException {
+    byte[] iv = null;
     if (cipheringParams instanceof ParametersWithIV) {
-      m_iv = ((ParametersWithIV) cipheringParams).getIV();
-      if (m_iv == null) {
+      iv = ((ParametersWithIV) cipheringParams).getIV();
+      if (iv == null) {
         throw new IllegalArgumentException("IV cannot be null");
       }
 
@@ -42,28 +60,59 @@ public abstract class AbstractCipherMac implements Mac {
     }
 
     if (!(cipheringParams instanceof KeyParameter)) {
-      m_iv = null;
       throw new IllegalArgumentException("cipheringParams must contain KeyParameter");
     }
-    m_key = ((KeyParameter) cipheringParams).getKey();
-    if (m_key == null) {
-      m_iv = null;
+    final byte[] key = ((KeyParameter) cipheringParams).getKey();
+    if (key == null) {
       throw new IllegalArgumentException("Key cannot be null");
     }
     try {
-      m_cipher = Cipher.getInstance(m_algFullName);
-
-      Key keySpec = new SecretKeySpec(m_key, m_algShortName);
-      if (m_iv != null) {
-        m_cipher.init(Cipher.ENCRYPT_MODE, keySpec, new IvParameterSpec(m_iv));
-      } else {
-        m_cipher.init(Cipher.ENCRYPT_MODE, keySpec);
-      }
+      init(key, iv);
     } catch (GeneralSecurityException ex) {
       throw new IllegalArgumentException(ex);
     }
   }
 
+  /**
+   * Initializes the MAC with the key and a zero IV. The keyed cipher is kept when the key is the same as in the previous call.
+   *
+   * @param key - the key.
+   * @throws InvalidKeyException if the key is not valid for the cipher
+   */
+  public void init(byte[] key) throws InvalidKeyException {
+    if (key == null) {
+      throw new IllegalArgumentException("Key cannot be null");
+    }
+    try {
+      init(key, null);
+    } catch (InvalidKeyException e) {
+      throw e;
+    } catch (GeneralSecurityException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private void init(byte[] key, byte[] iv) throws GeneralSecurityException {
+    if (iv != null && iv.length != BLOCK_SIZE) {
+      throw new IllegalArgumentException("IV must be " + BLOCK_SIZE + " octets long");
+    }
+    final boolean zeroIv = iv == null || isZero(iv);
+    if (m_cipher != null && Arrays.equals(m_key, key) && (zeroIv ? m_iv == null : Arrays.equals(m_iv, iv))) {
+      reset();
+      return;
+    }
+    if (m_cipher == null) {
+      m_cipher = Cipher.getInstance(m_algFullName);
+    }
+    clearKey();
+    m_cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, m_algShortName),
+        new IvParameterSpec(zeroIv ? new byte[BLOCK_SIZE] : iv));
+    m_key = key.clone();
+    m_iv = zeroIv ? null : iv.clone();
+    m_blockOffset = 0;
+    m_empty = true;
+  }
+
   public String getAlgorithmName() {
     return m_algFullName;
   }
@@ -73,33 +122,110 @@ public abstract class AbstractCipherMac implements Mac {
   }
 
   public void update(byte input) throws IllegalStateException {
-    m_cipher.update(new byte[]{ input });
+    checkInitialized();
+    m_block[m_blockOffset++] = input;
+    if (m_blockOffset == BLOCK_SIZE) {
+      encipher(m_block, 0, BLOCK_SIZE);
+      m_blockOffset = 0;
+    }
   }
 
   public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
-    m_cipher.update(input, inputOffset, inputLen);
+    checkInitialized();
+    int offset = inputOffset;
+    int remaining = inputLen;
+    if (m_blockOffset > 0) {
+      final int count = Math.min(remaining, BLOCK_SIZE - m_blockOffset);
+      System.arraycopy(input, offset, m_block, m_blockOffset, count);
+      m_blockOffset += count;
+      offset += count;
+      remaining -= count;
+      if (m_blockOffset < BLOCK_SIZE) {
+        return;
+      }
+      encipher(m_block, 0, BLOCK_SIZE);
+      m_blockOffset = 0;
+    }
+    final int blocks = remaining - remaining % BLOCK_SIZE;
+    if (blocks > 0) {
+      encipher(input, offset, blocks);
+    }
+    System.arraycopy(input, offset + blocks, m_block, 0, remaining - blocks);
+    m_blockOffset = remaining - blocks;
   }
 
   public int doFinal(byte[] output, int outputOffset) throws IllegalStateException {
+    checkInitialized();
     try {
-      byte[] result = m_cipher.doFinal();
-      System.arraycopy(result, 0, output, outputOffset, m_size);
-      return m_size;
-    } catch (IllegalBlockSizeException e) {
-      LOGGER.error("Could not cipher (illegal block size)", e);
-    } catch (BadPaddingException e) {
-      LOGGER.error("Could not cipher (bad padding)", e);
-    }
-    return 0;
+      if (m_blockOffset > 0 || m_empty) {
+        Arrays.fill(m_block, m_blockOffset, BLOCK_SIZE, (byte) 0);
+        m_cipher.doFinal(m_block, 0, BLOCK_SIZE, m_mac, 0);
+      } else {
+        // Brings the chaining back to the IV
+        m_cipher.doFinal(m_mac, 0);
+      }
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not cipher", e);
+    }
+    System.arraycopy(m_mac, 0, output, outputOffset, m_size);
+    m_blockOffset = 0;
+    m_empty = true;
+    return m_size;
   }
 
   public void reset() {
+    if (m_cipher == null || m_key == null) {
+      return;
+    }
+    try {
+      m_cipher.doFinal(m_mac, 0);
+    } catch (GeneralSecurityException e) {
+      LOGGER.error("Could not reset the cipher", e);
+    }
+    m_blockOffset = 0;
+    m_empty = true;
+  }
+
+  private void encipher(byte[] input, int offset, int length) {
+    if (m_chunk == null) {
+      m_chunk = new byte[CHUNK_SIZE];
+    }
     try {
-      m_cipher.doFinal();
-    } catch (IllegalBlockSizeException e) {
-      LOGGER.error("Could not cipher (illegal block size)", e);
-    } catch (BadPaddingException e) {
-      LOGGER.error("Could not cipher (bad padding)", e);
+      int remaining = length;
+      int index = offset;
+      int written = 0;
+      while (remaining > 0) {
+        final int chunk = Math.min(remaining, CHUNK_SIZE);
+        written = m_cipher.update(input, index, chunk, m_chunk, 0);
+        index += chunk;
+        remaining -= chunk;
+      }
+      System.arraycopy(m_chunk, written - BLOCK_SIZE, m_mac, 0, BLOCK_SIZE);
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Could not cipher", e);
+    }
+    m_empty = false;
+  }
+
+  private void checkInitialized() {
+    if (m_cipher == null || m_key == null) {
+      throw new IllegalStateException("MAC is not initialized");
+    }
+  }
+
+  private void clearKey() {
+    if (m_key != null) {
+      Arrays.fill(m_key, (byte) 0);
+      m_key = null;
+    }
+  }
+
+  private static boolean isZero(byte[] bytes) {
+    for (byte b : bytes) {
+      if (b != 0) {
+        return false;
+      }
     }
+    return true;
   }
 }
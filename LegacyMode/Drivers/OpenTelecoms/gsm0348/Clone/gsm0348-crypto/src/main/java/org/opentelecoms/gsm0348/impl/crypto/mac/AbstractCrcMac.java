@@ -3,29 +3,26 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import org.opentelecoms.gsm0348.impl.crypto.CipherParameters;
 import org.opentelecoms.gsm0348.impl.crypto.Mac;
 
-import com.github.snksoft.crc.CRC;
-
 /*
  * See also http://www.sunshine2k.de/coding/javascript/crc/crc_js.html for testing
  */
 
+/**
+ * Base of the redundancy checks. The CRC is put most significant octet first into the RC field. No key is used and nothing is allocated
+ * after construction; as for the other MACs, {@linkplain #doFinal(byte[], int)} resets the CRC for the next message.
+ */
 public abstract class AbstractCrcMac implements Mac {
 
   private final String algorithmName;
-  private final CRC.Parameters crcParameters;
   private final int width;
-  private CRC crc;
-  private long value;
 
-  AbstractCrcMac(String algorithmName, CRC.Parameters crcParameters) {
+  AbstractCrcMac(String algorithmName, int width) {
     this.algorithmName = algorithmName;
-    this.crcParameters = crcParameters;
-    this.width = crcParameters.getWidth() / 8;
+    this.width = width;
   }
 
   public void init(CipherParameters cipheringParams) throws IllegalArgumentException {
-    crc = new CRC(crcParameters);
-    value = crcParameters.getInit();
+    reset();
   }
 
   public String getAlgorithmName() {
@@ -36,31 +33,18 @@ public abstract class AbstractCrcMac implements Mac {
     return width;
   }
 
-  public void update(byte input) throws IllegalStateException {
-    value = crc.update(value, new byte[]{ input });
-  }
-
-  public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
-    value = crc.update(value, input, inputOffset, inputLen);
-  }
-
   public int doFinal(byte[] output, int outputOffset) throws IllegalStateException {
-    long finalValue = crc.finalCRC(value);
-    byte[] result = valueAsBytes(finalValue, width);
-    System.arraycopy(result, 0, output, outputOffset, width);
+    long value = getValue();
+    for (int i = width - 1; i >= 0; i--) {
+      output[outputOffset + i] = (byte) value;
+      value >>>= 8;
+    }
+    reset();
     return width;
   }
 
-  public void reset() {
-    value = crc.init();
-  }
-
-  private byte[] valueAsBytes(long value, int width) {
-    byte[] result = new byte[width];
-    for (int i = width; i > 0; i--) {
-      result[i - 1] = (byte) (value & 0xff);
-      value >>= 8;
-    }
-    return result;
-  }
+  /**
+   * @return the CRC of the data since the last reset, after the final XOR
+   */
+  abstract long getValue();
 }
@@ -3,23 +3,32 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import org.opentelecoms.gsm0348.impl.crypto.CipherParameters;
 import org.opentelecoms.gsm0348.impl.crypto.Mac;
 
-
+/**
+ * XOR of the data split in blocks of {@code width} octets, the last block being padded with zeros. The data is folded 8 octets at a
+ * time into one 64-bit word whatever the width; a 4 octets XOR is the XOR of both halves of the word. Nothing is allocated after
+ * construction and {@linkplain #doFinal(byte[], int)} resets the MAC for the next message.
+ */
 public abstract class AbstractXorMac implements Mac {
 
+  private static final int WORD_SIZE = 8;
+
   protected final int width;
   private final String algorithmName;
+  // Octets added since the last reset, the octet at position p is folded at octet p % 8 of the word
   protected int position;
   private long result;
 
   public AbstractXorMac(final String algorithmName, final int width) {
+    if (width != 4 && width != WORD_SIZE) {
+      throw new IllegalArgumentException("Unsupported XOR width " + width);
+    }
     this.algorithmName = algorithmName;
     this.width = width;
   }
 
   @Override
   public void init(final CipherParameters paramCipherParameters) throws IllegalArgumentException {
-    position = 0;
-    result = 0;
+    reset();
   }
 
   @Override
@@ -34,20 +43,43 @@ public abstract class AbstractXorMac implements Mac {
 
   @Override
   public void update(final byte input) throws IllegalStateException {
-    result ^= getXor(input);
+    result ^= (input & 0xffL) << ((WORD_SIZE - 1 - (position++ & (WORD_SIZE - 1))) << 3);
   }
 
   @Override
   public void update(final byte[] input, final int offset, final int length) throws IllegalStateException {
-    for (int i = offset; i < offset + length; i++) {
-      result ^= getXor(input[i]);
+    int index = offset;
+    final int end = offset + length;
+    // Complete the word left by the previous update
+    while (index < end && (position & (WORD_SIZE - 1)) != 0) {
+      update(input[index++]);
+    }
+    long xor = 0;
+    final int words = end - (end - index) % WORD_SIZE;
+    position += words - index;
+    for (; index < words; index += WORD_SIZE) {
+      xor ^= (input[index] & 0xffL) << 56
+          | (input[index + 1] & 0xffL) << 48
+          | (input[index + 2] & 0xffL) << 40
+          | (input[index + 3] & 0xffL) << 32
+          | (input[index + 4] & 0xffL) << 24
+          | (input[index + 5] & 0xffL) << 16
+          | (input[index + 6] & 0xffL) << 8
+          | (input[index + 7] & 0xffL);
+    }
+    result ^= xor;
+    while (index < end) {
+      update(input[index++]);
     }
   }
 
   @Override
   public int doFinal(final byte[] output, final int offset) throws IllegalStateException {
-    byte[] xor = longToByteArray(result);
-    System.arraycopy(xor, 8 - width, output, offset, width);
+    final long value = width == WORD_SIZE ? result : (result >>> 32) ^ result;
+    for (int i = 0; i < width; i++) {
+      output[offset + i] = (byte) (value >>> ((width - 1 - i) << 3));
+    }
+    reset();
     return width;
   }
 
@@ -56,39 +88,4 @@ public abstract class AbstractXorMac implements Mac {
     position = 0;
     result = 0;
   }
-
-  private byte[] longToByteArray(long value) {
-    return new byte[]{
-        (byte) (value >>> 56),
-        (byte) (value >>> 48),
-        (byte) (value >>> 40),
-        (byte) (value >>> 32),
-        (byte) (value >>> 24),
-        (byte) (value >>> 16),
-        (byte) (value >>> 8),
-        (byte) value };
-  }
-
-  private long getXor(byte input) {
-    switch (width - 1 - (position++ % width)) {
-      case 7:
-        return ((long) (input & 0xff)) << 56;
-      case 6:
-        return ((long) (input & 0xff)) << 48;
-      case 5:
-        return ((long) (input & 0xff)) << 40;
-      case 4:
-        return ((long) (input & 0xff)) << 32;
-      case 3:
-        return ((long) (input & 0xff)) << 24;
-      case 2:
-        return ((long) (input & 0xff)) << 16;
-      case 1:
-        return ((long) (input & 0xff)) << 8;
-      case 0:
-        return (input & 0xff);
-      default:
-        throw new IllegalStateException("Should never happen");
-    }
-  }
 }
@@ -1,7 +1,5 @@
 package org.opentelecoms.gsm0348.impl.crypto.mac;
 
-import com.github.snksoft.crc.CRC;
-
 public class CRC16X25 extends AbstractCrcMac {
 
   // CRC algorithm is specified in ISO 13239.
@@ -12,8 +10,66 @@ public class CRC16X25 extends AbstractCrcMac {
   //
   // See http://www.sunshine2k.de/coding/javascript/crc/crc_js.html
 
+  // Reflected input and output, so the register shifts right with the reversed polynomial
+  private static final int POLYNOMIAL_REVERSED = 0x8408;
+  private static final int INIT = 0xffff;
+  private static final int FINAL_XOR = 0xffff;
+
+  // Slicing-by-8: TABLES[k][b] is the CRC of the octet b followed by k zero octets, so 8 octets are folded in one step
+  private static final int[][] TABLES = new int[8][256];
+
+  static {
+    for (int b = 0; b < 256; b++) {
+      int crc = b;
+      for (int bit = 0; bit < 8; bit++) {
+        crc = (crc & 1) != 0 ? crc >>> 1 ^ POLYNOMIAL_REVERSED : crc >>> 1;
+      }
+      TABLES[0][b] = crc;
+    }
+    for (int k = 1; k < 8; k++) {
+      for (int b = 0; b < 256; b++) {
+        final int previous = TABLES[k - 1][b];
+        TABLES[k][b] = previous >>> 8 ^ TABLES[0][previous & 0xff];
+      }
+    }
+  }
+
+  private int crc = INIT;
+
   public CRC16X25() {
-    super("CRC16-X25", new CRC.Parameters(16, 4129L, 65535L, true, true, 0xFFFFFFFFL));
+    super("CRC16-X25", 2);
+  }
+
+  public void update(byte input) throws IllegalStateException {
+    crc = crc >>> 8 ^ TABLES[0][(crc ^ input) & 0xff];
+  }
+
+  public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
+    final int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+    final int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+    int value = crc;
+    int offset = inputOffset;
+    final int end = inputOffset + inputLen;
+    for (; offset <= end - 8; offset += 8) {
+      value ^= (input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8;
+      value = t7[value & 0xff] ^ t6[value >>> 8]
+          ^ t5[input[offset + 2] & 0xff] ^ t4[input[offset + 3] & 0xff]
+          ^ t3[input[offset + 4] & 0xff] ^ t2[input[offset + 5] & 0xff]
+          ^ t1[input[offset + 6] & 0xff] ^ t0[input[offset + 7] & 0xff];
+    }
+    for (; offset < end; offset++) {
+      value = value >>> 8 ^ t0[(value ^ input[offset]) & 0xff];
+    }
+    crc = value;
+  }
+
+  public void reset() {
+    crc = INIT;
+  }
+
+  @Override
+  long getValue() {
+    return (crc ^ FINAL_XOR) & 0xffff;
   }
 
-}
\ No newline at end of file
+}
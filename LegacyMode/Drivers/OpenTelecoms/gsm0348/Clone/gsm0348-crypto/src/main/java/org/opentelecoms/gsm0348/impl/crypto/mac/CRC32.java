@@ -1,7 +1,5 @@
 package org.opentelecoms.gsm0348.impl.crypto.mac;
 
-import com.github.snksoft.crc.CRC;
-
 public class CRC32 extends AbstractCrcMac {
 
   // CRC algorithm is specified in ISO 13239.
@@ -12,11 +10,28 @@ public class CRC32 extends AbstractCrcMac {
   //
   // See http://www.sunshine2k.de/coding/javascript/crc/crc_js.html
 
-  // public CRC32() {
-  //  super("CRC32", new CRC.Parameters(32, 0x4C11DB7, 0xFFFFFFFFL, true, true, 0xFFFFFFFFL));
-  //}
+  // This is the CRC-32 of ISO 3309/ITU-T V.42 implemented by java.util.zip, which the JVM compiles to the CPU CRC instructions
+  private final java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+
   public CRC32() {
-    super("CRC32", CRC.Parameters.CRC32);
+    super("CRC32", 4);
+  }
+
+  public void update(byte input) throws IllegalStateException {
+    crc.update(input);
+  }
+
+  public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
+    crc.update(input, inputOffset, inputLen);
+  }
+
+  public void reset() {
+    crc.reset();
+  }
+
+  @Override
+  long getValue() {
+    return crc.getValue();
   }
 
-}
\ No newline at end of file
+}
@@ -6,6 +6,6 @@ public class DESEDEMACISO9797M1 extends AbstractCipherMac
 	
 	public DESEDEMACISO9797M1()
 	{
-		super("DESEDE/CBC/ZeroBytePadding","DESEDE",8);
+		super("DESEDE/CBC/NoPadding","DESEDE",8);
 	}
 }
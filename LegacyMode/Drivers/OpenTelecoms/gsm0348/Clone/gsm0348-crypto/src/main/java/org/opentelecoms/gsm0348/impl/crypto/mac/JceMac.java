@@ -0,0 +1,116 @@
+package org.opentelecoms.gsm0348.impl.crypto.mac;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opentelecoms.gsm0348.impl.crypto.CipherParameters;
+import org.opentelecoms.gsm0348.impl.crypto.Mac;
+import org.opentelecoms.gsm0348.impl.crypto.params.KeyParameter;
+import org.opentelecoms.gsm0348.impl.crypto.params.ParametersWithIV;
+
+/**
+ * Adapts a JCE {@linkplain javax.crypto.Mac} to the {@linkplain Mac} interface. The MAC can be truncated to its leftmost octets, e.g. AES
+ * CMAC to 4 or 8 octets.
+ */
+public class JceMac implements Mac {
+
+  private final javax.crypto.Mac mac;
+  private final String keyAlgorithm;
+  private final int size;
+  private final byte[] result;
+  private byte[] key;
+
+  public JceMac(final String algorithm) throws NoSuchAlgorithmException {
+    this(algorithm, 0);
+  }
+
+  /**
+   * @param algorithm - the JCE MAC algorithm name.
+   * @param size      - the length of the truncated MAC, 0 for the full MAC.
+   * @throws NoSuchAlgorithmException if no provider supports the algorithm
+   */
+  public JceMac(final String algorithm, final int size) throws NoSuchAlgorithmException {
+    this.mac = javax.crypto.Mac.getInstance(algorithm);
+    this.keyAlgorithm = algorithm;
+    if (size < 0 || size > mac.getMacLength()) {
+      throw new IllegalArgumentException("Invalid MAC size " + size + " for " + algorithm);
+    }
+    this.size = size == 0 ? mac.getMacLength() : size;
+    this.result = new byte[mac.getMacLength()];
+  }
+
+  public void init(CipherParameters cipheringParams) throws IllegalArgumentException {
+    if (cipheringParams instanceof ParametersWithIV) {
+      cipheringParams = ((ParametersWithIV) cipheringParams).getParameters();
+    }
+    if (!(cipheringParams instanceof KeyParameter)) {
+      throw new IllegalArgumentException("cipheringParams must contain KeyParameter");
+    }
+    final byte[] key = ((KeyParameter) cipheringParams).getKey();
+    if (key == null) {
+      throw new IllegalArgumentException("Key cannot be null");
+    }
+    try {
+      init(key);
+    } catch (InvalidKeyException ex) {
+      throw new IllegalArgumentException(ex);
+    }
+  }
+
+  /**
+   * Initializes the MAC with the key. When the key is the same as in the previous call the MAC is only reset, keeping its key schedule.
+   *
+   * @param key - the key.
+   * @throws InvalidKeyException if the key is not valid for the algorithm
+   */
+  public void init(final byte[] key) throws InvalidKeyException {
+    if (this.key != null && Arrays.equals(this.key, key)) {
+      mac.reset();
+      return;
+    }
+    clearKey();
+    mac.init(new SecretKeySpec(key, keyAlgorithm));
+    this.key = key.clone();
+  }
+
+  private void clearKey() {
+    if (key != null) {
+      Arrays.fill(key, (byte) 0);
+      key = null;
+    }
+  }
+
+  public String getAlgorithmName() {
+    return mac.getAlgorithm();
+  }
+
+  public int getMacSize() {
+    return size;
+  }
+
+  public void update(byte input) throws IllegalStateException {
+    mac.update(input);
+  }
+
+  public void update(byte[] input, int inputOffset, int inputLen) throws IllegalStateException {
+    mac.update(input, inputOffset, inputLen);
+  }
+
+  public int doFinal(byte[] output, int outputOffset) throws IllegalStateException {
+    try {
+      mac.doFinal(result, 0);
+    } catch (ShortBufferException e) {
+      throw new IllegalStateException(e);
+    }
+    System.arraycopy(result, 0, output, outputOffset, size);
+    return size;
+  }
+
+  public void reset() {
+    mac.reset();
+  }
+}
@@ -0,0 +1,258 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the same command for many cards, e.g. a RAM/RFM campaign. Every packet carries the same secured data, secured with the keys and
+ * counter of its card.
+ * <p>
+ * The profile is resolved once for the whole batch and, as all packets of a batch have the same length, the packet length is computed
+ * once. Streamed packets are built into one buffer per worker, which is reused for every card. Batches can be fanned out across a
+ * {@linkplain ForkJoinPool}, each task then builds a contiguous range of cards.
+ * <p>
+ * Instances are thread-safe.
+ */
+public final class BatchPacketBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BatchPacketBuilder.class);
+
+  private static final int DEFAULT_THRESHOLD = 256;
+
+  /**
+   * Receives the streamed packets of a batch.
+   */
+  public interface PacketSink {
+
+    /**
+     * Called for each built packet. The packet is between the position and the limit of the buffer, the buffer is reused for the next
+     * packet once this method returns. When the batch is fanned out the sink is called concurrently from the worker threads and not in
+     * the order of the cards.
+     *
+     * @param index  - the index of the card in the batch.
+     * @param card   - the keys of the card.
+     * @param packet - the buffer holding the packet.
+     * @throws IOException if the packet cannot be written, the batch is aborted.
+     */
+    void packetBuilt(int index, CardKeys card, ByteBuffer packet) throws IOException;
+  }
+
+  private final ImmutablePacketBuilder builder;
+  private final int threshold;
+
+  public BatchPacketBuilder(final ImmutablePacketBuilder builder) {
+    this(builder, DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * @param builder   - the builder of the profile of the campaign.
+   * @param threshold - the number of cards below which a fanned out task is not split any further.
+   */
+  public BatchPacketBuilder(final ImmutablePacketBuilder builder, final int threshold) {
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    if (threshold < 1) {
+      throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+    }
+    this.builder = builder;
+    this.threshold = threshold;
+  }
+
+  public ImmutablePacketBuilder getPacketBuilder() {
+    return builder;
+  }
+
+  /**
+   * @param data - the secured data of the batch, can be null.
+   * @return the length of every command packet of a batch with this data
+   */
+  public int getCommandPacketLength(final byte[] data) {
+    return builder.getSecuredProfile().getCommandPacketLength(data == null ? 0 : data.length);
+  }
+
+  /**
+   * Builds the command packets of the cards in the calling thread.
+   *
+   * @param data  - the secured data of every packet, can be null.
+   * @param cards - the keys and counters of the cards.
+   * @return the packets, in the order of the cards
+   * @throws Gsm0348Exception if a packet cannot be built, the message tells the index of the card.
+   */
+  public byte[][] buildCommandPackets(final byte[] data, final List<CardKeys> cards) throws Gsm0348Exception {
+    final byte[][] packets = new byte[cards.size()][];
+    build(data, cards, 0, cards.size(), getCommandPacketLength(data), packets);
+    return packets;
+  }
+
+  /**
+   * Builds the command packets of the cards, fanning out across the pool.
+   *
+   * @param data  - the secured data of every packet, can be null.
+   * @param cards - the keys and counters of the cards. Must support fast random access.
+   * @param pool  - the pool building the packets.
+   * @return the packets, in the order of the cards
+   * @throws Gsm0348Exception if a packet cannot be built, the message tells the index of the card.
+   */
+  public byte[][] buildCommandPackets(final byte[] data, final List<CardKeys> cards, final ForkJoinPool pool) throws Gsm0348Exception {
+    final byte[][] packets = new byte[cards.size()][];
+    try {
+      invoke(pool, new BuildTask(data, cards, 0, cards.size(), getCommandPacketLength(data), packets, null));
+    } catch (IOException e) {
+      // Not thrown without a sink
+      throw new IllegalStateException(e);
+    }
+    return packets;
+  }
+
+  /**
+   * Builds the command packets of the cards one after the other in the calling thread and streams them to the sink. Only one buffer is
+   * used for the whole batch, so the cards can be read lazily, e.g. from a file.
+   *
+   * @param data  - the secured data of every packet, can be null.
+   * @param cards - the keys and counters of the cards.
+   * @param sink  - the receiver of the packets.
+   * @return the number of packets built
+   * @throws Gsm0348Exception if a packet cannot be built, the message tells the index of the card.
+   * @throws IOException      if the sink fails.
+   */
+  public int buildCommandPackets(final byte[] data, final Iterator<CardKeys> cards, final PacketSink sink)
+      throws Gsm0348Exception, IOException {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(getCommandPacketLength(data));
+    int index = 0;
+    while (cards.hasNext()) {
+      stream(data, index++, cards.next(), buffer, sink);
+    }
+    return index;
+  }
+
+  /**
+   * Builds the command packets of the cards, fanning out across the pool, and streams them to the sink. Each task uses one buffer for
+   * its range of cards.
+   *
+   * @param data  - the secured data of every packet, can be null.
+   * @param cards - the keys and counters of the cards. Must support fast random access.
+   * @param pool  - the pool building the packets.
+   * @param sink  - the receiver of the packets, called concurrently.
+   * @throws Gsm0348Exception if a packet cannot be built, the message tells the index of the card.
+   * @throws IOException      if the sink fails.
+   */
+  public void buildCommandPackets(final byte[] data, final List<CardKeys> cards, final ForkJoinPool pool, final PacketSink sink)
+      throws Gsm0348Exception, IOException {
+    if (sink == null) {
+      throw new IllegalArgumentException("Sink cannot be null");
+    }
+    invoke(pool, new BuildTask(data, cards, 0, cards.size(), getCommandPacketLength(data), null, sink));
+  }
+
+  private void build(final byte[] data, final List<CardKeys> cards, final int from, final int to, final int length,
+                     final byte[][] packets) throws Gsm0348Exception {
+    for (int i = from; i < to; i++) {
+      final CardKeys card = cards.get(i);
+      final byte[] packet = new byte[length];
+      try {
+        builder.buildCommandPacket(data, card.getCounter(), card.getCipheringKey(), card.getSignatureKey(), ByteBuffer.wrap(packet));
+      } catch (Gsm0348Exception e) {
+        throw failure(i, e);
+      }
+      packets[i] = packet;
+    }
+  }
+
+  private void stream(final byte[] data, final int index, final CardKeys card, final ByteBuffer buffer, final PacketSink sink)
+      throws Gsm0348Exception, IOException {
+    buffer.clear();
+    try {
+      builder.buildCommandPacket(data, card.getCounter(), card.getCipheringKey(), card.getSignatureKey(), buffer);
+    } catch (Gsm0348Exception e) {
+      throw failure(index, e);
+    }
+    buffer.flip();
+    sink.packetBuilt(index, card, buffer);
+  }
+
+  private static Gsm0348Exception failure(final int index, final Gsm0348Exception cause) {
+    LOGGER.debug("Cannot build packet {} of the batch", index, cause);
+    return new Gsm0348Exception("Cannot build the packet of card " + index + ": " + cause.getMessage(), cause);
+  }
+
+  private static void invoke(final ForkJoinPool pool, final BuildTask task) throws Gsm0348Exception, IOException {
+    try {
+      pool.invoke(task);
+    } catch (TaskFailure e) {
+      // The pool may have wrapped the failure of another thread once more
+      Throwable cause = e.getCause();
+      while (cause instanceof TaskFailure) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof Gsm0348Exception) {
+        throw (Gsm0348Exception) cause;
+      }
+      throw (IOException) cause;
+    }
+  }
+
+  /**
+   * Carries the checked failure of a task out of the pool.
+   */
+  private static final class TaskFailure extends RuntimeException {
+    private static final long serialVersionUID = 4011768243516718397L;
+
+    TaskFailure(final Throwable cause) {
+      super(cause);
+    }
+  }
+
+  private final class BuildTask extends RecursiveAction {
+    private static final long serialVersionUID = -3387145328937245123L;
+
+    private final byte[] data;
+    private final List<CardKeys> cards;
+    private final int from;
+    private final int to;
+    private final int length;
+    private final byte[][] packets;
+    private final PacketSink sink;
+
+    BuildTask(final byte[] data, final List<CardKeys> cards, final int from, final int to, final int length, final byte[][] packets,
+              final PacketSink sink) {
+      this.data = data;
+      this.cards = cards;
+      this.from = from;
+      this.to = to;
+      this.length = length;
+      this.packets = packets;
+      this.sink = sink;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > threshold) {
+        final int middle = (from + to) >>> 1;
+        invokeAll(new BuildTask(data, cards, from, middle, length, packets, sink),
+            new BuildTask(data, cards, middle, to, length, packets, sink));
+        return;
+      }
+      try {
+        if (sink == null) {
+          build(data, cards, from, to, length, packets);
+        } else {
+          final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+          for (int i = from; i < to; i++) {
+            stream(data, i, cards.get(i), buffer, sink);
+          }
+        }
+      } catch (Gsm0348Exception | IOException e) {
+        throw new TaskFailure(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package org.opentelecoms.gsm0348.impl;
+
+/**
+ * The per card security of a packet: the ciphering and signature keys, usually derived from the ICCID, and the counter. The arrays are
+ * not copied, they must not be changed while a batch using them is built.
+ *
+ * @see BatchPacketBuilder
+ */
+public final class CardKeys {
+
+  private final byte[] cipheringKey;
+  private final byte[] signatureKey;
+  private final byte[] counter;
+
+  /**
+   * @param cipheringKey - ciphering key. Used only if enciphering is needed, otherwise can be null.
+   * @param signatureKey - signature key. Used only if signing is needed, otherwise can be null.
+   * @param counter      - counter value. If not used can be null.
+   */
+  public CardKeys(final byte[] cipheringKey, final byte[] signatureKey, final byte[] counter) {
+    this.cipheringKey = cipheringKey;
+    this.signatureKey = signatureKey;
+    this.counter = counter;
+  }
+
+  public byte[] getCipheringKey() {
+    return cipheringKey;
+  }
+
+  public byte[] getSignatureKey() {
+    return signatureKey;
+  }
+
+  public byte[] getCounter() {
+    return counter;
+  }
+}
@@ -0,0 +1,69 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.CommandPacketHeader;
+import org.opentelecoms.gsm0348.api.model.SPI;
+import org.opentelecoms.gsm0348.impl.coders.CommandSPICoder;
+import org.opentelecoms.gsm0348.impl.coders.KICCoder;
+import org.opentelecoms.gsm0348.impl.coders.KIDCoder;
+import org.opentelecoms.gsm0348.impl.coders.ResponseSPICoder;
+
+/**
+ * Flyweight over a recovered command packet, see {@linkplain ImmutablePacketBuilder#recoverCommandPacket(ByteBuffer, byte[], byte[],
+ * CommandPacketView)}.
+ */
+public final class CommandPacketView extends PacketView {
+
+  private int spiOffset;
+
+  public CommandPacketView() {
+  }
+
+  void setSPIOffset(final int spiOffset) {
+    this.spiOffset = spiOffset;
+  }
+
+  public byte getCommandSPI() {
+    return get(spiOffset);
+  }
+
+  public byte getResponseSPI() {
+    return get(spiOffset + 1);
+  }
+
+  public byte getKIC() {
+    return get(spiOffset + 2);
+  }
+
+  public byte getKID() {
+    return get(spiOffset + 3);
+  }
+
+  /**
+   * Materializes the packet as model objects, copying the header fields and the data.
+   *
+   * @return the {@linkplain CommandPacket}
+   * @throws CodingException if the SPI, KIC or KID cannot be decoded.
+   */
+  public CommandPacket toCommandPacket() throws CodingException {
+    final SPI spi = new SPI();
+    spi.setCommandSPI(CommandSPICoder.encode(getCommandSPI()));
+    spi.setResponseSPI(ResponseSPICoder.encode(getResponseSPI()));
+
+    final CommandPacketHeader packetHeader = new CommandPacketHeader();
+    packetHeader.setSPI(spi);
+    packetHeader.setKIC(KICCoder.encode(getKIC()));
+    packetHeader.setKID(KIDCoder.encode(spi.getCommandSPI().getCertificationMode(), getKID()));
+    packetHeader.setTAR(getTAR());
+    packetHeader.setCounter(getCounter());
+    packetHeader.setPaddingCounter((byte) (getPaddingCounter() & 0xff));
+    packetHeader.setSecurity(getSignature());
+
+    final CommandPacket packet = new CommandPacket();
+    packet.setHeader(packetHeader);
+    packet.setData(getDataBytes());
+    return packet;
+  }
+}
@@ -0,0 +1,61 @@
+package org.opentelecoms.gsm0348.impl;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+
+/**
+ * Allocates the counters (CNTR) of the command packets sent to the cards, one sequence per card and keyset. With
+ * {@linkplain org.opentelecoms.gsm0348.api.model.SynchroCounterMode#COUNTER_REPLAY_OR_CHECK_INCREMENT} the card only processes a command
+ * whose counter is one higher than the last one it received, so a store must never return a counter twice, nor skip one, even across
+ * restarts.
+ * <p>
+ * Implementations are thread-safe.
+ *
+ * @see ImmutablePacketBuilder#buildCommandPacket(long, byte[], byte[], byte[])
+ */
+public interface CounterStore {
+
+  /**
+   * The highest value of the 5 octets counter.
+   */
+  long MAX_COUNTER = 0xffffffffffL;
+
+  /**
+   * Allocates the next counter of the card and keyset, one higher than the last counter allocated. The first counter of a card is 1.
+   *
+   * @param cardId - the identity of the card, e.g. its packed ICCID.
+   * @param keyset - the keyset the counter is bound to, 0 to 15.
+   * @return the counter
+   * @throws Gsm0348Exception if the counter of the card is exhausted or the store cannot hold another card.
+   */
+  long nextCounter(long cardId, int keyset) throws Gsm0348Exception;
+
+  /**
+   * @param cardId - the identity of the card.
+   * @param keyset - the keyset the counter is bound to, 0 to 15.
+   * @return the last counter allocated, 0 if none
+   */
+  long getCounter(long cardId, int keyset);
+
+  /**
+   * Moves the counter of the card forward, e.g. when the card tells a higher counter in a CNTR_LOW proof of receipt. A counter lower
+   * than the last one allocated is ignored.
+   *
+   * @param cardId  - the identity of the card.
+   * @param keyset  - the keyset the counter is bound to, 0 to 15.
+   * @param counter - the last counter known to the card.
+   * @throws Gsm0348Exception if the store cannot hold another card.
+   */
+  void updateCounter(long cardId, int keyset, long counter) throws Gsm0348Exception;
+
+  /**
+   * Gives back a counter allocated for a command packet that could not be built, so that the next packet of the card gets it again. The
+   * counter is released only if it is still the last counter allocated, as the card never received it; otherwise it stays allocated and
+   * the card sees a gap in its counters.
+   *
+   * @param cardId  - the identity of the card.
+   * @param keyset  - the keyset the counter is bound to, 0 to 15.
+   * @param counter - the counter returned by {@linkplain #nextCounter(long, int)}.
+   * @return whether the counter was released
+   */
+  boolean releaseCounter(long cardId, int keyset, long counter);
+}
@@ -1,8 +1,21 @@
 package org.opentelecoms.gsm0348.impl;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.opentelecoms.gsm0348.api.LazyHex;
 import org.opentelecoms.gsm0348.api.Util;
 import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
 import org.slf4j.Logger;
@@ -15,6 +28,10 @@ public class ICCIDKeyGenerator {
   private static final int ICCID_LENGTH = 20;
   private static final int ICCID_LENGTH_WITHOUT_LUHN = 19;
   private static final String TRANSFORMATION = "DES/ECB/NoPadding";
+  private static final int KEY_INPUT_LENGTH = 8;
+  private static final int KEY_LENGTH = 8;
+  private static final int BLOCK_SIZE = 8192;
+  private static final int[] LUHN_DOUBLED = { 0, 2, 4, 6, 8, 1, 3, 5, 7, 9 };
 
   /**
    * Generates ciphering key from master key and ICCID. It is computed by using DES ECB with key=master key and data=last 8 bytes of ICCID. If ICCID provided
@@ -32,25 +49,11 @@ public class ICCIDKeyGenerator {
     if (iccid == null || iccid.isEmpty()) {
       throw new IllegalArgumentException("ICCID cannot be null or empty");
     }
-    if (iccid.length() != ICCID_LENGTH && iccid.length() != ICCID_LENGTH_WITHOUT_LUHN) {
-      throw new IllegalArgumentException("ICCID length must be ether " + ICCID_LENGTH + " or " + ICCID_LENGTH_WITHOUT_LUHN
-          + ". ICCID=" + iccid + " length=" + iccid.length());
-    }
-
-    LOGGER.debug("Generating ciphering key. Master key = {}, ICCID = {}", Util.toHexArray(masterKey), iccid);
-    if (iccid.length() == ICCID_LENGTH_WITHOUT_LUHN) {
-      iccid = addLuhn(iccid);
-      LOGGER.debug("New ICCID with Luhn number: {}", iccid);
-    }
-    if (!verifyLuhnChecksum(iccid)) {
-      throw new IllegalArgumentException("ICCID does not pass Luhn check");
-    }
-
-    byte[] byteIccid = new byte[iccid.length() / 2];
-
-    for (int i = 0; i < iccid.length(); i += 2) {
-      byteIccid[i / 2] = (byte) Integer.parseInt(iccid.substring(i, i + 2), 0x10);
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Generating ciphering key. Master key = {}, ICCID = {}", LazyHex.array(masterKey), iccid);
     }
+    final byte[] byteIccid = new byte[KEY_INPUT_LENGTH];
+    toKeyInput(iccid, byteIccid);
     return getKey(masterKey, byteIccid);
   }
 
@@ -81,13 +84,13 @@ public class ICCIDKeyGenerator {
       }
     }
     if (LOGGER.isDebugEnabled()) {
-      LOGGER.debug("Generating key. Master key: {}, ICCID= {}", Util.toHexArray(masterKey), Util.toHexArray(iccid));
+      LOGGER.debug("Generating key. Master key: {}, ICCID= {}", LazyHex.array(masterKey), LazyHex.array(iccid));
     }
 
     byte[] result = CipheringManager.encipher(TRANSFORMATION, masterKey, iccid);
 
     if (LOGGER.isDebugEnabled()) {
-      LOGGER.debug("Generated key: {}", Util.toHexArray(result));
+      LOGGER.debug("Generated key: {}", LazyHex.array(result));
     }
 
     return result;
@@ -118,31 +121,276 @@ public class ICCIDKeyGenerator {
     return result;
   }
 
-  private static String addLuhn(String input) {
-    byte[] byteIccid = new byte[input.length() + 1];
-    for (int i = 0; i < input.length(); i++) {
-      byteIccid[i] = (byte) (Character.digit(input.charAt(i), 10));
+  /**
+   * Derives the keys of many ICCIDs with the same master key, fanning out across the pool. Each worker keeps one keyed DES engine for the
+   * whole list and the ICCIDs are parsed without intermediate strings.
+   *
+   * @param masterKey - master key. Must be 8 bytes length.
+   * @param iccids    - ICCIDs with (20 chars) or without LUHN (19 chars). Must support fast random access.
+   * @param pool      - the pool deriving the keys, null to derive them in the calling thread.
+   * @return the 8-bytes length keys, in the order of the ICCIDs
+   * @throws IllegalArgumentException if an ICCID is invalid, the message tells its index
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   */
+  public static byte[][] getKeys(final byte[] masterKey, final List<? extends CharSequence> iccids, final ForkJoinPool pool)
+      throws GeneralSecurityException {
+    final byte[] keys = new byte[iccids.size() * KEY_LENGTH];
+    getKeys(masterKey, iccids, pool, keys);
+    final byte[][] result = new byte[iccids.size()][];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = Arrays.copyOfRange(keys, i * KEY_LENGTH, (i + 1) * KEY_LENGTH);
     }
-    return input + getLuhn(byteIccid);
+    return result;
   }
 
-  private static byte getLuhn(byte[] input) {
-    int result = 0;
-    int tmp = 0;
-    for (int i = 0; i < input.length; i++) {
-      tmp = input[input.length - i - 1];
-      if (i % 2 != 0) {
-        tmp *= 2;
-        if (tmp > 9) {
-          tmp -= 9;
+  /**
+   * Derives the keys of the ICCIDs into the array, the key of the ICCID i at the index 8 * i.
+   *
+   * @see #getKeys(byte[], List, ForkJoinPool)
+   */
+  static void getKeys(final byte[] masterKey, final List<? extends CharSequence> iccids, final ForkJoinPool pool, final byte[] keys)
+      throws GeneralSecurityException {
+    derive(newDerivers(masterKey, pool), pool, iccids, 0, keys);
+  }
+
+  /**
+   * Derives the keys of a range of ICCIDs in the calling thread with a deriver kept across calls, so that the DES engine is keyed once
+   * for all the ranges.
+   *
+   * @param deriver - the deriver of the master key, not used by another thread meanwhile.
+   * @param iccids  - ICCIDs with (20 chars) or without LUHN (19 chars). Must support fast random access.
+   * @param from    - the index of the first ICCID of the range.
+   * @param to      - the index after the last ICCID of the range.
+   * @param base    - the index of the first ICCID of the list in a larger stream, to tell the index of an invalid ICCID.
+   * @param keys    - receives the key of the ICCID i at the index 8 * i, the keys outside of the range are left untouched.
+   * @throws IllegalArgumentException if an ICCID is invalid, the message tells its index
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   */
+  public static void getKeys(final Deriver deriver, final List<? extends CharSequence> iccids, final int from, final int to,
+                             final long base, final byte[] keys) throws GeneralSecurityException {
+    if (from < 0 || to > iccids.size() || from > to || keys.length < to * KEY_LENGTH) {
+      throw new IllegalArgumentException("Range " + from + "-" + to + " does not fit " + iccids.size() + " ICCIDs and their keys");
+    }
+    deriver.derive(iccids, from, to, base, keys);
+  }
+
+  /**
+   * Derives the keys of the ICCIDs of a file, one ICCID per line, and streams them to the sink in the order of the file.
+   *
+   * @param masterKey - master key. Must be 8 bytes length.
+   * @param file      - the file with the ICCIDs, blank lines are skipped.
+   * @param pool      - the pool deriving the keys, null to derive them in the calling thread.
+   * @param sink      - the receiver of the keys.
+   * @return the number of keys derived
+   * @throws IllegalArgumentException if an ICCID is invalid, the message tells its index
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   * @throws IOException              if the file cannot be read or the sink fails
+   * @see #getKeys(byte[], BufferedReader, ForkJoinPool, KeySink)
+   */
+  public static long getKeys(final byte[] masterKey, final Path file, final ForkJoinPool pool, final KeySink sink)
+      throws GeneralSecurityException, IOException {
+    try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+      return getKeys(masterKey, reader, pool, sink);
+    }
+  }
+
+  /**
+   * Derives the keys of a stream of ICCIDs, one ICCID per line, and streams them to the sink in the order of the stream. The ICCIDs are
+   * read in blocks, so the memory used does not depend on the number of ICCIDs. Each worker keeps one keyed DES engine for the whole
+   * stream.
+   *
+   * @param masterKey - master key. Must be 8 bytes length.
+   * @param iccids    - the ICCIDs, blank lines are skipped.
+   * @param pool      - the pool deriving the keys, null to derive them in the calling thread.
+   * @param sink      - the receiver of the keys.
+   * @return the number of keys derived
+   * @throws IllegalArgumentException if an ICCID is invalid, the message tells its index
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   * @throws IOException              if the stream cannot be read or the sink fails
+   */
+  public static long getKeys(final byte[] masterKey, final BufferedReader iccids, final ForkJoinPool pool, final KeySink sink)
+      throws GeneralSecurityException, IOException {
+    final Deriver[] derivers = newDerivers(masterKey, pool);
+    final List<String> block = new ArrayList<>(BLOCK_SIZE);
+    final byte[] keys = new byte[BLOCK_SIZE * KEY_LENGTH];
+    long count = 0;
+    boolean more = true;
+    while (more) {
+      block.clear();
+      String line;
+      while (block.size() < BLOCK_SIZE && (line = iccids.readLine()) != null) {
+        line = line.trim();
+        if (!line.isEmpty()) {
+          block.add(line);
         }
       }
-      result += tmp;
+      more = block.size() == BLOCK_SIZE;
+      derive(derivers, pool, block, count, keys);
+      for (int i = 0; i < block.size(); i++) {
+        sink.keyDerived(count++, block.get(i), keys, i * KEY_LENGTH);
+      }
     }
-    result = 10 - (result % 10);
-    if (result == 10) {
-      result = 0; // Strange workaround since this algo never adds "0"
+    return count;
+  }
+
+  /**
+   * Receives the keys derived from a stream of ICCIDs.
+   */
+  public interface KeySink {
+
+    /**
+     * @param index  - the index of the ICCID in the stream.
+     * @param iccid  - the ICCID as read.
+     * @param keys   - the array holding the key. It is reused once this method returns.
+     * @param offset - the index of the 8 octets of the key in the array.
+     * @throws IOException if the key cannot be written, the derivation is aborted.
+     */
+    void keyDerived(long index, String iccid, byte[] keys, int offset) throws IOException;
+  }
+
+  /**
+   * Puts the last 8 octets of the ICCID, with its Luhn digit, into the array. The decimal digits are taken as hexadecimal nibbles, as by
+   * {@linkplain #getKey(byte[], String)}.
+   *
+   * @throws IllegalArgumentException if the ICCID is not 19 or 20 decimal digits or if its Luhn digit is wrong
+   */
+  static void toKeyInput(final CharSequence iccid, final byte[] input) {
+    final int luhn = checkICCID(iccid);
+    // The last 8 octets are the digits 4 to 18 and the Luhn digit
+    final int first = ICCID_LENGTH - 2 * KEY_INPUT_LENGTH;
+    for (int i = 0; i < KEY_INPUT_LENGTH - 1; i++) {
+      input[i] = (byte) ((iccid.charAt(first + 2 * i) - '0') << 4 | (iccid.charAt(first + 2 * i + 1) - '0'));
+    }
+    input[KEY_INPUT_LENGTH - 1] = (byte) ((iccid.charAt(ICCID_LENGTH - 2) - '0') << 4 | luhn);
+  }
+
+  /**
+   * Checks the ICCID without creating strings.
+   *
+   * @return the Luhn digit of the ICCID, computed if the ICCID is given without it
+   * @throws IllegalArgumentException if the ICCID is not 19 or 20 decimal digits or if its Luhn digit is wrong
+   */
+  static int checkICCID(final CharSequence iccid) {
+    final int length = iccid.length();
+    if (length != ICCID_LENGTH && length != ICCID_LENGTH_WITHOUT_LUHN) {
+      throw new IllegalArgumentException("ICCID length must be ether " + ICCID_LENGTH + " or " + ICCID_LENGTH_WITHOUT_LUHN
+          + ". ICCID=" + iccid + " length=" + length);
+    }
+    // Luhn sum from the right, the check digit itself being the rightmost digit
+    int sum = 0;
+    final int firstDoubled = length == ICCID_LENGTH ? length - 2 : length - 1;
+    for (int i = 0; i < length; i++) {
+      final int digit = iccid.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        throw new IllegalArgumentException("ICCID must contain decimal digits only. ICCID=" + iccid);
+      }
+      sum += ((firstDoubled - i) & 1) == 0 ? LUHN_DOUBLED[digit] : digit;
+    }
+    final int luhn;
+    if (length == ICCID_LENGTH) {
+      if (sum % 10 != 0) {
+        throw new IllegalArgumentException("ICCID does not pass Luhn check. ICCID=" + iccid);
+      }
+      luhn = iccid.charAt(ICCID_LENGTH - 1) - '0';
+    } else {
+      luhn = (10 - sum % 10) % 10;
+    }
+    return luhn;
+  }
+
+  private static Deriver[] newDerivers(final byte[] masterKey, final ForkJoinPool pool) throws GeneralSecurityException {
+    final Deriver[] derivers = new Deriver[pool == null ? 1 : pool.getParallelism()];
+    for (int i = 0; i < derivers.length; i++) {
+      derivers[i] = new Deriver(masterKey);
+    }
+    return derivers;
+  }
+
+  private static void derive(final Deriver[] derivers, final ForkJoinPool pool, final List<? extends CharSequence> iccids,
+                             final long base, final byte[] keys) throws GeneralSecurityException {
+    if (pool == null || derivers.length == 1 || iccids.size() < 2 * derivers.length) {
+      derivers[0].derive(iccids, 0, iccids.size(), base, keys);
+      return;
+    }
+    final int slice = (iccids.size() + derivers.length - 1) / derivers.length;
+    try {
+      invoke(derivers, pool, iccids, slice, base, keys);
+    } catch (IllegalStateException e) {
+      // The pool may have wrapped the failure of another thread once more
+      Throwable cause = e.getCause();
+      while (cause instanceof IllegalStateException) {
+        cause = cause.getCause();
+      }
+      if (cause instanceof GeneralSecurityException) {
+        throw (GeneralSecurityException) cause;
+      }
+      throw e;
+    }
+  }
+
+  private static void invoke(final Deriver[] derivers, final ForkJoinPool pool, final List<? extends CharSequence> iccids,
+                             final int slice, final long base, final byte[] keys) {
+    pool.invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        final List<RecursiveAction> tasks = new ArrayList<>(derivers.length);
+        for (int i = 0; i < derivers.length; i++) {
+          final Deriver deriver = derivers[i];
+          final int from = i * slice;
+          final int to = Math.min(from + slice, iccids.size());
+          tasks.add(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+              try {
+                deriver.derive(iccids, from, to, base, keys);
+              } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+              }
+            }
+          });
+        }
+        invokeAll(tasks);
+      }
+    });
+  }
+
+  /**
+   * One keyed DES engine with its buffers, deriving the keys of many ICCIDs with the same master key. A deriver is used by one thread at a
+   * time: a worker deriving the keys of its share of each block of a stream keeps its own deriver for the whole stream.
+   *
+   * @see #getKeys(Deriver, List, int, int, long, byte[])
+   */
+  public static final class Deriver {
+    private final Cipher cipher;
+    private final byte[] input = new byte[KEY_INPUT_LENGTH];
+
+    /**
+     * @param masterKey - master key. Must be 8 bytes length.
+     * @throws GeneralSecurityException in case of unexpected cryptographic problems
+     */
+    public Deriver(final byte[] masterKey) throws GeneralSecurityException {
+      if (masterKey == null || masterKey.length != 8) {
+        throw new IllegalArgumentException("Master key cannot be null or not 8-bytes length. MasterKey="
+            + Util.toHexArray(masterKey));
+      }
+      cipher = Cipher.getInstance(TRANSFORMATION);
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "DES"));
+    }
+
+    private void derive(final List<? extends CharSequence> iccids, final int from, final int to, final long base, final byte[] keys)
+        throws GeneralSecurityException {
+      for (int i = from; i < to; i++) {
+        try {
+          toKeyInput(iccids.get(i), input);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Invalid ICCID at index " + (base + i) + ": " + e.getMessage(), e);
+        }
+        cipher.doFinal(input, 0, KEY_INPUT_LENGTH, keys, i * KEY_LENGTH);
+      }
     }
-    return (byte) result;
   }
 }
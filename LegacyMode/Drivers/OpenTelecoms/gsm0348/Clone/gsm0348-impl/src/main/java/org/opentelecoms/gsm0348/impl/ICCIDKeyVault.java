@@ -0,0 +1,420 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of the keys derived from the ICCIDs of the cards with {@linkplain ICCIDKeyGenerator}, for deployments with too many
+ * cards to keep their keys on the heap.
+ * <p>
+ * The cards are identified by their ICCID packed in a long (see {@linkplain #pack(CharSequence)}). The keys are stored off-heap in a
+ * direct buffer, next to an open addressing index of the packed ICCIDs, so the vault adds no objects to the heap whatever its size. A
+ * missing key is derived on the first lookup. When the vault is full the CLOCK algorithm picks the entry to evict: an entry looked up
+ * again since it was stored or since the clock hand last passed it gets another chance, so cards seen once are evicted first. The keys
+ * of evicted and removed entries are zeroed.
+ * <p>
+ * Instances are thread-safe, lookups are serialized.
+ */
+public final class ICCIDKeyVault {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ICCIDKeyVault.class);
+
+  private static final String TRANSFORMATION = "DES/ECB/NoPadding";
+  private static final int KEY_LENGTH = 8;
+  private static final int ICCID_DIGITS = 19;
+
+  // Entry: packed ICCID (8) / flags (1) / ciphering key (8) / signature key (8)
+  private static final int FLAGS_OFFSET = 8;
+  private static final int KEYS_OFFSET = 9;
+  private static final byte OCCUPIED = 0x01;
+  private static final byte REFERENCED = 0x02;
+
+  private final Cipher cipheringDeriver;
+  private final Cipher signatureDeriver;
+  private final int capacity;
+  private final int entrySize;
+  private final int signatureKeyOffset;
+  private final ByteBuffer entries;
+  // Bucket: the slot of the entry plus one, 0 when the bucket is empty
+  private final ByteBuffer index;
+  private final int mask;
+
+  private final char[] digits = new char[ICCID_DIGITS];
+  private final CharBuffer digitsView = CharBuffer.wrap(digits);
+  private final byte[] input = new byte[KEY_LENGTH];
+  private final byte[] derived = new byte[2 * KEY_LENGTH];
+
+  private int size;
+  private int next;
+  private int hand;
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /**
+   * @param cipheringMasterKey - master key of the ciphering (KIC) keys, 8 bytes length, or null if they are not needed.
+   * @param signatureMasterKey - master key of the signature (KID) keys, 8 bytes length, or null if they are not needed.
+   * @param capacity           - the maximum number of cards.
+   * @throws IllegalArgumentException if both master keys are null, if a master key is not 8 bytes length or if the capacity is not
+   *                                  positive or too large for the buffers.
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   */
+  public ICCIDKeyVault(final byte[] cipheringMasterKey, final byte[] signatureMasterKey, final int capacity)
+      throws GeneralSecurityException {
+    if (cipheringMasterKey == null && signatureMasterKey == null) {
+      throw new IllegalArgumentException("At least one master key must be specified");
+    }
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    cipheringDeriver = createDeriver(cipheringMasterKey);
+    signatureDeriver = createDeriver(signatureMasterKey);
+    signatureKeyOffset = KEYS_OFFSET + (cipheringMasterKey == null ? 0 : KEY_LENGTH);
+    entrySize = signatureKeyOffset + (signatureMasterKey == null ? 0 : KEY_LENGTH);
+
+    // At most half of the buckets are used, so the probe sequences stay short
+    final long buckets = Long.highestOneBit(2L * capacity - 1) << 1;
+    if ((long) capacity * entrySize > Integer.MAX_VALUE || buckets * 4 > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Capacity is too large: " + capacity);
+    }
+    this.capacity = capacity;
+    this.mask = (int) buckets - 1;
+    this.entries = ByteBuffer.allocateDirect(capacity * entrySize).order(ByteOrder.nativeOrder());
+    this.index = ByteBuffer.allocateDirect((int) buckets * 4).order(ByteOrder.nativeOrder());
+    LOGGER.debug("Key vault of {} cards uses {} bytes off-heap", capacity, entries.capacity() + index.capacity());
+  }
+
+  /**
+   * Packs an ICCID in a long, the value of its first 19 digits. The Luhn digit is not kept as it can be computed again. As 19 decimal
+   * digits may exceed {@linkplain Long#MAX_VALUE}, the packed ICCID is to be read as an unsigned value.
+   *
+   * @param iccid - ICCID with (20 chars) or without LUHN (19 chars).
+   * @return the packed ICCID
+   * @throws IllegalArgumentException if the ICCID is not 19 or 20 decimal digits or if its Luhn digit is wrong
+   */
+  public static long pack(final CharSequence iccid) {
+    if (iccid == null) {
+      throw new IllegalArgumentException("ICCID cannot be null");
+    }
+    ICCIDKeyGenerator.checkICCID(iccid);
+    long packed = 0;
+    for (int i = 0; i < ICCID_DIGITS; i++) {
+      packed = packed * 10 + (iccid.charAt(i) - '0');
+    }
+    return packed;
+  }
+
+  /**
+   * @param iccid - the packed ICCID.
+   * @return the ICCID of 20 digits, with its Luhn digit
+   * @throws IllegalArgumentException if the value is not a packed ICCID
+   */
+  public static String unpack(final long iccid) {
+    final char[] chars = new char[ICCID_DIGITS + 1];
+    toDigits(iccid, chars);
+    chars[ICCID_DIGITS] = (char) ('0' + ICCIDKeyGenerator.checkICCID(CharBuffer.wrap(chars, 0, ICCID_DIGITS)));
+    return new String(chars);
+  }
+
+  /**
+   * Copies the keys of the card into the arrays, deriving them if they are not in the vault.
+   *
+   * @param iccid        - the packed ICCID of the card.
+   * @param cipheringKey - the array receiving the ciphering key, can be null.
+   * @param signatureKey - the array receiving the signature key, can be null.
+   * @throws IllegalArgumentException if the value is not a packed ICCID, if a key is requested without its master key or if an array is
+   *                                  not 8 bytes length.
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   */
+  public synchronized void getKeys(final long iccid, final byte[] cipheringKey, final byte[] signatureKey)
+      throws GeneralSecurityException {
+    checkKeyArray(cipheringKey, cipheringDeriver, "ciphering");
+    checkKeyArray(signatureKey, signatureDeriver, "signature");
+    final int offset = lookup(iccid) * entrySize;
+    if (cipheringKey != null) {
+      get(offset + KEYS_OFFSET, cipheringKey);
+    }
+    if (signatureKey != null) {
+      get(offset + signatureKeyOffset, signatureKey);
+    }
+  }
+
+  /**
+   * @param iccid   - the packed ICCID of the card.
+   * @param counter - the counter of the card, can be null.
+   * @return copies of the keys of the card, deriving them if they are not in the vault
+   * @throws IllegalArgumentException if the value is not a packed ICCID
+   * @throws GeneralSecurityException in case of unexpected cryptographic problems
+   */
+  public CardKeys getCardKeys(final long iccid, final byte[] counter) throws GeneralSecurityException {
+    final byte[] cipheringKey = cipheringDeriver == null ? null : new byte[KEY_LENGTH];
+    final byte[] signatureKey = signatureDeriver == null ? null : new byte[KEY_LENGTH];
+    getKeys(iccid, cipheringKey, signatureKey);
+    return new CardKeys(cipheringKey, signatureKey, counter);
+  }
+
+  /**
+   * @param iccid - the packed ICCID of the card.
+   * @return whether the keys of the card are in the vault, without counting a hit or a miss
+   */
+  public synchronized boolean contains(final long iccid) {
+    return find(iccid) >= 0;
+  }
+
+  /**
+   * Removes the keys of the card and zeroes them.
+   *
+   * @param iccid - the packed ICCID of the card.
+   * @return whether the keys of the card were in the vault
+   */
+  public synchronized boolean remove(final long iccid) {
+    final int bucket = find(iccid);
+    if (bucket < 0) {
+      return false;
+    }
+    delete(bucket, slot(bucket));
+    return true;
+  }
+
+  /**
+   * Removes and zeroes all keys. The counters are kept.
+   */
+  public synchronized void clear() {
+    final byte[] zeros = new byte[4096];
+    fill(entries, zeros);
+    fill(index, zeros);
+    size = 0;
+    next = 0;
+    hand = 0;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return the number of lookups that found the keys in the vault
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups that derived the keys
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return the number of entries evicted to make room for others
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ICCIDKeyVault[size=" + size + ", capacity=" + capacity + ", hits=" + hits + ", misses=" + misses + ", evictions="
+        + evictions + "]";
+  }
+
+  /**
+   * @return the slot of the entry of the ICCID, stored on a miss
+   */
+  private int lookup(final long iccid) throws GeneralSecurityException {
+    final int bucket = find(iccid);
+    if (bucket >= 0) {
+      hits++;
+      final int slot = slot(bucket);
+      entries.put(slot * entrySize + FLAGS_OFFSET, (byte) (OCCUPIED | REFERENCED));
+      return slot;
+    }
+    misses++;
+    // Derived before making room, so an invalid ICCID doesn't evict anything
+    derive(iccid);
+    try {
+      final int slot = allocate();
+      final int offset = slot * entrySize;
+      entries.putLong(offset, iccid);
+      entries.put(offset + FLAGS_OFFSET, OCCUPIED);
+      put(offset + KEYS_OFFSET, derived, entrySize - KEYS_OFFSET);
+      int free = bucket(iccid);
+      while (index.getInt(free << 2) != 0) {
+        free = (free + 1) & mask;
+      }
+      index.putInt(free << 2, slot + 1);
+      size++;
+      return slot;
+    } finally {
+      Arrays.fill(derived, (byte) 0);
+    }
+  }
+
+  private void derive(final long iccid) throws GeneralSecurityException {
+    toDigits(iccid, digits);
+    ICCIDKeyGenerator.toKeyInput(digitsView, input);
+    int length = 0;
+    if (cipheringDeriver != null) {
+      length += cipheringDeriver.doFinal(input, 0, KEY_LENGTH, derived, length);
+    }
+    if (signatureDeriver != null) {
+      signatureDeriver.doFinal(input, 0, KEY_LENGTH, derived, length);
+    }
+  }
+
+  /**
+   * @return a free slot, evicting an entry if the vault is full
+   */
+  private int allocate() {
+    if (next < capacity) {
+      return next++;
+    }
+    while (true) {
+      final int slot = hand;
+      hand = (hand + 1 == capacity) ? 0 : hand + 1;
+      final int flagsOffset = slot * entrySize + FLAGS_OFFSET;
+      final byte flags = entries.get(flagsOffset);
+      if ((flags & OCCUPIED) == 0) {
+        // Removed entry
+        return slot;
+      }
+      if (size < capacity) {
+        // There is a removed entry further on, keep the entries that are still there
+        continue;
+      }
+      if ((flags & REFERENCED) != 0) {
+        entries.put(flagsOffset, OCCUPIED);
+        continue;
+      }
+      delete(find(entries.getLong(slot * entrySize)), slot);
+      evictions++;
+      return slot;
+    }
+  }
+
+  /**
+   * @return the bucket of the ICCID, or -1 if it is not in the vault
+   */
+  private int find(final long iccid) {
+    int bucket = bucket(iccid);
+    while (true) {
+      final int slot = slot(bucket);
+      if (slot < 0) {
+        return -1;
+      }
+      if (entries.getLong(slot * entrySize) == iccid) {
+        return bucket;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+  }
+
+  private int slot(final int bucket) {
+    return index.getInt(bucket << 2) - 1;
+  }
+
+  private int bucket(final long iccid) {
+    final long hash = iccid * 0x9e3779b97f4a7c15L;
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  /**
+   * Zeroes the entry and empties its bucket, moving back the entries probed past it.
+   */
+  private void delete(final int bucket, final int slot) {
+    final int offset = slot * entrySize;
+    for (int i = 0; i < entrySize; i++) {
+      entries.put(offset + i, (byte) 0);
+    }
+    int hole = bucket;
+    int current = bucket;
+    while (true) {
+      current = (current + 1) & mask;
+      final int moved = slot(current);
+      if (moved < 0) {
+        break;
+      }
+      final int home = bucket(entries.getLong(moved * entrySize));
+      // The entry can fill the hole if the hole is between its home bucket and its current bucket
+      if (((current - home) & mask) >= ((current - hole) & mask)) {
+        index.putInt(hole << 2, moved + 1);
+        hole = current;
+      }
+    }
+    index.putInt(hole << 2, 0);
+    size--;
+  }
+
+  private void get(final int offset, final byte[] key) {
+    for (int i = 0; i < KEY_LENGTH; i++) {
+      key[i] = entries.get(offset + i);
+    }
+  }
+
+  private void put(final int offset, final byte[] keys, final int length) {
+    for (int i = 0; i < length; i++) {
+      entries.put(offset + i, keys[i]);
+    }
+  }
+
+  private static void fill(final ByteBuffer buffer, final byte[] zeros) {
+    final ByteBuffer target = buffer.duplicate();
+    target.clear();
+    while (target.hasRemaining()) {
+      target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+    }
+  }
+
+  /**
+   * Puts the 19 decimal digits of the packed ICCID, read as an unsigned value, into the array.
+   */
+  private static void toDigits(final long iccid, final char[] chars) {
+    long value = iccid;
+    for (int i = ICCID_DIGITS - 1; i >= 0; i--) {
+      // Unsigned division by 10
+      final long quotient = (value >>> 1) / 5;
+      chars[i] = (char) ('0' + (value - quotient * 10));
+      value = quotient;
+    }
+    if (value != 0) {
+      throw new IllegalArgumentException("Not a packed ICCID: 0x" + Long.toHexString(iccid));
+    }
+  }
+
+  private static Cipher createDeriver(final byte[] masterKey) throws GeneralSecurityException {
+    if (masterKey == null) {
+      return null;
+    }
+    if (masterKey.length != 8) {
+      throw new IllegalArgumentException("Master key cannot be not 8-bytes length. MasterKey=" + Util.toHexArray(masterKey));
+    }
+    return CipheringManager.createCipher(TRANSFORMATION, masterKey, Cipher.ENCRYPT_MODE);
+  }
+
+  private static void checkKeyArray(final byte[] key, final Cipher deriver, final String name) {
+    if (key == null) {
+      return;
+    }
+    if (deriver == null) {
+      throw new IllegalArgumentException("The vault has no " + name + " master key");
+    }
+    if (key.length != KEY_LENGTH) {
+      throw new IllegalArgumentException("The " + name + " key array must be " + KEY_LENGTH + " bytes length: " + key.length);
+    }
+  }
+}
@@ -0,0 +1,1429 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.LazyHex;
+import org.opentelecoms.gsm0348.api.LogThrottle;
+import org.opentelecoms.gsm0348.api.PacketBuilder;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.PacketMetrics.Phase;
+import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
+import org.opentelecoms.gsm0348.impl.crypto.Mac;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Thread-safe {@linkplain PacketBuilder} bound to a single {@linkplain SecuredProfile}.
+ * <p>
+ * All state is final and set in the constructor, every call works on local buffers only, so one instance can be shared by any number of
+ * threads without synchronization. The profile cannot be changed: {@linkplain #setProfile(CardProfile)} throws
+ * {@linkplain UnsupportedOperationException}, create a new builder instead. Unlike {@linkplain PacketBuilderImpl}, recovering a command
+ * packet with a security header different from the profile does not change the builder.
+ */
+public final class ImmutablePacketBuilder implements PacketBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ImmutablePacketBuilder.class);
+  // Packets too small for the profile come from the network, at most 10 of them are logged per second
+  private static final LogThrottle RAW_PACKET_LOG = new LogThrottle(10, 1, TimeUnit.SECONDS);
+
+  private static final int SPI_SIZE = 2;
+  private static final int KIC_SIZE = 1;
+  private static final int KID_SIZE = 1;
+  private static final int TAR_SIZE = 3;
+  private static final int COUNTER_SIZE = 5;
+  private static final int PADDING_COUNTER_SIZE = 1;
+  private static final int MINIMUM_COMMAND_PACKET_SIZE = 16;
+  private static final int MINIMUM_RESPONSE_PACKET_SIZE = 13;
+  private static final int HEADER_SIZE_WITHOUT_SIGNATURE = SPI_SIZE + KIC_SIZE + KID_SIZE + TAR_SIZE + COUNTER_SIZE + PADDING_COUNTER_SIZE;
+  private static final int STATUS_CODE_SIZE = 1;
+  private static final int RESPONSE_HEADER_SIZE_WITHOUT_SIGNATURE = TAR_SIZE + COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE;
+
+  private static final byte[] SMS_CPI = new byte[]{ 0x02, 0x70, 0x00 };
+  private static final byte[] SMS_RPI = new byte[]{ 0x02, 0x71, 0x00 };
+
+  private static final byte[] CPI = new byte[]{ 0x01 };
+  private static final byte[] RPI = new byte[]{ 0x02 };
+  private static final byte[] IPI = new byte[]{ 0x03 };
+
+  private static final byte[] USSD_CPI = new byte[]{ 0x03 };
+  private static final byte[] USSD_RPI = new byte[]{ 0x04 };
+
+  // SMS: concatenation information elements of TS 23.040, with 8 and 16 bit reference numbers
+  private static final byte IEI_CONCATENATED_8_BIT = 0x00;
+  private static final byte IEI_CONCATENATED_16_BIT = 0x08;
+  private static final int MAX_SEGMENTS = 255;
+
+  /**
+   * The maximum size of the user data of a short message, in octets.
+   */
+  public static final int SMS_USER_DATA_SIZE = 140;
+
+  private static final ResponsePacketStatus[] RESPONSE_STATUSES = ResponsePacketStatus.values();
+
+  private final SecuredProfile profile;
+  private final CounterStore counterStore;
+  private final PacketMetrics metrics;
+
+  // https://www.etsi.org/deliver/etsi_ts/131100_131199/131115/06.05.00_60/ts_131115v060500p.pdf
+  // https://portal.3gpp.org/desktopmodules/Specifications/SpecificationDetails.aspx?specificationId=1811
+  // http://www.3gpp2.org/Public_html/Specs/C.S0078-0_v1.0_061106.pdf
+
+  // SMS: CPI is mapped to IEIa defined in TS 23.040 and shall be set to '70'.
+  // SMS: CPL is always 2 octets, not encoded to BER-TLV length
+  // SMS: CHI is null
+  // SMS: CHL is always 1 octet, not encoded to BER-TLV length
+  // SMS: Secured Data including padding
+  // SMS: RPI is mapped to IEIa defined in TS 23.040 and shall be set to '71'.
+
+  // SMS_PP Command
+  // It is recognised that most checksum algorithms require input data in modulo 8 length.
+  // In order to achieve a modulo 8 length of the data before the RC/CC/DS field in the Command Header
+  // the Length of the Command Packet and the Length of the Command Header shall be included in the calculation of RC/CC/DS if used.
+  // These fields shall not be ciphered.
+
+  // SMS_PP Response
+  // In order to achieve a modulo 8 length of the data before the RC/CC/DS field in the Response Header, the Length of the Response Packet,
+  // the Length of the Response Header and the three preceding octets(UDHL, IEIa and IEIDLa defined in TS 23.040 [3])
+  // shall be included in the calculation of RC/CC/DS if used. These fields shall not be ciphered
+
+  // CAT_TP: CPI is '01'.
+  // CAT_TP: CHI is null
+  // CAT_TP: CPI, CPL and CHL shall be included in the calculation of the RC/CC/DS
+
+  // CAT_TP: RPI is '02'.
+  // CAT_TP: RHI is null
+  // CAT_TP: RPI, RPL and RHL shall be included in the calculation of the RC/CC/DS
+
+  // TCPIP: CPI is '01'.
+  // TCPIP: CHI is null
+  // TCPIP: CPI, CPL and CHL shall be included in the calculation of the RC/CC/DS
+
+  // TCPIP: RPI is '02'.
+  // TCPIP: RHI is null
+  // TCPIP: RPI, RPL and RHL shall be included in the calculation of the RC/CC/DS
+
+  // TCPIP: IPI is '03'. (Identification Packet Identifier)
+  // TCPIP: IPL is BER-TLV
+  // TCPIP: Identification data tag
+  // TCPIP: Length of identification data string: 1 octet
+  // TCPIP: Identification data string
+
+  public ImmutablePacketBuilder(final CardProfile cardProfile) throws PacketBuilderConfigurationException {
+    this(SecuredProfile.compile(cardProfile));
+  }
+
+  public ImmutablePacketBuilder(final SecuredProfile profile) {
+    this(profile, null);
+  }
+
+  /**
+   * @param profile      - the profile of the packets.
+   * @param counterStore - the store allocating the counters of the commands built for a card identity, can be null.
+   * @see #buildCommandPacket(long, byte[], byte[], byte[])
+   */
+  public ImmutablePacketBuilder(final SecuredProfile profile, final CounterStore counterStore) {
+    this(profile, counterStore, null);
+  }
+
+  /**
+   * @param profile      - the profile of the packets.
+   * @param counterStore - the store allocating the counters of the commands built for a card identity, can be null.
+   * @param metrics      - the listener of the phases of the packets built and recovered, can be null.
+   */
+  public ImmutablePacketBuilder(final SecuredProfile profile, final CounterStore counterStore, final PacketMetrics metrics) {
+    if (profile == null) {
+      throw new IllegalArgumentException("Profile cannot be null");
+    }
+    this.profile = profile;
+    this.counterStore = counterStore;
+    this.metrics = (metrics == null) ? PacketMetrics.NONE : metrics;
+    if (!profile.isUsingCounter()) {
+      LOGGER.debug("Counter is turned off - counter field in packet will be filled with zeroes");
+    }
+  }
+
+  @Override
+  public CardProfile getProfile() {
+    return profile.toCardProfile();
+  }
+
+  /**
+   * Not supported, the profile of this builder is fixed at construction.
+   *
+   * @throws UnsupportedOperationException always
+   */
+  @Override
+  public void setProfile(CardProfile cardProfile) {
+    throw new UnsupportedOperationException("The profile of an immutable packet builder cannot be changed");
+  }
+
+  public SecuredProfile getSecuredProfile() {
+    return profile;
+  }
+
+  /**
+   * @return the store allocating the counters of the commands, null if the counters are given by the caller
+   */
+  public CounterStore getCounterStore() {
+    return counterStore;
+  }
+
+  /**
+   * @return the listener of the phases of the packets, {@linkplain PacketMetrics#NONE} if none was given
+   */
+  public PacketMetrics getMetrics() {
+    return metrics;
+  }
+
+  @Override
+  public boolean isConfigured() {
+    return true;
+  }
+
+  /**
+   * Registers the keys of a card once. The returned handle holds a copy of the keys together with the ciphers and the MAC of the
+   * profile algorithms, keyed once, and can be passed to the build and recover methods instead of the keys.
+   *
+   * @param cipheringKey - ciphering key. Used only if the profile ciphers commands or responses, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the profile signs commands or responses, otherwise can be null.
+   * @return the handle of the keys
+   * @throws Gsm0348Exception if a key doesn't suit its algorithm.
+   */
+  public KeyHandle createKeyHandle(byte[] cipheringKey, byte[] signatureKey) throws Gsm0348Exception {
+    try {
+      return new KeyHandle(profile, cipheringKey, signatureKey);
+    } catch (GeneralSecurityException e) {
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  @Override
+  public byte[] buildCommandPacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    final byte[] packet = new byte[profile.getCommandPacketLength(data == null ? 0 : data.length)];
+    buildCommandPacket(data, counter, cipheringKey, signatureKey, ByteBuffer.wrap(packet));
+    return packet;
+  }
+
+  @Override
+  public int buildCommandPacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    return buildCommandPacket(data, counter, cipheringKey, signatureKey, null, buffer);
+  }
+
+  /**
+   * Builds a command packet with the next counter of the card, allocated by the counter store of this builder for the KIC keyset of the
+   * profile. The counter is allocated only if the profile uses counters.
+   *
+   * @param cardId - the identity of the card in the counter store, e.g. its packed ICCID.
+   * @throws PacketBuilderConfigurationException if the builder has no counter store.
+   * @see #buildCommandPacket(byte[], byte[], byte[], byte[])
+   */
+  public byte[] buildCommandPacket(long cardId, byte[] data, byte[] cipheringKey, byte[] signatureKey)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    final byte[] packet = new byte[profile.getCommandPacketLength(data == null ? 0 : data.length)];
+    buildCommandPacket(cardId, data, cipheringKey, signatureKey, ByteBuffer.wrap(packet));
+    return packet;
+  }
+
+  /**
+   * Builds a command packet into the buffer with the next counter of the card, allocated by the counter store of this builder for the
+   * KIC keyset of the profile. The counter is allocated only if the profile uses counters, once the keys and the buffer are checked. If
+   * the packet still cannot be built, e.g. because a key doesn't suit its algorithm, the counter is
+   * {@linkplain CounterStore#releaseCounter(long, int, long) released} so that the next packet of the card gets it.
+   *
+   * @param cardId - the identity of the card in the counter store, e.g. its packed ICCID.
+   * @throws PacketBuilderConfigurationException if the builder has no counter store.
+   * @see #buildCommandPacket(byte[], byte[], byte[], byte[], ByteBuffer)
+   */
+  public int buildCommandPacket(long cardId, byte[] data, byte[] cipheringKey, byte[] signatureKey, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (counterStore == null) {
+      throw new PacketBuilderConfigurationException("Counter is not specified and the builder has no counter store");
+    }
+    if (!profile.isUsingCounter()) {
+      return buildCommandPacket(data, null, cipheringKey, signatureKey, null, buffer);
+    }
+    // Everything that can be checked without the cryptography is checked before the counter is allocated
+    checkCommandKeys(cipheringKey, signatureKey);
+    checkCommandBuffer(data == null ? 0 : data.length, buffer);
+    final int keyset = (profile.getKIC() & 0xf0) >>> 4;
+    final long value = counterStore.nextCounter(cardId, keyset);
+    final byte[] counter = new byte[COUNTER_SIZE];
+    for (int i = COUNTER_SIZE - 1; i >= 0; i--) {
+      counter[i] = (byte) (value >>> (8 * (COUNTER_SIZE - 1 - i)));
+    }
+    try {
+      return buildCommandPacket(data, counter, cipheringKey, signatureKey, null, buffer);
+    } catch (Gsm0348Exception | RuntimeException e) {
+      if (!counterStore.releaseCounter(cardId, keyset, value)) {
+        LOGGER.warn("Counter {} of card {} keyset {} could not be released, a counter was allocated since", value,
+            Long.toHexString(cardId), keyset);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Builds a command packet with the keys of a handle created by this builder.
+   *
+   * @see #buildCommandPacket(byte[], byte[], byte[], byte[])
+   */
+  public byte[] buildCommandPacket(KeyHandle keys, byte[] data, byte[] counter) throws PacketBuilderConfigurationException, Gsm0348Exception {
+    final byte[] packet = new byte[profile.getCommandPacketLength(data == null ? 0 : data.length)];
+    buildCommandPacket(keys, data, counter, ByteBuffer.wrap(packet));
+    return packet;
+  }
+
+  /**
+   * Builds a command packet into the buffer with the keys of a handle created by this builder.
+   *
+   * @see #buildCommandPacket(byte[], byte[], byte[], byte[], ByteBuffer)
+   */
+  public int buildCommandPacket(KeyHandle keys, byte[] data, byte[] counter, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    checkKeyHandle(keys);
+    synchronized (keys) {
+      return buildCommandPacket(data, counter, keys.getCipheringKey(), keys.getSignatureKey(), keys, buffer);
+    }
+  }
+
+  /**
+   * Builds an SMS_PP command packet as the user data of one or more short messages, ready to send with the user data header indicator
+   * set. A packet fitting in one message is preceded by the user data header {@code 02 70 00}. A longer packet is split in concatenated
+   * messages as in TS 23.040 and TS 31.115: the header of the first message holds the concatenation element and the command packet
+   * identifier {@code 70 00}, the headers of the following messages hold only the concatenation element.
+   * <p>
+   * The messages are written one after the other from the position of the buffer, each {@linkplain #SMS_USER_DATA_SIZE} octets long
+   * but the last one, and the position is moved after the last one. The packet is built in place and each message moved once, without
+   * any intermediate array, so the buffer can be a pooled direct buffer of {@linkplain #getCommandSegmentsLength(int, int)} octets.
+   *
+   * @param reference - the concatenation reference number, 0 to 65535. Up to 255 it is sent in one octet, in two octets otherwise.
+   * @return the number of messages
+   * @throws PacketBuilderConfigurationException if the transport protocol of the profile is not SMS_PP.
+   * @throws java.nio.BufferOverflowException    if the buffer is too small.
+   * @see #buildCommandPacket(byte[], byte[], byte[], byte[], ByteBuffer)
+   */
+  public int buildCommandSegments(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, int reference, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    return buildCommandSegments(data, counter, cipheringKey, signatureKey, null, reference, buffer);
+  }
+
+  /**
+   * Builds an SMS_PP command packet as the user data of short messages with the keys of a handle created by this builder.
+   *
+   * @see #buildCommandSegments(byte[], byte[], byte[], byte[], int, ByteBuffer)
+   */
+  public int buildCommandSegments(KeyHandle keys, byte[] data, byte[] counter, int reference, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    checkKeyHandle(keys);
+    synchronized (keys) {
+      return buildCommandSegments(data, counter, keys.getCipheringKey(), keys.getSignatureKey(), keys, reference, buffer);
+    }
+  }
+
+  /**
+   * @param dataLength - the length of the secured data.
+   * @param reference  - the concatenation reference number.
+   * @return the number of short messages holding the command packet
+   * @see #buildCommandSegments(byte[], byte[], byte[], byte[], int, ByteBuffer)
+   */
+  public int getCommandSegmentCount(final int dataLength, final int reference) throws PacketBuilderConfigurationException {
+    final int packetLength = profile.getCommandPacketLength(dataLength);
+    if (SMS_CPI.length + packetLength <= SMS_USER_DATA_SIZE) {
+      return 1;
+    }
+    final int concatenationLength = getConcatenationLength(reference);
+    final int firstSize = SMS_USER_DATA_SIZE - SMS_CPI.length - concatenationLength;
+    final int nextSize = SMS_USER_DATA_SIZE - 1 - concatenationLength;
+    final int count = 1 + (packetLength - firstSize + nextSize - 1) / nextSize;
+    if (count > MAX_SEGMENTS) {
+      throw new PacketBuilderConfigurationException("Command packet of " + packetLength + " octets needs more than " + MAX_SEGMENTS
+          + " short messages");
+    }
+    return count;
+  }
+
+  /**
+   * @param dataLength - the length of the secured data.
+   * @param reference  - the concatenation reference number.
+   * @return the length of the short messages holding the command packet, user data headers included
+   * @see #buildCommandSegments(byte[], byte[], byte[], byte[], int, ByteBuffer)
+   */
+  public int getCommandSegmentsLength(final int dataLength, final int reference) throws PacketBuilderConfigurationException {
+    final int count = getCommandSegmentCount(dataLength, reference);
+    final int packetLength = profile.getCommandPacketLength(dataLength);
+    if (count == 1) {
+      return SMS_CPI.length + packetLength;
+    }
+    // Every message but the first one repeats the concatenation element
+    return SMS_CPI.length + count * getConcatenationLength(reference) + (count - 1) + packetLength;
+  }
+
+  private int buildCommandSegments(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, KeyHandle handle,
+                                   int reference, ByteBuffer buffer) throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (profile.getTransportProtocol() != TransportProtocol.SMS_PP) {
+      throw new PacketBuilderConfigurationException(
+          "Short message segments can only be built for SMS_PP, not " + profile.getTransportProtocol());
+    }
+    if (buffer == null) {
+      throw new IllegalArgumentException("Buffer cannot be null");
+    }
+    final int dataLength = (data == null) ? 0 : data.length;
+    final int count = getCommandSegmentCount(dataLength, reference);
+    final int length = getCommandSegmentsLength(dataLength, reference);
+    if (buffer.remaining() < length) {
+      throw new BufferOverflowException();
+    }
+
+    final int start = buffer.position();
+    final int concatenationLength = count == 1 ? 0 : getConcatenationLength(reference);
+    final int firstHeaderLength = SMS_CPI.length + concatenationLength;
+
+    // The packet is built where the first message carries it, the following messages are then moved into place from the last one
+    final ByteBuffer packet = buffer.duplicate();
+    packet.position(start + firstHeaderLength);
+    final int packetLength = buildCommandPacket(data, counter, cipheringKey, signatureKey, handle, packet);
+
+    if (count > 1) {
+      final int nextHeaderLength = 1 + concatenationLength;
+      final int firstSize = SMS_USER_DATA_SIZE - firstHeaderLength;
+      final int nextSize = SMS_USER_DATA_SIZE - nextHeaderLength;
+      for (int segment = count - 1; segment > 0; segment--) {
+        final int source = start + firstHeaderLength + firstSize + (segment - 1) * nextSize;
+        final int segmentStart = start + segment * SMS_USER_DATA_SIZE;
+        final int size = Math.min(nextSize, packetLength - firstSize - (segment - 1) * nextSize);
+        moveForward(buffer, source, segmentStart + nextHeaderLength, size);
+        buffer.put(segmentStart, (byte) concatenationLength);
+        putConcatenation(buffer, segmentStart + 1, reference, count, segment + 1);
+      }
+    }
+
+    buffer.put(start, (byte) (firstHeaderLength - 1));
+    if (count > 1) {
+      putConcatenation(buffer, start + 1, reference, count, 1);
+    }
+    buffer.put(start + 1 + concatenationLength, SMS_CPI[1]);
+    buffer.put(start + 2 + concatenationLength, SMS_CPI[2]);
+
+    buffer.position(start + length);
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Command packet of {} octets in {} short messages with reference {}", packetLength, count, reference);
+    }
+    return count;
+  }
+
+  private static int getConcatenationLength(final int reference) {
+    if (reference < 0 || reference > 0xffff) {
+      throw new IllegalArgumentException("Concatenation reference must be between 0 and 65535: " + reference);
+    }
+    // IEI, IEIDL, reference, maximum number and sequence number
+    return reference > 0xff ? 6 : 5;
+  }
+
+  private static void putConcatenation(final ByteBuffer buffer, final int offset, final int reference, final int count,
+                                       final int sequence) {
+    int position = offset;
+    if (reference > 0xff) {
+      buffer.put(position++, IEI_CONCATENATED_16_BIT);
+      buffer.put(position++, (byte) 4);
+      buffer.put(position++, (byte) (reference >>> 8));
+    } else {
+      buffer.put(position++, IEI_CONCATENATED_8_BIT);
+      buffer.put(position++, (byte) 3);
+    }
+    buffer.put(position++, (byte) reference);
+    buffer.put(position++, (byte) count);
+    buffer.put(position, (byte) sequence);
+  }
+
+  /**
+   * Moves octets to a higher offset of the same buffer, the ranges may overlap.
+   */
+  private static void moveForward(final ByteBuffer buffer, final int source, final int target, final int length) {
+    if (buffer.hasArray()) {
+      final int base = buffer.arrayOffset();
+      System.arraycopy(buffer.array(), base + source, buffer.array(), base + target, length);
+      return;
+    }
+    for (int i = length - 1; i >= 0; i--) {
+      buffer.put(target + i, buffer.get(source + i));
+    }
+  }
+
+  private void checkCommandKeys(byte[] cipheringKey, byte[] signatureKey) throws PacketBuilderConfigurationException {
+    if (profile.isCommandCiphering() && (cipheringKey == null)) {
+      throw new PacketBuilderConfigurationException("Ciphering is enabled - ciphering key must be specified");
+    }
+    if (profile.isCommandSigning() && (signatureKey == null)) {
+      throw new PacketBuilderConfigurationException("Signing is enabled - signature key must be specified");
+    }
+  }
+
+  private void checkCommandBuffer(int dataLength, ByteBuffer buffer) throws PacketBuilderConfigurationException {
+    if (buffer == null) {
+      throw new IllegalArgumentException("Buffer cannot be null");
+    }
+    if (buffer.remaining() < profile.getCommandPacketLength(dataLength)) {
+      throw new BufferOverflowException();
+    }
+  }
+
+  private int buildCommandPacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, KeyHandle handle,
+                                 ByteBuffer buffer) throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Creating {} command packet.\n\tData: {}\n\tCounter: {}\n\tCipheringKey: {}\n\tSigningKey: {}",
+          profile.getTransportProtocol()
+          , LazyHex.string(data)
+          , LazyHex.string(counter)
+          , LazyHex.string(cipheringKey)
+          , LazyHex.string(signatureKey));
+    }
+
+    final boolean commandPacketCiphering = profile.isCommandCiphering();
+    final boolean commandPacketSigning = profile.isCommandSigning();
+    final boolean usingCounter = profile.isUsingCounter();
+    checkCommandKeys(cipheringKey, signatureKey);
+    if (counter == null && usingCounter) {
+      throw new PacketBuilderConfigurationException("Counter is null and required by configuration");
+    }
+    if (counter != null && counter.length != COUNTER_SIZE) {
+      throw new PacketBuilderConfigurationException("Counter size mismatch. Current is "
+          + (counter != null ? counter.length : "null") + ", required is " + COUNTER_SIZE);
+    }
+    final int dataLength = (data == null) ? 0 : data.length;
+    checkCommandBuffer(dataLength, buffer);
+
+    final int start = buffer.position();
+    final boolean timed = metrics != PacketMetrics.NONE;
+    long time = timed ? System.nanoTime() : 0;
+    Phase phase = Phase.HEADER;
+    try {
+      LOGGER.trace("Signing: {}", commandPacketSigning);
+      final int signatureLength = profile.getCommandSignatureLength();
+      LOGGER.debug("Signature length: {}", signatureLength);
+
+      final int paddingCounter = profile.getCommandPaddingLength(dataLength);
+      // CHL / SPI / KIC / KID / TAR are precomputed by the profile
+      final byte[] clearHeader = profile.commandHeaderClear();
+      final int length = clearHeader.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength + dataLength + paddingCounter;
+
+      putCommandFraming(profile.getTransportProtocol(), buffer, length);
+      buffer.put(clearHeader);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Clear header: {}", LazyHex.array(clearHeader));
+      }
+
+      final int cipheredOffset = buffer.position();
+      putCounter(buffer, usingCounter ? counter : null);
+      buffer.put((byte) (paddingCounter & 0xff));
+      LOGGER.debug("Padding counter: {}", paddingCounter);
+
+      final int signatureOffset = buffer.position();
+      putZeros(buffer, signatureLength);
+      final int dataOffset = buffer.position();
+      if (data != null) {
+        buffer.put(data);
+      }
+      putZeros(buffer, paddingCounter);
+      final int end = buffer.position();
+      if (timed) {
+        time = completed(Phase.HEADER, null, time);
+      }
+
+      if (commandPacketSigning) {
+        phase = Phase.SIGNING;
+        final Mac mac = createMac(handle, signatureKey, signatureLength);
+        // Part or all of these fields may also be included in the calculation of the RC/CC/DS, depending on implementation (e.g. SMS).
+        // CPI / CPL / CHI  CHL
+        // These fields are included in the calculation of the RC/CC/DS.
+        // SPI / KIC / KID / TAR / CNTR / PCNTR / SECURED DATA WITH PADDING
+
+        // SMS_PP - CPI - UDH 02 70 00 is not taken in the RC/CC/DS calculation
+        SignatureManager.update(mac, buffer, start, signatureOffset - start);
+        SignatureManager.update(mac, buffer, dataOffset, end - dataOffset);
+        SignatureManager.doFinal(mac, buffer, signatureOffset);
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Signature: {} length: {}", LazyHex.string(buffer, signatureOffset, signatureLength), signatureLength);
+        }
+        if (timed) {
+          time = completed(Phase.SIGNING, profile.getSignatureAlgorithmName(), time);
+        }
+      }
+
+      if (commandPacketCiphering) {
+        phase = Phase.CIPHERING;
+        // The data is already aligned on the block size, as NoPadding is used
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Ciphering command data: {} length: {}", LazyHex.string(buffer, cipheredOffset, end - cipheredOffset),
+              end - cipheredOffset);
+        }
+        encipher(handle, profile.getCipheringAlgorithmName(), cipheringKey, buffer, cipheredOffset, end - cipheredOffset);
+        if (timed) {
+          completed(Phase.CIPHERING, profile.getCipheringAlgorithmName(), time);
+        }
+      }
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Command packet created: {} length: {}", LazyHex.string(buffer, start, end - start), end - start);
+      }
+      return end - start;
+
+    } catch (GeneralSecurityException e) {
+      buffer.position(start);
+      failed(phase, profile);
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  @Override
+  public byte[] buildResponsePacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey,
+                                    ResponsePacketStatus responseStatus) throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (profile.getTransportProtocol() == TransportProtocol.SMS_CB) {
+      throw new PacketBuilderConfigurationException("Response packet is not defined for SMS-CB");
+    }
+    final byte[] packet = new byte[profile.getResponsePacketLength(data == null ? 0 : data.length)];
+    buildResponsePacket(data, counter, cipheringKey, signatureKey, responseStatus, ByteBuffer.wrap(packet));
+    return packet;
+  }
+
+  @Override
+  public int buildResponsePacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey,
+                                 ResponsePacketStatus responseStatus, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    return buildResponsePacket(data, counter, cipheringKey, signatureKey, null, responseStatus, buffer);
+  }
+
+  /**
+   * Builds a response packet with the keys of a handle created by this builder.
+   *
+   * @see #buildResponsePacket(byte[], byte[], byte[], byte[], ResponsePacketStatus)
+   */
+  public byte[] buildResponsePacket(KeyHandle keys, byte[] data, byte[] counter, ResponsePacketStatus responseStatus)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (profile.getTransportProtocol() == TransportProtocol.SMS_CB) {
+      throw new PacketBuilderConfigurationException("Response packet is not defined for SMS-CB");
+    }
+    final byte[] packet = new byte[profile.getResponsePacketLength(data == null ? 0 : data.length)];
+    buildResponsePacket(keys, data, counter, responseStatus, ByteBuffer.wrap(packet));
+    return packet;
+  }
+
+  /**
+   * Builds a response packet into the buffer with the keys of a handle created by this builder.
+   *
+   * @see #buildResponsePacket(byte[], byte[], byte[], byte[], ResponsePacketStatus, ByteBuffer)
+   */
+  public int buildResponsePacket(KeyHandle keys, byte[] data, byte[] counter, ResponsePacketStatus responseStatus, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    checkKeyHandle(keys);
+    synchronized (keys) {
+      return buildResponsePacket(data, counter, keys.getCipheringKey(), keys.getSignatureKey(), keys, responseStatus, buffer);
+    }
+  }
+
+  private int buildResponsePacket(byte[] data, byte[] counter, byte[] cipheringKey, byte[] signatureKey, KeyHandle handle,
+                                  ResponsePacketStatus responseStatus, ByteBuffer buffer)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Creating {} response packet.\n\tData: {}\n\tCounter: {}\n\tCipheringKey: {}\n\tSigningKey: {}"
+          , profile.getTransportProtocol()
+          , LazyHex.string(data)
+          , LazyHex.string(counter)
+          , LazyHex.string(cipheringKey)
+          , LazyHex.string(signatureKey));
+    }
+
+    final boolean responsePacketCiphering = profile.isResponseCiphering();
+    final boolean responsePacketSigning = profile.isResponseSigning();
+    final boolean usingCounter = profile.isUsingCounter();
+    if (responsePacketCiphering && (cipheringKey == null)) {
+      throw new PacketBuilderConfigurationException("Ciphering is enabled - ciphering key must be specified");
+    }
+    if (responsePacketSigning && (signatureKey == null)) {
+      throw new PacketBuilderConfigurationException("Signing is enabled - signature key must be specified");
+    }
+    if (counter == null && usingCounter) {
+      throw new PacketBuilderConfigurationException("Counter is null and required by configuration");
+    }
+    if (counter != null && counter.length != COUNTER_SIZE) {
+      throw new PacketBuilderConfigurationException("Counter size mismatch. Current is "
+          + (counter != null ? counter.length : "null") + ", required is " + COUNTER_SIZE);
+    }
+    if (profile.getTransportProtocol() == TransportProtocol.SMS_CB) {
+      throw new PacketBuilderConfigurationException("Response packet is not defined for SMS-CB");
+    }
+    if (buffer == null) {
+      throw new IllegalArgumentException("Buffer cannot be null");
+    }
+
+    final int dataLength = (data == null) ? 0 : data.length;
+    if (buffer.remaining() < profile.getResponsePacketLength(dataLength)) {
+      throw new BufferOverflowException();
+    }
+
+    final int start = buffer.position();
+    final boolean timed = metrics != PacketMetrics.NONE;
+    long time = timed ? System.nanoTime() : 0;
+    Phase phase = Phase.HEADER;
+    try {
+      LOGGER.trace("Signing: {}", responsePacketSigning);
+      final int signatureLength = profile.getResponseSignatureLength();
+      LOGGER.debug("Signature length: {}", signatureLength);
+      LOGGER.debug("Header length: {}", profile.getResponseHeaderLength());
+
+      final int paddingCounter = profile.getResponsePaddingLength(dataLength);
+      // RHL / TAR are precomputed by the profile
+      final byte[] clearHeader = profile.responseHeaderClear();
+      final int length = clearHeader.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE + signatureLength + dataLength
+          + paddingCounter;
+
+      switch (profile.getTransportProtocol()) {
+        case SMS_PP:
+          Util.putTwoBytesLength(buffer, length);
+          break;
+        case CAT_TP:
+        case TCP_IP:
+          buffer.put(RPI);
+          Util.putEncodedLength(buffer, length);
+          break;
+        case USSD:
+          buffer.put(USSD_RPI);
+          Util.putEncodedLength(buffer, length);
+          break;
+        default:
+          throw new PacketBuilderConfigurationException("Transport " + profile.getTransportProtocol() + " not set or implemented");
+      }
+
+      buffer.put(clearHeader);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Clear header: {}", LazyHex.array(clearHeader));
+      }
+
+      final int cipheredOffset = buffer.position();
+      putCounter(buffer, usingCounter ? counter : null);
+      buffer.put((byte) (paddingCounter & 0xff));
+      LOGGER.debug("Padding counter: {}", paddingCounter);
+      final byte statusCode = (byte) (responseStatus.ordinal() & 0xff);
+      buffer.put(statusCode);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Status code: {}", Util.toHex(statusCode));
+      }
+
+      final int signatureOffset = buffer.position();
+      putZeros(buffer, signatureLength);
+      final int dataOffset = buffer.position();
+      if (data != null) {
+        buffer.put(data);
+      }
+      putZeros(buffer, paddingCounter);
+      final int end = buffer.position();
+      if (timed) {
+        time = completed(Phase.HEADER, null, time);
+      }
+
+      if (responsePacketSigning) {
+        phase = Phase.SIGNING;
+        final Mac mac = createMac(handle, signatureKey, signatureLength);
+        if (profile.getTransportProtocol() == TransportProtocol.SMS_PP) {
+          // The RPI is not part of the packet, the UDH 027100 is signed instead
+          mac.update(SMS_RPI, 0, SMS_RPI.length);
+        }
+        SignatureManager.update(mac, buffer, start, signatureOffset - start);
+        SignatureManager.update(mac, buffer, dataOffset, end - dataOffset);
+        SignatureManager.doFinal(mac, buffer, signatureOffset);
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Signature: {} length: {}", LazyHex.string(buffer, signatureOffset, signatureLength), signatureLength);
+        }
+        if (timed) {
+          time = completed(Phase.SIGNING, profile.getSignatureAlgorithmName(), time);
+        }
+      }
+
+      if (responsePacketCiphering) {
+        phase = Phase.CIPHERING;
+        // The data is already aligned on the block size, as NoPadding is used
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Ciphering response data[{}]: {}", end - cipheredOffset,
+              LazyHex.string(buffer, cipheredOffset, end - cipheredOffset));
+        }
+        encipher(handle, profile.getCipheringAlgorithmName(), cipheringKey, buffer, cipheredOffset, end - cipheredOffset);
+        if (timed) {
+          completed(Phase.CIPHERING, profile.getCipheringAlgorithmName(), time);
+        }
+      }
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Response packet created: {} length: {}", LazyHex.string(buffer, start, end - start), end - start);
+      }
+      metrics.responseStatus(profile.getTransportProtocol(), responseStatus);
+      return end - start;
+
+    } catch (GeneralSecurityException e) {
+      buffer.position(start);
+      failed(phase, profile);
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  @Override
+  public CommandPacket recoverCommandPacket(byte[] data, byte[] cipheringKey, byte[] signatureKey) throws Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    // The packet is deciphered in place, the caller's array must not change
+    final CommandPacket packet = recoverCommandPacket(ByteBuffer.wrap(data.clone()), cipheringKey, signatureKey, new CommandPacketView())
+        .toCommandPacket();
+    LOGGER.debug("Command packet recovered: {}", packet);
+    return packet;
+  }
+
+  /**
+   * Recovers a command packet without copying it. The packet is read from the position to the limit of the buffer, a ciphered packet is
+   * deciphered in place. The position and limit of the buffer are not changed.
+   *
+   * @param packet       - the buffer holding the packet.
+   * @param cipheringKey - ciphering key. Used only if deciphering is needed, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the signature is to be verified, otherwise can be null.
+   * @param view         - the view to fill, or null for a new one.
+   * @return the view over the recovered packet
+   * @throws PacketBuilderConfigurationException if ciphering and/or signing is on but key is not provided.
+   * @throws Gsm0348Exception                    in other cases.
+   */
+  public CommandPacketView recoverCommandPacket(ByteBuffer packet, byte[] cipheringKey, byte[] signatureKey, CommandPacketView view)
+      throws Gsm0348Exception {
+    return recoverCommandPacket(packet, cipheringKey, signatureKey, null, view);
+  }
+
+  /**
+   * Recovers a command packet with the keys of a handle created by this builder.
+   *
+   * @see #recoverCommandPacket(byte[], byte[], byte[])
+   */
+  public CommandPacket recoverCommandPacket(KeyHandle keys, byte[] data) throws Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    final CommandPacket packet = recoverCommandPacket(keys, ByteBuffer.wrap(data.clone()), new CommandPacketView()).toCommandPacket();
+    LOGGER.debug("Command packet recovered: {}", packet);
+    return packet;
+  }
+
+  /**
+   * Recovers a command packet without copying it, with the keys of a handle created by this builder. A command whose header selects
+   * other algorithms than the profile is recovered with the keys of the handle but without its keyed engines.
+   *
+   * @see #recoverCommandPacket(ByteBuffer, byte[], byte[], CommandPacketView)
+   */
+  public CommandPacketView recoverCommandPacket(KeyHandle keys, ByteBuffer packet, CommandPacketView view) throws Gsm0348Exception {
+    checkKeyHandle(keys);
+    synchronized (keys) {
+      return recoverCommandPacket(packet, keys.getCipheringKey(), keys.getSignatureKey(), keys, view);
+    }
+  }
+
+  private CommandPacketView recoverCommandPacket(ByteBuffer packet, byte[] cipheringKey, byte[] signatureKey, KeyHandle handle,
+                                                 CommandPacketView view) throws Gsm0348Exception {
+
+    if (packet == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+
+    final TransportProtocol transportProtocol = this.profile.getTransportProtocol();
+    final int start = packet.position();
+    final int end = packet.limit();
+    final boolean timed = metrics != PacketMetrics.NONE;
+    long time = timed ? System.nanoTime() : 0;
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Recovering command packet.\n\tData: {}\n\tCipheringKey: {}\n\tSigningKey: {}",
+          LazyHex.array(packet, start, end - start),
+          LazyHex.array(cipheringKey),
+          LazyHex.array(signatureKey));
+    }
+
+    int position = start;
+    final int packetLength;
+    switch (transportProtocol) {
+      case SMS_CB:
+      case SMS_PP:
+        packetLength = getTwoBytesLength(packet, position);
+        position += 2;
+        break;
+      case CAT_TP:
+      case TCP_IP:
+        if (packet.get(position) != CPI[0]) {
+          throw new Gsm0348Exception("CPI " + Util.toHexString(get(packet, position, 1)) + " is not expected");
+        }
+        position++;
+        packetLength = getEncodedLength(packet, position);
+        position += getEncodedLengthSize(packet, position);
+        break;
+      case USSD:
+        if (packet.get(position) != USSD_CPI[0]) {
+          throw new Gsm0348Exception("USSD CPI " + Util.toHexString(get(packet, position, 1)) + " is not expected");
+        }
+        position++;
+        packetLength = getEncodedLength(packet, position);
+        position += getEncodedLengthSize(packet, position);
+        break;
+      default:
+        throw new Gsm0348Exception("Transport " + transportProtocol + " not implemented");
+    }
+
+    if (end - position != packetLength) {
+      throw new Gsm0348Exception(
+          "Length of raw data doesn't match packet length. Expected " + packetLength + " but found " + (end - position));
+    }
+
+    // Header length depending on transport protocol, CHI is null
+    final int headerLength = packet.get(position++) & 0xff;
+
+    final int spiOffset = position;
+    final byte commandSPIByte = packet.get(spiOffset);
+    final byte responseSPIByte = packet.get(spiOffset + 1);
+    final byte kicByte = packet.get(spiOffset + SPI_SIZE);
+    final byte kidByte = packet.get(spiOffset + SPI_SIZE + KIC_SIZE);
+    final int tarOffset = spiOffset + SPI_SIZE + KIC_SIZE + KID_SIZE;
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("SPI: {} {}", Util.toHex(commandSPIByte), Util.toHex(responseSPIByte));
+      LOGGER.debug("KIC: {}", Util.toHex(kicByte));
+      LOGGER.debug("KID: {}", Util.toHex(kidByte));
+      LOGGER.debug("TAR: {}", LazyHex.array(packet, tarOffset, TAR_SIZE));
+    }
+
+    // The security of the command is described by its own header, which may differ from the configured profile
+    final SecuredProfile profile = this.profile.withCommandHeader(commandSPIByte, responseSPIByte, kicByte, kidByte);
+    final boolean commandPacketSigning = profile.isCommandSigning();
+    final boolean commandPacketCiphering = profile.isCommandCiphering();
+    final int signatureLength = profile.getCommandSignatureLength();
+
+    if (commandPacketCiphering && (cipheringKey == null || cipheringKey.length == 0)) {
+      throw new PacketBuilderConfigurationException(
+          "Ciphering is enabled - ciphering key must be specified. Provided: " + describeKey(cipheringKey));
+    }
+    if (commandPacketSigning && (signatureKey == null || signatureKey.length == 0)) {
+      throw new PacketBuilderConfigurationException(
+          "Signing is enabled - signature key must be specified. Provided: " + describeKey(signatureKey));
+    }
+
+    if (end - start < MINIMUM_COMMAND_PACKET_SIZE + signatureLength) {
+      String message = "rawdata too small to be command packet. Expected to be >= "
+          + (MINIMUM_COMMAND_PACKET_SIZE + signatureLength) + ", but found " + (end - start);
+      if (end - start >= MINIMUM_COMMAND_PACKET_SIZE) {
+        message += ". It can be caused by incorrect profile(SPI value). Check SPI!";
+        logRawPacket(packet, start, end);
+      }
+      throw new Gsm0348Exception(message);
+    }
+    if (headerLength != HEADER_SIZE_WITHOUT_SIGNATURE + signatureLength) {
+      throw new Gsm0348Exception("Command header length " + headerLength + " doesn't match the expected "
+          + (HEADER_SIZE_WITHOUT_SIGNATURE + signatureLength) + ". It can be caused by incorrect profile(SPI value). Check SPI!");
+    }
+    LOGGER.trace("Signature length: {}", signatureLength);
+    if (timed) {
+      time = completed(Phase.HEADER, null, time);
+    }
+
+    Phase phase = Phase.DECIPHERING;
+    try {
+      final int counterOffset = tarOffset + TAR_SIZE;
+      int dataEnd = end;
+      if (commandPacketCiphering) {
+        dataEnd = counterOffset + decipher(handle, profile.getCipheringAlgorithmName(), cipheringKey, packet, counterOffset,
+            end - counterOffset);
+        if (timed) {
+          time = completed(Phase.DECIPHERING, profile.getCipheringAlgorithmName(), time);
+        }
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Deciphered: {} ({} bytes)", LazyHex.array(packet, counterOffset, dataEnd - counterOffset),
+              dataEnd - counterOffset);
+        }
+        if (dataEnd - counterOffset < COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength) {
+          throw new Gsm0348Exception("Deciphered data returned not enough data");
+        }
+      }
+
+      final int paddingCounter = packet.get(counterOffset + COUNTER_SIZE) & 0xff;
+      LOGGER.debug("Padding counter: {}", paddingCounter);
+      if (!commandPacketCiphering && paddingCounter != 0) {
+        throw new Gsm0348Exception(
+            "Command packet ciphering is off but padding counter is not 0. So it can be corrupted packet or configuration doesn't match provided data");
+      }
+      final int signatureOffset = counterOffset + COUNTER_SIZE + PADDING_COUNTER_SIZE;
+      final int dataOffset = signatureOffset + signatureLength;
+      if (paddingCounter > dataEnd - dataOffset) {
+        throw new Gsm0348Exception("Padding counter " + paddingCounter + " exceeds the data length " + (dataEnd - dataOffset));
+      }
+
+      if (commandPacketSigning) {
+        phase = Phase.VERIFICATION;
+        if (timed) {
+          time = System.nanoTime();
+        }
+        // CPI / CPL / CHI / CHL / SPI / KIC / KID / TAR / CNTR / PCNTR / SECURED DATA WITH PADDING
+        final Mac mac = getMac(handle, profile.getSignatureAlgorithmName(), signatureKey);
+        SignatureManager.update(mac, packet, start, signatureOffset - start);
+        SignatureManager.update(mac, packet, dataOffset, dataEnd - dataOffset);
+        if (!SignatureManager.verify(mac, packet, signatureOffset)) {
+          failed(Phase.VERIFICATION, profile);
+          throw new Gsm0348Exception("Signatures don't match");
+        }
+        LOGGER.trace("Signatures do match");
+        if (timed) {
+          completed(Phase.VERIFICATION, profile.getSignatureAlgorithmName(), time);
+        }
+      }
+
+      final CommandPacketView result = (view == null) ? new CommandPacketView() : view;
+      result.set(packet, start, end - start, tarOffset, counterOffset, paddingCounter, signatureOffset, signatureLength, dataOffset,
+          dataEnd - dataOffset - paddingCounter);
+      result.setSPIOffset(spiOffset);
+      return result;
+    } catch (GeneralSecurityException e) {
+      failed(phase, profile);
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  @Override
+  public ResponsePacket recoverResponsePacket(byte[] data, byte[] cipheringKey, byte[] signatureKey)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    // The packet is deciphered in place, the caller's array must not change
+    final ResponsePacket packet = recoverResponsePacket(ByteBuffer.wrap(data.clone()), cipheringKey, signatureKey,
+        new ResponsePacketView()).toResponsePacket();
+    LOGGER.debug("Response packet recovered: {}", packet);
+    return packet;
+  }
+
+  /**
+   * Recovers a response packet without copying it. The packet is read from the position to the limit of the buffer, a ciphered packet is
+   * deciphered in place. The position and limit of the buffer are not changed.
+   *
+   * @param packet       - the buffer holding the packet.
+   * @param cipheringKey - ciphering key. Used only if deciphering is needed, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the signature is to be verified, otherwise can be null.
+   * @param view         - the view to fill, or null for a new one.
+   * @return the view over the recovered packet
+   * @throws PacketBuilderConfigurationException if ciphering and/or signing is on but key is not provided.
+   * @throws Gsm0348Exception                    in other cases.
+   */
+  public ResponsePacketView recoverResponsePacket(ByteBuffer packet, byte[] cipheringKey, byte[] signatureKey, ResponsePacketView view)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    return recoverResponsePacket(packet, cipheringKey, signatureKey, null, view);
+  }
+
+  /**
+   * Recovers a response packet with the keys of a handle created by this builder.
+   *
+   * @see #recoverResponsePacket(byte[], byte[], byte[])
+   */
+  public ResponsePacket recoverResponsePacket(KeyHandle keys, byte[] data) throws PacketBuilderConfigurationException, Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    final ResponsePacket packet = recoverResponsePacket(keys, ByteBuffer.wrap(data.clone()), new ResponsePacketView()).toResponsePacket();
+    LOGGER.debug("Response packet recovered: {}", packet);
+    return packet;
+  }
+
+  /**
+   * Recovers a response packet without copying it, with the keys of a handle created by this builder.
+   *
+   * @see #recoverResponsePacket(ByteBuffer, byte[], byte[], ResponsePacketView)
+   */
+  public ResponsePacketView recoverResponsePacket(KeyHandle keys, ByteBuffer packet, ResponsePacketView view)
+      throws PacketBuilderConfigurationException, Gsm0348Exception {
+    checkKeyHandle(keys);
+    synchronized (keys) {
+      return recoverResponsePacket(packet, keys.getCipheringKey(), keys.getSignatureKey(), keys, view);
+    }
+  }
+
+  private ResponsePacketView recoverResponsePacket(ByteBuffer packet, byte[] cipheringKey, byte[] signatureKey, KeyHandle handle,
+                                                   ResponsePacketView view) throws PacketBuilderConfigurationException, Gsm0348Exception {
+
+    if (packet == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+
+    final TransportProtocol transportProtocol = profile.getTransportProtocol();
+    final int start = packet.position();
+    final int end = packet.limit();
+    final boolean timed = metrics != PacketMetrics.NONE;
+    long time = timed ? System.nanoTime() : 0;
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Recovering {} response packet.\n\tData: {}\n\tCipheringKey: {}\n\tSigningKey: {}",
+          transportProtocol,
+          LazyHex.array(packet, start, end - start),
+          LazyHex.array(cipheringKey),
+          LazyHex.array(signatureKey));
+    }
+
+    final boolean responsePacketCiphering = profile.isResponseCiphering();
+    final boolean responsePacketSigning = profile.isResponseSigning();
+
+    if (responsePacketCiphering && (cipheringKey == null || cipheringKey.length == 0)) {
+      throw new PacketBuilderConfigurationException(
+          "Response ciphering is enabled - ciphering key must be specified. Provided: " + describeKey(cipheringKey));
+    }
+    if (responsePacketSigning && (signatureKey == null || signatureKey.length == 0)) {
+      throw new PacketBuilderConfigurationException(
+          "Response signing is enabled - signature key must be specified. Provided: " + describeKey(signatureKey));
+    }
+
+    int position = start;
+    final int packetLength;
+    switch (transportProtocol) {
+      case SMS_PP:
+        // As in 3GPP 31.115 table 3, the SMS_PP response doesn't contain the 027100 RPI
+        packetLength = getTwoBytesLength(packet, position);
+        position += 2;
+        break;
+      case CAT_TP:
+      case TCP_IP:
+        if (packet.get(position) != RPI[0]) {
+          throw new Gsm0348Exception("RPI " + Util.toHexString(get(packet, position, 1)) + " is not expected");
+        }
+        position++;
+        packetLength = getEncodedLength(packet, position);
+        position += getEncodedLengthSize(packet, position);
+        break;
+      case USSD:
+        if (packet.get(position) != USSD_RPI[0]) {
+          throw new Gsm0348Exception("USSD RPI " + Util.toHexString(get(packet, position, 1)) + " is not expected");
+        }
+        position++;
+        packetLength = getEncodedLength(packet, position);
+        position += getEncodedLengthSize(packet, position);
+        break;
+      default:
+        throw new Gsm0348Exception("Transport " + transportProtocol + " not implemented");
+    }
+
+    if (end - position != packetLength) {
+      throw new Gsm0348Exception("Length of raw data doesn't match packet length. Expected " + packetLength + " but found "
+          + (end - position));
+    }
+
+    // Header length depending on mode, RHI is null
+    final int headerLength = packet.get(position++) & 0xff;
+    final int tarOffset = position;
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("TAR: {}", LazyHex.array(packet, tarOffset, TAR_SIZE));
+    }
+    final int signatureLength = profile.getResponseSignatureLength();
+
+    if (end - start < MINIMUM_RESPONSE_PACKET_SIZE + signatureLength) {
+      String message = "rawdata too small to be response packet. Expected to be >= "
+          + (MINIMUM_RESPONSE_PACKET_SIZE + signatureLength) + ", but found " + (end - start);
+      if (end - start >= MINIMUM_RESPONSE_PACKET_SIZE) {
+        message += ". It can be caused by incorrect profile(SPI value). Check SPI!";
+        logRawPacket(packet, start, end);
+      }
+      throw new Gsm0348Exception(message);
+    }
+    if (headerLength != RESPONSE_HEADER_SIZE_WITHOUT_SIGNATURE + signatureLength) {
+      throw new Gsm0348Exception(
+          "Response packet recovery failure. Possibly because of unexpected security bytes length. Actual response header length: "
+              + headerLength + " Expected: " + (RESPONSE_HEADER_SIZE_WITHOUT_SIGNATURE + signatureLength));
+    }
+    if (timed) {
+      time = completed(Phase.HEADER, null, time);
+    }
+
+    Phase phase = Phase.DECIPHERING;
+    try {
+      final int counterOffset = tarOffset + TAR_SIZE;
+      int dataEnd = end;
+      if (responsePacketCiphering) {
+        dataEnd = counterOffset + decipher(handle, profile.getCipheringAlgorithmName(), cipheringKey, packet, counterOffset,
+            end - counterOffset);
+        if (timed) {
+          time = completed(Phase.DECIPHERING, profile.getCipheringAlgorithmName(), time);
+        }
+        if (LOGGER.isDebugEnabled()) {
+          LOGGER.debug("Deciphered: {} ({} bytes)", LazyHex.array(packet, counterOffset, dataEnd - counterOffset),
+              dataEnd - counterOffset);
+        }
+        if (dataEnd - counterOffset < COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE + signatureLength) {
+          throw new Gsm0348Exception("Deciphered response data returned not enough data");
+        }
+      }
+
+      final int paddingCounter = packet.get(counterOffset + COUNTER_SIZE) & 0xff;
+      LOGGER.debug("Padding counter: {}", paddingCounter);
+      if (!responsePacketCiphering && paddingCounter != 0) {
+        throw new Gsm0348Exception(
+            "Response packet ciphering is off but padding counter is not 0. So it can be corrupted packet or configuration doesn't match provided data");
+      }
+      final int statusOffset = counterOffset + COUNTER_SIZE + PADDING_COUNTER_SIZE;
+      final int signatureOffset = statusOffset + STATUS_CODE_SIZE;
+      final int dataOffset = signatureOffset + signatureLength;
+      if (paddingCounter > dataEnd - dataOffset) {
+        throw new Gsm0348Exception("Padding counter " + paddingCounter + " exceeds the data length " + (dataEnd - dataOffset));
+      }
+
+      if (responsePacketSigning) {
+        phase = Phase.VERIFICATION;
+        if (timed) {
+          time = System.nanoTime();
+        }
+        final Mac mac = getMac(handle, profile.getSignatureAlgorithmName(), signatureKey);
+        if (transportProtocol == TransportProtocol.SMS_PP) {
+          // In order to achieve a modulo 8 length of the data before the RC/CC/DS fiel in the Response Header,
+          // the Length of the Response Packet, the Length of the Response Header
+          // and the three preceding octets (UDHL, IEIa and IEIDLa defined in TS 23.040 [3]) shall be included
+          // in the calculation of RC/CC/DS if used.
+          mac.update(SMS_RPI, 0, SMS_RPI.length);
+        }
+        SignatureManager.update(mac, packet, start, signatureOffset - start);
+        SignatureManager.update(mac, packet, dataOffset, dataEnd - dataOffset);
+        if (!SignatureManager.verify(mac, packet, signatureOffset)) {
+          failed(Phase.VERIFICATION, profile);
+          throw new Gsm0348Exception("Signatures don't match");
+        }
+        LOGGER.trace("Signatures do match");
+        if (timed) {
+          completed(Phase.VERIFICATION, profile.getSignatureAlgorithmName(), time);
+        }
+      }
+
+      final ResponsePacketView result = (view == null) ? new ResponsePacketView() : view;
+      result.set(packet, start, end - start, tarOffset, counterOffset, paddingCounter, signatureOffset, signatureLength, dataOffset,
+          dataEnd - dataOffset - paddingCounter);
+      result.setStatusOffset(statusOffset);
+      if (timed) {
+        // As built, the status code is the ordinal of the status
+        final int statusCode = packet.get(statusOffset) & 0xff;
+        if (statusCode < RESPONSE_STATUSES.length) {
+          metrics.responseStatus(transportProtocol, RESPONSE_STATUSES[statusCode]);
+        }
+      }
+      return result;
+    } catch (GeneralSecurityException e) {
+      failed(phase, profile);
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  /**
+   * Puts the command packet identifier, if any, and the command packet length as framed for the transport protocol.
+   */
+  static void putCommandFraming(final TransportProtocol transportProtocol, final ByteBuffer buffer, final int length)
+      throws PacketBuilderConfigurationException {
+    switch (transportProtocol) {
+      case SMS_CB:
+      case SMS_PP:
+        Util.putTwoBytesLength(buffer, length);
+        break;
+      case CAT_TP:
+      case TCP_IP:
+        buffer.put(CPI);
+        Util.putEncodedLength(buffer, length);
+        break;
+      case USSD:
+        buffer.put(USSD_CPI);
+        Util.putEncodedLength(buffer, length);
+        break;
+      default:
+        throw new PacketBuilderConfigurationException("Transport not set");
+    }
+  }
+
+  /**
+   * Reads the TAR of a command packet framed for a transport protocol, without recovering the packet.
+   *
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a command packet of the transport protocol.
+   */
+  static int peekCommandTAR(final TransportProtocol transportProtocol, final ByteBuffer packet) throws Gsm0348Exception {
+    final int position = skipFraming(transportProtocol, packet, true);
+    // CHL, SPI, KIC and KID precede the TAR
+    return getTAR(packet, position + 1 + SPI_SIZE + KIC_SIZE + KID_SIZE);
+  }
+
+  /**
+   * Reads the TAR of a response packet framed for a transport protocol, without recovering the packet.
+   *
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a response packet of the transport protocol.
+   */
+  static int peekResponseTAR(final TransportProtocol transportProtocol, final ByteBuffer packet) throws Gsm0348Exception {
+    final int position = skipFraming(transportProtocol, packet, false);
+    // RHL precedes the TAR
+    return getTAR(packet, position + 1);
+  }
+
+  /**
+   * Checks the command or response packet identifier, if any, of a packet framed for a transport protocol.
+   *
+   * @return the index following the packet length
+   */
+  static int skipFraming(final TransportProtocol transportProtocol, final ByteBuffer packet, final boolean command)
+      throws Gsm0348Exception {
+    int position = packet.position();
+    switch (transportProtocol) {
+      case SMS_CB:
+        if (!command) {
+          throw new Gsm0348Exception("Transport " + transportProtocol + " not implemented");
+        }
+        return position + 2;
+      case SMS_PP:
+        return position + 2;
+      case CAT_TP:
+      case TCP_IP:
+      case USSD:
+        final byte identifier = transportProtocol == TransportProtocol.USSD ? (command ? USSD_CPI[0] : USSD_RPI[0])
+            : (command ? CPI[0] : RPI[0]);
+        if (packet.limit() - position < 2 || packet.get(position) != identifier) {
+          throw new Gsm0348Exception((command ? "CPI " : "RPI ") + "of the packet is not expected");
+        }
+        position++;
+        return position + getEncodedLengthSize(packet, position);
+      default:
+        throw new Gsm0348Exception("Transport " + transportProtocol + " not implemented");
+    }
+  }
+
+  private static int getTAR(final ByteBuffer packet, final int tarOffset) throws Gsm0348Exception {
+    if (packet.limit() - tarOffset < TAR_SIZE) {
+      throw new Gsm0348Exception("Packet too short to hold a TAR: " + (packet.limit() - packet.position()) + " octets");
+    }
+    return ((packet.get(tarOffset) & 0xff) << 16) | ((packet.get(tarOffset + 1) & 0xff) << 8) | (packet.get(tarOffset + 2) & 0xff);
+  }
+
+  static int getTwoBytesLength(final ByteBuffer buffer, final int index) {
+    return ((buffer.get(index) & 0xff) << 8) + (buffer.get(index + 1) & 0xff);
+  }
+
+  private static int getEncodedLengthSize(final ByteBuffer buffer, final int index) throws Gsm0348Exception {
+    final byte first = buffer.get(index);
+    if ((first & 0x80) == 0x00) {
+      return 1;
+    }
+    final int octets = first & 0x7f;
+    if (octets > 3) {
+      throw new Gsm0348Exception("Encoded length has too many octets");
+    }
+    return 1 + octets;
+  }
+
+  static int getEncodedLength(final ByteBuffer buffer, final int index) throws Gsm0348Exception {
+    final int size = getEncodedLengthSize(buffer, index);
+    if (size == 1) {
+      return buffer.get(index);
+    }
+    int result = 0;
+    for (int i = 1; i < size; i++) {
+      result = (result << 8) | (buffer.get(index + i) & 0xff);
+    }
+    return result;
+  }
+
+  private static void logRawPacket(final ByteBuffer packet, final int start, final int end) {
+    if (!LOGGER.isWarnEnabled()) {
+      return;
+    }
+    final long suppressed = RAW_PACKET_LOG.acquire();
+    if (suppressed > 0) {
+      LOGGER.warn("{} received packets were not logged", suppressed);
+    }
+    if (suppressed >= 0) {
+      LOGGER.warn("Packet received(raw): {}", LazyHex.array(packet, start, end - start));
+    }
+  }
+
+  private long completed(final Phase phase, final String algorithm, final long start) {
+    final long now = System.nanoTime();
+    metrics.phaseCompleted(phase, profile.getTransportProtocol(), algorithm, now - start);
+    return now;
+  }
+
+  private void failed(final Phase phase, final SecuredProfile profile) {
+    final String algorithm = (phase == Phase.SIGNING || phase == Phase.VERIFICATION) ? profile.getSignatureAlgorithmName()
+        : profile.getCipheringAlgorithmName();
+    metrics.phaseFailed(phase, profile.getTransportProtocol(), algorithm);
+  }
+
+  private static String describeKey(final byte[] key) {
+    if (key == null) {
+      return "null";
+    }
+    return (key.length == 0) ? "empty" : Util.toHexArray(key);
+  }
+
+  private static void checkKeyHandle(final KeyHandle keys) {
+    if (keys == null) {
+      throw new IllegalArgumentException("Key handle cannot be null");
+    }
+  }
+
+  private static Mac getMac(final KeyHandle handle, final String algorithmName, final byte[] signatureKey)
+      throws GeneralSecurityException {
+    return (handle == null) ? SignatureManager.getMac(algorithmName, signatureKey) : handle.getMac(algorithmName);
+  }
+
+  private static int encipher(final KeyHandle handle, final String transformation, final byte[] cipheringKey, final ByteBuffer buffer,
+                              final int offset, final int length) throws GeneralSecurityException {
+    if (handle == null) {
+      return CipheringManager.encipher(transformation, cipheringKey, buffer, offset, length);
+    }
+    return handle.encipher(transformation, buffer, offset, length);
+  }
+
+  private static int decipher(final KeyHandle handle, final String transformation, final byte[] cipheringKey, final ByteBuffer buffer,
+                              final int offset, final int length) throws GeneralSecurityException {
+    if (handle == null) {
+      return CipheringManager.decipher(transformation, cipheringKey, buffer, offset, length);
+    }
+    return handle.decipher(transformation, buffer, offset, length);
+  }
+
+  private Mac createMac(final KeyHandle handle, final byte[] signatureKey, final int signatureLength)
+      throws GeneralSecurityException, Gsm0348Exception {
+    final Mac mac = getMac(handle, profile.getSignatureAlgorithmName(), signatureKey);
+    if (mac.getMacSize() != signatureLength) {
+      throw new Gsm0348Exception("The generated signature length doesn't match the expected length");
+    }
+    return mac;
+  }
+
+  private static void putCounter(final ByteBuffer buffer, final byte[] counter) {
+    if (counter == null) {
+      putZeros(buffer, COUNTER_SIZE);
+    } else {
+      buffer.put(counter);
+    }
+  }
+
+  private static void putZeros(final ByteBuffer buffer, final int count) {
+    for (int i = 0; i < count; i++) {
+      buffer.put((byte) 0);
+    }
+  }
+
+  /**
+   * Copies a range of the buffer, only used for logging.
+   */
+  private static byte[] get(final ByteBuffer buffer, final int offset, final int length) {
+    final byte[] bytes = new byte[length];
+    final ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    source.get(bytes);
+    return bytes;
+  }
+}
@@ -0,0 +1,120 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
+import org.opentelecoms.gsm0348.impl.crypto.Mac;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+
+/**
+ * The keys of a card registered once with {@linkplain ImmutablePacketBuilder#createKeyHandle(byte[], byte[])}. The handle keeps the
+ * ciphers and the MAC of the profile algorithms keyed, so packets built or recovered with it skip the key checks and the key schedule
+ * expansion, e.g. for the commands of a script sent to the same card.
+ * <p>
+ * A handle can be shared by threads, the packets using the same handle are built and recovered one at a time. Call
+ * {@linkplain #destroy()} to clear the keys once the handle is not needed any more.
+ */
+public final class KeyHandle {
+
+  private final String cipheringAlgorithmName;
+  private final String signatureAlgorithmName;
+  private byte[] cipheringKey;
+  private byte[] signatureKey;
+  private Cipher encipher;
+  private Cipher decipher;
+  private Mac mac;
+  private boolean destroyed;
+
+  KeyHandle(final SecuredProfile profile, final byte[] cipheringKey, final byte[] signatureKey) throws GeneralSecurityException {
+    this.cipheringAlgorithmName = profile.getCipheringAlgorithmName();
+    this.signatureAlgorithmName = profile.getSignatureAlgorithmName();
+    this.cipheringKey = cipheringKey == null ? null : cipheringKey.clone();
+    this.signatureKey = signatureKey == null ? null : signatureKey.clone();
+    // The algorithm names are null when the profile doesn't use them
+    if (cipheringAlgorithmName != null && this.cipheringKey != null) {
+      encipher = CipheringManager.createCipher(cipheringAlgorithmName, this.cipheringKey, Cipher.ENCRYPT_MODE);
+      decipher = CipheringManager.createCipher(cipheringAlgorithmName, this.cipheringKey, Cipher.DECRYPT_MODE);
+    }
+    if (signatureAlgorithmName != null && this.signatureKey != null) {
+      mac = SignatureManager.createMac(signatureAlgorithmName, this.signatureKey);
+    }
+  }
+
+  /**
+   * Clears the keys and drops the keyed engines. The handle cannot be used afterwards.
+   */
+  public synchronized void destroy() {
+    if (cipheringKey != null) {
+      Arrays.fill(cipheringKey, (byte) 0);
+    }
+    if (signatureKey != null) {
+      Arrays.fill(signatureKey, (byte) 0);
+    }
+    cipheringKey = null;
+    signatureKey = null;
+    encipher = null;
+    decipher = null;
+    mac = null;
+    destroyed = true;
+  }
+
+  public synchronized boolean isDestroyed() {
+    return destroyed;
+  }
+
+  byte[] getCipheringKey() {
+    checkNotDestroyed();
+    return cipheringKey;
+  }
+
+  byte[] getSignatureKey() {
+    checkNotDestroyed();
+    return signatureKey;
+  }
+
+  /**
+   * @return the keyed MAC of the algorithm, reset, or the MAC of the calling thread when the algorithm is not the one of the profile
+   */
+  Mac getMac(final String algorithmName) throws GeneralSecurityException {
+    if (mac != null && algorithmName.equals(signatureAlgorithmName)) {
+      mac.reset();
+      return mac;
+    }
+    return SignatureManager.getMac(algorithmName, signatureKey);
+  }
+
+  int encipher(final String transformation, final ByteBuffer buffer, final int offset, final int length) throws GeneralSecurityException {
+    if (encipher == null || !transformation.equals(cipheringAlgorithmName)) {
+      return CipheringManager.encipher(transformation, cipheringKey, buffer, offset, length);
+    }
+    try {
+      return CipheringManager.doFinal(encipher, buffer, offset, length);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      // The state of a failed cipher is undefined, start again from its key
+      encipher = CipheringManager.createCipher(cipheringAlgorithmName, cipheringKey, Cipher.ENCRYPT_MODE);
+      throw e;
+    }
+  }
+
+  int decipher(final String transformation, final ByteBuffer buffer, final int offset, final int length) throws GeneralSecurityException {
+    if (decipher == null || !transformation.equals(cipheringAlgorithmName)) {
+      return CipheringManager.decipher(transformation, cipheringKey, buffer, offset, length);
+    }
+    try {
+      return CipheringManager.doFinal(decipher, buffer, offset, length);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      decipher = CipheringManager.createCipher(cipheringAlgorithmName, cipheringKey, Cipher.DECRYPT_MODE);
+      throw e;
+    }
+  }
+
+  private void checkNotDestroyed() {
+    if (destroyed) {
+      throw new IllegalStateException("The key handle is destroyed");
+    }
+  }
+}
@@ -0,0 +1,400 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@linkplain CounterStore} persisting the counters in a memory-mapped file.
+ * <p>
+ * Each card and keyset has a fixed record in the file, updated in place. The records are indexed in memory by lock stripes, so threads
+ * allocating counters of different cards seldom wait for each other. A durable store returns a counter only once its record is forced
+ * to the disk. The forces are group committed: the thread forcing the file commits the counters allocated by all threads so far, while
+ * the threads allocating counters in the meantime wait for the next force instead of forcing the file one after the other.
+ * <p>
+ * The file is sized for the capacity given when it is created. Opening an existing file reloads its counters, with its own capacity.
+ */
+public final class MappedCounterStore implements CounterStore, Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(MappedCounterStore.class);
+
+  private static final int MAGIC = 0x474e5452;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  // Record: card (8) / counter (8) / keyset with the USED flag (4) / reserved (4)
+  private static final int RECORD_SIZE = 24;
+  private static final int COUNTER_OFFSET = 8;
+  private static final int KEYSET_OFFSET = 16;
+  private static final int USED = 0x100;
+
+  private static final int STRIPES = 64;
+
+  private final FileChannel channel;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final boolean durable;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+  private final AtomicInteger size = new AtomicInteger();
+
+  // Group commit: a write gets a sequence once its record is updated, a force commits all sequences up to the one read before it
+  private final AtomicLong written = new AtomicLong();
+  private final Object commitLock = new Object();
+  private long committed;
+  private boolean committing;
+  private volatile boolean closed;
+
+  /**
+   * Opens or creates a durable store.
+   *
+   * @see #MappedCounterStore(Path, int, boolean)
+   */
+  public MappedCounterStore(final Path file, final int capacity) throws IOException {
+    this(file, capacity, true);
+  }
+
+  /**
+   * @param file     - the file of the store, created if it doesn't exist.
+   * @param capacity - the maximum number of cards and keysets of a new file.
+   * @param durable  - whether a counter is returned only once it is forced to the disk. Otherwise the counters are forced by
+   *                 {@linkplain #flush()} and {@linkplain #close()}, e.g. for tests and simulations.
+   * @throws IOException if the file cannot be mapped or is not a counter store.
+   */
+  public MappedCounterStore(final Path file, final int capacity, final boolean durable) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("File cannot be null");
+    }
+    if (capacity < 1 || HEADER_SIZE + (long) capacity * RECORD_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Capacity must be positive and fit in one mapping: " + capacity);
+    }
+    this.durable = durable;
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe();
+    }
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    try {
+      final boolean created = channel.size() == 0;
+      final int fileCapacity = created ? capacity : readCapacity(channel, file);
+      buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) fileCapacity * RECORD_SIZE);
+      this.capacity = fileCapacity;
+      if (created) {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, fileCapacity);
+        buffer.force();
+      } else {
+        load();
+      }
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    LOGGER.debug("Counter store {} opened with {} of {} records", file, size.get(), this.capacity);
+  }
+
+  @Override
+  public long nextCounter(final long cardId, final int keyset) throws Gsm0348Exception {
+    checkKeyset(keyset);
+    checkOpen();
+    final long hash = hash(cardId, keyset);
+    final Stripe stripe = stripe(hash);
+    final long counter;
+    final long sequence;
+    synchronized (stripe) {
+      int record = stripe.find(cardId, keyset, hash);
+      if (record < 0) {
+        record = create(stripe, cardId, keyset, hash, 0);
+      }
+      final int offset = offset(record);
+      counter = buffer.getLong(offset + COUNTER_OFFSET) + 1;
+      if (counter > MAX_COUNTER) {
+        throw new Gsm0348Exception("Counter of card " + Long.toHexString(cardId) + " keyset " + keyset + " is exhausted");
+      }
+      // Updated under the lock, so the file never holds a counter lower than one already returned
+      buffer.putLong(offset + COUNTER_OFFSET, counter);
+      sequence = written.incrementAndGet();
+    }
+    if (durable) {
+      commit(sequence);
+    }
+    return counter;
+  }
+
+  @Override
+  public long getCounter(final long cardId, final int keyset) {
+    checkKeyset(keyset);
+    checkOpen();
+    final long hash = hash(cardId, keyset);
+    final Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      final int record = stripe.find(cardId, keyset, hash);
+      return record < 0 ? 0 : buffer.getLong(offset(record) + COUNTER_OFFSET);
+    }
+  }
+
+  @Override
+  public void updateCounter(final long cardId, final int keyset, final long counter) throws Gsm0348Exception {
+    checkKeyset(keyset);
+    if (counter < 0 || counter > MAX_COUNTER) {
+      throw new IllegalArgumentException("Counter is out of range: " + counter);
+    }
+    checkOpen();
+    final long hash = hash(cardId, keyset);
+    final Stripe stripe = stripe(hash);
+    final long sequence;
+    synchronized (stripe) {
+      final int record = stripe.find(cardId, keyset, hash);
+      if (record < 0) {
+        create(stripe, cardId, keyset, hash, counter);
+      } else {
+        final int offset = offset(record) + COUNTER_OFFSET;
+        if (buffer.getLong(offset) >= counter) {
+          return;
+        }
+        buffer.putLong(offset, counter);
+      }
+      sequence = written.incrementAndGet();
+    }
+    if (durable) {
+      commit(sequence);
+    }
+  }
+
+  @Override
+  public boolean releaseCounter(final long cardId, final int keyset, final long counter) {
+    checkKeyset(keyset);
+    checkOpen();
+    final long hash = hash(cardId, keyset);
+    final Stripe stripe = stripe(hash);
+    final long sequence;
+    synchronized (stripe) {
+      final int record = stripe.find(cardId, keyset, hash);
+      if (record < 0 || counter < 1) {
+        return false;
+      }
+      final int offset = offset(record) + COUNTER_OFFSET;
+      if (buffer.getLong(offset) != counter) {
+        return false;
+      }
+      buffer.putLong(offset, counter - 1);
+      sequence = written.incrementAndGet();
+    }
+    if (durable) {
+      commit(sequence);
+    }
+    return true;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the number of records used, one per card and keyset
+   */
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Forces the counters allocated so far to the disk.
+   */
+  public void flush() {
+    checkOpen();
+    commit(written.get());
+  }
+
+  /**
+   * Forces the counters to the disk and closes the file. The store cannot be used afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    commit(written.get());
+    closed = true;
+    channel.close();
+  }
+
+  private int create(final Stripe stripe, final long cardId, final int keyset, final long hash, final long counter)
+      throws Gsm0348Exception {
+    int record;
+    do {
+      record = size.get();
+      if (record == capacity) {
+        throw new Gsm0348Exception("Counter store is full, its capacity is " + capacity + " cards and keysets");
+      }
+    } while (!size.compareAndSet(record, record + 1));
+    final int offset = offset(record);
+    buffer.putLong(offset, cardId);
+    buffer.putLong(offset + COUNTER_OFFSET, counter);
+    // Written last, a record is used once it is complete
+    buffer.putInt(offset + KEYSET_OFFSET, keyset | USED);
+    stripe.add(cardId, keyset, hash, record);
+    return record;
+  }
+
+  private void load() {
+    // A record created by one thread may have been forced before the previous record, which is then lost, so all records are read
+    for (int record = 0; record < capacity; record++) {
+      final int offset = offset(record);
+      final int keyset = buffer.getInt(offset + KEYSET_OFFSET);
+      if ((keyset & USED) == 0) {
+        continue;
+      }
+      final long cardId = buffer.getLong(offset);
+      final long hash = hash(cardId, keyset & 0x0f);
+      stripe(hash).add(cardId, keyset & 0x0f, hash, record);
+      size.set(record + 1);
+    }
+  }
+
+  /**
+   * Waits until the write of the sequence is forced to the disk, forcing it if no other thread is.
+   */
+  private void commit(final long sequence) {
+    boolean interrupted = false;
+    try {
+      synchronized (commitLock) {
+        while (committed < sequence && committing) {
+          try {
+            commitLock.wait();
+          } catch (InterruptedException e) {
+            interrupted = true;
+          }
+        }
+        if (committed >= sequence) {
+          return;
+        }
+        committing = true;
+      }
+      // Every write with a sequence up to this one is in the mapping, a single force commits them all
+      final long target = written.get();
+      boolean forced = false;
+      try {
+        buffer.force();
+        forced = true;
+      } finally {
+        synchronized (commitLock) {
+          committing = false;
+          if (forced && target > committed) {
+            committed = target;
+          }
+          commitLock.notifyAll();
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private Stripe stripe(final long hash) {
+    return stripes[(int) (hash >>> 58) & (STRIPES - 1)];
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("The counter store is closed");
+    }
+  }
+
+  private static int offset(final int record) {
+    return HEADER_SIZE + record * RECORD_SIZE;
+  }
+
+  private static long hash(final long cardId, final int keyset) {
+    long hash = (cardId ^ ((long) keyset << 59)) * 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static void checkKeyset(final int keyset) {
+    if (keyset < 0 || keyset > 0x0f) {
+      throw new IllegalArgumentException("Keyset must be between 0 and 15: " + keyset);
+    }
+  }
+
+  private static int readCapacity(final FileChannel channel, final Path file) throws IOException {
+    if (channel.size() < HEADER_SIZE) {
+      throw new IOException("Not a counter store: " + file);
+    }
+    final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+    if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+      throw new IOException("Not a counter store: " + file);
+    }
+    final int capacity = header.getInt(8);
+    if (capacity < 1 || channel.size() < HEADER_SIZE + (long) capacity * RECORD_SIZE) {
+      throw new IOException("Counter store " + file + " is truncated");
+    }
+    return capacity;
+  }
+
+  /**
+   * Open addressing index of the records of the cards whose hash falls in the stripe, guarded by the stripe itself.
+   */
+  private static final class Stripe {
+    private long[] cards = new long[16];
+    private int[] keysets = new int[16];
+    // The record plus one, 0 when the bucket is empty
+    private int[] records = new int[16];
+    private int size;
+
+    private int find(final long cardId, final int keyset, final long hash) {
+      final int mask = records.length - 1;
+      int bucket = (int) hash & mask;
+      while (records[bucket] != 0) {
+        if (cards[bucket] == cardId && keysets[bucket] == keyset) {
+          return records[bucket] - 1;
+        }
+        bucket = (bucket + 1) & mask;
+      }
+      return -1;
+    }
+
+    private void add(final long cardId, final int keyset, final long hash, final int record) {
+      if (2 * (size + 1) > records.length) {
+        grow();
+      }
+      insert(cardId, keyset, hash, record + 1);
+      size++;
+    }
+
+    private void insert(final long cardId, final int keyset, final long hash, final int value) {
+      final int mask = records.length - 1;
+      int bucket = (int) hash & mask;
+      while (records[bucket] != 0) {
+        bucket = (bucket + 1) & mask;
+      }
+      cards[bucket] = cardId;
+      keysets[bucket] = keyset;
+      records[bucket] = value;
+    }
+
+    private void grow() {
+      final long[] oldCards = cards;
+      final int[] oldKeysets = keysets;
+      final int[] oldRecords = records;
+      cards = new long[oldRecords.length * 2];
+      keysets = new int[oldRecords.length * 2];
+      records = new int[oldRecords.length * 2];
+      for (int i = 0; i < oldRecords.length; i++) {
+        if (oldRecords[i] != 0) {
+          insert(oldCards[i], oldKeysets[i], hash(oldCards[i], oldKeysets[i]), oldRecords[i]);
+        }
+      }
+    }
+  }
+}
@@ -36,12 +36,27 @@ public class PacketBuilderFactory {
     return new PacketBuilderImpl(cardProfile);
   }
 
+  /**
+   * Creates a thread-safe builder for the profile. The returned builder can be shared by any number of threads, its profile cannot be
+   * changed.
+   *
+   * @param cardProfile - the profile to use.
+   * @return the created packet builder.
+   * @throws PacketBuilderConfigurationException if the profile is in an inconsistent state.
+   * @see ImmutablePacketBuilder
+   */
+  public static PacketBuilder getThreadSafeInstance(CardProfile cardProfile) throws PacketBuilderConfigurationException {
+    LOGGER.trace("Creating new thread-safe packet builder for profile {}", cardProfile);
+    return new ImmutablePacketBuilder(cardProfile);
+  }
+
   /**
    * Creates a default instance for SMS_PP with no security applied.
    *
    * Useful for recovering packets with {@link PacketBuilder#recoverCommandPacket(byte[], byte[], byte[])}.
    *
    * @return the created packet builder.
+   * @see PacketDispatcher to recover the packets of many TARs with their own builders
    */
   public static PacketBuilder getInstance() {
     CardProfile cardProfile = new CardProfile();
@@ -0,0 +1,291 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+/**
+ * Recovers the packets received for many TARs, e.g. a proof of receipt inbox, with the builder registered for the TAR of each packet.
+ * The TAR is read from the raw packet according to the framing of the transport protocol (the two octets length of SMS, the CPI or RPI
+ * and BER length of CAT_TP, TCP_IP and USSD), so every packet is recovered once, by the right builder.
+ * <p>
+ * The builders are kept in an open addressing table keyed by the 24 bit TAR, replaced on every registration and read without locking.
+ * Instances are thread-safe.
+ */
+public final class PacketDispatcher {
+
+  private final TransportProtocol transportProtocol;
+  private volatile Table table = new Table(16);
+
+  /**
+   * @param transportProtocol - the transport protocol of the packets, and of the profiles of the registered builders.
+   */
+  public PacketDispatcher(final TransportProtocol transportProtocol) {
+    if (transportProtocol == null) {
+      throw new IllegalArgumentException("Transport protocol cannot be null");
+    }
+    this.transportProtocol = transportProtocol;
+  }
+
+  /**
+   * Registers a builder for the TAR of its profile.
+   *
+   * @param builder - the builder recovering the packets of the TAR.
+   * @return the builder previously registered for the TAR, or null
+   */
+  public ImmutablePacketBuilder register(final ImmutablePacketBuilder builder) {
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    return register(builder.getSecuredProfile().getTARValue(), builder);
+  }
+
+  /**
+   * Registers a builder for a TAR, e.g. a TAR range sharing one profile.
+   *
+   * @param tar     - the TAR as a 24 bit value.
+   * @param builder - the builder recovering the packets of the TAR.
+   * @return the builder previously registered for the TAR, or null
+   */
+  public synchronized ImmutablePacketBuilder register(final int tar, final ImmutablePacketBuilder builder) {
+    checkTAR(tar);
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    if (builder.getSecuredProfile().getTransportProtocol() != transportProtocol) {
+      throw new IllegalArgumentException("Builder transport protocol " + builder.getSecuredProfile().getTransportProtocol()
+          + " is not " + transportProtocol);
+    }
+    final Table current = table;
+    final ImmutablePacketBuilder previous = current.get(tar);
+    final int size = previous == null ? current.size + 1 : current.size;
+    final Table next = new Table(2 * size > current.builders.length ? current.builders.length * 2 : current.builders.length);
+    next.putAll(current, -1);
+    next.put(tar, builder);
+    table = next;
+    return previous;
+  }
+
+  /**
+   * @param tar - the TAR as a 24 bit value.
+   * @return the builder registered for the TAR, or null
+   */
+  public synchronized ImmutablePacketBuilder unregister(final int tar) {
+    checkTAR(tar);
+    final Table current = table;
+    final ImmutablePacketBuilder previous = current.get(tar);
+    if (previous != null) {
+      final Table next = new Table(current.builders.length);
+      next.putAll(current, tar);
+      table = next;
+    }
+    return previous;
+  }
+
+  /**
+   * @param tar - the TAR as a 24 bit value.
+   * @return the builder registered for the TAR, or null
+   */
+  public ImmutablePacketBuilder getBuilder(final int tar) {
+    checkTAR(tar);
+    return table.get(tar);
+  }
+
+  /**
+   * @return the number of TARs with a registered builder
+   */
+  public int size() {
+    return table.size;
+  }
+
+  public TransportProtocol getTransportProtocol() {
+    return transportProtocol;
+  }
+
+  /**
+   * Reads the TAR of a command packet. The position of the buffer is not changed.
+   *
+   * @param packet - the buffer holding the packet from its position to its limit.
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a command packet of the transport protocol.
+   */
+  public int peekCommandTAR(final ByteBuffer packet) throws Gsm0348Exception {
+    return peekCommandTAR(transportProtocol, packet);
+  }
+
+  /**
+   * Reads the TAR of a response packet. The position of the buffer is not changed.
+   *
+   * @param packet - the buffer holding the packet from its position to its limit.
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a response packet of the transport protocol.
+   */
+  public int peekResponseTAR(final ByteBuffer packet) throws Gsm0348Exception {
+    return peekResponseTAR(transportProtocol, packet);
+  }
+
+  /**
+   * Reads the TAR of a command packet framed for a transport protocol, without a dispatcher. The position of the buffer is not changed.
+   *
+   * @param transportProtocol - the transport protocol of the packet.
+   * @param packet            - the buffer holding the packet from its position to its limit.
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a command packet of the transport protocol.
+   */
+  public static int peekCommandTAR(final TransportProtocol transportProtocol, final ByteBuffer packet) throws Gsm0348Exception {
+    return ImmutablePacketBuilder.peekCommandTAR(transportProtocol, packet);
+  }
+
+  /**
+   * Reads the TAR of a response packet framed for a transport protocol, without a dispatcher, e.g. to sort the responses of a capture
+   * recovered by a single builder. The position of the buffer is not changed.
+   *
+   * @param transportProtocol - the transport protocol of the packet.
+   * @param packet            - the buffer holding the packet from its position to its limit.
+   * @return the TAR as a 24 bit value
+   * @throws Gsm0348Exception if the packet is too short or not framed as a response packet of the transport protocol.
+   */
+  public static int peekResponseTAR(final TransportProtocol transportProtocol, final ByteBuffer packet) throws Gsm0348Exception {
+    return ImmutablePacketBuilder.peekResponseTAR(transportProtocol, packet);
+  }
+
+  /**
+   * Recovers a command packet with the builder registered for its TAR.
+   *
+   * @see ImmutablePacketBuilder#recoverCommandPacket(byte[], byte[], byte[])
+   * @throws Gsm0348Exception if no builder is registered for the TAR of the packet, or the packet cannot be recovered.
+   */
+  public CommandPacket recoverCommandPacket(final byte[] data, final byte[] cipheringKey, final byte[] signatureKey)
+      throws Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    final int tar = peekCommandTAR(ByteBuffer.wrap(data));
+    return builder(tar).recoverCommandPacket(data, cipheringKey, signatureKey);
+  }
+
+  /**
+   * Recovers a command packet without copying it, with the builder registered for its TAR.
+   *
+   * @see ImmutablePacketBuilder#recoverCommandPacket(ByteBuffer, byte[], byte[], CommandPacketView)
+   * @throws Gsm0348Exception if no builder is registered for the TAR of the packet, or the packet cannot be recovered.
+   */
+  public CommandPacketView recoverCommandPacket(final ByteBuffer packet, final byte[] cipheringKey, final byte[] signatureKey,
+                                                final CommandPacketView view) throws Gsm0348Exception {
+    if (packet == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    return builder(peekCommandTAR(packet)).recoverCommandPacket(packet, cipheringKey, signatureKey, view);
+  }
+
+  /**
+   * Recovers a response packet with the builder registered for its TAR.
+   *
+   * @see ImmutablePacketBuilder#recoverResponsePacket(byte[], byte[], byte[])
+   * @throws Gsm0348Exception if no builder is registered for the TAR of the packet, or the packet cannot be recovered.
+   */
+  public ResponsePacket recoverResponsePacket(final byte[] data, final byte[] cipheringKey, final byte[] signatureKey)
+      throws Gsm0348Exception {
+    if (data == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    final int tar = peekResponseTAR(ByteBuffer.wrap(data));
+    return builder(tar).recoverResponsePacket(data, cipheringKey, signatureKey);
+  }
+
+  /**
+   * Recovers a response packet without copying it, with the builder registered for its TAR.
+   *
+   * @see ImmutablePacketBuilder#recoverResponsePacket(ByteBuffer, byte[], byte[], ResponsePacketView)
+   * @throws Gsm0348Exception if no builder is registered for the TAR of the packet, or the packet cannot be recovered.
+   */
+  public ResponsePacketView recoverResponsePacket(final ByteBuffer packet, final byte[] cipheringKey, final byte[] signatureKey,
+                                                  final ResponsePacketView view) throws Gsm0348Exception {
+    if (packet == null) {
+      throw new IllegalArgumentException("Packet data cannot be null");
+    }
+    return builder(peekResponseTAR(packet)).recoverResponsePacket(packet, cipheringKey, signatureKey, view);
+  }
+
+  @Override
+  public String toString() {
+    return "PacketDispatcher [transportProtocol=" + transportProtocol + ", size=" + size() + "]";
+  }
+
+  private ImmutablePacketBuilder builder(final int tar) throws Gsm0348Exception {
+    final ImmutablePacketBuilder builder = table.get(tar);
+    if (builder == null) {
+      throw new Gsm0348Exception("No builder registered for TAR " + Util.toHexString(toBytes(tar)));
+    }
+    return builder;
+  }
+
+  private static byte[] toBytes(final int tar) {
+    return new byte[]{ (byte) (tar >>> 16), (byte) (tar >>> 8), (byte) tar };
+  }
+
+  private static void checkTAR(final int tar) {
+    if (tar < 0 || tar > 0xffffff) {
+      throw new IllegalArgumentException("TAR must be a 24 bit value: " + tar);
+    }
+  }
+
+  /**
+   * Open addressing table never changed once published. A TAR is stored plus one, 0 when the bucket is empty.
+   */
+  private static final class Table {
+    private final int[] tars;
+    private final ImmutablePacketBuilder[] builders;
+    private int size;
+
+    private Table(final int buckets) {
+      tars = new int[buckets];
+      builders = new ImmutablePacketBuilder[buckets];
+    }
+
+    private ImmutablePacketBuilder get(final int tar) {
+      final int mask = tars.length - 1;
+      int bucket = hash(tar) & mask;
+      int stored;
+      while ((stored = tars[bucket]) != 0) {
+        if (stored == tar + 1) {
+          return builders[bucket];
+        }
+        bucket = (bucket + 1) & mask;
+      }
+      return null;
+    }
+
+    private void put(final int tar, final ImmutablePacketBuilder builder) {
+      final int mask = tars.length - 1;
+      int bucket = hash(tar) & mask;
+      while (tars[bucket] != 0) {
+        if (tars[bucket] == tar + 1) {
+          builders[bucket] = builder;
+          return;
+        }
+        bucket = (bucket + 1) & mask;
+      }
+      tars[bucket] = tar + 1;
+      builders[bucket] = builder;
+      size++;
+    }
+
+    private void putAll(final Table other, final int excludedTar) {
+      for (int i = 0; i < other.tars.length; i++) {
+        if (other.tars[i] != 0 && other.tars[i] != excludedTar + 1) {
+          put(other.tars[i] - 1, other.builders[i]);
+        }
+      }
+    }
+
+    private static int hash(final int tar) {
+      final int hash = tar * 0x9e3779b9;
+      return hash ^ (hash >>> 16);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package org.opentelecoms.gsm0348.impl;
+
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+/**
+ * Listens to the phases of the packets built and recovered by an {@linkplain ImmutablePacketBuilder}, e.g. to tell whether the time is
+ * spent in the framing or in the cryptography. The builder only reads the clock when it is given a listener other than {@linkplain #NONE}.
+ * <p>
+ * The methods are called on the threads building the packets, inline: implementations are thread-safe and must return quickly.
+ *
+ * @see org.opentelecoms.gsm0348.impl.metrics.DefaultPacketMetrics
+ */
+public interface PacketMetrics {
+
+  /**
+   * The listener doing nothing.
+   */
+  PacketMetrics NONE = new PacketMetrics() {
+    @Override
+    public void phaseCompleted(Phase phase, TransportProtocol transportProtocol, String algorithm, long nanos) {
+    }
+
+    @Override
+    public void phaseFailed(Phase phase, TransportProtocol transportProtocol, String algorithm) {
+    }
+
+    @Override
+    public void responseStatus(TransportProtocol transportProtocol, ResponsePacketStatus status) {
+    }
+  };
+
+  enum Phase {
+    /**
+     * Writing the framing, header and data of a packet, or reading them back.
+     */
+    HEADER,
+    SIGNING,
+    CIPHERING,
+    DECIPHERING,
+    VERIFICATION
+  }
+
+  /**
+   * @param phase             - the phase.
+   * @param transportProtocol - the transport protocol of the profile.
+   * @param algorithm         - the signature or ciphering algorithm name of the profile, null for {@linkplain Phase#HEADER}.
+   * @param nanos             - the duration of the phase.
+   */
+  void phaseCompleted(Phase phase, TransportProtocol transportProtocol, String algorithm, long nanos);
+
+  /**
+   * Called when the cryptography of a phase fails or, for {@linkplain Phase#VERIFICATION}, when the signatures don't match.
+   *
+   * @param phase             - the phase.
+   * @param transportProtocol - the transport protocol of the profile.
+   * @param algorithm         - the signature or ciphering algorithm name of the profile.
+   */
+  void phaseFailed(Phase phase, TransportProtocol transportProtocol, String algorithm);
+
+  /**
+   * Called for each response packet built, and for each response packet recovered with a known status.
+   *
+   * @param transportProtocol - the transport protocol of the profile.
+   * @param status            - the status of the response.
+   */
+  void responseStatus(TransportProtocol transportProtocol, ResponsePacketStatus status);
+}
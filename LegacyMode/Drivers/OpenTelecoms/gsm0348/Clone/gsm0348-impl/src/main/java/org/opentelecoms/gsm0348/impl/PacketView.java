@@ -0,0 +1,157 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight over a recovered packet in a {@linkplain ByteBuffer}. The header fields are read from the buffer on demand and the secured
+ * data is exposed as a slice of the buffer, nothing is copied. A ciphered packet is deciphered in place, so the buffer holds the
+ * deciphered packet afterwards.
+ * <p>
+ * A view is filled by the packet builder and can be reused for the next packet. It is only valid as long as the buffer content is not
+ * changed. Views are not thread-safe.
+ */
+public abstract class PacketView {
+
+  private static final int TAR_SIZE = 3;
+  private static final int COUNTER_SIZE = 5;
+
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+  private int tarOffset;
+  private int counterOffset;
+  private int paddingCounter;
+  private int signatureOffset;
+  private int signatureLength;
+  private int dataOffset;
+  private int dataLength;
+
+  PacketView() {
+  }
+
+  void set(final ByteBuffer buffer, final int offset, final int length, final int tarOffset, final int counterOffset,
+           final int paddingCounter, final int signatureOffset, final int signatureLength, final int dataOffset, final int dataLength) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    this.tarOffset = tarOffset;
+    this.counterOffset = counterOffset;
+    this.paddingCounter = paddingCounter;
+    this.signatureOffset = signatureOffset;
+    this.signatureLength = signatureLength;
+    this.dataOffset = dataOffset;
+    this.dataLength = dataLength;
+  }
+
+  /**
+   * @return the buffer holding the packet
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * @return the absolute index of the first octet of the packet in the buffer
+   */
+  public int getOffset() {
+    return offset;
+  }
+
+  /**
+   * @return the length of the whole packet, including the packet identifier and length
+   */
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * @return the TAR as a 24-bit value
+   */
+  public int getTARValue() {
+    return (buffer.get(tarOffset) & 0xff) << 16 | (buffer.get(tarOffset + 1) & 0xff) << 8 | (buffer.get(tarOffset + 2) & 0xff);
+  }
+
+  public byte[] getTAR() {
+    return copy(tarOffset, TAR_SIZE);
+  }
+
+  /**
+   * @return the 5 octets counter as a 40-bit value
+   */
+  public long getCounterValue() {
+    long value = 0;
+    for (int i = 0; i < COUNTER_SIZE; i++) {
+      value = value << 8 | (buffer.get(counterOffset + i) & 0xff);
+    }
+    return value;
+  }
+
+  public byte[] getCounter() {
+    return copy(counterOffset, COUNTER_SIZE);
+  }
+
+  public int getPaddingCounter() {
+    return paddingCounter;
+  }
+
+  /**
+   * @return the length of the RC/CC/DS, 0 if the packet is not signed
+   */
+  public int getSignatureLength() {
+    return signatureLength;
+  }
+
+  /**
+   * @return the absolute index of the RC/CC/DS in the buffer
+   */
+  public int getSignatureOffset() {
+    return signatureOffset;
+  }
+
+  public byte[] getSignature() {
+    return copy(signatureOffset, signatureLength);
+  }
+
+  /**
+   * @return the absolute index of the secured data in the buffer
+   */
+  public int getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+   * @return the length of the secured data, without padding
+   */
+  public int getDataLength() {
+    return dataLength;
+  }
+
+  /**
+   * @return a read-only slice of the buffer with the secured data, without padding
+   */
+  public ByteBuffer getData() {
+    final ByteBuffer data = buffer.asReadOnlyBuffer();
+    data.limit(dataOffset + dataLength);
+    data.position(dataOffset);
+    return data.slice();
+  }
+
+  /**
+   * @return a copy of the secured data, without padding
+   */
+  public byte[] getDataBytes() {
+    return copy(dataOffset, dataLength);
+  }
+
+  byte get(final int index) {
+    return buffer.get(index);
+  }
+
+  private byte[] copy(final int index, final int count) {
+    final byte[] bytes = new byte[count];
+    for (int i = 0; i < count; i++) {
+      bytes[i] = buffer.get(index + i);
+    }
+    return bytes;
+  }
+}
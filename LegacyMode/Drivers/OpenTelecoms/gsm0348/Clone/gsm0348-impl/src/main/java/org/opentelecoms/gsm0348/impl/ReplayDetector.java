@@ -0,0 +1,249 @@
+package org.opentelecoms.gsm0348.impl;
+
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+
+/**
+ * Checks the counters of the commands received by cards against the last counter of each card, as a card does, e.g. for simulated
+ * cards. The counters are kept per card, TAR and KIC keyset.
+ * <p>
+ * Depending on the {@linkplain SynchroCounterMode} of the command:
+ * <ul>
+ * <li>{@linkplain SynchroCounterMode#NO_COUNTER} and {@linkplain SynchroCounterMode#COUNTER_NO_REPLAY_NO_CHECK}: the counter is not
+ * checked.</li>
+ * <li>{@linkplain SynchroCounterMode#COUNTER_REPLAY_OR_CHECK}: the counter must be higher than the last one, {@code CNTR_LOW}
+ * otherwise. With a maximum increase, a counter too far ahead is {@code CNTR_HIGH}.</li>
+ * <li>{@linkplain SynchroCounterMode#COUNTER_REPLAY_OR_CHECK_INCREMENT}: the counter must be one higher than the last one,
+ * {@code CNTR_LOW} if it is not higher, {@code CNTR_HIGH} if it is more than one higher.</li>
+ * </ul>
+ * Once the last counter reached its maximum value, every checked command is {@code CNTR_BLOCKED}. The last counter is only updated by
+ * accepted commands. A card never seen has the last counter 0.
+ * <p>
+ * The counters are held in open addressing tables of primitive arrays split in lock stripes, 17 bytes per slot with the tables at most
+ * three quarters full, so 10 million cards take 230 to 450 MB. Instances are thread-safe.
+ */
+public final class ReplayDetector {
+
+  private static final int STRIPES = 64;
+  private static final int COUNTER_BITS = 40;
+  private static final long COUNTER_MASK = CounterStore.MAX_COUNTER;
+  private static final SynchroCounterMode[] MODES = SynchroCounterMode.values();
+
+  private final long maxIncrease;
+  private final Stripe[] stripes = new Stripe[STRIPES];
+
+  public ReplayDetector() {
+    this(0, 0);
+  }
+
+  /**
+   * @param expectedCards - the number of cards, TARs and keysets expected, to size the tables once.
+   * @param maxIncrease   - the highest increase of a counter accepted with {@linkplain SynchroCounterMode#COUNTER_REPLAY_OR_CHECK}, 0
+   *                      for no limit.
+   */
+  public ReplayDetector(final int expectedCards, final long maxIncrease) {
+    if (expectedCards < 0) {
+      throw new IllegalArgumentException("Expected cards cannot be negative: " + expectedCards);
+    }
+    if (maxIncrease < 0) {
+      throw new IllegalArgumentException("Maximum increase cannot be negative: " + maxIncrease);
+    }
+    this.maxIncrease = maxIncrease == 0 ? COUNTER_MASK : maxIncrease;
+    final int perStripe = Math.max(16, Integer.highestOneBit((expectedCards / STRIPES) * 4 / 3) << 1);
+    for (int i = 0; i < STRIPES; i++) {
+      stripes[i] = new Stripe(perStripe);
+    }
+  }
+
+  /**
+   * Checks the counter of a recovered command and records it if it is accepted.
+   *
+   * @param cardId  - the identity of the card, e.g. its packed ICCID.
+   * @param command - the recovered command.
+   * @return {@linkplain ResponsePacketStatus#POR_OK} if the command is accepted, otherwise the status telling why
+   */
+  public ResponsePacketStatus check(final long cardId, final CommandPacketView command) {
+    return check(cardId, command.getTARValue(), (command.getKIC() & 0xf0) >>> 4, MODES[(command.getCommandSPI() & 0x18) >> 3],
+        command.getCounterValue());
+  }
+
+  /**
+   * Checks a counter and records it if it is accepted.
+   *
+   * @param cardId  - the identity of the card, e.g. its packed ICCID.
+   * @param tar     - the TAR as a 24 bit value.
+   * @param keyset  - the KIC keyset, 0 to 15.
+   * @param mode    - the counter mode of the command.
+   * @param counter - the counter of the command.
+   * @return {@linkplain ResponsePacketStatus#POR_OK} if the command is accepted, otherwise the status telling why
+   */
+  public ResponsePacketStatus check(final long cardId, final int tar, final int keyset, final SynchroCounterMode mode,
+                                    final long counter) {
+    checkKey(tar, keyset);
+    if (counter < 0 || counter > COUNTER_MASK) {
+      throw new IllegalArgumentException("Counter is out of range: " + counter);
+    }
+    if (mode == SynchroCounterMode.NO_COUNTER || mode == SynchroCounterMode.COUNTER_NO_REPLAY_NO_CHECK) {
+      return ResponsePacketStatus.POR_OK;
+    }
+    final long hash = hash(cardId, tar, keyset);
+    final Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      final int bucket = stripe.find(cardId, tar, keyset, hash);
+      final long last = bucket < 0 ? 0 : stripe.values[bucket] & COUNTER_MASK;
+      if (last == COUNTER_MASK) {
+        return ResponsePacketStatus.CNTR_BLOCKED;
+      }
+      if (counter <= last) {
+        return ResponsePacketStatus.CNTR_LOW;
+      }
+      final long increase = mode == SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT ? 1 : maxIncrease;
+      if (counter - last > increase) {
+        return ResponsePacketStatus.CNTR_HIGH;
+      }
+      stripe.put(bucket, cardId, tar, keyset, hash, counter);
+      return ResponsePacketStatus.POR_OK;
+    }
+  }
+
+  /**
+   * @param cardId - the identity of the card.
+   * @param tar    - the TAR as a 24 bit value.
+   * @param keyset - the KIC keyset, 0 to 15.
+   * @return the last counter accepted, 0 if none
+   */
+  public long getCounter(final long cardId, final int tar, final int keyset) {
+    checkKey(tar, keyset);
+    final long hash = hash(cardId, tar, keyset);
+    final Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      final int bucket = stripe.find(cardId, tar, keyset, hash);
+      return bucket < 0 ? 0 : stripe.values[bucket] & COUNTER_MASK;
+    }
+  }
+
+  /**
+   * Sets the last counter of a card, e.g. when a simulated card is provisioned.
+   *
+   * @param cardId  - the identity of the card.
+   * @param tar     - the TAR as a 24 bit value.
+   * @param keyset  - the KIC keyset, 0 to 15.
+   * @param counter - the last counter.
+   */
+  public void setCounter(final long cardId, final int tar, final int keyset, final long counter) {
+    checkKey(tar, keyset);
+    if (counter < 0 || counter > COUNTER_MASK) {
+      throw new IllegalArgumentException("Counter is out of range: " + counter);
+    }
+    final long hash = hash(cardId, tar, keyset);
+    final Stripe stripe = stripe(hash);
+    synchronized (stripe) {
+      stripe.put(stripe.find(cardId, tar, keyset, hash), cardId, tar, keyset, hash, counter);
+    }
+  }
+
+  /**
+   * @return the number of cards, TARs and keysets with a counter
+   */
+  public int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.size;
+      }
+    }
+    return size;
+  }
+
+  private Stripe stripe(final long hash) {
+    return stripes[(int) (hash >>> 58) & (STRIPES - 1)];
+  }
+
+  private static long hash(final long cardId, final int tar, final int keyset) {
+    long hash = (cardId ^ ((long) (tar << 4 | keyset) << 36)) * 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static void checkKey(final int tar, final int keyset) {
+    if (tar < 0 || tar > 0xffffff) {
+      throw new IllegalArgumentException("TAR must be a 24 bit value: " + tar);
+    }
+    if (keyset < 0 || keyset > 0x0f) {
+      throw new IllegalArgumentException("Keyset must be between 0 and 15: " + keyset);
+    }
+  }
+
+  /**
+   * Open addressing table of the counters whose hash falls in the stripe, guarded by the stripe itself. A value holds the TAR in its
+   * upper 24 bits and the counter in its lower 40 bits.
+   */
+  private static final class Stripe {
+    private long[] cards;
+    private long[] values;
+    // The keyset plus one, 0 when the bucket is empty
+    private byte[] keysets;
+    private int size;
+
+    private Stripe(final int buckets) {
+      cards = new long[buckets];
+      values = new long[buckets];
+      keysets = new byte[buckets];
+    }
+
+    private int find(final long cardId, final int tar, final int keyset, final long hash) {
+      final int mask = keysets.length - 1;
+      int bucket = (int) hash & mask;
+      while (keysets[bucket] != 0) {
+        if (cards[bucket] == cardId && keysets[bucket] == keyset + 1 && (int) (values[bucket] >>> COUNTER_BITS) == tar) {
+          return bucket;
+        }
+        bucket = (bucket + 1) & mask;
+      }
+      return -1;
+    }
+
+    /**
+     * Updates the counter in the bucket, or adds it if the bucket is -1.
+     */
+    private void put(final int bucket, final long cardId, final int tar, final int keyset, final long hash, final long counter) {
+      final long value = (long) tar << COUNTER_BITS | counter;
+      if (bucket >= 0) {
+        values[bucket] = value;
+        return;
+      }
+      if (4 * (size + 1) > 3 * keysets.length) {
+        grow();
+      }
+      insert(cardId, (byte) (keyset + 1), hash, value);
+      size++;
+    }
+
+    private void insert(final long cardId, final byte keyset, final long hash, final long value) {
+      final int mask = keysets.length - 1;
+      int bucket = (int) hash & mask;
+      while (keysets[bucket] != 0) {
+        bucket = (bucket + 1) & mask;
+      }
+      cards[bucket] = cardId;
+      values[bucket] = value;
+      keysets[bucket] = keyset;
+    }
+
+    private void grow() {
+      final long[] oldCards = cards;
+      final long[] oldValues = values;
+      final byte[] oldKeysets = keysets;
+      cards = new long[oldKeysets.length * 2];
+      values = new long[oldKeysets.length * 2];
+      keysets = new byte[oldKeysets.length * 2];
+      for (int i = 0; i < oldKeysets.length; i++) {
+        if (oldKeysets[i] != 0) {
+          final int tar = (int) (oldValues[i] >>> COUNTER_BITS);
+          insert(oldCards[i], oldKeysets[i], hash(oldCards[i], tar, oldKeysets[i] - 1), oldValues[i]);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketHeader;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.impl.coders.ResponsePacketStatusCoder;
+
+/**
+ * Flyweight over a recovered response packet (PoR), see {@linkplain ImmutablePacketBuilder#recoverResponsePacket(ByteBuffer, byte[],
+ * byte[], ResponsePacketView)}. For PoR ingestion the TAR, counter and status are usually all that is needed:
+ * {@linkplain #getTARValue()}, {@linkplain #getCounterValue()} and {@linkplain #getStatusCode()} read them without any allocation.
+ */
+public final class ResponsePacketView extends PacketView {
+
+  private int statusOffset;
+
+  public ResponsePacketView() {
+  }
+
+  void setStatusOffset(final int statusOffset) {
+    this.statusOffset = statusOffset;
+  }
+
+  /**
+   * @return the raw response status code
+   */
+  public byte getStatusCode() {
+    return get(statusOffset);
+  }
+
+  /**
+   * @return the response status
+   * @throws CodingException if the status code is unknown.
+   */
+  public ResponsePacketStatus getResponseStatus() throws CodingException {
+    return ResponsePacketStatusCoder.encode(getStatusCode());
+  }
+
+  /**
+   * Materializes the packet as model objects, copying the header fields and the data.
+   *
+   * @return the {@linkplain ResponsePacket}
+   * @throws CodingException if the status code is unknown.
+   */
+  public ResponsePacket toResponsePacket() throws CodingException {
+    final ResponsePacketHeader packetHeader = new ResponsePacketHeader();
+    packetHeader.setTAR(getTAR());
+    packetHeader.setCounter(getCounter());
+    packetHeader.setPaddingCounter((byte) (getPaddingCounter() & 0xff));
+    packetHeader.setResponseStatus(getResponseStatus());
+    packetHeader.setSecurity(getSignature());
+
+    final ResponsePacket packet = new ResponsePacket();
+    packet.setData(getDataBytes());
+    packet.setHeader(packetHeader);
+    return packet;
+  }
+}
@@ -0,0 +1,776 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.Util;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CommandSPI;
+import org.opentelecoms.gsm0348.api.model.KIC;
+import org.opentelecoms.gsm0348.api.model.KID;
+import org.opentelecoms.gsm0348.api.model.ResponseSPI;
+import org.opentelecoms.gsm0348.api.model.SPI;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.coders.CommandSPICoder;
+import org.opentelecoms.gsm0348.impl.coders.KICCoder;
+import org.opentelecoms.gsm0348.impl.coders.KIDCoder;
+import org.opentelecoms.gsm0348.impl.coders.ResponseSPICoder;
+import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+
+/**
+ * Compiled, immutable form of a {@linkplain CardProfile}.
+ * <p>
+ * The profile is verified once and everything the packet builder needs on every packet is resolved up front: the SPI, KIC, KID and TAR
+ * bytes, the ciphering and signature algorithm names, the cipher block size, the signature length and the clear part of the command and
+ * response headers. Instances never change after construction and can be shared freely between threads and builders.
+ */
+public final class SecuredProfile {
+
+  private static final int SPI_SIZE = 2;
+  private static final int KIC_SIZE = 1;
+  private static final int KID_SIZE = 1;
+  private static final int TAR_SIZE = 3;
+  private static final int COUNTER_SIZE = 5;
+  private static final int PADDING_COUNTER_SIZE = 1;
+  private static final int STATUS_CODE_SIZE = 1;
+  private static final int HEADER_SIZE_WITHOUT_SIGNATURE = SPI_SIZE + KIC_SIZE + KID_SIZE + TAR_SIZE + COUNTER_SIZE + PADDING_COUNTER_SIZE;
+  private static final int RESPONSE_HEADER_SIZE_WITHOUT_SIGNATURE = TAR_SIZE + COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE;
+  private static final int MAX_DERIVED_PROFILES = 256;
+
+  private final String name;
+  private final TransportProtocol transportProtocol;
+  private final String signatureAlgorithm;
+  private final String cipheringAlgorithm;
+
+  private final SPI spi;
+  private final KIC kic;
+  private final KID kid;
+  private final byte commandSPIByte;
+  private final byte responseSPIByte;
+  private final byte kicByte;
+  private final byte kidByte;
+  private final byte[] tar;
+  private final int tarValue;
+
+  private final boolean commandCiphering;
+  private final boolean commandSigning;
+  private final boolean responseCiphering;
+  private final boolean responseSigning;
+  private final boolean usingCounter;
+
+  private final String cipheringAlgorithmName;
+  private final String signatureAlgorithmName;
+  private final int cipherBlockSize;
+  private final int signatureSize;
+
+  private final int commandHeaderLength;
+  private final int responseHeaderLength;
+  private final byte[] commandHeaderClear;
+  private final byte[] responseHeaderClear;
+
+  // The profiles derived from received command headers, keyed by their SPI, KIC and KID octets in an open addressing table allocated on
+  // the first derivation and read without locking, as SecuredProfileCache does
+  private volatile DerivedProfile[] derivedProfiles;
+  private int derivedProfileCount;
+
+  private SecuredProfile(final Spec spec) {
+    this.name = spec.name;
+    this.transportProtocol = spec.transportProtocol;
+    this.signatureAlgorithm = spec.signatureAlgorithm;
+    this.cipheringAlgorithm = spec.cipheringAlgorithm;
+    this.spi = spec.spi;
+    this.kic = spec.kic;
+    this.kid = spec.kid;
+    this.tar = spec.tar;
+    this.tarValue = ((tar[0] & 0xff) << 16) | ((tar[1] & 0xff) << 8) | (tar[2] & 0xff);
+    this.commandCiphering = spec.commandCiphering;
+    this.commandSigning = spec.commandSigning;
+    this.responseCiphering = spec.responseCiphering;
+    this.responseSigning = spec.responseSigning;
+    this.usingCounter = spec.usingCounter;
+    this.cipheringAlgorithmName = spec.cipheringAlgorithmName;
+    this.signatureAlgorithmName = spec.signatureAlgorithmName;
+    this.cipherBlockSize = spec.cipherBlockSize;
+    this.signatureSize = spec.signatureSize;
+    this.commandSPIByte = spec.commandSPIByte;
+    this.responseSPIByte = spec.responseSPIByte;
+    this.kicByte = spec.kicByte;
+    this.kidByte = spec.kidByte;
+
+    this.commandHeaderLength = HEADER_SIZE_WITHOUT_SIGNATURE + getCommandSignatureLength();
+    this.responseHeaderLength = RESPONSE_HEADER_SIZE_WITHOUT_SIGNATURE + getResponseSignatureLength();
+
+    // CHL / SPI / KIC / KID / TAR are never ciphered, so they are the same for every command packet
+    final byte[] chl = encodeHeaderLength(transportProtocol, commandHeaderLength);
+    commandHeaderClear = new byte[chl.length + SPI_SIZE + KIC_SIZE + KID_SIZE + TAR_SIZE];
+    System.arraycopy(chl, 0, commandHeaderClear, 0, chl.length);
+    int position = chl.length;
+    commandHeaderClear[position++] = commandSPIByte;
+    commandHeaderClear[position++] = responseSPIByte;
+    commandHeaderClear[position++] = kicByte;
+    commandHeaderClear[position++] = kidByte;
+    System.arraycopy(tar, 0, commandHeaderClear, position, TAR_SIZE);
+
+    // RHL / TAR are never ciphered, the response header length is always one octet
+    responseHeaderClear = new byte[1 + TAR_SIZE];
+    responseHeaderClear[0] = (byte) (responseHeaderLength & 0xff);
+    System.arraycopy(tar, 0, responseHeaderClear, 1, TAR_SIZE);
+  }
+
+  /**
+   * Verifies and compiles a {@linkplain CardProfile}. The card profile is not referenced by the result, later changes to it have no effect.
+   *
+   * @param cardProfile - the profile to compile.
+   * @return the compiled profile
+   * @throws PacketBuilderConfigurationException if the profile is null or in an inconsistent state.
+   */
+  public static SecuredProfile compile(final CardProfile cardProfile) throws PacketBuilderConfigurationException {
+    verifyProfile(cardProfile);
+
+    final CommandSPI commandSPI = cardProfile.getSPI().getCommandSPI();
+    final ResponseSPI responseSPI = cardProfile.getSPI().getResponseSPI();
+
+    if (commandSPI.getCertificationMode() == CertificationMode.DS) {
+      throw new PacketBuilderConfigurationException("Digital signature in command packets is not supported");
+    }
+    if (responseSPI.getPoRCertificateMode() == CertificationMode.DS) {
+      throw new PacketBuilderConfigurationException("Digital signature in response packets is not supported");
+    }
+
+    final Spec spec = new Spec();
+    spec.name = cardProfile.getName();
+    spec.transportProtocol = cardProfile.getTransportProtocol();
+    spec.signatureAlgorithm = cardProfile.getSignatureAlgorithm();
+    spec.cipheringAlgorithm = cardProfile.getCipheringAlgorithm();
+    spec.spi = copySPI(cardProfile.getSPI());
+    spec.kic = copyKIC(cardProfile.getKIC());
+    spec.kid = copyKID(cardProfile.getKID());
+    spec.tar = cardProfile.getTAR().clone();
+    try {
+      spec.commandSPIByte = CommandSPICoder.decode(spec.spi.getCommandSPI());
+      spec.responseSPIByte = ResponseSPICoder.decode(spec.spi.getResponseSPI());
+      spec.kicByte = KICCoder.decode(spec.kic);
+      spec.kidByte = KIDCoder.decode(spec.kid);
+    } catch (CodingException e) {
+      throw new PacketBuilderConfigurationException("Cannot encode the security header", e);
+    }
+
+    spec.commandCiphering = commandSPI.isCiphered();
+    spec.responseCiphering = responseSPI.isCiphered();
+    if (spec.commandCiphering || spec.responseCiphering) {
+      spec.resolveCipheringAlgorithm();
+    }
+
+    spec.commandSigning = commandSPI.getCertificationMode() != CertificationMode.NO_SECURITY;
+    spec.responseSigning = responseSPI.getPoRCertificateMode() != CertificationMode.NO_SECURITY;
+    if (spec.commandSigning || spec.responseSigning) {
+      spec.resolveSignatureAlgorithm();
+    }
+
+    spec.usingCounter = commandSPI.getSynchroCounterMode() != SynchroCounterMode.NO_COUNTER;
+    return new SecuredProfile(spec);
+  }
+
+  /**
+   * Derives the profile described by the security header of a received command packet. The transport protocol, TAR and the configured
+   * algorithm names are taken from this profile, the command security flags and algorithms from the received SPI, KIC and KID.
+   * <p>
+   * The derived profiles are kept, so a header already seen costs one lookup. At most 256 derived profiles are kept per profile, the
+   * others are derived again on every call.
+   *
+   * @param commandSPI  - first SPI octet of the received packet.
+   * @param responseSPI - second SPI octet of the received packet.
+   * @param kic         - KIC octet of the received packet.
+   * @param kid         - KID octet of the received packet.
+   * @return the derived profile, or this profile if the received header matches it
+   * @throws Gsm0348Exception if the header cannot be decoded or describes an unsupported configuration.
+   */
+  SecuredProfile withCommandHeader(final byte commandSPI, final byte responseSPI, final byte kic, final byte kid) throws Gsm0348Exception {
+    if (commandSPI == commandSPIByte && responseSPI == responseSPIByte && kic == kicByte && kid == kidByte) {
+      return this;
+    }
+    final int header = ((commandSPI & 0xff) << 24) | ((responseSPI & 0xff) << 16) | ((kic & 0xff) << 8) | (kid & 0xff);
+    final DerivedProfile[] entries = derivedProfiles;
+    final SecuredProfile known = entries == null ? null : findDerived(entries, header);
+    if (known != null) {
+      return known;
+    }
+    final SecuredProfile derived = deriveCommandHeader(commandSPI, responseSPI, kic, kid);
+    synchronized (this) {
+      DerivedProfile[] table = derivedProfiles;
+      if (table == null) {
+        table = new DerivedProfile[MAX_DERIVED_PROFILES << 1];
+        derivedProfiles = table;
+      }
+      final SecuredProfile other = findDerived(table, header);
+      if (other != null) {
+        return other;
+      }
+      if (derivedProfileCount < MAX_DERIVED_PROFILES) {
+        insertDerived(table, new DerivedProfile(header, derived));
+        derivedProfileCount++;
+      }
+    }
+    return derived;
+  }
+
+  /**
+   * Lock free lookup. The entries are immutable objects with final fields, so a reader sees either no entry or a complete one; an entry
+   * inserted concurrently and not seen yet is found again under the lock.
+   */
+  private static SecuredProfile findDerived(final DerivedProfile[] entries, final int header) {
+    final int mask = entries.length - 1;
+    int bucket = hash(header) & mask;
+    DerivedProfile entry;
+    while ((entry = entries[bucket]) != null) {
+      if (entry.header == header) {
+        return entry.profile;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+    return null;
+  }
+
+  private static void insertDerived(final DerivedProfile[] entries, final DerivedProfile entry) {
+    final int mask = entries.length - 1;
+    int bucket = hash(entry.header) & mask;
+    while (entries[bucket] != null) {
+      bucket = (bucket + 1) & mask;
+    }
+    entries[bucket] = entry;
+  }
+
+  private static int hash(final int header) {
+    final int hash = header * 0x9e3779b9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private SecuredProfile deriveCommandHeader(final byte commandSPI, final byte responseSPI, final byte kic, final byte kid)
+      throws Gsm0348Exception {
+    final SPI recoveredSPI = new SPI();
+    recoveredSPI.setCommandSPI(CommandSPICoder.encode(commandSPI));
+    recoveredSPI.setResponseSPI(ResponseSPICoder.encode(responseSPI));
+
+    final Spec spec = new Spec();
+    spec.name = name;
+    spec.transportProtocol = transportProtocol;
+    spec.signatureAlgorithm = signatureAlgorithm;
+    spec.cipheringAlgorithm = cipheringAlgorithm;
+    spec.spi = recoveredSPI;
+    spec.kic = KICCoder.encode(kic);
+    spec.kid = KIDCoder.encode(recoveredSPI.getCommandSPI().getCertificationMode(), kid);
+    spec.tar = tar;
+    spec.commandSPIByte = commandSPI;
+    spec.responseSPIByte = responseSPI;
+    spec.kicByte = kic;
+    spec.kidByte = kid;
+
+    // Only the command security is taken from the received header, the response settings stay as configured
+    spec.responseCiphering = responseCiphering;
+    spec.responseSigning = responseSigning;
+    spec.usingCounter = usingCounter;
+    spec.cipheringAlgorithmName = cipheringAlgorithmName;
+    spec.cipherBlockSize = cipherBlockSize;
+    spec.signatureAlgorithmName = signatureAlgorithmName;
+    spec.signatureSize = signatureSize;
+
+    spec.commandCiphering = recoveredSPI.getCommandSPI().isCiphered();
+    spec.commandSigning = recoveredSPI.getCommandSPI().getCertificationMode() != CertificationMode.NO_SECURITY;
+    if (spec.commandCiphering) {
+      spec.resolveCipheringAlgorithm();
+    }
+    if (spec.commandSigning) {
+      spec.resolveSignatureAlgorithm();
+    }
+    return new SecuredProfile(spec);
+  }
+
+  /**
+   * Returns a new {@linkplain CardProfile} equal to the compiled one. Every call returns a new, independent instance.
+   *
+   * @return the card profile
+   */
+  public CardProfile toCardProfile() {
+    final CardProfile cardProfile = new CardProfile();
+    cardProfile.setName(name);
+    cardProfile.setTransportProtocol(transportProtocol);
+    cardProfile.setSignatureAlgorithm(signatureAlgorithm);
+    cardProfile.setCipheringAlgorithm(cipheringAlgorithm);
+    cardProfile.setSPI(copySPI(spi));
+    cardProfile.setKIC(copyKIC(kic));
+    cardProfile.setKID(copyKID(kid));
+    cardProfile.setTAR(tar.clone());
+    return cardProfile;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public TransportProtocol getTransportProtocol() {
+    return transportProtocol;
+  }
+
+  public byte getCommandSPI() {
+    return commandSPIByte;
+  }
+
+  public byte getResponseSPI() {
+    return responseSPIByte;
+  }
+
+  public byte getKIC() {
+    return kicByte;
+  }
+
+  public byte getKID() {
+    return kidByte;
+  }
+
+  public byte[] getTAR() {
+    return tar.clone();
+  }
+
+  /**
+   * @return the TAR as a 24 bit value
+   */
+  public int getTARValue() {
+    return tarValue;
+  }
+
+  public boolean isCommandCiphering() {
+    return commandCiphering;
+  }
+
+  public boolean isCommandSigning() {
+    return commandSigning;
+  }
+
+  public boolean isResponseCiphering() {
+    return responseCiphering;
+  }
+
+  public boolean isResponseSigning() {
+    return responseSigning;
+  }
+
+  public boolean isUsingCounter() {
+    return usingCounter;
+  }
+
+  /**
+   * @return the cipher transformation name, or null if neither commands nor responses are ciphered
+   */
+  public String getCipheringAlgorithmName() {
+    return cipheringAlgorithmName;
+  }
+
+  /**
+   * @return the signature algorithm name, or null if neither commands nor responses are signed
+   */
+  public String getSignatureAlgorithmName() {
+    return signatureAlgorithmName;
+  }
+
+  public int getCipherBlockSize() {
+    return cipherBlockSize;
+  }
+
+  public int getSignatureSize() {
+    return signatureSize;
+  }
+
+  public int getCommandSignatureLength() {
+    return commandSigning ? signatureSize : 0;
+  }
+
+  public int getResponseSignatureLength() {
+    return responseSigning ? signatureSize : 0;
+  }
+
+  /**
+   * @return the value of the command header length (CHL), i.e. the length of the command header without the CHL itself
+   */
+  public int getCommandHeaderLength() {
+    return commandHeaderLength;
+  }
+
+  /**
+   * @return the value of the response header length (RHL), i.e. the length of the response header without the RHL itself
+   */
+  public int getResponseHeaderLength() {
+    return responseHeaderLength;
+  }
+
+  /**
+   * @param dataLength - the length of the secured data.
+   * @return the number of padding octets appended to the secured data of a command packet, 0 if commands are not ciphered
+   */
+  public int getCommandPaddingLength(final int dataLength) {
+    if (!commandCiphering) {
+      return 0;
+    }
+    return padding(COUNTER_SIZE + PADDING_COUNTER_SIZE + getCommandSignatureLength() + dataLength);
+  }
+
+  /**
+   * @param dataLength - the length of the secured data.
+   * @return the number of padding octets appended to the secured data of a response packet, 0 if responses are not ciphered
+   */
+  public int getResponsePaddingLength(final int dataLength) {
+    if (!responseCiphering) {
+      return 0;
+    }
+    return padding(COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE + getResponseSignatureLength() + dataLength);
+  }
+
+  /**
+   * Returns the encoded length of a command packet, i.e. the space needed to build it into a buffer.
+   *
+   * @param dataLength - the length of the secured data.
+   * @return the length of the command packet including CPI and CPL
+   */
+  public int getCommandPacketLength(final int dataLength) {
+    final int length = commandHeaderClear.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + getCommandSignatureLength() + dataLength
+        + getCommandPaddingLength(dataLength);
+    return packetLength(length);
+  }
+
+  /**
+   * Returns the encoded length of a response packet, i.e. the space needed to build it into a buffer.
+   *
+   * @param dataLength - the length of the secured data.
+   * @return the length of the response packet including RPI and RPL
+   * @throws IllegalStateException if the transport protocol is SMS_CB, which has no response packet.
+   */
+  public int getResponsePacketLength(final int dataLength) {
+    if (transportProtocol == TransportProtocol.SMS_CB) {
+      throw new IllegalStateException("Response packet is not defined for SMS-CB");
+    }
+    final int length = responseHeaderClear.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + STATUS_CODE_SIZE + getResponseSignatureLength()
+        + dataLength + getResponsePaddingLength(dataLength);
+    return packetLength(length);
+  }
+
+  private int padding(final int length) {
+    final int remainder = length % cipherBlockSize;
+    return remainder == 0 ? 0 : cipherBlockSize - remainder;
+  }
+
+  private int packetLength(final int length) {
+    switch (transportProtocol) {
+      case SMS_CB:
+      case SMS_PP:
+        // No CPI/RPI, the CPL/RPL is always 2 octets
+        return 2 + length;
+      default:
+        // One octet CPI/RPI and the BER-TLV encoded CPL/RPL
+        return 1 + Util.encodeLengthSize(length) + length;
+    }
+  }
+
+  /**
+   * The clear part of the command header: CHL, SPI, KIC, KID and TAR. Not copied, callers must not modify it.
+   */
+  byte[] commandHeaderClear() {
+    return commandHeaderClear;
+  }
+
+  /**
+   * The clear part of the response header: RHL and TAR. Not copied, callers must not modify it.
+   */
+  byte[] responseHeaderClear() {
+    return responseHeaderClear;
+  }
+
+  @Override
+  public String toString() {
+    return "SecuredProfile [name=" + name + ", transportProtocol=" + transportProtocol + ", spi=" + Util.toHex(commandSPIByte) + " "
+        + Util.toHex(responseSPIByte) + ", kic=" + Util.toHex(kicByte) + ", kid=" + Util.toHex(kidByte) + ", tar=" + Util.toHexString(tar)
+        + ", cipheringAlgorithmName=" + cipheringAlgorithmName + ", signatureAlgorithmName=" + signatureAlgorithmName + "]";
+  }
+
+  private static byte[] encodeHeaderLength(final TransportProtocol transportProtocol, final int length) {
+    switch (transportProtocol) {
+      case CAT_TP:
+      case TCP_IP:
+      case USSD:
+        return Util.encodeLength(length);
+      case SMS_CB:
+      case SMS_PP:
+      default:
+        return new byte[]{ (byte) (length & 0xff) };
+    }
+  }
+
+  private static void verifyProfile(final CardProfile cardProfile) throws PacketBuilderConfigurationException {
+    if (cardProfile == null) {
+      throw new PacketBuilderConfigurationException("CardProfile cannot be null");
+    }
+
+    if (cardProfile.getTransportProtocol() == null) {
+      throw new PacketBuilderConfigurationException("Transport protocol cannot be null");
+    }
+
+    if (cardProfile.getSPI() == null) {
+      throw new PacketBuilderConfigurationException("SPI cannot be null");
+    }
+    if (cardProfile.getSPI().getCommandSPI() == null) {
+      throw new PacketBuilderConfigurationException("CommandSPI cannot be null");
+    }
+    if (cardProfile.getSPI().getCommandSPI().getCertificationMode() == null) {
+      throw new PacketBuilderConfigurationException("CommandSPI CertificationMode cannot be null");
+    }
+    if (cardProfile.getSPI().getCommandSPI().getSynchroCounterMode() == null) {
+      throw new PacketBuilderConfigurationException("CommandSPI SynchroCounterMode cannot be null");
+    }
+    if (cardProfile.getSPI().getResponseSPI() == null) {
+      throw new PacketBuilderConfigurationException("ResponseSPI cannot be null");
+    }
+    if (cardProfile.getSPI().getResponseSPI().getPoRCertificateMode() == null) {
+      throw new PacketBuilderConfigurationException("ResponseSPI PoRCertificateMode cannot be null");
+    }
+    if (cardProfile.getSPI().getResponseSPI().getPoRMode() == null) {
+      throw new PacketBuilderConfigurationException("ResponseSPI PoRMode cannot be null");
+    }
+    if (cardProfile.getSPI().getResponseSPI().getPoRProtocol() == null) {
+      throw new PacketBuilderConfigurationException("ResponseSPI PoRProtocol cannot be null");
+    }
+
+    final boolean commandCiphered = cardProfile.getSPI().getCommandSPI().isCiphered();
+    if (commandCiphered) {
+      if (cardProfile.getKIC() == null) {
+        throw new PacketBuilderConfigurationException("KIC cannot be null for ciphered command");
+      }
+      if (cardProfile.getKIC().getAlgorithmImplementation() == null) {
+        throw new PacketBuilderConfigurationException("KIC AlgorithmImplementation cannot be null for ciphered command");
+      }
+      if (cardProfile.getKIC().getCipheringAlgorithmMode() == null) {
+        throw new PacketBuilderConfigurationException("KIC CipheringAlgorithmMode cannot be null for ciphered command");
+      }
+    }
+    if (cardProfile.getKIC().getKeysetID() < 0x0 || cardProfile.getKIC().getKeysetID() > (byte) 0xf) {
+      throw new PacketBuilderConfigurationException("KIC keySetID cannot be <0 and >15");
+    }
+
+    final boolean responseCiphered = cardProfile.getSPI().getResponseSPI().isCiphered();
+    if (cardProfile.getKID() == null) {
+      throw new PacketBuilderConfigurationException("KID cannot be null");
+    }
+    if (responseCiphered) {
+      if (cardProfile.getKID().getAlgorithmImplementation() == null) {
+        throw new PacketBuilderConfigurationException("KID AlgorithmImplementation cannot be null for ciphered response");
+      }
+      if (cardProfile.getKID().getCertificationAlgorithmMode() == null) {
+        throw new PacketBuilderConfigurationException("KID CertificationAlgorithmMode cannot be null for ciphered response");
+      }
+    }
+    if (cardProfile.getKID().getKeysetID() < 0x0 || cardProfile.getKID().getKeysetID() > (byte) 0xf) {
+      throw new PacketBuilderConfigurationException("KID keySetID cannot be <0 and >15");
+    }
+
+    // TAR is mandatory for building, but optional for recovering
+    if (cardProfile.getTAR() == null || cardProfile.getTAR().length != TAR_SIZE) {
+      throw new PacketBuilderConfigurationException("TAR value null or not a 3 bytes array");
+    }
+  }
+
+  private static SPI copySPI(final SPI source) {
+    final SPI spi = new SPI();
+    if (source.getCommandSPI() != null) {
+      final CommandSPI commandSPI = new CommandSPI();
+      commandSPI.setCertificationMode(source.getCommandSPI().getCertificationMode());
+      commandSPI.setSynchroCounterMode(source.getCommandSPI().getSynchroCounterMode());
+      commandSPI.setCiphered(source.getCommandSPI().isCiphered());
+      spi.setCommandSPI(commandSPI);
+    }
+    if (source.getResponseSPI() != null) {
+      final ResponseSPI responseSPI = new ResponseSPI();
+      responseSPI.setPoRCertificateMode(source.getResponseSPI().getPoRCertificateMode());
+      responseSPI.setPoRMode(source.getResponseSPI().getPoRMode());
+      responseSPI.setPoRProtocol(source.getResponseSPI().getPoRProtocol());
+      responseSPI.setCiphered(source.getResponseSPI().isCiphered());
+      spi.setResponseSPI(responseSPI);
+    }
+    return spi;
+  }
+
+  private static KIC copyKIC(final KIC source) {
+    final KIC kic = new KIC();
+    kic.setKeysetID(source.getKeysetID());
+    kic.setAlgorithmImplementation(source.getAlgorithmImplementation());
+    kic.setCipheringAlgorithmMode(source.getCipheringAlgorithmMode());
+    return kic;
+  }
+
+  private static KID copyKID(final KID source) {
+    final KID kid = new KID();
+    kid.setKeysetID(source.getKeysetID());
+    kid.setAlgorithmImplementation(source.getAlgorithmImplementation());
+    kid.setCertificationAlgorithmMode(source.getCertificationAlgorithmMode());
+    return kid;
+  }
+
+  /**
+   * Mutable collector of the values a profile is built from.
+   */
+  private static final class DerivedProfile {
+    private final int header;
+    private final SecuredProfile profile;
+
+    private DerivedProfile(final int header, final SecuredProfile profile) {
+      this.header = header;
+      this.profile = profile;
+    }
+  }
+
+  private static final class Spec {
+    private String name;
+    private TransportProtocol transportProtocol;
+    private String signatureAlgorithm;
+    private String cipheringAlgorithm;
+    private SPI spi;
+    private KIC kic;
+    private KID kid;
+    private byte[] tar;
+    private byte commandSPIByte;
+    private byte responseSPIByte;
+    private byte kicByte;
+    private byte kidByte;
+    private boolean commandCiphering;
+    private boolean commandSigning;
+    private boolean responseCiphering;
+    private boolean responseSigning;
+    private boolean usingCounter;
+    private String cipheringAlgorithmName;
+    private String signatureAlgorithmName;
+    private int cipherBlockSize;
+    private int signatureSize;
+
+    private void resolveSignatureAlgorithm() throws PacketBuilderConfigurationException {
+      switch (kid.getAlgorithmImplementation()) {
+        case PROPRIETARY_IMPLEMENTATIONS:
+        case ALGORITHM_KNOWN_BY_BOTH_ENTITIES:
+          signatureAlgorithmName = signatureAlgorithm;
+          if (signatureAlgorithmName == null || signatureAlgorithmName.isEmpty()) {
+            throw new PacketBuilderConfigurationException(
+                "In selected configuration signature algorithm name cannot be null or empty");
+          }
+          break;
+        case DES:
+          switch (kid.getCertificationAlgorithmMode()) {
+            case DES_CBC:
+              signatureAlgorithmName = SignatureManager.DES_MAC8_ISO9797_M1;
+              break;
+
+            case RESERVED:
+              throw new PacketBuilderConfigurationException("Using reserved value for algorithm mode in KID");
+
+            case TRIPLE_DES_CBC_2_KEYS:
+            case TRIPLE_DES_CBC_3_KEYS:
+              signatureAlgorithmName = SignatureManager.DES_EDE_MAC64;
+              break;
+
+            default:
+              throw new PacketBuilderConfigurationException("Not implemented yet");
+          }
+          break;
+        case AES:
+          switch (kid.getCertificationAlgorithmMode()) {
+            case AES_CMAC:
+              if (signatureAlgorithm == null || signatureAlgorithm.isEmpty()) {
+                throw new PacketBuilderConfigurationException(
+                    "In selected configuration signature algorithm name cannot be null or empty");
+              }
+              if (!SignatureManager.AES_CMAC_32.equals(signatureAlgorithm) && !SignatureManager.AES_CMAC_64.equals(signatureAlgorithm)) {
+                throw new PacketBuilderConfigurationException(
+                    "For AES CMAC, the signature can only be AES_CMAC_32 or AES_CMAC_64, but was " + signatureAlgorithm);
+              }
+              signatureAlgorithmName = signatureAlgorithm;
+              break;
+            default:
+              throw new PacketBuilderConfigurationException("Not implemented yet");
+          }
+          break;
+        case CRC:
+          switch (kid.getCertificationAlgorithmMode()) {
+            case CRC_16:
+              signatureAlgorithmName = SignatureManager.CRC_16;
+              break;
+            case CRC_32:
+              signatureAlgorithmName = SignatureManager.CRC_32;
+              break;
+            case XOR_4:
+              signatureAlgorithmName = SignatureManager.XOR4;
+              break;
+            case XOR_8:
+              signatureAlgorithmName = SignatureManager.XOR8;
+              break;
+            default:
+              throw new PacketBuilderConfigurationException(kid.getCertificationAlgorithmMode() + " is not implemented (yet)");
+          }
+          break;
+        default:
+          throw new PacketBuilderConfigurationException("Not implemented yet");
+      }
+      try {
+        signatureSize = SignatureManager.signLength(signatureAlgorithmName);
+      } catch (NoSuchAlgorithmException ex) {
+        throw new PacketBuilderConfigurationException(ex);
+      }
+    }
+
+    private void resolveCipheringAlgorithm() throws PacketBuilderConfigurationException {
+      switch (kic.getAlgorithmImplementation()) {
+        case PROPRIETARY_IMPLEMENTATIONS:
+        case ALGORITHM_KNOWN_BY_BOTH_ENTITIES:
+          cipheringAlgorithmName = cipheringAlgorithm;
+          if (cipheringAlgorithmName == null || cipheringAlgorithmName.isEmpty()) {
+            throw new PacketBuilderConfigurationException(
+                "In selected configuration ciphering algorithm name cannot be null or empty");
+          }
+          break;
+        case DES:
+          switch (kic.getCipheringAlgorithmMode()) {
+            case DES_CBC:
+              cipheringAlgorithmName = "DES/CBC/NoPadding";
+              break;
+
+            case DES_ECB:
+              cipheringAlgorithmName = "DES/ECB/NoPadding";
+              break;
+
+            case TRIPLE_DES_CBC_2_KEYS:
+            case TRIPLE_DES_CBC_3_KEYS:
+              cipheringAlgorithmName = "DESede/CBC/NoPadding";
+              break;
+
+            default:
+              throw new PacketBuilderConfigurationException("Not implemented yet");
+          }
+          break;
+        case AES:
+          switch (kic.getCipheringAlgorithmMode()) {
+            case AES_CBC:
+              cipheringAlgorithmName = "AES/CBC/NoPadding";
+              break;
+            default:
+              throw new PacketBuilderConfigurationException("Not implemented yet");
+          }
+          break;
+        default:
+          throw new PacketBuilderConfigurationException("Not implemented yet");
+      }
+      try {
+        cipherBlockSize = CipheringManager.getBlockSize(cipheringAlgorithmName);
+      } catch (GeneralSecurityException ex) {
+        throw new PacketBuilderConfigurationException(ex);
+      }
+    }
+  }
+}
@@ -0,0 +1,219 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.coders.CardProfileCoder;
+
+/**
+ * Interns the {@linkplain SecuredProfile} described by the security header of received packets, e.g. packets from unknown sources. The
+ * SPI, KIC, KID and TAR octets of the header are packed in a {@code long}: a header already seen costs one lookup without allocation,
+ * a new header is decoded as {@linkplain CardProfileCoder#encode(byte[])} does and compiled once.
+ * <p>
+ * The profiles are kept in an open addressing table sized once for the maximum number of headers, read without locking. Once the table
+ * holds the maximum number of headers, the profiles of new headers are compiled on every call and not kept, so a flood of forged
+ * headers cannot grow the cache. Instances are thread-safe.
+ */
+public final class SecuredProfileCache {
+
+  /**
+   * The size of the packed header: SPI, KIC, KID and TAR.
+   */
+  public static final int HEADER_SIZE = 7;
+
+  public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+  private final TransportProtocol transportProtocol;
+  private final String cipheringAlgorithm;
+  private final String signatureAlgorithm;
+  private final int maximumSize;
+  private final Entry[] entries;
+  private int size;
+
+  public SecuredProfileCache(final TransportProtocol transportProtocol) {
+    this(transportProtocol, null, null, DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * @param transportProtocol  - the transport protocol of the profiles.
+   * @param cipheringAlgorithm - the ciphering algorithm name of the profiles using a proprietary or known ciphering, or null.
+   * @param signatureAlgorithm - the signature algorithm name of the profiles using a proprietary or known signature or AES CMAC, or null
+   *                           for AES_CMAC_64.
+   * @param maximumSize        - the maximum number of headers kept.
+   */
+  public SecuredProfileCache(final TransportProtocol transportProtocol, final String cipheringAlgorithm, final String signatureAlgorithm,
+                             final int maximumSize) {
+    if (transportProtocol == null) {
+      throw new IllegalArgumentException("Transport protocol cannot be null");
+    }
+    if (maximumSize <= 0 || maximumSize > 1 << 24) {
+      throw new IllegalArgumentException("Maximum size must be between 1 and 2^24: " + maximumSize);
+    }
+    this.transportProtocol = transportProtocol;
+    this.cipheringAlgorithm = cipheringAlgorithm;
+    this.signatureAlgorithm = signatureAlgorithm;
+    this.maximumSize = maximumSize;
+    this.entries = new Entry[Integer.highestOneBit(maximumSize) << 2];
+  }
+
+  /**
+   * @param header - the array holding the header.
+   * @param offset - the offset of the SPI in the array.
+   * @return the profile described by the header
+   * @throws Gsm0348Exception if the header describes an inconsistent or unsupported configuration.
+   */
+  public SecuredProfile get(final byte[] header, final int offset) throws Gsm0348Exception {
+    return get(pack(header, offset));
+  }
+
+  /**
+   * @param packet - the buffer holding the header, its position is not changed.
+   * @param offset - the absolute offset of the SPI in the buffer.
+   * @return the profile described by the header
+   * @throws Gsm0348Exception if the header describes an inconsistent or unsupported configuration.
+   */
+  public SecuredProfile get(final ByteBuffer packet, final int offset) throws Gsm0348Exception {
+    return get(pack(packet, offset));
+  }
+
+  /**
+   * @param header - the header packed by {@linkplain #pack(byte[], int)}.
+   * @return the profile described by the header
+   * @throws Gsm0348Exception if the header describes an inconsistent or unsupported configuration.
+   */
+  public SecuredProfile get(final long header) throws Gsm0348Exception {
+    if (header >>> (HEADER_SIZE * 8) != 0) {
+      throw new IllegalArgumentException("Not a packed header: " + Long.toHexString(header));
+    }
+    final Entry entry = find(header);
+    if (entry != null) {
+      return entry.profile;
+    }
+    final SecuredProfile profile = compile(header);
+    synchronized (this) {
+      final Entry other = find(header);
+      if (other != null) {
+        return other.profile;
+      }
+      if (size < maximumSize) {
+        insert(new Entry(header, profile));
+        size++;
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * @return the number of headers kept
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  public TransportProtocol getTransportProtocol() {
+    return transportProtocol;
+  }
+
+  /**
+   * Packs the SPI, KIC, KID and TAR octets of a header in the lower 56 bits of a {@code long}, the first SPI octet highest.
+   *
+   * @param header - the array holding the header.
+   * @param offset - the offset of the SPI in the array.
+   * @return the packed header
+   */
+  public static long pack(final byte[] header, final int offset) {
+    if (header == null || offset < 0 || header.length - offset < HEADER_SIZE) {
+      throw new IllegalArgumentException("The header array does not hold " + HEADER_SIZE + " octets at offset " + offset);
+    }
+    long packed = 0;
+    for (int i = 0; i < HEADER_SIZE; i++) {
+      packed = packed << 8 | (header[offset + i] & 0xff);
+    }
+    return packed;
+  }
+
+  /**
+   * @param packet - the buffer holding the header, its position is not changed.
+   * @param offset - the absolute offset of the SPI in the buffer.
+   * @return the packed header
+   * @see #pack(byte[], int)
+   */
+  public static long pack(final ByteBuffer packet, final int offset) {
+    if (packet == null || offset < 0 || packet.limit() - offset < HEADER_SIZE) {
+      throw new IllegalArgumentException("The buffer does not hold " + HEADER_SIZE + " octets at offset " + offset);
+    }
+    // SPI, KIC and KID in one int, TAR in the following three octets
+    return (packet.getInt(offset) & 0xffffffffL) << 24 | (packet.get(offset + 4) & 0xff) << 16 | (packet.get(offset + 5) & 0xff) << 8
+        | (packet.get(offset + 6) & 0xff);
+  }
+
+  @Override
+  public String toString() {
+    return "SecuredProfileCache [transportProtocol=" + transportProtocol + ", size=" + size() + ", maximumSize=" + maximumSize + "]";
+  }
+
+  private SecuredProfile compile(final long header) throws Gsm0348Exception {
+    final byte[] octets = new byte[HEADER_SIZE];
+    for (int i = HEADER_SIZE - 1; i >= 0; i--) {
+      octets[i] = (byte) (header >>> (8 * (HEADER_SIZE - 1 - i)));
+    }
+    final CardProfile cardProfile = CardProfileCoder.encode(octets);
+    cardProfile.setTransportProtocol(transportProtocol);
+    if (cipheringAlgorithm != null) {
+      cardProfile.setCipheringAlgorithm(cipheringAlgorithm);
+    }
+    if (signatureAlgorithm != null) {
+      cardProfile.setSignatureAlgorithm(signatureAlgorithm);
+    }
+    return SecuredProfile.compile(cardProfile);
+  }
+
+  /**
+   * Lock free lookup. The entries are immutable objects with final fields, so a reader sees either no entry or a complete one; an entry
+   * inserted concurrently and not seen yet is found again under the lock.
+   */
+  private Entry find(final long header) {
+    final int mask = entries.length - 1;
+    int bucket = (int) hash(header) & mask;
+    Entry entry;
+    while ((entry = entries[bucket]) != null) {
+      if (entry.header == header) {
+        return entry;
+      }
+      bucket = (bucket + 1) & mask;
+    }
+    return null;
+  }
+
+  private void insert(final Entry entry) {
+    final int mask = entries.length - 1;
+    int bucket = (int) hash(entry.header) & mask;
+    while (entries[bucket] != null) {
+      bucket = (bucket + 1) & mask;
+    }
+    entries[bucket] = entry;
+  }
+
+  private static long hash(final long header) {
+    long hash = header * 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    return hash ^ (hash >>> 33);
+  }
+
+  private static final class Entry {
+    private final long header;
+    private final SecuredProfile profile;
+
+    private Entry(final long header, final SecuredProfile profile) {
+      this.header = header;
+      this.profile = profile;
+    }
+  }
+}
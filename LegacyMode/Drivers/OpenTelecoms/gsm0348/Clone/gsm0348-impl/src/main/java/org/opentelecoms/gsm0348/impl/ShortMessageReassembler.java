@@ -0,0 +1,309 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+
+/**
+ * Reassembles the secured packets received in concatenated short messages, e.g. proofs of receipt or commands to a simulated card. Each
+ * message is added with its user data, from the user data header; once all the messages of a packet are received, the packet is returned
+ * in one buffer, ready for {@linkplain ImmutablePacketBuilder#recoverCommandPacket(ByteBuffer, byte[], byte[], CommandPacketView)},
+ * {@linkplain ImmutablePacketBuilder#recoverResponsePacket(ByteBuffer, byte[], byte[], ResponsePacketView)} or a
+ * {@linkplain PacketDispatcher}. A message without user data header, or without concatenation element, is returned at once.
+ * <p>
+ * The partial packets are kept per source and concatenation reference, 8-bit and 16-bit references apart. Each message is copied once, into the slot of its sequence number
+ * in the array of its packet, and the slots are closed up in place when the packet is complete. Partial packets not completed within the
+ * timeout are dropped, and when the table holds its maximum number of packets or octets the oldest partial packets are dropped first, so
+ * lost messages never make the table grow. Instances are thread-safe.
+ */
+public final class ShortMessageReassembler {
+
+  private static final int IEI_CONCATENATED_8_BIT = 0x00;
+  private static final int IEI_CONCATENATED_16_BIT = 0x08;
+
+  private final int maximumPackets;
+  private final long maximumOctets;
+  private final long timeoutMillis;
+  // Insertion ordered, so the oldest partial packets come first
+  private final Map<Key, Partial> partials = new LinkedHashMap<>();
+  private long octets;
+  private long expiredCount;
+  private long droppedCount;
+
+  /**
+   * @param maximumPackets - the maximum number of partial packets kept.
+   * @param maximumOctets  - the maximum number of octets held by the partial packets.
+   * @param timeoutMillis  - the time after its first message a partial packet is dropped, in milliseconds.
+   */
+  public ShortMessageReassembler(final int maximumPackets, final long maximumOctets, final long timeoutMillis) {
+    if (maximumPackets <= 0) {
+      throw new IllegalArgumentException("Maximum packets must be positive: " + maximumPackets);
+    }
+    if (maximumOctets < 255 * ImmutablePacketBuilder.SMS_USER_DATA_SIZE) {
+      throw new IllegalArgumentException("Maximum octets cannot hold the longest packet: " + maximumOctets);
+    }
+    if (timeoutMillis <= 0) {
+      throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+    }
+    this.maximumPackets = maximumPackets;
+    this.maximumOctets = maximumOctets;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  /**
+   * Adds a received short message.
+   *
+   * @param source   - the identity of the sender, e.g. its packed MSISDN or ICCID.
+   * @param userData - the user data of the message, user data header included, from the position to the limit of the buffer. The buffer
+   *                 is not changed and can be reused once the method returns.
+   * @return the packet, if the message completes it or is not concatenated, null otherwise
+   * @throws Gsm0348Exception if the user data header is malformed.
+   */
+  public ByteBuffer add(final long source, final ByteBuffer userData) throws Gsm0348Exception {
+    return add(source, userData, true, System.currentTimeMillis());
+  }
+
+  /**
+   * Adds a received short message, with or without user data header.
+   *
+   * @param source          - the identity of the sender, e.g. its packed MSISDN or ICCID.
+   * @param userData        - the user data of the message, from the position to the limit of the buffer. The buffer is not changed and
+   *                        can be reused once the method returns.
+   * @param headerIndicator - the user data header indicator (TP-UDHI) of the message. Without header, the user data is the whole packet.
+   * @return the packet, if the message completes it or is not concatenated, null otherwise
+   * @throws Gsm0348Exception if the user data header is malformed.
+   * @see #add(long, ByteBuffer)
+   */
+  public ByteBuffer add(final long source, final ByteBuffer userData, final boolean headerIndicator) throws Gsm0348Exception {
+    return add(source, userData, headerIndicator, System.currentTimeMillis());
+  }
+
+  ByteBuffer add(final long source, final ByteBuffer userData, final long now) throws Gsm0348Exception {
+    return add(source, userData, true, now);
+  }
+
+  ByteBuffer add(final long source, final ByteBuffer userData, final boolean headerIndicator, final long now) throws Gsm0348Exception {
+    if (userData == null) {
+      throw new IllegalArgumentException("User data cannot be null");
+    }
+    final int start = userData.position();
+    final int end = userData.limit();
+    if (!headerIndicator) {
+      final ByteBuffer packet = ByteBuffer.allocate(end - start);
+      copy(userData, start, packet.array(), 0, end - start);
+      return packet;
+    }
+    if (end - start < 1 || (userData.get(start) & 0xff) + 1 > end - start) {
+      throw new Gsm0348Exception("User data header longer than the user data");
+    }
+    final int payloadStart = start + 1 + (userData.get(start) & 0xff);
+    if (end - start > ImmutablePacketBuilder.SMS_USER_DATA_SIZE) {
+      throw new Gsm0348Exception("User data longer than " + ImmutablePacketBuilder.SMS_USER_DATA_SIZE + " octets: " + (end - start));
+    }
+
+    // Look for the concatenation element, the other elements (e.g. the command or response packet identifier) are skipped
+    int reference = -1;
+    int referenceIei = 0;
+    int count = 0;
+    int sequence = 0;
+    int position = start + 1;
+    while (position < payloadStart) {
+      if (payloadStart - position < 2 || payloadStart - position - 2 < (userData.get(position + 1) & 0xff)) {
+        throw new Gsm0348Exception("Malformed user data header");
+      }
+      final int iei = userData.get(position) & 0xff;
+      final int length = userData.get(position + 1) & 0xff;
+      if (iei == IEI_CONCATENATED_8_BIT && length == 3) {
+        reference = userData.get(position + 2) & 0xff;
+        referenceIei = iei;
+        count = userData.get(position + 3) & 0xff;
+        sequence = userData.get(position + 4) & 0xff;
+      } else if (iei == IEI_CONCATENATED_16_BIT && length == 4) {
+        reference = ((userData.get(position + 2) & 0xff) << 8) | (userData.get(position + 3) & 0xff);
+        referenceIei = iei;
+        count = userData.get(position + 4) & 0xff;
+        sequence = userData.get(position + 5) & 0xff;
+      }
+      position += 2 + length;
+    }
+
+    if (reference < 0 || count == 1) {
+      final ByteBuffer packet = ByteBuffer.allocate(end - payloadStart);
+      copy(userData, payloadStart, packet.array(), 0, end - payloadStart);
+      return packet;
+    }
+    if (count == 0 || sequence == 0 || sequence > count) {
+      throw new Gsm0348Exception("Invalid concatenation element: message " + sequence + " of " + count);
+    }
+
+    final Key key = new Key(source, referenceIei, reference);
+    Partial partial;
+    synchronized (this) {
+      expire(now);
+      partial = partials.get(key);
+      if (partial != null && partial.lengths.length != count) {
+        // The reference was reused for another packet, the first one cannot be completed any more
+        remove(key, partial);
+        droppedCount++;
+        partial = null;
+      }
+      if (partial == null) {
+        final int size = count * ImmutablePacketBuilder.SMS_USER_DATA_SIZE;
+        shed(size);
+        partial = new Partial(count, now + timeoutMillis);
+        partials.put(key, partial);
+        octets += size;
+      }
+
+      final int slot = sequence - 1;
+      if (partial.lengths[slot] < 0) {
+        partial.received++;
+      }
+      partial.lengths[slot] = end - payloadStart;
+      copy(userData, payloadStart, partial.data, slot * ImmutablePacketBuilder.SMS_USER_DATA_SIZE, end - payloadStart);
+      if (partial.received < count) {
+        return null;
+      }
+      remove(key, partial);
+    }
+    return partial.close();
+  }
+
+  /**
+   * @return the number of partial packets kept
+   */
+  public synchronized int size() {
+    return partials.size();
+  }
+
+  /**
+   * @return the number of octets held by the partial packets
+   */
+  public synchronized long getOctets() {
+    return octets;
+  }
+
+  /**
+   * @return the number of partial packets dropped because they were not completed within the timeout
+   */
+  public synchronized long getExpiredCount() {
+    return expiredCount;
+  }
+
+  /**
+   * @return the number of partial packets dropped to make room for newer ones, or because their reference was reused
+   */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /**
+   * Drops the partial packets whose timeout is over.
+   */
+  public void expire() {
+    synchronized (this) {
+      expire(System.currentTimeMillis());
+    }
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ShortMessageReassembler [size=" + partials.size() + ", octets=" + octets + ", expired=" + expiredCount + ", dropped="
+        + droppedCount + "]";
+  }
+
+  private void expire(final long now) {
+    final Iterator<Partial> iterator = partials.values().iterator();
+    while (iterator.hasNext()) {
+      final Partial partial = iterator.next();
+      if (partial.deadline > now) {
+        // The timeout is the same for all the packets, the following ones are younger
+        return;
+      }
+      iterator.remove();
+      octets -= partial.data.length;
+      expiredCount++;
+    }
+  }
+
+  private void shed(final int size) {
+    final Iterator<Partial> iterator = partials.values().iterator();
+    while (iterator.hasNext() && (partials.size() >= maximumPackets || octets + size > maximumOctets)) {
+      final Partial partial = iterator.next();
+      iterator.remove();
+      octets -= partial.data.length;
+      droppedCount++;
+    }
+  }
+
+  private void remove(final Key key, final Partial partial) {
+    partials.remove(key);
+    octets -= partial.data.length;
+  }
+
+  private static void copy(final ByteBuffer source, final int offset, final byte[] target, final int targetOffset, final int length) {
+    final ByteBuffer duplicate = source.duplicate();
+    duplicate.position(offset);
+    duplicate.get(target, targetOffset, length);
+  }
+
+  private static final class Key {
+    private final long source;
+    // The 8-bit reference 0x12 and the 16-bit reference 0x0012 are different packets
+    private final int iei;
+    private final int reference;
+
+    private Key(final long source, final int iei, final int reference) {
+      this.source = source;
+      this.iei = iei;
+      this.reference = reference;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      final Key key = (Key) other;
+      return source == key.source && iei == key.iei && reference == key.reference;
+    }
+
+    @Override
+    public int hashCode() {
+      return ((int) (source ^ (source >>> 32)) * 31 + iei) * 31 + reference;
+    }
+  }
+
+  /**
+   * The messages of a packet, each in the slot of its sequence number.
+   */
+  private static final class Partial {
+    private final byte[] data;
+    private final int[] lengths;
+    private final long deadline;
+    private int received;
+
+    private Partial(final int count, final long deadline) {
+      this.data = new byte[count * ImmutablePacketBuilder.SMS_USER_DATA_SIZE];
+      this.lengths = new int[count];
+      this.deadline = deadline;
+      Arrays.fill(lengths, -1);
+    }
+
+    /**
+     * Closes up the slots in place and returns the packet.
+     */
+    private ByteBuffer close() {
+      int length = 0;
+      for (int i = 0; i < lengths.length; i++) {
+        System.arraycopy(data, i * ImmutablePacketBuilder.SMS_USER_DATA_SIZE, data, length, lengths[i]);
+        length += lengths[i];
+      }
+      return ByteBuffer.wrap(data, 0, length).slice();
+    }
+  }
+}
@@ -0,0 +1,438 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.CommandPacketHeader;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.crypto.CipheringManager;
+import org.opentelecoms.gsm0348.impl.crypto.Mac;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds and recovers command packets whose secured data is read from and written to channels, e.g. the large RFM file system loads
+ * sent over CAT_TP or TCP_IP, whose packets can reach 16 MB. The data is signed and ciphered in chunks, so the memory used is bounded by
+ * the chunk size whatever the packet size. The packets are the same as the ones of {@linkplain ImmutablePacketBuilder}.
+ * <p>
+ * The signature of a command is placed before the data it covers, so building a signed packet reads the data twice: once to sign it and
+ * once to cipher and write it. The data is therefore read from a {@linkplain SeekableByteChannel}, e.g. a
+ * {@linkplain java.nio.channels.FileChannel}. Recovering reads the packet once, from any channel; streams can be adapted with
+ * {@linkplain java.nio.channels.Channels}.
+ * <p>
+ * Instances only hold the builder and the chunk size, and can be shared by any number of threads.
+ */
+public final class StreamingPacketBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StreamingPacketBuilder.class);
+
+  public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+  private static final int COUNTER_SIZE = 5;
+  private static final int PADDING_COUNTER_SIZE = 1;
+  // CHL / SPI / KIC / KID / TAR
+  private static final int CLEAR_HEADER_SIZE = 8;
+  // CPI and a four octets BER length at most
+  private static final int MAX_FRAMING_SIZE = 5;
+  private static final int MAX_SIGNATURE_SIZE = 16;
+  private static final int MAX_BER_PACKET_LENGTH = 0xffffff;
+  private static final int MAX_SMS_PACKET_LENGTH = 0xffff;
+
+  private final ImmutablePacketBuilder builder;
+  private final int chunkSize;
+
+  public StreamingPacketBuilder(final ImmutablePacketBuilder builder) {
+    this(builder, DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * @param builder   - the builder whose profile is used.
+   * @param chunkSize - the number of octets signed and ciphered at once, a multiple of 16 of at least 64.
+   */
+  public StreamingPacketBuilder(final ImmutablePacketBuilder builder, final int chunkSize) {
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    if (chunkSize < 64 || chunkSize % 16 != 0) {
+      throw new IllegalArgumentException("Chunk size must be a multiple of 16 of at least 64: " + chunkSize);
+    }
+    this.builder = builder;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Builds a command packet from the data between the position and the end of the channel and writes it to the packet channel. The
+   * position of the data channel is moved to its end.
+   *
+   * @param data         - the secured data.
+   * @param counter      - the counter, can be null if the profile doesn't use counters.
+   * @param cipheringKey - ciphering key. Used only if the profile ciphers commands, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the profile signs commands, otherwise can be null.
+   * @param packet       - the channel receiving the packet.
+   * @return the length of the packet
+   * @throws PacketBuilderConfigurationException if a key or the counter is missing, or the data is too long for the transport.
+   * @throws Gsm0348Exception                    in other cases.
+   * @throws IOException                         if a channel fails.
+   * @see ImmutablePacketBuilder#buildCommandPacket(byte[], byte[], byte[], byte[])
+   */
+  public long buildCommandPacket(final SeekableByteChannel data, final byte[] counter, final byte[] cipheringKey,
+                                 final byte[] signatureKey, final WritableByteChannel packet) throws Gsm0348Exception, IOException {
+    if (data == null || packet == null) {
+      throw new IllegalArgumentException("Channels cannot be null");
+    }
+    final SecuredProfile profile = builder.getSecuredProfile();
+    final boolean ciphering = profile.isCommandCiphering();
+    final boolean signing = profile.isCommandSigning();
+    if (ciphering && cipheringKey == null) {
+      throw new PacketBuilderConfigurationException("Ciphering is enabled - ciphering key must be specified");
+    }
+    if (signing && signatureKey == null) {
+      throw new PacketBuilderConfigurationException("Signing is enabled - signature key must be specified");
+    }
+    if (profile.isUsingCounter() && counter == null) {
+      throw new PacketBuilderConfigurationException("Counter is null and required by configuration");
+    }
+    if (counter != null && counter.length != COUNTER_SIZE) {
+      throw new PacketBuilderConfigurationException("Counter size mismatch. Current is " + counter.length + ", required is "
+          + COUNTER_SIZE);
+    }
+
+    final long dataStart = data.position();
+    final long available = data.size() - dataStart;
+    final int signatureLength = profile.getCommandSignatureLength();
+    final byte[] clearHeader = profile.commandHeaderClear();
+    // The padding never reaches a whole block
+    final int paddingAllowance = ciphering ? profile.getCipherBlockSize() - 1 : 0;
+    final int overhead = clearHeader.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength + paddingAllowance;
+    if (available > maxPacketLength(profile.getTransportProtocol()) - overhead) {
+      throw new PacketBuilderConfigurationException("Data of " + available + " octets is too long for "
+          + profile.getTransportProtocol());
+    }
+    final int dataLength = (int) available;
+    final int paddingCounter = profile.getCommandPaddingLength(dataLength);
+    final int length = clearHeader.length + COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength + dataLength + paddingCounter;
+
+    // Everything before the data, which is never larger than the chunk
+    final ByteBuffer header = ByteBuffer.allocate(MAX_FRAMING_SIZE + clearHeader.length + COUNTER_SIZE + PADDING_COUNTER_SIZE
+        + signatureLength);
+    ImmutablePacketBuilder.putCommandFraming(profile.getTransportProtocol(), header, length);
+    header.put(clearHeader);
+    final int cipheredOffset = header.position();
+    header.put(counter == null ? new byte[COUNTER_SIZE] : counter);
+    header.put((byte) paddingCounter);
+    final int signatureOffset = header.position();
+    header.position(signatureOffset + signatureLength);
+    header.flip();
+
+    final byte[] chunk = new byte[chunkSize];
+    final byte[] padding = new byte[paddingCounter];
+    try {
+      if (signing) {
+        final Mac mac = SignatureManager.getMac(profile.getSignatureAlgorithmName(), signatureKey);
+        if (mac.getMacSize() != signatureLength) {
+          throw new Gsm0348Exception("The generated signature length doesn't match the expected length");
+        }
+        // CPI / CPL / CHI / CHL / SPI / KIC / KID / TAR / CNTR / PCNTR / SECURED DATA WITH PADDING
+        SignatureManager.update(mac, header, 0, signatureOffset);
+        int remaining = dataLength;
+        while (remaining > 0) {
+          final int read = readFully(data, chunk, Math.min(remaining, chunkSize));
+          mac.update(chunk, 0, read);
+          remaining -= read;
+        }
+        mac.update(padding, 0, paddingCounter);
+        SignatureManager.doFinal(mac, header, signatureOffset);
+        data.position(dataStart);
+      }
+
+      final ChunkWriter writer = new ChunkWriter(packet, ciphering
+          ? CipheringManager.createCipher(profile.getCipheringAlgorithmName(), cipheringKey, Cipher.ENCRYPT_MODE) : null);
+      writeFully(packet, header.array(), 0, cipheredOffset);
+      writer.write(header.array(), cipheredOffset, header.limit() - cipheredOffset);
+      int remaining = dataLength;
+      while (remaining > 0) {
+        final int read = readFully(data, chunk, Math.min(remaining, chunkSize));
+        writer.write(chunk, 0, read);
+        remaining -= read;
+      }
+      writer.write(padding, 0, paddingCounter);
+      writer.finish();
+    } catch (GeneralSecurityException e) {
+      throw new Gsm0348Exception(e);
+    }
+    final long packetLength = cipheredOffset - clearHeader.length + (long) length;
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("Streamed {} command packet of {} octets, data {} octets", profile.getTransportProtocol(), packetLength, dataLength);
+    }
+    return packetLength;
+  }
+
+  /**
+   * Recovers a command packet read from the channel, writing its secured data without padding to the data channel. The data is written
+   * as it is deciphered, before the signature at the end of the packet can be checked: if an exception is thrown, the data written must
+   * be discarded.
+   *
+   * @param packet       - the channel holding the packet, read up to the end of the packet.
+   * @param cipheringKey - ciphering key. Used only if the command is ciphered, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the command is signed, otherwise can be null.
+   * @param data         - the channel receiving the secured data.
+   * @return the header of the packet
+   * @throws PacketBuilderConfigurationException if a key is missing.
+   * @throws Gsm0348Exception                    if the packet is malformed, truncated or its signature doesn't match.
+   * @throws IOException                         if a channel fails.
+   * @see ImmutablePacketBuilder#recoverCommandPacket(byte[], byte[], byte[])
+   */
+  public CommandPacketHeader recoverCommandPacket(final ReadableByteChannel packet, final byte[] cipheringKey, final byte[] signatureKey,
+                                                  final WritableByteChannel data) throws Gsm0348Exception, IOException {
+    if (packet == null || data == null) {
+      throw new IllegalArgumentException("Channels cannot be null");
+    }
+    final TransportProtocol transportProtocol = builder.getSecuredProfile().getTransportProtocol();
+    final ByteBuffer header = ByteBuffer.allocate(MAX_FRAMING_SIZE + CLEAR_HEADER_SIZE + COUNTER_SIZE + PADDING_COUNTER_SIZE
+        + MAX_SIGNATURE_SIZE);
+
+    // CPI and CPL, the first octet of a BER length tells the number of octets following it
+    read(packet, header, 2);
+    final boolean twoBytesLength = transportProtocol == TransportProtocol.SMS_PP || transportProtocol == TransportProtocol.SMS_CB;
+    if (!twoBytesLength) {
+      final int first = header.get(1) & 0xff;
+      if ((first & 0x80) != 0) {
+        if ((first & 0x7f) > 3) {
+          throw new Gsm0348Exception("Encoded length has too many octets");
+        }
+        read(packet, header, first & 0x7f);
+      }
+    }
+    final ByteBuffer framed = header.duplicate();
+    framed.flip();
+    final int framing = ImmutablePacketBuilder.skipFraming(transportProtocol, framed, true);
+    final int packetLength = twoBytesLength ? ImmutablePacketBuilder.getTwoBytesLength(header, 0)
+        : ImmutablePacketBuilder.getEncodedLength(header, 1);
+
+    read(packet, header, CLEAR_HEADER_SIZE);
+    final int headerLength = header.get(framing) & 0xff;
+    final int spiOffset = framing + 1;
+    final int tarOffset = spiOffset + 4;
+    final SecuredProfile profile = builder.getSecuredProfile().withCommandHeader(header.get(spiOffset), header.get(spiOffset + 1),
+        header.get(spiOffset + 2), header.get(spiOffset + 3));
+    final boolean ciphering = profile.isCommandCiphering();
+    final boolean signing = profile.isCommandSigning();
+    final int signatureLength = profile.getCommandSignatureLength();
+    if (ciphering && (cipheringKey == null || cipheringKey.length == 0)) {
+      throw new PacketBuilderConfigurationException("Ciphering is enabled - ciphering key must be specified");
+    }
+    if (signing && (signatureKey == null || signatureKey.length == 0)) {
+      throw new PacketBuilderConfigurationException("Signing is enabled - signature key must be specified");
+    }
+    if (headerLength != CLEAR_HEADER_SIZE - 1 + COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength) {
+      throw new Gsm0348Exception("Command header length " + headerLength + " doesn't match the expected "
+          + (CLEAR_HEADER_SIZE - 1 + COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength)
+          + ". It can be caused by incorrect profile(SPI value). Check SPI!");
+    }
+    final int securedLength = packetLength - CLEAR_HEADER_SIZE;
+    if (securedLength < COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength) {
+      throw new Gsm0348Exception("Packet length " + packetLength + " too small to be a command packet");
+    }
+    if (ciphering && securedLength % profile.getCipherBlockSize() != 0) {
+      throw new Gsm0348Exception("Ciphered length " + securedLength + " is not a multiple of the block size");
+    }
+
+    try {
+      final Mac mac = signing ? SignatureManager.getMac(profile.getSignatureAlgorithmName(), signatureKey) : null;
+      if (mac != null) {
+        SignatureManager.update(mac, header, 0, header.position());
+      }
+      final ChunkReader reader = new ChunkReader(header, mac, signatureLength, securedLength, ciphering, data);
+      final Cipher cipher = ciphering
+          ? CipheringManager.createCipher(profile.getCipheringAlgorithmName(), cipheringKey, Cipher.DECRYPT_MODE) : null;
+      final ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+      final byte[] output = cipher == null ? null : new byte[chunkSize + cipher.getBlockSize()];
+      int remaining = securedLength;
+      while (remaining > 0) {
+        chunk.clear();
+        chunk.limit(Math.min(remaining, chunkSize));
+        read(packet, chunk, chunk.limit());
+        remaining -= chunk.limit();
+        if (cipher == null) {
+          reader.read(chunk.array(), 0, chunk.limit());
+        } else {
+          reader.read(output, 0, cipher.update(chunk.array(), 0, chunk.limit(), output, 0));
+        }
+      }
+      if (cipher != null) {
+        reader.read(output, 0, cipher.doFinal(output, 0));
+      }
+      reader.finish();
+
+      final CommandPacketView view = new CommandPacketView();
+      final int counterOffset = tarOffset + 3;
+      view.set(header, 0, header.position(), tarOffset, counterOffset, reader.paddingCounter, counterOffset + COUNTER_SIZE
+          + PADDING_COUNTER_SIZE, signatureLength, header.position(), 0);
+      view.setSPIOffset(spiOffset);
+      return view.toCommandPacket().getHeader();
+    } catch (GeneralSecurityException e) {
+      throw new Gsm0348Exception(e);
+    }
+  }
+
+  public ImmutablePacketBuilder getBuilder() {
+    return builder;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  private static int maxPacketLength(final TransportProtocol transportProtocol) {
+    return transportProtocol == TransportProtocol.SMS_PP || transportProtocol == TransportProtocol.SMS_CB ? MAX_SMS_PACKET_LENGTH
+        : MAX_BER_PACKET_LENGTH;
+  }
+
+  private static int readFully(final SeekableByteChannel channel, final byte[] target, final int length) throws IOException,
+      Gsm0348Exception {
+    final ByteBuffer buffer = ByteBuffer.wrap(target, 0, length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new Gsm0348Exception("Data channel ended before the end of the data");
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Reads octets at the position of the buffer, moving it after them.
+   */
+  private static void read(final ReadableByteChannel channel, final ByteBuffer buffer, final int length) throws IOException,
+      Gsm0348Exception {
+    final int limit = buffer.limit();
+    buffer.limit(buffer.position() + length);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new Gsm0348Exception("Packet channel ended before the end of the packet");
+      }
+    }
+    buffer.limit(Math.max(limit, buffer.position()));
+  }
+
+  private static void writeFully(final WritableByteChannel channel, final byte[] source, final int offset, final int length)
+      throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(source, offset, length);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Writes the ciphered part of a packet, ciphering it if needed.
+   */
+  private final class ChunkWriter {
+    private final WritableByteChannel channel;
+    private final Cipher cipher;
+    private final byte[] output;
+
+    private ChunkWriter(final WritableByteChannel channel, final Cipher cipher) {
+      this.channel = channel;
+      this.cipher = cipher;
+      this.output = cipher == null ? null : new byte[chunkSize + cipher.getBlockSize()];
+    }
+
+    private void write(final byte[] input, final int offset, final int length) throws GeneralSecurityException, IOException {
+      if (cipher == null) {
+        writeFully(channel, input, offset, length);
+      } else {
+        writeFully(channel, output, 0, cipher.update(input, offset, length, output, 0));
+      }
+    }
+
+    private void finish() throws GeneralSecurityException, IOException {
+      if (cipher != null) {
+        writeFully(channel, output, 0, cipher.doFinal(output, 0));
+      }
+    }
+  }
+
+  /**
+   * Takes the deciphered part of a packet: the counter, padding counter and signature go to the header, the data goes to the MAC and,
+   * without its padding, to the data channel.
+   */
+  private static final class ChunkReader {
+    private final ByteBuffer header;
+    private final Mac mac;
+    private final int prefixLength;
+    private final int securedLength;
+    private final boolean ciphering;
+    private final WritableByteChannel channel;
+    private final int signatureOffset;
+    private int position;
+    private int paddingCounter;
+    private int dataLength;
+
+    private ChunkReader(final ByteBuffer header, final Mac mac, final int signatureLength, final int securedLength,
+                        final boolean ciphering, final WritableByteChannel channel) {
+      this.header = header;
+      this.mac = mac;
+      this.prefixLength = COUNTER_SIZE + PADDING_COUNTER_SIZE + signatureLength;
+      this.securedLength = securedLength;
+      this.ciphering = ciphering;
+      this.channel = channel;
+      this.signatureOffset = header.position() + COUNTER_SIZE + PADDING_COUNTER_SIZE;
+    }
+
+    private void read(final byte[] input, final int offset, final int length) throws IOException, Gsm0348Exception {
+      int from = offset;
+      int remaining = length;
+      if (position < prefixLength && remaining > 0) {
+        final int count = Math.min(remaining, prefixLength - position);
+        header.put(input, from, count);
+        if (mac != null && position < COUNTER_SIZE + PADDING_COUNTER_SIZE) {
+          mac.update(input, from, Math.min(count, COUNTER_SIZE + PADDING_COUNTER_SIZE - position));
+        }
+        position += count;
+        from += count;
+        remaining -= count;
+        if (position == prefixLength) {
+          startData();
+        }
+      }
+      if (remaining > 0) {
+        if (mac != null) {
+          mac.update(input, from, remaining);
+        }
+        final int written = position - prefixLength;
+        final int count = Math.max(0, Math.min(remaining, dataLength - written));
+        writeFully(channel, input, from, count);
+        position += remaining;
+      }
+    }
+
+    private void startData() throws Gsm0348Exception {
+      paddingCounter = header.get(signatureOffset - 1) & 0xff;
+      if (!ciphering && paddingCounter != 0) {
+        throw new Gsm0348Exception(
+            "Command packet ciphering is off but padding counter is not 0. So it can be corrupted packet or configuration doesn't match provided data");
+      }
+      if (paddingCounter > securedLength - prefixLength) {
+        throw new Gsm0348Exception("Padding counter " + paddingCounter + " exceeds the data length " + (securedLength - prefixLength));
+      }
+      dataLength = securedLength - prefixLength - paddingCounter;
+    }
+
+    private void finish() throws Gsm0348Exception {
+      if (position != securedLength) {
+        throw new Gsm0348Exception("Deciphered data returned not enough data");
+      }
+      if (mac != null && !SignatureManager.verify(mac, header, signatureOffset)) {
+        throw new Gsm0348Exception("Signatures don't match");
+      }
+    }
+  }
+}
@@ -2,6 +2,7 @@ package org.opentelecoms.gsm0348.impl.coders;
 
 import java.nio.ByteBuffer;
 
+import org.opentelecoms.gsm0348.api.LazyHex;
 import org.opentelecoms.gsm0348.api.Util;
 import org.opentelecoms.gsm0348.api.model.CardProfile;
 import org.opentelecoms.gsm0348.api.model.CertificationMode;
@@ -23,6 +24,7 @@ public class CardProfileCoder {
   private static final Logger LOGGER = LoggerFactory.getLogger(CardProfileCoder.class);
 
   private static final int TAR_SIZE = 3;
+  private static final int HEADER_SIZE = 7;
 
   /**
    * Build {@linkplain CardProfile} from row byte array
@@ -38,7 +40,7 @@ public class CardProfileCoder {
       throw new NullPointerException();
     }
 
-    if (datarow.length < 7) {
+    if (datarow.length < HEADER_SIZE) {
       throw new CodingException("Incorrect header size");
     }
 
@@ -49,7 +51,7 @@ public class CardProfileCoder {
     SPI spi = new SPI();
     spi.setCommandSPI(CommandSPICoder.encode(data.get()));
     spi.setResponseSPI(ResponseSPICoder.encode(data.get()));
-    LOGGER.debug("SPI: {}", spi.toString());
+    LOGGER.debug("SPI: {}", spi);
 
     KIC kic = KICCoder.encode(data.get());
     LOGGER.debug("KIC: {}", kic);
@@ -60,7 +62,7 @@ public class CardProfileCoder {
     data.get(tar);
     newCardProfile.setTAR(tar);
 
-    LOGGER.debug("TAR: {}", Util.toHexArray(tar));
+    LOGGER.debug("TAR: {}", LazyHex.array(tar));
 
     newCardProfile.setSPI(spi);
     newCardProfile.setKIC(kic);
@@ -154,31 +156,48 @@ public class CardProfileCoder {
    * @throws CodingException      if configuration is in inconsistent state.
    */
   public static byte[] decode(CardProfile profile) throws CodingException {
+    final byte[] header = new byte[HEADER_SIZE];
+    decode(profile, header, 0);
+    return header;
+  }
+
+  /**
+   * Writes the SPI, KIC, KID and TAR of a {@linkplain CardProfile} into an array, e.g. a packet being built.
+   *
+   * @param profile - a card profile {@linkplain CardProfile}.
+   * @param header  - the array to write the 7 octets into.
+   * @param offset  - the offset of the SPI in the array.
+   * @throws CodingException if configuration is in inconsistent state.
+   */
+  public static void decode(CardProfile profile, byte[] header, int offset) throws CodingException {
 
     if (profile == null) {
       throw new IllegalArgumentException("The profile argument cannot be null");
     }
+    if (header == null || offset < 0 || header.length - offset < HEADER_SIZE) {
+      throw new IllegalArgumentException("The header array cannot hold " + HEADER_SIZE + " octets at offset " + offset);
+    }
 
-    ByteBuffer header = ByteBuffer.allocate(7);
-
-    byte commandSpi = CommandSPICoder.decode(profile.getSPI().getCommandSPI());
-    header.put(commandSpi);
-    byte responseSpi = ResponseSPICoder.decode(profile.getSPI().getResponseSPI());
-    header.put(ResponseSPICoder.decode(profile.getSPI().getResponseSPI()));
-    LOGGER.debug("SPI: {}", String.format("%1$#x %2$#x", commandSpi, responseSpi));
-
-    byte kic = KICCoder.decode(profile.getKIC());
-    header.put(kic);
-    LOGGER.debug("KIC: {}", Util.toHex(kic));
-
-    byte kid = KIDCoder.decode(profile.getKID());
-    header.put(kid);
-    LOGGER.debug("KID: {}", Util.toHex(kid));
-
-    byte[] tar = profile.getTAR();
-    header.put(tar);
-    LOGGER.debug("TAR: {}", Util.toHexArray(tar));
+    final byte commandSpi = CommandSPICoder.decode(profile.getSPI().getCommandSPI());
+    final byte responseSpi = ResponseSPICoder.decode(profile.getSPI().getResponseSPI());
+    final byte kic = KICCoder.decode(profile.getKIC());
+    final byte kid = KIDCoder.decode(profile.getKID());
+    final byte[] tar = profile.getTAR();
+    if (tar == null || tar.length != TAR_SIZE) {
+      throw new CodingException("TAR value null or not a 3 bytes array");
+    }
 
-    return header.array();
+    header[offset] = commandSpi;
+    header[offset + 1] = responseSpi;
+    header[offset + 2] = kic;
+    header[offset + 3] = kid;
+    System.arraycopy(tar, 0, header, offset + 4, TAR_SIZE);
+
+    if (LOGGER.isDebugEnabled()) {
+      LOGGER.debug("SPI: {}", String.format("%1$#x %2$#x", commandSpi, responseSpi));
+      LOGGER.debug("KIC: {}", Util.toHex(kic));
+      LOGGER.debug("KID: {}", Util.toHex(kid));
+      LOGGER.debug("TAR: {}", LazyHex.array(tar));
+    }
   }
 }
@@ -0,0 +1,355 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.PacketMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@linkplain PacketMetrics} keeping a latency histogram and a failure count per phase, transport protocol and algorithm, and a count per
+ * response status and transport protocol. The counters and the log-linear buckets of the histograms are striped over the threads, so
+ * recording neither locks nor allocates once a combination has been seen, and seldom contends.
+ * <p>
+ * Once {@linkplain #register(MBeanServer) registered}, each combination is exposed as a {@linkplain PhaseMetricsMXBean}, named e.g.
+ * {@code org.opentelecoms.gsm0348:type=PacketMetrics,name=default,phase=SIGNING,transport=SMS_PP,algorithm="DESEDEMAC64"}, and each
+ * transport protocol with responses as a {@linkplain ResponseStatusMetricsMXBean}.
+ * <p>
+ * Instances are thread-safe, a single instance can be shared by all the builders of an application.
+ */
+public class DefaultPacketMetrics implements PacketMetrics {
+
+  /**
+   * The JMX domain of the MBeans.
+   */
+  public static final String DOMAIN = "org.opentelecoms.gsm0348";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(DefaultPacketMetrics.class);
+  private static final TransportProtocol[] TRANSPORT_PROTOCOLS = TransportProtocol.values();
+  private static final ResponsePacketStatus[] RESPONSE_STATUSES = ResponsePacketStatus.values();
+  // Key of the phases without algorithm, ConcurrentHashMap doesn't take null keys
+  private static final String NO_ALGORITHM = "";
+
+  private final String name;
+  // One map per phase and transport protocol, keyed by algorithm
+  private final List<ConcurrentMap<String, PhaseMetrics>> phases;
+  private final AtomicReferenceArray<StatusMetrics> statuses = new AtomicReferenceArray<>(TRANSPORT_PROTOCOLS.length);
+  private MBeanServer server;
+
+  public DefaultPacketMetrics() {
+    this("default");
+  }
+
+  /**
+   * @param name - the name of the metrics in the JMX object names, to tell the metrics of several builders apart.
+   */
+  public DefaultPacketMetrics(final String name) {
+    if (name == null || name.isEmpty()) {
+      throw new IllegalArgumentException("Name cannot be null or empty");
+    }
+    this.name = name;
+    final int count = Phase.values().length * TRANSPORT_PROTOCOLS.length;
+    final List<ConcurrentMap<String, PhaseMetrics>> maps = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      maps.add(new ConcurrentHashMap<String, PhaseMetrics>(4));
+    }
+    this.phases = Collections.unmodifiableList(maps);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public void phaseCompleted(final Phase phase, final TransportProtocol transportProtocol, final String algorithm, final long nanos) {
+    phase(phase, transportProtocol, algorithm).histogram.record(nanos);
+  }
+
+  @Override
+  public void phaseFailed(final Phase phase, final TransportProtocol transportProtocol, final String algorithm) {
+    phase(phase, transportProtocol, algorithm).failures.increment();
+  }
+
+  @Override
+  public void responseStatus(final TransportProtocol transportProtocol, final ResponsePacketStatus status) {
+    statuses(transportProtocol).counts[status.ordinal()].increment();
+  }
+
+  /**
+   * @param phase             - the phase.
+   * @param transportProtocol - the transport protocol.
+   * @param algorithm         - the algorithm name, null for {@linkplain Phase#HEADER}.
+   * @return the metrics of the combination, null if it was never seen
+   */
+  public PhaseMetricsMXBean getPhaseMetrics(final Phase phase, final TransportProtocol transportProtocol, final String algorithm) {
+    return phases(phase, transportProtocol).get(algorithm == null ? NO_ALGORITHM : algorithm);
+  }
+
+  /**
+   * @return the metrics of all the combinations seen so far
+   */
+  public List<PhaseMetricsMXBean> getPhaseMetrics() {
+    final List<PhaseMetricsMXBean> result = new ArrayList<>();
+    for (final ConcurrentMap<String, PhaseMetrics> map : phases) {
+      result.addAll(map.values());
+    }
+    return result;
+  }
+
+  /**
+   * @param transportProtocol - the transport protocol.
+   * @return the response status counts of the transport protocol, null if it never had a response
+   */
+  public ResponseStatusMetricsMXBean getResponseStatusMetrics(final TransportProtocol transportProtocol) {
+    return statuses.get(transportProtocol.ordinal());
+  }
+
+  /**
+   * Registers the MBeans of the combinations seen so far, and of the ones seen later as they appear.
+   *
+   * @param server - the MBean server, e.g. {@linkplain java.lang.management.ManagementFactory#getPlatformMBeanServer()}.
+   * @throws JMException if an MBean cannot be registered, e.g. because metrics with the same name are already registered.
+   */
+  public synchronized void register(final MBeanServer server) throws JMException {
+    if (server == null) {
+      throw new IllegalArgumentException("MBean server cannot be null");
+    }
+    if (this.server != null) {
+      throw new IllegalStateException("Already registered");
+    }
+    this.server = server;
+    for (final PhaseMetricsMXBean metrics : getPhaseMetrics()) {
+      registerMBean(metrics, ((PhaseMetrics) metrics).objectName);
+    }
+    for (int i = 0; i < statuses.length(); i++) {
+      final StatusMetrics metrics = statuses.get(i);
+      if (metrics != null) {
+        registerMBean(metrics, metrics.objectName);
+      }
+    }
+  }
+
+  /**
+   * Unregisters the MBeans. The metrics keep being recorded.
+   *
+   * @throws JMException if an MBean cannot be unregistered.
+   */
+  public synchronized void unregister() throws JMException {
+    if (server == null) {
+      return;
+    }
+    final MBeanServer registered = server;
+    server = null;
+    for (final PhaseMetricsMXBean metrics : getPhaseMetrics()) {
+      unregisterMBean(registered, ((PhaseMetrics) metrics).objectName);
+    }
+    for (int i = 0; i < statuses.length(); i++) {
+      final StatusMetrics metrics = statuses.get(i);
+      if (metrics != null) {
+        unregisterMBean(registered, metrics.objectName);
+      }
+    }
+  }
+
+  private PhaseMetrics phase(final Phase phase, final TransportProtocol transportProtocol, final String algorithm) {
+    final ConcurrentMap<String, PhaseMetrics> map = phases(phase, transportProtocol);
+    final String key = (algorithm == null) ? NO_ALGORITHM : algorithm;
+    PhaseMetrics metrics = map.get(key);
+    if (metrics == null) {
+      final PhaseMetrics created = new PhaseMetrics(phase, transportProtocol, algorithm, objectName(phase, transportProtocol, algorithm));
+      metrics = map.putIfAbsent(key, created);
+      if (metrics == null) {
+        metrics = created;
+        added(created, created.objectName);
+      }
+    }
+    return metrics;
+  }
+
+  private ConcurrentMap<String, PhaseMetrics> phases(final Phase phase, final TransportProtocol transportProtocol) {
+    return phases.get(phase.ordinal() * TRANSPORT_PROTOCOLS.length + transportProtocol.ordinal());
+  }
+
+  private StatusMetrics statuses(final TransportProtocol transportProtocol) {
+    StatusMetrics metrics = statuses.get(transportProtocol.ordinal());
+    if (metrics == null) {
+      final StatusMetrics created = new StatusMetrics(transportProtocol, objectName(null, transportProtocol, null));
+      if (statuses.compareAndSet(transportProtocol.ordinal(), null, created)) {
+        added(created, created.objectName);
+      }
+      metrics = statuses.get(transportProtocol.ordinal());
+    }
+    return metrics;
+  }
+
+  private synchronized void added(final Object metrics, final ObjectName objectName) {
+    if (server == null) {
+      return;
+    }
+    try {
+      registerMBean(metrics, objectName);
+    } catch (JMException e) {
+      LOGGER.warn("Could not register the MBean {}", objectName, e);
+    }
+  }
+
+  private void registerMBean(final Object metrics, final ObjectName objectName) throws JMException {
+    // A combination seen while register() runs is registered by whichever thread comes first
+    if (!server.isRegistered(objectName)) {
+      server.registerMBean(metrics, objectName);
+    }
+  }
+
+  private static void unregisterMBean(final MBeanServer server, final ObjectName objectName) throws JMException {
+    if (server.isRegistered(objectName)) {
+      server.unregisterMBean(objectName);
+    }
+  }
+
+  private ObjectName objectName(final Phase phase, final TransportProtocol transportProtocol, final String algorithm) {
+    final StringBuilder sb = new StringBuilder(DOMAIN).append(":type=").append(phase == null ? "ResponseStatus" : "PacketMetrics");
+    sb.append(",name=").append(ObjectName.quote(name));
+    if (phase != null) {
+      sb.append(",phase=").append(phase);
+    }
+    sb.append(",transport=").append(transportProtocol);
+    if (algorithm != null) {
+      sb.append(",algorithm=").append(ObjectName.quote(algorithm));
+    }
+    try {
+      return new ObjectName(sb.toString());
+    } catch (MalformedObjectNameException e) {
+      throw new IllegalArgumentException("Invalid object name " + sb, e);
+    }
+  }
+
+  private static final class PhaseMetrics implements PhaseMetricsMXBean {
+    private final Phase phase;
+    private final TransportProtocol transportProtocol;
+    private final String algorithm;
+    private final ObjectName objectName;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final StripedCounter failures = new StripedCounter();
+
+    private PhaseMetrics(final Phase phase, final TransportProtocol transportProtocol, final String algorithm,
+                         final ObjectName objectName) {
+      this.phase = phase;
+      this.transportProtocol = transportProtocol;
+      this.algorithm = algorithm;
+      this.objectName = objectName;
+    }
+
+    @Override
+    public String getPhase() {
+      return phase.name();
+    }
+
+    @Override
+    public String getTransportProtocol() {
+      return transportProtocol.name();
+    }
+
+    @Override
+    public String getAlgorithm() {
+      return algorithm;
+    }
+
+    @Override
+    public long getCount() {
+      return histogram.getCount();
+    }
+
+    @Override
+    public long getFailures() {
+      return failures.sum();
+    }
+
+    @Override
+    public double getMeanNanos() {
+      return histogram.getMean();
+    }
+
+    @Override
+    public long getMedianNanos() {
+      return histogram.getPercentile(50);
+    }
+
+    @Override
+    public long get90thPercentileNanos() {
+      return histogram.getPercentile(90);
+    }
+
+    @Override
+    public long get99thPercentileNanos() {
+      return histogram.getPercentile(99);
+    }
+
+    @Override
+    public long get999thPercentileNanos() {
+      return histogram.getPercentile(99.9);
+    }
+
+    @Override
+    public long getMaxNanos() {
+      return histogram.getMax();
+    }
+
+    @Override
+    public void reset() {
+      histogram.reset();
+      failures.reset();
+    }
+  }
+
+  private static final class StatusMetrics implements ResponseStatusMetricsMXBean {
+    private final TransportProtocol transportProtocol;
+    private final ObjectName objectName;
+    private final StripedCounter[] counts = new StripedCounter[RESPONSE_STATUSES.length];
+
+    private StatusMetrics(final TransportProtocol transportProtocol, final ObjectName objectName) {
+      this.transportProtocol = transportProtocol;
+      this.objectName = objectName;
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new StripedCounter();
+      }
+    }
+
+    @Override
+    public String getTransportProtocol() {
+      return transportProtocol.name();
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+      final Map<String, Long> result = new LinkedHashMap<>();
+      for (int i = 0; i < counts.length; i++) {
+        final long count = counts[i].sum();
+        if (count > 0) {
+          result.put(RESPONSE_STATUSES[i].name(), count);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public void reset() {
+      for (final StripedCounter count : counts) {
+        count.reset();
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent histogram of durations in nanoseconds with log-linear buckets: exact below 16, then 8 buckets per power of two, so a
+ * percentile is at most 12.5% above the recorded value.
+ * <p>
+ * The buckets are striped as in {@linkplain StripedCounter}: each stripe has its own copy of the buckets, of the total and of the maximum,
+ * picked by thread and padded from the other stripes, so threads recording at the same time rarely update the same cache line. The
+ * stripes are only summed when the histogram is read, without a snapshot, so the statistics of a histogram recorded into while it is read
+ * are approximate. A stripe takes about 4 kB.
+ * <p>
+ * Used by {@linkplain DefaultPacketMetrics} per phase, and by tools measuring their own latencies.
+ */
+public final class LatencyHistogram {
+
+  private static final int SUB_BUCKETS = 8;
+  private static final int LINEAR = 2 * SUB_BUCKETS;
+  private static final int BUCKETS = LINEAR + (64 - 4) * SUB_BUCKETS;
+
+  // Stripe: buckets / total / maximum, then a padding keeping the stripe off the cache lines of the next one
+  private static final int TOTAL = BUCKETS;
+  private static final int MAX = BUCKETS + 1;
+  private static final int STRIPE_SIZE = BUCKETS + 2 + StripedCounter.PADDING;
+
+  private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * STRIPE_SIZE);
+
+  public void record(final long value) {
+    final long nanos = Math.max(0, value);
+    final int stripe = StripedCounter.stripe() * STRIPE_SIZE;
+    cells.incrementAndGet(stripe + index(nanos));
+    cells.addAndGet(stripe + TOTAL, nanos);
+    long current = cells.get(stripe + MAX);
+    while (nanos > current && !cells.compareAndSet(stripe + MAX, current, nanos)) {
+      current = cells.get(stripe + MAX);
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int stripe = 0; stripe < cells.length(); stripe += STRIPE_SIZE) {
+      for (int i = 0; i < BUCKETS; i++) {
+        count += cells.get(stripe + i);
+      }
+    }
+    return count;
+  }
+
+  public long getMax() {
+    long max = 0;
+    for (int stripe = 0; stripe < cells.length(); stripe += STRIPE_SIZE) {
+      max = Math.max(max, cells.get(stripe + MAX));
+    }
+    return max;
+  }
+
+  public double getMean() {
+    final long n = getCount();
+    if (n == 0) {
+      return 0;
+    }
+    long total = 0;
+    for (int stripe = 0; stripe < cells.length(); stripe += STRIPE_SIZE) {
+      total += cells.get(stripe + TOTAL);
+    }
+    return (double) total / n;
+  }
+
+  /**
+   * @return the upper bound of the bucket holding the percentile, at most the largest value recorded
+   */
+  public long getPercentile(final double percentile) {
+    final long[] counts = new long[BUCKETS];
+    long n = 0;
+    for (int stripe = 0; stripe < cells.length(); stripe += STRIPE_SIZE) {
+      for (int i = 0; i < BUCKETS; i++) {
+        final long count = cells.get(stripe + i);
+        counts[i] += count;
+        n += count;
+      }
+    }
+    if (n == 0) {
+      return 0;
+    }
+    final long highest = getMax();
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(highest, upperBound(i));
+      }
+    }
+    return highest;
+  }
+
+  /**
+   * Adds the values recorded by another histogram, e.g. to merge the histograms of several threads.
+   *
+   * @param other - the histogram to add, not recorded into meanwhile.
+   */
+  public void add(final LatencyHistogram other) {
+    final int stripe = StripedCounter.stripe() * STRIPE_SIZE;
+    for (int from = 0; from < other.cells.length(); from += STRIPE_SIZE) {
+      // The buckets and the total
+      for (int i = 0; i <= TOTAL; i++) {
+        final long n = other.cells.get(from + i);
+        if (n != 0) {
+          cells.addAndGet(stripe + i, n);
+        }
+      }
+    }
+    final long otherMax = other.getMax();
+    long current = cells.get(stripe + MAX);
+    while (otherMax > current && !cells.compareAndSet(stripe + MAX, current, otherMax)) {
+      current = cells.get(stripe + MAX);
+    }
+  }
+
+  /**
+   * Resets the histogram. Values recorded while the histogram is reset may be partly lost.
+   */
+  public void reset() {
+    for (int i = 0; i < cells.length(); i++) {
+      cells.set(i, 0);
+    }
+  }
+
+  static int index(final long value) {
+    if (value < LINEAR) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    return LINEAR + (exponent - 4) * SUB_BUCKETS + (int) ((value >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+  }
+
+  static long upperBound(final int index) {
+    if (index < LINEAR) {
+      return index;
+    }
+    final int exponent = (index - LINEAR) / SUB_BUCKETS + 4;
+    final long sub = (index - LINEAR) % SUB_BUCKETS;
+    return ((SUB_BUCKETS + sub + 1) << (exponent - 3)) - 1;
+  }
+}
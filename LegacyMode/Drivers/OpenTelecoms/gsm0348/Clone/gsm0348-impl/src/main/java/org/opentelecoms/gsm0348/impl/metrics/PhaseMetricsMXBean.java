@@ -0,0 +1,39 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+/**
+ * The durations of a phase of the packets of a transport protocol and algorithm, in nanoseconds.
+ *
+ * @see DefaultPacketMetrics
+ */
+public interface PhaseMetricsMXBean {
+
+  String getPhase();
+
+  String getTransportProtocol();
+
+  /**
+   * @return the signature or ciphering algorithm name, null for the header phase
+   */
+  String getAlgorithm();
+
+  long getCount();
+
+  /**
+   * @return the number of failures of the cryptography, and of signatures that don't match
+   */
+  long getFailures();
+
+  double getMeanNanos();
+
+  long getMedianNanos();
+
+  long get90thPercentileNanos();
+
+  long get99thPercentileNanos();
+
+  long get999thPercentileNanos();
+
+  long getMaxNanos();
+
+  void reset();
+}
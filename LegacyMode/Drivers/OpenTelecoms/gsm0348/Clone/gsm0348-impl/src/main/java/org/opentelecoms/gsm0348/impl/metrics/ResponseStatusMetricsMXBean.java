@@ -0,0 +1,20 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+import java.util.Map;
+
+/**
+ * The number of response packets built and recovered per status, for a transport protocol.
+ *
+ * @see DefaultPacketMetrics
+ */
+public interface ResponseStatusMetricsMXBean {
+
+  String getTransportProtocol();
+
+  /**
+   * @return the number of responses per status name, the statuses never seen are left out
+   */
+  Map<String, Long> getCounts();
+
+  void reset();
+}
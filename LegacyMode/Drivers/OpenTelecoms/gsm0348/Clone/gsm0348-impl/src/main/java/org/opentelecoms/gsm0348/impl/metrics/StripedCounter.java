@@ -0,0 +1,63 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter spreading its updates over cells picked by thread, so that threads counting at the same time rarely update the same cache line.
+ * The cells are only summed when the counter is read.
+ */
+final class StripedCounter {
+
+  // 8 longs per cell keep the cells on different 64 octets cache lines
+  static final int PADDING = 8;
+  static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void add(final long value) {
+    cells.addAndGet(cell(), value);
+  }
+
+  void increment() {
+    cells.incrementAndGet(cell());
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  /**
+   * Resets the counter. Updates made while the counter is reset may be lost.
+   */
+  void reset() {
+    for (int i = 0; i < STRIPES; i++) {
+      cells.set(i * PADDING, 0);
+    }
+  }
+
+  private static int cell() {
+    return stripe() * PADDING;
+  }
+
+  /**
+   * @return the stripe of the current thread, 0 to {@linkplain #STRIPES} - 1
+   */
+  static int stripe() {
+    final long id = Thread.currentThread().getId();
+    // Spreads consecutive thread identifiers
+    final int hash = (int) (id * 0x9e3779b97f4a7c15L >>> 32);
+    return hash & (STRIPES - 1);
+  }
+
+  static int stripes(final int processors) {
+    int stripes = 1;
+    while (stripes < processors && stripes < 32) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
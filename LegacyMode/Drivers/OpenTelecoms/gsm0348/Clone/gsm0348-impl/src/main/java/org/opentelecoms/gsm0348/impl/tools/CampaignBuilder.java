@@ -0,0 +1,665 @@
+package org.opentelecoms.gsm0348.impl.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.DecoderException;
+import org.bouncycastle.util.encoders.Hex;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ICCIDKeyGenerator;
+import org.opentelecoms.gsm0348.impl.ICCIDKeyVault;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.SecuredProfileCache;
+import org.opentelecoms.gsm0348.impl.coders.CardProfileCoder;
+import org.opentelecoms.gsm0348.impl.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the command packets of a campaign, the same secured data for every card of a list, e.g. a RAM/RFM campaign of millions of
+ * cards. Each row of the list gives the ICCID and counter of a card and optionally its keys; the keys of the rows without keys are derived
+ * from the ICCID with {@linkplain ICCIDKeyGenerator}.
+ * <p>
+ * The rows are read in blocks, and each block is split in one slice per worker thread. As all the packets of a campaign have the same
+ * length, in {@linkplain Order#ORDERED} mode every packet has its place in the output buffer of the block and the workers build the
+ * packets in place; the buffer is written to the output file in one go while the workers build the next block. In
+ * {@linkplain Order#UNORDERED} mode each worker writes its slice as soon as it is built, so a slow slice does not hold back the others.
+ * <p>
+ * The list is either CSV ({@linkplain Format#CSV}), {@code iccid,counter[,cipheringKey,signatureKey]} with the counter and keys in hex
+ * and the keys empty to derive them, or binary ({@linkplain Format#BINARY}), the ICCID packed as by {@linkplain ICCIDKeyVault#pack}
+ * in 8 octets, the 5 counter octets, a key length octet, 0 to derive the keys, followed by the ciphering and signature keys. The output
+ * records are the four octets big-endian packet length followed by the packet, preceded in unordered mode by the 8 octets index of the
+ * row. Building time is measured per packet and reported as percentiles.
+ * <p>
+ * Run from the command line with {@code -h} for the options.
+ */
+public final class CampaignBuilder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CampaignBuilder.class);
+
+  /**
+   * The layout of the rows of a card list.
+   */
+  public enum Format {
+    CSV, BINARY
+  }
+
+  /**
+   * The order of the packets in the output.
+   */
+  public enum Order {
+    ORDERED, UNORDERED
+  }
+
+  public static final int DEFAULT_BLOCK_SIZE = 65536;
+
+  private static final int COUNTER_SIZE = 5;
+  private static final int LENGTH_SIZE = 4;
+  private static final int INDEX_SIZE = 8;
+  private static final int KEY_LENGTH = 8;
+
+  private final ImmutablePacketBuilder builder;
+  private final byte[] data;
+  private final byte[] cipheringMasterKey;
+  private final byte[] signatureMasterKey;
+  private final int threads;
+  private final int blockSize;
+  private final int packetLength;
+
+  /**
+   * @param builder            - the builder of the profile of the campaign.
+   * @param data               - the secured data of every packet, can be null.
+   * @param cipheringMasterKey - master key of the ciphering keys of the rows without keys, or null.
+   * @param signatureMasterKey - master key of the signature keys of the rows without keys, or null.
+   * @param threads            - the number of worker threads.
+   * @param blockSize          - the number of rows read and built at once.
+   */
+  public CampaignBuilder(final ImmutablePacketBuilder builder, final byte[] data, final byte[] cipheringMasterKey,
+                         final byte[] signatureMasterKey, final int threads, final int blockSize) {
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Threads must be positive: " + threads);
+    }
+    if (blockSize < threads) {
+      throw new IllegalArgumentException("Block size must be at least the number of threads: " + blockSize);
+    }
+    this.builder = builder;
+    this.data = data;
+    this.cipheringMasterKey = cipheringMasterKey;
+    this.signatureMasterKey = signatureMasterKey;
+    this.threads = threads;
+    this.blockSize = blockSize;
+    this.packetLength = builder.getSecuredProfile().getCommandPacketLength(data == null ? 0 : data.length);
+    if ((long) blockSize * (INDEX_SIZE + LENGTH_SIZE + packetLength) > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Block size is too large for packets of " + packetLength + " octets: " + blockSize);
+    }
+  }
+
+  /**
+   * Builds the packets of all the rows of a card list.
+   *
+   * @param input  - the card list.
+   * @param format - the layout of the rows.
+   * @param output - the file receiving the packets, replaced if it exists.
+   * @param order  - the order of the packets in the output.
+   * @return the statistics of the campaign
+   * @throws Gsm0348Exception     if a packet cannot be built, the message tells the index of the row.
+   * @throws IOException          if a file cannot be read or written, or a row is malformed.
+   * @throws InterruptedException if interrupted while waiting for the workers.
+   */
+  public Report build(final Path input, final Format format, final Path output, final Order order)
+      throws Gsm0348Exception, IOException, InterruptedException {
+    if (input == null || format == null || output == null || order == null) {
+      throw new IllegalArgumentException("Input, format, output and order cannot be null");
+    }
+    final long started = System.nanoTime();
+    final Worker[] workers = new Worker[threads];
+    try {
+      for (int i = 0; i < threads; i++) {
+        workers[i] = new Worker();
+      }
+    } catch (GeneralSecurityException e) {
+      throw new Gsm0348Exception("Cannot derive keys with the master keys: " + e.getMessage(), e);
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try (RowReader reader = format == Format.CSV ? new CsvReader(input) : new BinaryReader(input);
+         FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+             StandardOpenOption.WRITE)) {
+      // One block is built while the other is read and, when ordered, written
+      Block building = new Block(order);
+      Block next = new Block(order);
+      // Unordered: the next free offset of the output, each slice reserves the room of its records before writing them
+      final AtomicLong end = new AtomicLong();
+      long rows = reader.read(building, 0);
+      List<Future<?>> slices = submit(executor, building, workers, channel, end);
+      while (building.size > 0) {
+        rows += reader.read(next, rows);
+        await(slices);
+        slices = next.size > 0 ? submit(executor, next, workers, channel, end) : null;
+        if (order == Order.ORDERED) {
+          final ByteBuffer packets = building.output;
+          packets.clear().limit(building.size * (LENGTH_SIZE + packetLength));
+          while (packets.hasRemaining()) {
+            channel.write(packets);
+          }
+        }
+        final Block done = building;
+        building = next;
+        next = done;
+      }
+      final LatencyHistogram latencies = new LatencyHistogram();
+      for (final Worker worker : workers) {
+        latencies.add(worker.latencies);
+      }
+      final Report report = new Report(rows, System.nanoTime() - started, latencies);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Campaign of {} rows built into {}: {}", rows, output, report);
+      }
+      return report;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  public ImmutablePacketBuilder getBuilder() {
+    return builder;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * @return the length of every command packet of the campaign
+   */
+  public int getPacketLength() {
+    return packetLength;
+  }
+
+  private List<Future<?>> submit(final ExecutorService executor, final Block block, final Worker[] workers, final FileChannel channel,
+                                 final AtomicLong end) {
+    final List<Future<?>> slices = new ArrayList<>(threads);
+    final int slice = (block.size + threads - 1) / threads;
+    for (int i = 0; i < threads && i * slice < block.size; i++) {
+      final int number = i;
+      final int from = i * slice;
+      final int to = Math.min(from + slice, block.size);
+      slices.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Gsm0348Exception, IOException {
+          buildSlice(block, number, from, to, workers[number], channel, end);
+          return null;
+        }
+      }));
+    }
+    return slices;
+  }
+
+  private static void await(final List<Future<?>> slices) throws Gsm0348Exception, IOException, InterruptedException {
+    try {
+      for (final Future<?> slice : slices) {
+        slice.get();
+      }
+    } catch (ExecutionException e) {
+      for (final Future<?> slice : slices) {
+        slice.cancel(true);
+      }
+      final Throwable cause = e.getCause();
+      if (cause instanceof Gsm0348Exception) {
+        throw (Gsm0348Exception) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  private void buildSlice(final Block block, final int number, final int from, final int to, final Worker worker,
+                          final FileChannel channel, final AtomicLong end) throws Gsm0348Exception, IOException {
+    final boolean ordered = block.order == Order.ORDERED;
+    final ByteBuffer buffer;
+    if (ordered) {
+      buffer = block.output.duplicate();
+      buffer.position(from * (LENGTH_SIZE + packetLength));
+    } else {
+      buffer = block.outputs[number];
+      buffer.clear();
+    }
+    final boolean cipheringDerived = worker.derive(worker.cipheringDeriver, block, from, to, block.cipheringKeys, block.cipheringDerived);
+    final boolean signatureDerived = worker.derive(worker.signatureDeriver, block, from, to, block.signatureKeys, block.signatureDerived);
+    final byte[] counter = worker.counter;
+    for (int i = from; i < to; i++) {
+      final long row = block.firstRow + i;
+      try {
+        byte[] cipheringKey = block.cipheringKeys[i];
+        byte[] signatureKey = block.signatureKeys[i];
+        if (cipheringKey == null && cipheringDerived) {
+          cipheringKey = worker.cipheringKey;
+          System.arraycopy(block.cipheringDerived, i * KEY_LENGTH, cipheringKey, 0, KEY_LENGTH);
+        }
+        if (signatureKey == null && signatureDerived) {
+          signatureKey = worker.signatureKey;
+          System.arraycopy(block.signatureDerived, i * KEY_LENGTH, signatureKey, 0, KEY_LENGTH);
+        }
+        System.arraycopy(block.counters, i * COUNTER_SIZE, counter, 0, COUNTER_SIZE);
+        if (!ordered) {
+          buffer.putLong(row);
+        }
+        buffer.putInt(packetLength);
+        final long start = System.nanoTime();
+        builder.buildCommandPacket(data, counter, cipheringKey, signatureKey, buffer);
+        worker.latencies.record(System.nanoTime() - start);
+      } catch (Gsm0348Exception | IllegalArgumentException e) {
+        throw failure(row, e);
+      }
+    }
+    if (!ordered) {
+      buffer.flip();
+      // The records of the slice go to the room reserved for them, so a partial write cannot mix them with the records of another slice
+      long position = end.getAndAdd(buffer.remaining());
+      while (buffer.hasRemaining()) {
+        position += channel.write(buffer, position);
+      }
+    }
+  }
+
+  private static Gsm0348Exception failure(final long row, final Exception cause) {
+    LOGGER.debug("Cannot build packet of row {}", row, cause);
+    return new Gsm0348Exception("Cannot build the packet of row " + row + ": " + cause.getMessage(), cause);
+  }
+
+  /**
+   * The state kept by a worker thread across the blocks: its key derivers, keyed once for the whole campaign, its buffers and its
+   * latencies. The slices of a block are numbered, and the slice of a given number is always built with the same worker state.
+   */
+  private final class Worker {
+    private final ICCIDKeyGenerator.Deriver cipheringDeriver;
+    private final ICCIDKeyGenerator.Deriver signatureDeriver;
+    private final byte[] counter = new byte[COUNTER_SIZE];
+    private final byte[] cipheringKey = new byte[KEY_LENGTH];
+    private final byte[] signatureKey = new byte[KEY_LENGTH];
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private Worker() throws GeneralSecurityException {
+      cipheringDeriver = cipheringMasterKey == null ? null : new ICCIDKeyGenerator.Deriver(cipheringMasterKey);
+      signatureDeriver = signatureMasterKey == null ? null : new ICCIDKeyGenerator.Deriver(signatureMasterKey);
+    }
+
+    /**
+     * Derives the keys of the rows of the slice without keys, each run of consecutive rows at once.
+     *
+     * @return whether keys were derived
+     */
+    private boolean derive(final ICCIDKeyGenerator.Deriver deriver, final Block block, final int from, final int to, final byte[][] keys,
+                           final byte[] derived) throws Gsm0348Exception {
+      if (deriver == null) {
+        return false;
+      }
+      boolean any = false;
+      int i = from;
+      while (i < to) {
+        if (keys[i] != null) {
+          i++;
+          continue;
+        }
+        final int first = i;
+        while (i < to && keys[i] == null) {
+          i++;
+        }
+        derive(deriver, block, first, i, derived);
+        any = true;
+      }
+      return any;
+    }
+
+    private void derive(final ICCIDKeyGenerator.Deriver deriver, final Block block, final int from, final int to, final byte[] derived)
+        throws Gsm0348Exception {
+      try {
+        ICCIDKeyGenerator.getKeys(deriver, block.iccidList, from, to, block.firstRow, derived);
+      } catch (GeneralSecurityException | IllegalArgumentException e) {
+        // The message of an invalid ICCID tells its row
+        LOGGER.debug("Cannot derive the keys of rows {} to {}", block.firstRow + from, block.firstRow + to - 1, e);
+        throw new Gsm0348Exception("Cannot derive the keys of rows " + (block.firstRow + from) + " to " + (block.firstRow + to - 1)
+            + ": " + e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * The rows of a block and the output buffers of their packets.
+   */
+  private final class Block {
+    private final Order order;
+    private final String[] iccids = new String[blockSize];
+    private final List<String> iccidList = Arrays.asList(iccids);
+    private final byte[] counters = new byte[blockSize * COUNTER_SIZE];
+    private final byte[][] cipheringKeys = new byte[blockSize][];
+    private final byte[][] signatureKeys = new byte[blockSize][];
+    // The keys derived from the ICCIDs, the key of the row i at the index 8 * i
+    private final byte[] cipheringDerived = cipheringMasterKey == null ? null : new byte[blockSize * KEY_LENGTH];
+    private final byte[] signatureDerived = signatureMasterKey == null ? null : new byte[blockSize * KEY_LENGTH];
+    private final ByteBuffer output;
+    private final ByteBuffer[] outputs;
+    private long firstRow;
+    private int size;
+
+    private Block(final Order order) {
+      this.order = order;
+      if (order == Order.ORDERED) {
+        output = ByteBuffer.allocate(blockSize * (LENGTH_SIZE + packetLength));
+        outputs = null;
+      } else {
+        output = null;
+        outputs = new ByteBuffer[threads];
+        final int slice = (blockSize + threads - 1) / threads;
+        for (int i = 0; i < threads; i++) {
+          outputs[i] = ByteBuffer.allocate(slice * (INDEX_SIZE + LENGTH_SIZE + packetLength));
+        }
+      }
+    }
+  }
+
+  private abstract class RowReader implements Closeable {
+
+    /**
+     * Fills the block with the next rows.
+     *
+     * @return the number of rows read, 0 at the end of the list
+     */
+    int read(final Block block, final long firstRow) throws IOException {
+      block.firstRow = firstRow;
+      block.size = 0;
+      while (block.size < blockSize && next(block, block.size, firstRow + block.size)) {
+        block.size++;
+      }
+      return block.size;
+    }
+
+    abstract boolean next(Block block, int index, long row) throws IOException;
+  }
+
+  private final class CsvReader extends RowReader {
+    private final BufferedReader reader;
+    private long line;
+
+    private CsvReader(final Path input) throws IOException {
+      reader = Files.newBufferedReader(input, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    boolean next(final Block block, final int index, final long row) throws IOException {
+      String text;
+      while ((text = reader.readLine()) != null) {
+        line++;
+        text = text.trim();
+        if (!text.isEmpty() && text.charAt(0) != '#' && !(line == 1 && text.startsWith("iccid"))) {
+          break;
+        }
+      }
+      if (text == null) {
+        return false;
+      }
+      final String[] fields = text.split(",", -1);
+      if (fields.length != 2 && fields.length != 4) {
+        throw new IOException("Line " + line + " must be iccid,counter[,cipheringKey,signatureKey]: " + text);
+      }
+      try {
+        block.iccids[index] = fields[0].trim();
+        final byte[] counter = Hex.decode(fields[1].trim());
+        if (counter.length != COUNTER_SIZE) {
+          throw new IOException("Line " + line + " counter must be " + COUNTER_SIZE + " octets: " + fields[1]);
+        }
+        System.arraycopy(counter, 0, block.counters, index * COUNTER_SIZE, COUNTER_SIZE);
+        block.cipheringKeys[index] = fields.length == 4 ? key(fields[2]) : null;
+        block.signatureKeys[index] = fields.length == 4 ? key(fields[3]) : null;
+      } catch (DecoderException e) {
+        throw new IOException("Line " + line + " is not valid hex: " + text, e);
+      }
+      return true;
+    }
+
+    private byte[] key(final String field) {
+      final String value = field.trim();
+      return value.isEmpty() ? null : Hex.decode(value);
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+
+  private final class BinaryReader extends RowReader {
+    private final DataInputStream in;
+    private final byte[] packed = new byte[8];
+
+    private BinaryReader(final Path input) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(Files.newInputStream(input), 1 << 16));
+    }
+
+    @Override
+    boolean next(final Block block, final int index, final long row) throws IOException {
+      final int first = in.read();
+      if (first < 0) {
+        return false;
+      }
+      try {
+        packed[0] = (byte) first;
+        in.readFully(packed, 1, packed.length - 1);
+        block.iccids[index] = ICCIDKeyVault.unpack(ByteBuffer.wrap(packed).getLong());
+        in.readFully(block.counters, index * COUNTER_SIZE, COUNTER_SIZE);
+        final int keyLength = in.readUnsignedByte();
+        if (keyLength == 0) {
+          block.cipheringKeys[index] = null;
+          block.signatureKeys[index] = null;
+        } else {
+          block.cipheringKeys[index] = new byte[keyLength];
+          block.signatureKeys[index] = new byte[keyLength];
+          in.readFully(block.cipheringKeys[index]);
+          in.readFully(block.signatureKeys[index]);
+        }
+      } catch (EOFException e) {
+        throw new IOException("Truncated row " + row, e);
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Invalid ICCID in row " + row + ": " + e.getMessage(), e);
+      }
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * The statistics of a campaign: the number of rows, the elapsed time and the building time percentiles of the packets.
+   */
+  public static final class Report {
+    private final long rows;
+    private final long elapsedNanos;
+    private final LatencyHistogram latencies;
+
+    private Report(final long rows, final long elapsedNanos, final LatencyHistogram latencies) {
+      this.rows = rows;
+      this.elapsedNanos = elapsedNanos;
+      this.latencies = latencies;
+    }
+
+    public long getRows() {
+      return rows;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    public double getRowsPerSecond() {
+      return elapsedNanos == 0 ? 0 : rows * 1e9 / elapsedNanos;
+    }
+
+    /**
+     * @param percentile - the percentile, e.g. 99.9.
+     * @return the building time of a packet at the percentile in nanoseconds, within 12.5%
+     */
+    public long getLatencyPercentile(final double percentile) {
+      if (percentile <= 0 || percentile > 100) {
+        throw new IllegalArgumentException("Percentile must be in ]0, 100]: " + percentile);
+      }
+      return latencies.getPercentile(percentile);
+    }
+
+    /**
+     * @return the longest building time of a packet in nanoseconds
+     */
+    public long getMaxLatency() {
+      return latencies.getMax();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d rows in %d ms, %.0f rows/s, latency us p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f", rows,
+          elapsedNanos / 1000000, getRowsPerSecond(), latencies.getPercentile(50) / 1e3, latencies.getPercentile(90) / 1e3,
+          latencies.getPercentile(99) / 1e3, latencies.getPercentile(99.9) / 1e3, latencies.getMax() / 1e3);
+    }
+  }
+
+  public static void main(final String[] args) {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  /**
+   * Runs the command line.
+   *
+   * @return the exit status: 0 once the campaign is built, 1 if it cannot be built, 2 if the command line is wrong
+   */
+  static int run(final String[] args, final PrintStream out, final PrintStream err) {
+    final Options options = new Options();
+    options.addOption(Option.builder("i").longOpt("input").hasArg().argName("file").required().desc("card list").build());
+    options.addOption(Option.builder("f").longOpt("format").hasArg().argName("csv|binary").desc("card list format (default csv)").build());
+    options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file").required().desc("packets file").build());
+    options.addOption(Option.builder("u").longOpt("unordered").desc("write the packets as they are built, with their row index").build());
+    options.addOption(Option.builder("t").longOpt("transport").hasArg().argName("protocol")
+        .desc("transport protocol of the packets (default SMS_PP)").build());
+    options.addOption(Option.builder("H").longOpt("header").hasArg().argName("hex").required()
+        .desc("SPI, KIC, KID and TAR of the commands, 7 octets in hex").build());
+    options.addOption(Option.builder("d").longOpt("data").hasArg().argName("hex").desc("secured data of every packet").build());
+    options.addOption(Option.builder("c").longOpt("ciphering-master-key").hasArg().argName("hex")
+        .desc("master key of the ciphering keys of the rows without keys").build());
+    options.addOption(Option.builder("s").longOpt("signature-master-key").hasArg().argName("hex")
+        .desc("master key of the signature keys of the rows without keys").build());
+    options.addOption(Option.builder().longOpt("ciphering-algorithm").hasArg().argName("name")
+        .desc("ciphering algorithm for proprietary ciphering").build());
+    options.addOption(Option.builder().longOpt("signature-algorithm").hasArg().argName("name")
+        .desc("signature algorithm for proprietary signatures or AES CMAC").build());
+    options.addOption(Option.builder("n").longOpt("threads").hasArg().argName("count")
+        .desc("worker threads (default the number of processors)").build());
+    options.addOption(Option.builder().longOpt("block-size").hasArg().argName("rows")
+        .desc("rows read and built at once (default " + DEFAULT_BLOCK_SIZE + ")").build());
+    options.addOption(Option.builder("h").longOpt("help").desc("print this help").build());
+
+    for (final String arg : args) {
+      if ("-h".equals(arg) || "--help".equals(arg)) {
+        printHelp(options, out);
+        return 0;
+      }
+    }
+
+    final CampaignBuilder campaign;
+    final CommandLine line;
+    final Format format;
+    try {
+      line = new DefaultParser().parse(options, args);
+      format = Format.valueOf(line.getOptionValue("format", "csv").toUpperCase());
+      final byte[] header = Hex.decode(line.getOptionValue("header"));
+      if (header.length != SecuredProfileCache.HEADER_SIZE) {
+        throw new IllegalArgumentException("The header must be " + SecuredProfileCache.HEADER_SIZE + " octets");
+      }
+      final CardProfile cardProfile = CardProfileCoder.encode(header);
+      cardProfile.setTransportProtocol(TransportProtocol.valueOf(line.getOptionValue("transport", "SMS_PP").toUpperCase()));
+      if (line.hasOption("ciphering-algorithm")) {
+        cardProfile.setCipheringAlgorithm(line.getOptionValue("ciphering-algorithm"));
+      }
+      if (line.hasOption("signature-algorithm")) {
+        cardProfile.setSignatureAlgorithm(line.getOptionValue("signature-algorithm"));
+      }
+      if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+        Security.addProvider(new BouncyCastleProvider());
+      }
+      campaign = new CampaignBuilder(new ImmutablePacketBuilder(cardProfile),
+          line.hasOption("data") ? Hex.decode(line.getOptionValue("data")) : null,
+          line.hasOption("ciphering-master-key") ? Hex.decode(line.getOptionValue("ciphering-master-key")) : null,
+          line.hasOption("signature-master-key") ? Hex.decode(line.getOptionValue("signature-master-key")) : null,
+          Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))),
+          Integer.parseInt(line.getOptionValue("block-size", Integer.toString(DEFAULT_BLOCK_SIZE))));
+    } catch (ParseException | Gsm0348Exception | DecoderException | IllegalArgumentException e) {
+      err.println(e.getMessage());
+      printHelp(options, err);
+      return 2;
+    }
+
+    try {
+      final Report report = campaign.build(Paths.get(line.getOptionValue("input")), format, Paths.get(line.getOptionValue("output")),
+          line.hasOption("unordered") ? Order.UNORDERED : Order.ORDERED);
+      err.println(report);
+      return 0;
+    } catch (Gsm0348Exception | IOException e) {
+      err.println("Cannot build the campaign: " + e.getMessage());
+      return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Interrupted");
+      return 1;
+    }
+  }
+
+  private static void printHelp(final Options options, final PrintStream out) {
+    final PrintWriter writer = new PrintWriter(out);
+    new HelpFormatter().printHelp(writer, HelpFormatter.DEFAULT_WIDTH, "CampaignBuilder", null, options, HelpFormatter.DEFAULT_LEFT_PAD,
+        HelpFormatter.DEFAULT_DESC_PAD, null, true);
+    writer.flush();
+  }
+}
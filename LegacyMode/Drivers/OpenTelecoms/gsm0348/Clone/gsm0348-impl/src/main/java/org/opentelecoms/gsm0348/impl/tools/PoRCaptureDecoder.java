@@ -0,0 +1,581 @@
+package org.opentelecoms.gsm0348.impl.tools;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.DecoderException;
+import org.bouncycastle.util.encoders.Hex;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.CodingException;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.PacketDispatcher;
+import org.opentelecoms.gsm0348.impl.ResponsePacketView;
+import org.opentelecoms.gsm0348.impl.SecuredProfileCache;
+import org.opentelecoms.gsm0348.impl.coders.CardProfileCoder;
+import org.opentelecoms.gsm0348.impl.coders.ResponsePacketStatusCoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Recovers a capture of response packets (PoR) in bulk and counts the response status of each TAR, e.g. for a nightly reconciliation of
+ * the PoRs of a campaign. A capture holds one packet per record, either a four octets big-endian length followed by the packet
+ * ({@linkplain Format#BINARY}) or the packet in hex on its own line ({@linkplain Format#HEX}, empty lines and lines starting with
+ * {@code #} are skipped).
+ * <p>
+ * The capture is split on record boundaries into chunks of about the chunk size, each chunk is memory-mapped and recovered by a worker
+ * thread with the same builder and keys. Each packet is copied once from the mapping into a buffer of the worker and recovered in place,
+ * and the workers count the status codes on their own before the counts are merged. Packets that cannot be recovered are counted as
+ * failed and, if a writer is given, reported with their offset in the capture; the failure lines of the chunks are not in offset order.
+ * <p>
+ * Run from the command line with {@code -h} for the options.
+ */
+public final class PoRCaptureDecoder {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(PoRCaptureDecoder.class);
+
+  /**
+   * The layout of the records of a capture.
+   */
+  public enum Format {
+    BINARY, HEX
+  }
+
+  public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+  // RPI, four octets BER length and the longest packet
+  private static final int MAX_PACKET_SIZE = 1 + 4 + 0xffffff;
+  private static final int LENGTH_SIZE = 4;
+  private static final int WINDOW_SIZE = 1 << 30;
+  // Index of the failure count after the 256 status codes
+  private static final int FAILED = 256;
+
+  private final ImmutablePacketBuilder builder;
+  private final byte[] cipheringKey;
+  private final byte[] signatureKey;
+  private final int threads;
+  private final int chunkSize;
+
+  /**
+   * @param builder      - the builder recovering the packets, whatever their TAR.
+   * @param cipheringKey - ciphering key. Used only if the responses are ciphered, otherwise can be null.
+   * @param signatureKey - signature key. Used only if the responses are signed, otherwise can be null.
+   * @param threads      - the number of worker threads.
+   * @param chunkSize    - the approximate size of the chunks of the capture recovered by a worker at once, at least 4 kB and at most 1 GB.
+   */
+  public PoRCaptureDecoder(final ImmutablePacketBuilder builder, final byte[] cipheringKey, final byte[] signatureKey,
+                           final int threads, final int chunkSize) {
+    if (builder == null) {
+      throw new IllegalArgumentException("Builder cannot be null");
+    }
+    if (threads <= 0) {
+      throw new IllegalArgumentException("Threads must be positive: " + threads);
+    }
+    if (chunkSize < 4096 || chunkSize > WINDOW_SIZE) {
+      throw new IllegalArgumentException("Chunk size must be between 4 kB and 1 GB: " + chunkSize);
+    }
+    this.builder = builder;
+    this.cipheringKey = cipheringKey;
+    this.signatureKey = signatureKey;
+    this.threads = threads;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Recovers all the packets of a capture.
+   *
+   * @param capture  - the capture file.
+   * @param format   - the layout of the records.
+   * @param failures - the writer receiving the {@code offset,tar,error} lines of the failed packets, or null.
+   * @return the counts of the capture
+   * @throws IOException          if the capture cannot be read, its last binary record is truncated, or the writer fails.
+   * @throws InterruptedException if interrupted while waiting for the workers.
+   */
+  public Report decode(final Path capture, final Format format, final Writer failures) throws IOException, InterruptedException {
+    if (capture == null || format == null) {
+      throw new IllegalArgumentException("Capture and format cannot be null");
+    }
+    try (FileChannel channel = FileChannel.open(capture, StandardOpenOption.READ)) {
+      final List<long[]> chunks = format == Format.BINARY ? splitBinary(channel) : splitLines(channel);
+      if (LOGGER.isDebugEnabled()) {
+        LOGGER.debug("Capture {} of {} octets split in {} chunks", capture, channel.size(), chunks.size());
+      }
+      if (failures != null) {
+        failures.write("offset,tar,error\n");
+      }
+      final ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, chunks.size())));
+      try {
+        final List<Future<Counts>> futures = new ArrayList<>(chunks.size());
+        for (final long[] chunk : chunks) {
+          futures.add(executor.submit(new Callable<Counts>() {
+            @Override
+            public Counts call() throws IOException {
+              return decodeChunk(channel, format, chunk[0], chunk[1], failures);
+            }
+          }));
+        }
+        final Report report = new Report();
+        for (final Future<Counts> future : futures) {
+          report.add(future.get());
+        }
+        return report;
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new IllegalStateException(e.getCause());
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  public ImmutablePacketBuilder getBuilder() {
+    return builder;
+  }
+
+  public int getThreads() {
+    return threads;
+  }
+
+  public int getChunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Walks the lengths of the records through memory-mapped windows, closing a chunk after the record crossing the chunk size.
+   */
+  private List<long[]> splitBinary(final FileChannel channel) throws IOException {
+    final long size = channel.size();
+    final List<long[]> chunks = new ArrayList<>();
+    MappedByteBuffer window = null;
+    long windowStart = 0;
+    long position = 0;
+    long chunkStart = 0;
+    while (position < size) {
+      if (size - position < LENGTH_SIZE) {
+        throw new IOException("Truncated record length at offset " + position);
+      }
+      if (window == null || position + LENGTH_SIZE > windowStart + window.limit()) {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+      }
+      final int length = window.getInt((int) (position - windowStart));
+      if (length < 0 || length > MAX_PACKET_SIZE) {
+        throw new IOException("Invalid record length " + length + " at offset " + position);
+      }
+      if (size - position - LENGTH_SIZE < length) {
+        throw new IOException("Truncated record at offset " + position);
+      }
+      position += LENGTH_SIZE + length;
+      if (position - chunkStart >= chunkSize) {
+        chunks.add(new long[]{ chunkStart, position });
+        chunkStart = position;
+      }
+    }
+    if (chunkStart < size) {
+      chunks.add(new long[]{ chunkStart, size });
+    }
+    return chunks;
+  }
+
+  /**
+   * Cuts the capture every chunk size octets, moving each cut after the end of the line it falls in.
+   */
+  private List<long[]> splitLines(final FileChannel channel) throws IOException {
+    final long size = channel.size();
+    final List<long[]> chunks = new ArrayList<>();
+    final ByteBuffer buffer = ByteBuffer.allocate(256);
+    long chunkStart = 0;
+    while (chunkStart < size) {
+      long end = chunkStart + chunkSize;
+      if (end >= size) {
+        end = size;
+      } else {
+        // Look for the end of the line holding the octet before the cut
+        end--;
+        boolean found = false;
+        while (!found && end < size) {
+          buffer.clear();
+          final int read = channel.read(buffer, end);
+          for (int i = 0; i < read && !found; i++) {
+            if (buffer.get(i) == '\n') {
+              found = true;
+              end += i;
+            }
+          }
+          if (!found) {
+            end += read;
+          }
+        }
+        end = Math.min(end + 1, size);
+      }
+      if (end - chunkStart > Integer.MAX_VALUE) {
+        throw new IOException("Line too long at offset " + chunkStart);
+      }
+      chunks.add(new long[]{ chunkStart, end });
+      chunkStart = end;
+    }
+    return chunks;
+  }
+
+  private Counts decodeChunk(final FileChannel channel, final Format format, final long start, final long end, final Writer failures)
+      throws IOException {
+    final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    final int limit = chunk.limit();
+    final Counts counts = new Counts();
+    final StringBuilder failed = failures == null ? null : new StringBuilder();
+    final ResponsePacketView view = new ResponsePacketView();
+    ByteBuffer packet = ByteBuffer.allocate(1024);
+    int position = 0;
+    while (position < limit) {
+      final int recordStart = position;
+      String error = null;
+      if (format == Format.BINARY) {
+        // The lengths were checked when splitting
+        final int length = chunk.getInt(position);
+        position += LENGTH_SIZE;
+        packet = ensure(packet, length);
+        final ByteBuffer source = chunk.duplicate();
+        source.limit(position + length).position(position);
+        packet.put(source).flip();
+        position += length;
+      } else {
+        int lineEnd = position;
+        while (lineEnd < limit && chunk.get(lineEnd) != '\n') {
+          lineEnd++;
+        }
+        final int next = lineEnd + 1;
+        while (lineEnd > position && isBlank(chunk.get(lineEnd - 1))) {
+          lineEnd--;
+        }
+        while (position < lineEnd && isBlank(chunk.get(position))) {
+          position++;
+        }
+        if (position == lineEnd || chunk.get(position) == '#') {
+          position = next;
+          continue;
+        }
+        packet = ensure(packet, (lineEnd - position) / 2);
+        error = decodeHex(chunk, position, lineEnd, packet);
+        position = next;
+      }
+
+      if (error == null) {
+        try {
+          builder.recoverResponsePacket(packet, cipheringKey, signatureKey, view);
+          counts.add(view.getTARValue(), view.getStatusCode() & 0xff);
+          continue;
+        } catch (Gsm0348Exception | RuntimeException e) {
+          error = e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+        }
+      }
+      final int tar = error.startsWith("Invalid hex") ? -1 : peekTAR(packet);
+      counts.add(tar, FAILED);
+      if (failed != null) {
+        failed.append(start + recordStart).append(',').append(tar < 0 ? "" : formatTAR(tar)).append(',').append(quote(error)).append('\n');
+      }
+    }
+    if (failed != null && failed.length() > 0) {
+      synchronized (failures) {
+        failures.append(failed);
+      }
+    }
+    return counts;
+  }
+
+  private int peekTAR(final ByteBuffer packet) {
+    try {
+      return PacketDispatcher.peekResponseTAR(builder.getSecuredProfile().getTransportProtocol(), packet);
+    } catch (Gsm0348Exception | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private static ByteBuffer ensure(final ByteBuffer packet, final int length) {
+    final ByteBuffer result = packet.capacity() < length ? ByteBuffer.allocate(Math.max(length, packet.capacity() * 2)) : packet;
+    result.clear();
+    return result;
+  }
+
+  private static boolean isBlank(final byte octet) {
+    return octet == ' ' || octet == '\t' || octet == '\r';
+  }
+
+  /**
+   * Decodes the hex digits between start and end into the packet, flipped for reading.
+   *
+   * @return the error, or null
+   */
+  private static String decodeHex(final ByteBuffer source, final int start, final int end, final ByteBuffer packet) {
+    if ((end - start) % 2 != 0) {
+      return "Invalid hex: odd number of digits";
+    }
+    for (int i = start; i < end; i += 2) {
+      final int high = Character.digit(source.get(i), 16);
+      final int low = Character.digit(source.get(i + 1), 16);
+      if (high < 0 || low < 0) {
+        return "Invalid hex digit at offset " + (high < 0 ? i : i + 1) + " of the chunk";
+      }
+      packet.put((byte) (high << 4 | low));
+    }
+    packet.flip();
+    return null;
+  }
+
+  private static String quote(final String value) {
+    if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+      return value;
+    }
+    return '"' + value.replace("\"", "\"\"").replace('\n', ' ') + '"';
+  }
+
+  static String formatTAR(final int tar) {
+    return String.format("%06X", tar);
+  }
+
+  /**
+   * The counts of status codes and failures per TAR of a worker.
+   */
+  private static final class Counts {
+    private final Map<Integer, long[]> tars = new HashMap<>();
+
+    private void add(final int tar, final int index) {
+      long[] counts = tars.get(tar);
+      if (counts == null) {
+        counts = new long[FAILED + 1];
+        tars.put(tar, counts);
+      }
+      counts[index]++;
+    }
+  }
+
+  /**
+   * The counts of a capture: per TAR, the number of packets recovered with each status code and the number of packets not recovered.
+   * Failed packets whose TAR could not be read are counted under TAR -1.
+   */
+  public static final class Report {
+    private final SortedMap<Integer, long[]> tars = new TreeMap<>();
+    private long records;
+    private long failures;
+
+    private void add(final Counts counts) {
+      for (final Map.Entry<Integer, long[]> entry : counts.tars.entrySet()) {
+        long[] total = tars.get(entry.getKey());
+        if (total == null) {
+          total = new long[FAILED + 1];
+          tars.put(entry.getKey(), total);
+        }
+        for (int i = 0; i <= FAILED; i++) {
+          total[i] += entry.getValue()[i];
+          records += entry.getValue()[i];
+        }
+        failures += entry.getValue()[FAILED];
+      }
+    }
+
+    /**
+     * @return the number of packets of the capture
+     */
+    public long getRecords() {
+      return records;
+    }
+
+    /**
+     * @return the number of packets not recovered
+     */
+    public long getFailures() {
+      return failures;
+    }
+
+    /**
+     * @param tar        - the TAR as a 24 bit value.
+     * @param statusCode - the raw response status code.
+     * @return the number of packets of the TAR recovered with the status code
+     */
+    public long getCount(final int tar, final byte statusCode) {
+      final long[] counts = tars.get(tar);
+      return counts == null ? 0 : counts[statusCode & 0xff];
+    }
+
+    /**
+     * @param tar - the TAR as a 24 bit value, or -1.
+     * @return the number of packets of the TAR not recovered
+     */
+    public long getFailures(final int tar) {
+      final long[] counts = tars.get(tar);
+      return counts == null ? 0 : counts[FAILED];
+    }
+
+    /**
+     * Writes the {@code tar,status,count} lines of the report, the status being the name of the response status, its code in hex if it
+     * is unknown, or {@code FAILED}.
+     */
+    public void write(final Appendable out) throws IOException {
+      out.append("tar,status,count\n");
+      for (final Map.Entry<Integer, long[]> entry : tars.entrySet()) {
+        final String tar = entry.getKey() < 0 ? "" : formatTAR(entry.getKey());
+        final long[] counts = entry.getValue();
+        for (int i = 0; i <= FAILED; i++) {
+          if (counts[i] != 0) {
+            out.append(tar).append(',').append(statusName(i)).append(',').append(Long.toString(counts[i])).append('\n');
+          }
+        }
+      }
+    }
+
+    private static String statusName(final int index) {
+      if (index == FAILED) {
+        return "FAILED";
+      }
+      try {
+        return ResponsePacketStatusCoder.encode((byte) index).name();
+      } catch (CodingException e) {
+        return String.format("%02X", index);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "Report [tars=" + tars.size() + ", records=" + records + ", failures=" + failures + "]";
+    }
+  }
+
+  public static void main(final String[] args) {
+    System.exit(run(args, System.out, System.err));
+  }
+
+  /**
+   * Runs the command line.
+   *
+   * @return the exit status: 0 once the capture is decoded, 1 if it cannot be decoded, 2 if the command line is wrong
+   */
+  static int run(final String[] args, final PrintStream out, final PrintStream err) {
+    final Options options = new Options();
+    options.addOption(Option.builder("i").longOpt("input").hasArg().argName("file").required().desc("capture of PoR packets").build());
+    options.addOption(Option.builder("f").longOpt("format").hasArg().argName("binary|hex")
+        .desc("length-prefixed binary records or one hex packet per line (default binary)").build());
+    options.addOption(Option.builder("t").longOpt("transport").hasArg().argName("protocol")
+        .desc("transport protocol of the packets (default SMS_PP)").build());
+    options.addOption(Option.builder("H").longOpt("header").hasArg().argName("hex").required()
+        .desc("SPI, KIC, KID and TAR of the commands, 7 octets in hex").build());
+    options.addOption(Option.builder("c").longOpt("ciphering-key").hasArg().argName("hex").desc("ciphering key").build());
+    options.addOption(Option.builder("s").longOpt("signature-key").hasArg().argName("hex").desc("signature key").build());
+    options.addOption(Option.builder().longOpt("ciphering-algorithm").hasArg().argName("name")
+        .desc("ciphering algorithm for proprietary ciphering").build());
+    options.addOption(Option.builder().longOpt("signature-algorithm").hasArg().argName("name")
+        .desc("signature algorithm for proprietary signatures or AES CMAC").build());
+    options.addOption(Option.builder("o").longOpt("output").hasArg().argName("file").desc("report CSV (default standard output)").build());
+    options.addOption(Option.builder("e").longOpt("failures").hasArg().argName("file").desc("CSV of the failed packets").build());
+    options.addOption(Option.builder("n").longOpt("threads").hasArg().argName("count")
+        .desc("worker threads (default the number of processors)").build());
+    options.addOption(Option.builder().longOpt("chunk-size").hasArg().argName("octets")
+        .desc("size of the chunks recovered at once (default " + DEFAULT_CHUNK_SIZE + ")").build());
+    options.addOption(Option.builder("h").longOpt("help").desc("print this help").build());
+
+    for (final String arg : args) {
+      if ("-h".equals(arg) || "--help".equals(arg)) {
+        printHelp(options, out);
+        return 0;
+      }
+    }
+
+    final PoRCaptureDecoder decoder;
+    final Path capture;
+    final Format format;
+    final CommandLine line;
+    try {
+      line = new DefaultParser().parse(options, args);
+      capture = Paths.get(line.getOptionValue("input"));
+      format = Format.valueOf(line.getOptionValue("format", "binary").toUpperCase());
+      final byte[] header = Hex.decode(line.getOptionValue("header"));
+      if (header.length != SecuredProfileCache.HEADER_SIZE) {
+        throw new IllegalArgumentException("The header must be " + SecuredProfileCache.HEADER_SIZE + " octets");
+      }
+      final CardProfile cardProfile = CardProfileCoder.encode(header);
+      cardProfile.setTransportProtocol(TransportProtocol.valueOf(line.getOptionValue("transport", "SMS_PP").toUpperCase()));
+      if (line.hasOption("ciphering-algorithm")) {
+        cardProfile.setCipheringAlgorithm(line.getOptionValue("ciphering-algorithm"));
+      }
+      if (line.hasOption("signature-algorithm")) {
+        cardProfile.setSignatureAlgorithm(line.getOptionValue("signature-algorithm"));
+      }
+      if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+        Security.addProvider(new BouncyCastleProvider());
+      }
+      decoder = new PoRCaptureDecoder(new ImmutablePacketBuilder(cardProfile),
+          line.hasOption("ciphering-key") ? Hex.decode(line.getOptionValue("ciphering-key")) : null,
+          line.hasOption("signature-key") ? Hex.decode(line.getOptionValue("signature-key")) : null,
+          Integer.parseInt(line.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors()))),
+          Integer.parseInt(line.getOptionValue("chunk-size", Integer.toString(DEFAULT_CHUNK_SIZE))));
+    } catch (ParseException | Gsm0348Exception | DecoderException | IllegalArgumentException e) {
+      err.println(e.getMessage());
+      printHelp(options, err);
+      return 2;
+    }
+
+    final long started = System.nanoTime();
+    final String output = line.getOptionValue("output");
+    final String failuresFile = line.getOptionValue("failures");
+    try (Writer failures = failuresFile == null ? null : Files.newBufferedWriter(Paths.get(failuresFile), StandardCharsets.UTF_8);
+         Writer file = output == null ? null : Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8)) {
+      final Report report = decoder.decode(capture, format, failures);
+      // Standard output is flushed, not closed
+      final Writer writer = file == null ? new OutputStreamWriter(out, StandardCharsets.UTF_8) : file;
+      report.write(writer);
+      writer.flush();
+      final long millis = Math.max(1, (System.nanoTime() - started) / 1000000);
+      err.println("Decoded " + report.getRecords() + " packets, " + report.getFailures() + " failed, in " + millis + " ms ("
+          + report.getRecords() * 1000 / millis + " packets/s)");
+      return 0;
+    } catch (IOException e) {
+      err.println("Cannot decode " + capture + ": " + e.getMessage());
+      return 1;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Interrupted");
+      return 1;
+    }
+  }
+
+  private static void printHelp(final Options options, final PrintStream out) {
+    final PrintWriter writer = new PrintWriter(out);
+    new HelpFormatter().printHelp(writer, HelpFormatter.DEFAULT_WIDTH, "PoRCaptureDecoder", null, options,
+        HelpFormatter.DEFAULT_LEFT_PAD, HelpFormatter.DEFAULT_DESC_PAD, null, true);
+    writer.flush();
+  }
+}
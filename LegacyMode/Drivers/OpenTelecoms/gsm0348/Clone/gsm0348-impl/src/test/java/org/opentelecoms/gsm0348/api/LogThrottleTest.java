@@ -0,0 +1,33 @@
+package org.opentelecoms.gsm0348.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LogThrottleTest {
+
+  @Test
+  public void should_count_suppressed_messages_per_interval() {
+    final LogThrottle throttle = new LogThrottle(2, 1, TimeUnit.SECONDS);
+    final long start = System.nanoTime();
+    assertEquals(0, throttle.acquire(start));
+    assertEquals(0, throttle.acquire(start + 1));
+    for (int i = 0; i < 5; i++) {
+      assertEquals(-1, throttle.acquire(start + 2 + i));
+    }
+    assertEquals(5, throttle.getSuppressed());
+
+    final long next = start + TimeUnit.SECONDS.toNanos(1);
+    assertEquals(5, throttle.acquire(next));
+    assertEquals(0, throttle.acquire(next + 1));
+    assertEquals(-1, throttle.acquire(next + 2));
+    assertEquals(1, throttle.getSuppressed());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_no_permit() {
+    new LogThrottle(0, 1, TimeUnit.SECONDS);
+  }
+}
@@ -3,6 +3,7 @@ package org.opentelecoms.gsm0348.api;
 import static org.junit.Assert.assertEquals;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -25,6 +26,27 @@ public class UtilTest {
     assertEquals("0xAB 0xCD", Util.toHexArray(new byte[]{ (byte) 0xab, (byte) 0xcd }));
   }
 
+  @Test
+  public void test_lazy_hex() {
+    final byte[] array = new byte[]{ 0x01, (byte) 0xab, (byte) 0xcd, 0x02 };
+    assertEquals(Util.toHexString(array), LazyHex.string(array).toString());
+    assertEquals(Util.toHexArray(array), LazyHex.array(array).toString());
+    assertEquals("ABCD", LazyHex.string(array, 1, 2).toString());
+    assertEquals("null", LazyHex.string(null).toString());
+    assertEquals("", LazyHex.array(new byte[0]).toString());
+  }
+
+  @Test
+  public void test_lazy_hex_buffer_range() {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(4).put(new byte[]{ 0x01, (byte) 0xab, (byte) 0xcd, 0x02 });
+    final LazyHex hex = LazyHex.array(buffer, 1, 2);
+    buffer.put(2, (byte) 0xef);
+    // Rendered when formatted, the position of the buffer is not used
+    assertEquals("0xAB 0xEF", hex.toString());
+    assertEquals("ABEF", LazyHex.string(buffer, 1, 2).toString());
+    assertEquals(4, buffer.position());
+  }
+
   @Test
   public void test_encoded_length_decode() {
     // ETSI TS 101 220
@@ -105,4 +127,18 @@ public class UtilTest {
     assertEquals(0, Util.decodeLength(new byte[]{ (byte) 0x85 }));
   }
 
+  @Test
+  public void test_put_encoded_length() {
+    // ETSI TS 101 220
+    for (int length : new int[]{ 0, 1, 127, 128, 255, 256, 65535, 65536, 16777215 }) {
+      final ByteBuffer buffer = ByteBuffer.allocate(8);
+      Util.putEncodedLength(buffer, length);
+      assertEquals(Util.encodeLengthSize(length), buffer.position());
+      Assert.assertArrayEquals(Util.encodeLength(length), Arrays.copyOf(buffer.array(), buffer.position()));
+    }
+    final ByteBuffer buffer = ByteBuffer.allocate(2);
+    Util.putTwoBytesLength(buffer, 0x1234);
+    Assert.assertArrayEquals(Util.encodeTwoBytesLength(0x1234), buffer.array());
+  }
+
 }
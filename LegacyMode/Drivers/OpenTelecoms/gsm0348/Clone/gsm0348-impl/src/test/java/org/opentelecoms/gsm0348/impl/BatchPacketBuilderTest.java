@@ -0,0 +1,132 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class BatchPacketBuilderTest {
+
+  private static final byte[] MASTER_KEY = Hex.decode("0123456789abcdef");
+  private static final byte[] DATA = Hex.decode("a0a40000023f00");
+
+  private ImmutablePacketBuilder builder;
+
+  @Before
+  public void setup() throws Exception {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    builder = new ImmutablePacketBuilder(TestProfiles.createProfile("Campaign DES", 1, TransportProtocol.SMS_PP));
+  }
+
+  @Test
+  public void should_build_same_packets_as_single_builds() throws Exception {
+    final List<CardKeys> cards = createCards(10);
+    final byte[][] packets = new BatchPacketBuilder(builder).buildCommandPackets(DATA, cards);
+
+    assertEquals(cards.size(), packets.length);
+    for (int i = 0; i < cards.size(); i++) {
+      final CardKeys card = cards.get(i);
+      assertArrayEquals(builder.buildCommandPacket(DATA, card.getCounter(), card.getCipheringKey(), card.getSignatureKey()), packets[i]);
+    }
+  }
+
+  @Test
+  public void should_build_same_packets_in_pool() throws Exception {
+    final List<CardKeys> cards = createCards(100);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final BatchPacketBuilder batch = new BatchPacketBuilder(builder, 8);
+      assertArrayEquals(batch.buildCommandPackets(DATA, cards), batch.buildCommandPackets(DATA, cards, pool));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void should_stream_packets_to_sink() throws Exception {
+    final List<CardKeys> cards = createCards(20);
+    final BatchPacketBuilder batch = new BatchPacketBuilder(builder, 3);
+    final byte[][] expected = batch.buildCommandPackets(DATA, cards);
+    final AtomicReferenceArray<byte[]> streamed = new AtomicReferenceArray<>(cards.size());
+    final BatchPacketBuilder.PacketSink sink = new BatchPacketBuilder.PacketSink() {
+      @Override
+      public void packetBuilt(final int index, final CardKeys card, final ByteBuffer packet) {
+        final byte[] bytes = new byte[packet.remaining()];
+        packet.get(bytes);
+        streamed.set(index, bytes);
+      }
+    };
+
+    assertEquals(cards.size(), batch.buildCommandPackets(DATA, cards.iterator(), sink));
+    for (int i = 0; i < cards.size(); i++) {
+      assertArrayEquals(expected[i], streamed.getAndSet(i, null));
+    }
+
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      batch.buildCommandPackets(DATA, cards, pool, sink);
+    } finally {
+      pool.shutdown();
+    }
+    for (int i = 0; i < cards.size(); i++) {
+      assertArrayEquals(expected[i], streamed.get(i));
+    }
+  }
+
+  @Test
+  public void should_tell_failing_card() throws Exception {
+    final List<CardKeys> cards = createCards(20);
+    cards.set(13, new CardKeys(cards.get(13).getCipheringKey(), null, cards.get(13).getCounter()));
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      new BatchPacketBuilder(builder, 4).buildCommandPackets(DATA, cards, pool);
+      fail("Expecting failure of card 13");
+    } catch (Gsm0348Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("card 13"));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void should_abort_on_sink_failure() throws Exception {
+    final ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      new BatchPacketBuilder(builder, 2).buildCommandPackets(DATA, createCards(10), pool, new BatchPacketBuilder.PacketSink() {
+        @Override
+        public void packetBuilt(final int index, final CardKeys card, final ByteBuffer packet) throws IOException {
+          throw new IOException("Disk full");
+        }
+      });
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private static List<CardKeys> createCards(final int count) throws Exception {
+    final List<CardKeys> cards = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final String iccid = String.format("898820000000000%04d", i);
+      final byte[] key = ICCIDKeyGenerator.getKey(MASTER_KEY, iccid);
+      cards.add(new CardKeys(key, key, new byte[]{ 0, 0, 0, 0, (byte) (i + 1) }));
+    }
+    return cards;
+  }
+}
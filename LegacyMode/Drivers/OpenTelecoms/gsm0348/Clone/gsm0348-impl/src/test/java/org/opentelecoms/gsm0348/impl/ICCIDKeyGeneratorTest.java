@@ -1,5 +1,18 @@
 package org.opentelecoms.gsm0348.impl;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.ShortBufferException;
+
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -27,4 +40,108 @@ public class ICCIDKeyGeneratorTest {
     Assert.assertArrayEquals(new byte[]{ (byte) 0x76, (byte) 0x07, (byte) 0xeb, (byte) 0x06, (byte) 0x2d, (byte) 0x25, (byte) 0x04, (byte) 0x31 }, key);
   }
 
-}
\ No newline at end of file
+  @Test
+  public void test_get_keys_same_as_single_key() throws Exception {
+    final List<String> iccids = createIccids(1000);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      final byte[][] keys = ICCIDKeyGenerator.getKeys(masterKey, iccids, pool);
+      Assert.assertEquals(iccids.size(), keys.length);
+      for (int i = 0; i < iccids.size(); i++) {
+        Assert.assertArrayEquals(ICCIDKeyGenerator.getKey(masterKey, iccids.get(i)), keys[i]);
+      }
+      Assert.assertArrayEquals(keys, ICCIDKeyGenerator.getKeys(masterKey, iccids, null));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_get_keys_rethrows_failure_of_pool_thread() throws Exception {
+    final List<String> iccids = createIccids(1000);
+    final ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      // The last slices have no room for their keys, their cipher fails on a pool thread
+      ICCIDKeyGenerator.getKeys(masterKey, iccids, pool, new byte[iccids.size() * 4]);
+      Assert.fail("Keys derived into a too small array");
+    } catch (ShortBufferException e) {
+      // Expected
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void test_get_keys_from_file() throws Exception {
+    final List<String> iccids = createIccids(20000);
+    final List<String> lines = new ArrayList<>(iccids);
+    lines.add(3, "");
+    lines.add(" ");
+    final Path file = Files.createTempFile("iccids", ".txt");
+    final ForkJoinPool pool = new ForkJoinPool(3);
+    try {
+      Files.write(file, lines, StandardCharsets.US_ASCII);
+      final List<byte[]> keys = new ArrayList<>();
+      final long count = ICCIDKeyGenerator.getKeys(masterKey, file, pool, new ICCIDKeyGenerator.KeySink() {
+        @Override
+        public void keyDerived(final long index, final String iccid, final byte[] derived, final int offset) {
+          Assert.assertEquals(keys.size(), index);
+          Assert.assertEquals(iccids.get((int) index), iccid);
+          keys.add(Arrays.copyOfRange(derived, offset, offset + 8));
+        }
+      });
+      Assert.assertEquals(iccids.size(), count);
+      for (int i = 0; i < iccids.size(); i += 997) {
+        Assert.assertArrayEquals(ICCIDKeyGenerator.getKey(masterKey, iccids.get(i)), keys.get(i));
+      }
+    } finally {
+      pool.shutdown();
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void test_get_keys_tells_invalid_iccid() throws Exception {
+    final BufferedReader reader = new BufferedReader(new StringReader("89000000000000000012\n89000000000000000013\n"));
+    try {
+      ICCIDKeyGenerator.getKeys(masterKey, reader, null, new ICCIDKeyGenerator.KeySink() {
+        @Override
+        public void keyDerived(final long index, final String iccid, final byte[] keys, final int offset) throws IOException {
+        }
+      });
+      Assert.fail("Expecting Luhn check failure");
+    } catch (IllegalArgumentException e) {
+      Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid ICCID at index 1"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_get_key_rejects_non_decimal_iccid() throws Exception {
+    ICCIDKeyGenerator.getKey(masterKey, "89000000000000000F12");
+  }
+
+  private static List<String> createIccids(final int count) {
+    final List<String> iccids = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      final String iccid = String.format("8988200000%09d", i * 7919L);
+      // Alternate ICCIDs with and without Luhn digit
+      iccids.add(i % 2 == 0 ? iccid : iccid + luhn(iccid));
+    }
+    return iccids;
+  }
+
+  private static int luhn(final String digits) {
+    int sum = 0;
+    for (int i = 0; i < digits.length(); i++) {
+      int digit = digits.charAt(digits.length() - 1 - i) - '0';
+      if (i % 2 == 0) {
+        digit *= 2;
+        if (digit > 9) {
+          digit -= 9;
+        }
+      }
+      sum += digit;
+    }
+    return (10 - sum % 10) % 10;
+  }
+}
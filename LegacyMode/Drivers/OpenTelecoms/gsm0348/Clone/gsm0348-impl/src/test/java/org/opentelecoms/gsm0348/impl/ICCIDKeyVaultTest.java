@@ -0,0 +1,129 @@
+package org.opentelecoms.gsm0348.impl;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ICCIDKeyVaultTest {
+
+  private static final byte[] CIPHERING_MASTER_KEY = new byte[]{ 0x00, 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07 };
+  private static final byte[] SIGNATURE_MASTER_KEY = new byte[]{ 0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17 };
+
+  @Test
+  public void test_pack_and_unpack() throws Exception {
+    Assert.assertEquals(8900000000000000001L, ICCIDKeyVault.pack("8900000000000000001"));
+    Assert.assertEquals(8900000000000000001L, ICCIDKeyVault.pack("89000000000000000012"));
+    Assert.assertEquals("89000000000000000012", ICCIDKeyVault.unpack(8900000000000000001L));
+
+    // 19 digits may not fit in a signed long
+    final long packed = ICCIDKeyVault.pack("9999999999999999999");
+    Assert.assertTrue(packed < 0);
+    Assert.assertEquals("9999999999999999999", ICCIDKeyVault.unpack(packed).substring(0, 19));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_pack_rejects_bad_luhn() throws Exception {
+    ICCIDKeyVault.pack("89000000000000000013");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_unpack_rejects_too_large_value() throws Exception {
+    ICCIDKeyVault.unpack(-1L);
+  }
+
+  @Test
+  public void test_get_keys_same_as_generator() throws Exception {
+    final ICCIDKeyVault vault = new ICCIDKeyVault(CIPHERING_MASTER_KEY, SIGNATURE_MASTER_KEY, 100);
+    final Random random = new Random(1);
+    final byte[] cipheringKey = new byte[8];
+    final byte[] signatureKey = new byte[8];
+    for (int i = 0; i < 50; i++) {
+      final String iccid = String.format("8988%015d", Math.abs(random.nextLong() % 1000000000000000L));
+      final long packed = ICCIDKeyVault.pack(iccid);
+      for (int j = 0; j < 2; j++) {
+        vault.getKeys(packed, cipheringKey, signatureKey);
+        Assert.assertArrayEquals(ICCIDKeyGenerator.getKey(CIPHERING_MASTER_KEY, iccid), cipheringKey);
+        Assert.assertArrayEquals(ICCIDKeyGenerator.getKey(SIGNATURE_MASTER_KEY, iccid), signatureKey);
+      }
+      final CardKeys card = vault.getCardKeys(packed, null);
+      Assert.assertArrayEquals(cipheringKey, card.getCipheringKey());
+      Assert.assertArrayEquals(signatureKey, card.getSignatureKey());
+    }
+    Assert.assertEquals(50, vault.size());
+    Assert.assertEquals(50, vault.getMissCount());
+    Assert.assertEquals(100, vault.getHitCount());
+    Assert.assertEquals(0, vault.getEvictionCount());
+  }
+
+  @Test
+  public void test_get_key_without_signature_master_key() throws Exception {
+    final ICCIDKeyVault vault = new ICCIDKeyVault(CIPHERING_MASTER_KEY, null, 10);
+    final CardKeys card = vault.getCardKeys(ICCIDKeyVault.pack("8900000000000000001"), null);
+    Assert.assertArrayEquals(new byte[]{ (byte) 0x76, (byte) 0x07, (byte) 0xeb, (byte) 0x06, (byte) 0x2d, (byte) 0x25, (byte) 0x04, (byte) 0x31 },
+        card.getCipheringKey());
+    Assert.assertNull(card.getSignatureKey());
+    try {
+      vault.getKeys(ICCIDKeyVault.pack("8900000000000000001"), null, new byte[8]);
+      Assert.fail("Expecting missing signature master key");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void test_evict_entries_not_looked_up_again() throws Exception {
+    final ICCIDKeyVault vault = new ICCIDKeyVault(CIPHERING_MASTER_KEY, SIGNATURE_MASTER_KEY, 4);
+    final long[] iccids = new long[8];
+    for (int i = 0; i < iccids.length; i++) {
+      iccids[i] = 8900000000000000000L + i;
+    }
+    for (int i = 0; i < 4; i++) {
+      vault.getCardKeys(iccids[i], null);
+    }
+    // The first two cards are looked up again, the next cards take the place of the other two
+    vault.getCardKeys(iccids[0], null);
+    vault.getCardKeys(iccids[1], null);
+    vault.getCardKeys(iccids[4], null);
+    vault.getCardKeys(iccids[5], null);
+
+    Assert.assertEquals(4, vault.size());
+    Assert.assertEquals(2, vault.getEvictionCount());
+    Assert.assertTrue(vault.contains(iccids[0]));
+    Assert.assertTrue(vault.contains(iccids[1]));
+    Assert.assertFalse(vault.contains(iccids[2]));
+    Assert.assertFalse(vault.contains(iccids[3]));
+    Assert.assertTrue(vault.contains(iccids[4]));
+    Assert.assertTrue(vault.contains(iccids[5]));
+  }
+
+  @Test
+  public void test_keep_index_consistent_under_churn() throws Exception {
+    final int capacity = 64;
+    final ICCIDKeyVault vault = new ICCIDKeyVault(CIPHERING_MASTER_KEY, null, capacity);
+    final Random random = new Random(7);
+    final byte[] key = new byte[8];
+    for (int i = 0; i < 20000; i++) {
+      final long iccid = 8900000000000000000L + random.nextInt(200);
+      if (random.nextInt(10) == 0) {
+        vault.remove(iccid);
+        Assert.assertFalse(vault.contains(iccid));
+        continue;
+      }
+      vault.getKeys(iccid, key, null);
+      Assert.assertArrayEquals(ICCIDKeyGenerator.getKey(CIPHERING_MASTER_KEY, ICCIDKeyVault.unpack(iccid)), key);
+      Assert.assertTrue(vault.contains(iccid));
+      Assert.assertTrue(vault.size() <= capacity);
+    }
+    Assert.assertTrue(vault.getEvictionCount() > 0);
+
+    vault.clear();
+    Assert.assertEquals(0, vault.size());
+    Assert.assertFalse(vault.contains(8900000000000000000L));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_reject_missing_master_keys() throws Exception {
+    new ICCIDKeyVault(null, null, 10);
+  }
+}
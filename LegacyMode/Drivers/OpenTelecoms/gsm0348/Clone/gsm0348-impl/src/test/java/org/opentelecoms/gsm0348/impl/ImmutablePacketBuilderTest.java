@@ -0,0 +1,387 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.PacketBuilder;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CipheringAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class ImmutablePacketBuilderTest {
+
+  private static final byte[] CIPHERING_KEY = Hex.decode("11223344556677881122334455667788");
+  private static final byte[] SIGNATURE_KEY = Hex.decode("8877665544332211887766554433221188776655443322ff");
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void should_not_allow_profile_change() throws Exception {
+    final PacketBuilder builder = PacketBuilderFactory.getThreadSafeInstance(createProfile(TransportProtocol.SMS_PP));
+    assertTrue(builder.isConfigured());
+    builder.setProfile(createProfile(TransportProtocol.CAT_TP));
+  }
+
+  @Test
+  public void should_build_same_packets_as_configurable_builder() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    final PacketBuilder immutable = PacketBuilderFactory.getThreadSafeInstance(cardProfile);
+    final PacketBuilder configurable = PacketBuilderFactory.getInstance(cardProfile);
+    final byte[] data = Hex.decode("a0a40000023f00");
+    final byte[] counter = Hex.decode("0000000001");
+
+    assertArrayEquals(configurable.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY),
+        immutable.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY));
+    assertArrayEquals(configurable.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK),
+        immutable.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK));
+  }
+
+  @Test
+  public void should_keep_profile_when_recovering_other_security() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(cardProfile);
+    final SecuredProfile profile = builder.getSecuredProfile();
+
+    cardProfile.getSPI().getCommandSPI().setCiphered(false);
+    cardProfile.getSPI().getCommandSPI().setCertificationMode(CertificationMode.NO_SECURITY);
+    final byte[] plain = new ImmutablePacketBuilder(cardProfile).buildCommandPacket(Hex.decode("01020304"), Hex.decode("0000000001"),
+        null, null);
+
+    final CommandPacket packet = builder.recoverCommandPacket(plain, null, null);
+    assertArrayEquals(Hex.decode("01020304"), packet.getData());
+    assertSame(profile, builder.getSecuredProfile());
+  }
+
+  @Test
+  public void should_be_shared_between_threads() throws Exception {
+    final List<PacketBuilder> builders = new ArrayList<>();
+    for (TransportProtocol transportProtocol : new TransportProtocol[]{ TransportProtocol.SMS_PP, TransportProtocol.CAT_TP,
+        TransportProtocol.USSD }) {
+      builders.add(PacketBuilderFactory.getThreadSafeInstance(createProfile(transportProtocol)));
+    }
+
+    final int threads = 8;
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int t = 0; t < threads; t++) {
+        final long seed = t;
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            final Random random = new Random(seed);
+            int count = 0;
+            for (int i = 0; i < 200; i++) {
+              final PacketBuilder builder = builders.get(i % builders.size());
+              final byte[] data = new byte[random.nextInt(100)];
+              random.nextBytes(data);
+              final byte[] counter = new byte[5];
+              random.nextBytes(counter);
+
+              final byte[] command = builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY);
+              final CommandPacket commandPacket = builder.recoverCommandPacket(command, CIPHERING_KEY, SIGNATURE_KEY);
+              assertArrayEquals(data, commandPacket.getData());
+              assertArrayEquals(counter, commandPacket.getHeader().getCounter());
+
+              final byte[] response = builder.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY,
+                  ResponsePacketStatus.POR_OK);
+              final ResponsePacket responsePacket = builder.recoverResponsePacket(response, CIPHERING_KEY, SIGNATURE_KEY);
+              assertArrayEquals(data, responsePacket.getData());
+              assertEquals(ResponsePacketStatus.POR_OK, responsePacket.getHeader().getResponseStatus());
+              count++;
+            }
+            return count;
+          }
+        }));
+      }
+      for (Future<Integer> result : results) {
+        assertEquals(Integer.valueOf(200), result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void should_build_into_buffer_at_its_position() throws Exception {
+    final byte[] counter = Hex.decode("0000000001");
+    for (TransportProtocol transportProtocol : new TransportProtocol[]{ TransportProtocol.SMS_PP, TransportProtocol.CAT_TP,
+        TransportProtocol.USSD }) {
+      final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(transportProtocol));
+      for (int dataLength : new int[]{ 0, 7, 100, 700 }) {
+        final byte[] data = new byte[dataLength];
+        new Random(dataLength).nextBytes(data);
+        final byte[] command = builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY);
+        final byte[] response = builder.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK);
+        assertEquals(command.length, builder.getSecuredProfile().getCommandPacketLength(dataLength));
+        assertEquals(response.length, builder.getSecuredProfile().getResponsePacketLength(dataLength));
+
+        for (ByteBuffer buffer : new ByteBuffer[]{ ByteBuffer.allocate(2048), ByteBuffer.allocateDirect(2048) }) {
+          // Pooled buffers are not cleared
+          while (buffer.hasRemaining()) {
+            buffer.put((byte) 0xff);
+          }
+          buffer.position(5);
+          assertEquals(command.length, builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, buffer));
+          assertEquals(response.length,
+              builder.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK, buffer));
+          assertEquals(5 + command.length + response.length, buffer.position());
+
+          buffer.position(5);
+          final byte[] written = new byte[command.length];
+          buffer.get(written);
+          assertArrayEquals(command, written);
+          final byte[] writtenResponse = new byte[response.length];
+          buffer.get(writtenResponse);
+          assertArrayEquals(response, writtenResponse);
+        }
+        assertArrayEquals(data, builder.recoverCommandPacket(command, CIPHERING_KEY, SIGNATURE_KEY).getData());
+        assertArrayEquals(data, builder.recoverResponsePacket(response, CIPHERING_KEY, SIGNATURE_KEY).getData());
+      }
+    }
+  }
+
+  @Test
+  public void should_not_write_packet_larger_than_buffer() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final byte[] data = Hex.decode("a0a40000023f00");
+    final ByteBuffer buffer = ByteBuffer.allocate(builder.getSecuredProfile().getCommandPacketLength(data.length) - 1);
+    try {
+      builder.buildCommandPacket(data, Hex.decode("0000000001"), CIPHERING_KEY, SIGNATURE_KEY, buffer);
+      fail("BufferOverflowException expected");
+    } catch (BufferOverflowException e) {
+      assertEquals(0, buffer.position());
+    }
+  }
+
+  @Test
+  public void should_recover_response_into_view_without_copy() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final ResponsePacketView view = new ResponsePacketView();
+    for (int i = 0; i < 3; i++) {
+      final byte[] data = Hex.decode("01020304050607");
+      final byte[] counter = Hex.decode("00000001f" + i);
+      final byte[] response = builder.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.CNTR_LOW);
+      final ResponsePacket expected = builder.recoverResponsePacket(response, CIPHERING_KEY, SIGNATURE_KEY);
+
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(response.length + 4);
+      buffer.position(4);
+      buffer.put(response);
+      buffer.flip();
+      buffer.position(4);
+      assertSame(view, builder.recoverResponsePacket(buffer, CIPHERING_KEY, SIGNATURE_KEY, view));
+      assertEquals(4, buffer.position());
+
+      assertEquals(0xb00010, view.getTARValue());
+      assertEquals(0x1f0L + i, view.getCounterValue());
+      assertEquals(0x02, view.getStatusCode());
+      assertEquals(ResponsePacketStatus.CNTR_LOW, view.getResponseStatus());
+      assertEquals(data.length, view.getDataLength());
+      final ByteBuffer slice = view.getData();
+      assertTrue(slice.isReadOnly());
+      final byte[] sliced = new byte[slice.remaining()];
+      slice.get(sliced);
+      assertArrayEquals(data, sliced);
+      assertEquals(expected, view.toResponsePacket());
+    }
+  }
+
+  @Test
+  public void should_recover_command_into_view_deciphering_in_place() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP));
+    final byte[] data = new byte[300];
+    new Random(3).nextBytes(data);
+    final byte[] command = builder.buildCommandPacket(data, Hex.decode("0000000005"), CIPHERING_KEY, SIGNATURE_KEY);
+    final byte[] copy = command.clone();
+
+    final CommandPacket expected = builder.recoverCommandPacket(command, CIPHERING_KEY, SIGNATURE_KEY);
+    assertArrayEquals(copy, command);
+
+    final CommandPacketView view = builder.recoverCommandPacket(ByteBuffer.wrap(command), CIPHERING_KEY, SIGNATURE_KEY, null);
+    assertEquals(builder.getSecuredProfile().getCommandSPI(), view.getCommandSPI());
+    assertEquals(builder.getSecuredProfile().getKIC(), view.getKIC());
+    assertEquals(5L, view.getCounterValue());
+    assertEquals(command.length, view.getLength());
+    assertArrayEquals(data, Arrays.copyOfRange(command, view.getDataOffset(), view.getDataOffset() + view.getDataLength()));
+    assertEquals(expected, view.toCommandPacket());
+  }
+
+  @Test(expected = Gsm0348Exception.class)
+  public void should_reject_tampered_response_view() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final byte[] response = builder.buildResponsePacket(Hex.decode("0102"), Hex.decode("0000000001"), CIPHERING_KEY, SIGNATURE_KEY,
+        ResponsePacketStatus.POR_OK);
+    response[response.length - 1] ^= 0x01;
+    builder.recoverResponsePacket(ByteBuffer.wrap(response), CIPHERING_KEY, SIGNATURE_KEY, new ResponsePacketView());
+  }
+
+  @Test
+  public void should_build_and_recover_with_key_handle() throws Exception {
+    for (final TransportProtocol transportProtocol : new TransportProtocol[]{ TransportProtocol.SMS_PP, TransportProtocol.CAT_TP }) {
+      final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(transportProtocol));
+      final KeyHandle keys = builder.createKeyHandle(CIPHERING_KEY, SIGNATURE_KEY);
+      final ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+      for (int i = 0; i < 3; i++) {
+        final byte[] data = new byte[17 * i + 3];
+        new Random(i).nextBytes(data);
+        final byte[] counter = Hex.decode("000000000" + i);
+
+        final byte[] command = builder.buildCommandPacket(keys, data, counter);
+        assertArrayEquals(builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY), command);
+        assertEquals(builder.recoverCommandPacket(command, CIPHERING_KEY, SIGNATURE_KEY), builder.recoverCommandPacket(keys, command));
+
+        final byte[] response = builder.buildResponsePacket(keys, data, counter, ResponsePacketStatus.POR_OK);
+        assertArrayEquals(builder.buildResponsePacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK), response);
+        buffer.clear();
+        buffer.put(response);
+        buffer.flip();
+        final ResponsePacketView view = builder.recoverResponsePacket(keys, buffer, null);
+        assertEquals(builder.recoverResponsePacket(response, CIPHERING_KEY, SIGNATURE_KEY), view.toResponsePacket());
+      }
+    }
+  }
+
+  @Test
+  public void should_keep_key_handle_usable_after_failure() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final KeyHandle keys = builder.createKeyHandle(CIPHERING_KEY, SIGNATURE_KEY);
+    final byte[] response = builder.buildResponsePacket(keys, Hex.decode("0102"), Hex.decode("0000000001"), ResponsePacketStatus.POR_OK);
+    final byte[] tampered = response.clone();
+    tampered[tampered.length - 1] ^= 0x01;
+    try {
+      builder.recoverResponsePacket(keys, tampered);
+      fail("Expecting signature failure");
+    } catch (Gsm0348Exception e) {
+      // Expected
+    }
+    assertArrayEquals(Hex.decode("0102"), builder.recoverResponsePacket(keys, response).getData());
+  }
+
+  @Test
+  public void should_recover_other_security_with_key_handle() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(cardProfile);
+    final KeyHandle keys = builder.createKeyHandle(CIPHERING_KEY, SIGNATURE_KEY);
+
+    cardProfile.getSPI().getCommandSPI().setCertificationMode(CertificationMode.NO_SECURITY);
+    final byte[] command = new ImmutablePacketBuilder(cardProfile).buildCommandPacket(Hex.decode("01020304"), Hex.decode("0000000001"),
+        CIPHERING_KEY, SIGNATURE_KEY);
+
+    assertArrayEquals(Hex.decode("01020304"), builder.recoverCommandPacket(keys, command).getData());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void should_not_use_destroyed_key_handle() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final KeyHandle keys = builder.createKeyHandle(CIPHERING_KEY, SIGNATURE_KEY);
+    keys.destroy();
+    assertTrue(keys.isDestroyed());
+    builder.buildCommandPacket(keys, Hex.decode("01"), Hex.decode("0000000001"));
+  }
+
+  @Test
+  public void should_build_single_short_message() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final byte[] data = Hex.decode("a0a40000023f00");
+    final byte[] counter = Hex.decode("0000000001");
+    final byte[] packet = builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY);
+
+    final ByteBuffer buffer = ByteBuffer.allocate(ImmutablePacketBuilder.SMS_USER_DATA_SIZE);
+    assertEquals(1, builder.buildCommandSegments(data, counter, CIPHERING_KEY, SIGNATURE_KEY, 7, buffer));
+    assertEquals(3 + packet.length, buffer.position());
+    assertEquals(buffer.position(), builder.getCommandSegmentsLength(data.length, 7));
+    assertArrayEquals(Hex.decode("027000" + Hex.toHexString(packet)), Arrays.copyOf(buffer.array(), buffer.position()));
+  }
+
+  @Test
+  public void should_build_concatenated_short_messages() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    final byte[] data = new byte[400];
+    new Random(1).nextBytes(data);
+    final byte[] counter = Hex.decode("0000000002");
+    final byte[] packet = builder.buildCommandPacket(data, counter, CIPHERING_KEY, SIGNATURE_KEY);
+
+    for (int reference : new int[]{ 0x42, 0x1234 }) {
+      final int concatenationLength = reference > 0xff ? 6 : 5;
+      final int count = builder.getCommandSegmentCount(data.length, reference);
+      final int length = builder.getCommandSegmentsLength(data.length, reference);
+      for (ByteBuffer buffer : new ByteBuffer[]{ ByteBuffer.allocate(length + 4), ByteBuffer.allocateDirect(length + 4) }) {
+        buffer.position(4);
+        assertEquals(count, builder.buildCommandSegments(data, counter, CIPHERING_KEY, SIGNATURE_KEY, reference, buffer));
+        assertEquals(4 + length, buffer.position());
+
+        final ByteBuffer reassembled = ByteBuffer.allocate(packet.length);
+        for (int segment = 0; segment < count; segment++) {
+          final int start = 4 + segment * ImmutablePacketBuilder.SMS_USER_DATA_SIZE;
+          final int end = Math.min(start + ImmutablePacketBuilder.SMS_USER_DATA_SIZE, buffer.position());
+          final int headerLength = 1 + (buffer.get(start) & 0xff);
+          assertEquals(concatenationLength + (segment == 0 ? 2 : 0), headerLength - 1);
+          assertEquals(reference > 0xff ? 0x08 : 0x00, buffer.get(start + 1));
+          assertEquals(count, buffer.get(start + concatenationLength - 1));
+          assertEquals(segment + 1, buffer.get(start + concatenationLength));
+          if (segment == 0) {
+            assertEquals(0x70, buffer.get(start + concatenationLength + 1));
+            assertEquals(0x00, buffer.get(start + concatenationLength + 2));
+          }
+          for (int i = start + headerLength; i < end; i++) {
+            reassembled.put(buffer.get(i));
+          }
+        }
+        assertArrayEquals(packet, reassembled.array());
+      }
+    }
+  }
+
+  @Test(expected = BufferOverflowException.class)
+  public void should_not_build_short_messages_into_small_buffer() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP));
+    builder.buildCommandSegments(new byte[200], Hex.decode("0000000001"), CIPHERING_KEY, SIGNATURE_KEY, 1,
+        ByteBuffer.allocate(builder.getCommandSegmentsLength(200, 1) - 1));
+  }
+
+  @Test(expected = PacketBuilderConfigurationException.class)
+  public void should_build_short_messages_only_for_sms_pp() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP));
+    builder.buildCommandSegments(Hex.decode("01"), Hex.decode("0000000001"), CIPHERING_KEY, SIGNATURE_KEY, 1, ByteBuffer.allocate(140));
+  }
+
+  private static CardProfile createProfile(final TransportProtocol transportProtocol) {
+    final CardProfile cardProfile = TestProfiles.createProfile(transportProtocol.value() + " 3DES", 1, transportProtocol);
+    cardProfile.getKIC().setCipheringAlgorithmMode(CipheringAlgorithmMode.TRIPLE_DES_CBC_2_KEYS);
+    cardProfile.getKID().setCertificationAlgorithmMode(CertificationAlgorithmMode.TRIPLE_DES_CBC_3_KEYS);
+    cardProfile.getSPI().getResponseSPI().setCiphered(true);
+    cardProfile.getSPI().getResponseSPI().setPoRCertificateMode(CertificationMode.CC);
+    return cardProfile;
+  }
+}
@@ -0,0 +1,219 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class MappedCounterStoreTest {
+
+  private static final byte[] KEY = Hex.decode("0123456789abcdef");
+
+  private Path file;
+
+  @Before
+  public void setup() throws Exception {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    file = Files.createTempFile("counters", ".dat");
+    Files.delete(file);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.deleteIfExists(file);
+  }
+
+  @Test
+  public void should_allocate_counters_per_card_and_keyset() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16)) {
+      assertEquals(0, store.getCounter(1L, 1));
+      assertEquals(1, store.nextCounter(1L, 1));
+      assertEquals(2, store.nextCounter(1L, 1));
+      assertEquals(1, store.nextCounter(1L, 2));
+      assertEquals(1, store.nextCounter(2L, 1));
+      assertEquals(2, store.getCounter(1L, 1));
+      assertEquals(3, store.size());
+    }
+  }
+
+  @Test
+  public void should_keep_counters_across_reopening() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16, false)) {
+      for (int i = 0; i < 10; i++) {
+        store.nextCounter(8900000000000000001L, 1);
+      }
+      store.updateCounter(8900000000000000002L, 3, 0x1000);
+    }
+    try (MappedCounterStore store = new MappedCounterStore(file, 1)) {
+      assertEquals(16, store.getCapacity());
+      assertEquals(2, store.size());
+      assertEquals(11, store.nextCounter(8900000000000000001L, 1));
+      assertEquals(0x1001, store.nextCounter(8900000000000000002L, 3));
+    }
+  }
+
+  @Test
+  public void should_only_move_counters_forward() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16)) {
+      store.updateCounter(5L, 0, 100);
+      store.updateCounter(5L, 0, 50);
+      assertEquals(101, store.nextCounter(5L, 0));
+
+      store.updateCounter(6L, 0, CounterStore.MAX_COUNTER);
+      try {
+        store.nextCounter(6L, 0);
+        fail("Expecting exhausted counter");
+      } catch (Gsm0348Exception e) {
+        assertEquals(CounterStore.MAX_COUNTER, store.getCounter(6L, 0));
+      }
+    }
+  }
+
+  @Test(expected = Gsm0348Exception.class)
+  public void should_reject_cards_beyond_capacity() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 2)) {
+      store.nextCounter(1L, 0);
+      store.nextCounter(2L, 0);
+      store.nextCounter(3L, 0);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void should_reject_other_files() throws Exception {
+    Files.write(file, new byte[64]);
+    new MappedCounterStore(file, 16).close();
+  }
+
+  @Test
+  public void should_allocate_unique_counters_from_threads() throws Exception {
+    final int threads = 8;
+    final int cards = 10;
+    final int perThread = 200;
+    try (final MappedCounterStore store = new MappedCounterStore(file, 64)) {
+      final ExecutorService executor = Executors.newFixedThreadPool(threads);
+      try {
+        final List<Future<List<Long>>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          results.add(executor.submit(new Callable<List<Long>>() {
+            @Override
+            public List<Long> call() throws Exception {
+              final List<Long> counters = new ArrayList<>();
+              for (int i = 0; i < perThread; i++) {
+                final long card = i % cards;
+                final long counter = store.nextCounter(card, 1);
+                // The counters of a card seen by one thread only go up
+                assertTrue(counters.size() < cards || counter > counters.get(counters.size() - cards) >>> 8);
+                counters.add(counter << 8 | card);
+              }
+              return counters;
+            }
+          }));
+        }
+        final Set<Long> unique = new HashSet<>();
+        for (Future<List<Long>> result : results) {
+          unique.addAll(result.get());
+        }
+        assertEquals(threads * perThread, unique.size());
+        for (int card = 0; card < cards; card++) {
+          assertEquals(threads * perThread / cards, store.getCounter(card, 1));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  @Test
+  public void should_build_commands_with_stored_counters() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16)) {
+      final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(SecuredProfile.compile(createProfile()), store);
+      final byte[] data = Hex.decode("a0a40000023f00");
+      for (int i = 1; i <= 3; i++) {
+        final byte[] packet = builder.buildCommandPacket(42L, data, KEY, KEY);
+        assertArrayEquals(Hex.decode("000000000" + i), builder.recoverCommandPacket(packet, KEY, KEY).getHeader().getCounter());
+      }
+      assertEquals(3, store.getCounter(42L, 2));
+    }
+  }
+
+  @Test
+  public void should_only_release_the_last_counter() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16)) {
+      assertEquals(1, store.nextCounter(42L, 1));
+      assertEquals(2, store.nextCounter(42L, 1));
+      assertFalse(store.releaseCounter(42L, 1, 1));
+      assertFalse(store.releaseCounter(43L, 1, 1));
+      assertTrue(store.releaseCounter(42L, 1, 2));
+      assertEquals(1, store.getCounter(42L, 1));
+      assertEquals(2, store.nextCounter(42L, 1));
+    }
+  }
+
+  @Test
+  public void should_not_consume_counters_of_packets_not_built() throws Exception {
+    try (MappedCounterStore store = new MappedCounterStore(file, 16)) {
+      final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(SecuredProfile.compile(createProfile()), store);
+      final byte[] data = Hex.decode("a0a40000023f00");
+      try {
+        builder.buildCommandPacket(42L, data, KEY, KEY, ByteBuffer.allocate(8));
+        fail("Packet built in a too small buffer");
+      } catch (BufferOverflowException e) {
+        assertEquals(0, store.getCounter(42L, 2));
+      }
+      try {
+        builder.buildCommandPacket(42L, data, KEY, null);
+        fail("Packet built without signature key");
+      } catch (PacketBuilderConfigurationException e) {
+        assertEquals(0, store.getCounter(42L, 2));
+      }
+      try {
+        builder.buildCommandPacket(42L, data, KEY, Hex.decode("0123456789"));
+        fail("Packet built with a short signature key");
+      } catch (Gsm0348Exception | IllegalArgumentException e) {
+        assertEquals(0, store.getCounter(42L, 2));
+      }
+      final byte[] packet = builder.buildCommandPacket(42L, data, KEY, KEY);
+      assertArrayEquals(Hex.decode("0000000001"), builder.recoverCommandPacket(packet, KEY, KEY).getHeader().getCounter());
+    }
+  }
+
+  @Test(expected = PacketBuilderConfigurationException.class)
+  public void should_require_counter_store_without_counter() throws Exception {
+    new ImmutablePacketBuilder(createProfile()).buildCommandPacket(42L, Hex.decode("01"), KEY, KEY);
+  }
+
+  private static CardProfile createProfile() {
+    final CardProfile cardProfile = TestProfiles.createProfile("Counted DES", 2, TransportProtocol.SMS_PP);
+    cardProfile.getSPI().getCommandSPI().setSynchroCounterMode(SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT);
+    return cardProfile;
+  }
+}
@@ -0,0 +1,151 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.ResponsePacket;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class PacketDispatcherTest {
+
+  private static final byte[] KEY = Hex.decode("0123456789abcdef");
+  private static final byte[] COUNTER = Hex.decode("0000000001");
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_recover_responses_with_builder_of_tar() throws Exception {
+    final ImmutablePacketBuilder plain = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, "b00010", false));
+    final ImmutablePacketBuilder secured = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, "b00020", true));
+    final PacketDispatcher dispatcher = new PacketDispatcher(TransportProtocol.SMS_PP);
+    assertNull(dispatcher.register(plain));
+    assertNull(dispatcher.register(secured));
+    assertEquals(2, dispatcher.size());
+
+    final byte[] data = Hex.decode("9000");
+    final byte[] plainPacket = plain.buildResponsePacket(data, COUNTER, null, null, ResponsePacketStatus.POR_OK);
+    final byte[] securedPacket = secured.buildResponsePacket(data, COUNTER, KEY, KEY, ResponsePacketStatus.POR_OK);
+
+    assertEquals(0xb00010, dispatcher.peekResponseTAR(ByteBuffer.wrap(plainPacket)));
+    assertEquals(0xb00020, PacketDispatcher.peekResponseTAR(TransportProtocol.SMS_PP, ByteBuffer.wrap(securedPacket)));
+    final ResponsePacket first = dispatcher.recoverResponsePacket(plainPacket, null, null);
+    assertArrayEquals(Hex.decode("b00010"), first.getHeader().getTAR());
+    assertArrayEquals(data, first.getData());
+    final ResponsePacket second = dispatcher.recoverResponsePacket(securedPacket, KEY, KEY);
+    assertArrayEquals(Hex.decode("b00020"), second.getHeader().getTAR());
+    assertArrayEquals(data, second.getData());
+
+    final ResponsePacketView view = dispatcher.recoverResponsePacket(ByteBuffer.wrap(securedPacket.clone()), KEY, KEY, null);
+    assertEquals(0xb00020, view.getTARValue());
+    assertEquals(ResponsePacketStatus.POR_OK, view.getResponseStatus());
+  }
+
+  @Test
+  public void should_peek_tar_after_ber_length() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP, "b00030", true));
+    final PacketDispatcher dispatcher = new PacketDispatcher(TransportProtocol.CAT_TP);
+    dispatcher.register(builder);
+
+    final byte[] data = new byte[200];
+    final byte[] response = builder.buildResponsePacket(data, COUNTER, KEY, KEY, ResponsePacketStatus.POR_OK);
+    final byte[] command = builder.buildCommandPacket(data, COUNTER, KEY, KEY);
+    assertEquals((byte) 0x81, response[1]);
+    assertEquals(0xb00030, dispatcher.peekResponseTAR(ByteBuffer.wrap(response)));
+    assertEquals(0xb00030, dispatcher.peekCommandTAR(ByteBuffer.wrap(command)));
+    assertArrayEquals(data, dispatcher.recoverResponsePacket(response, KEY, KEY).getData());
+    assertArrayEquals(data, dispatcher.recoverCommandPacket(command, KEY, KEY).getData());
+  }
+
+  @Test
+  public void should_reject_unknown_tar() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, "b00010", false));
+    final PacketDispatcher dispatcher = new PacketDispatcher(TransportProtocol.SMS_PP);
+    dispatcher.register(builder);
+    final byte[] packet = builder.buildResponsePacket(Hex.decode("9000"), COUNTER, null, null, ResponsePacketStatus.POR_OK);
+
+    assertSame(builder, dispatcher.unregister(0xb00010));
+    assertEquals(0, dispatcher.size());
+    try {
+      dispatcher.recoverResponsePacket(packet, null, null);
+      fail("Expecting unknown TAR");
+    } catch (Gsm0348Exception e) {
+      assertEquals("No builder registered for TAR B00010", e.getMessage());
+    }
+  }
+
+  @Test
+  public void should_keep_many_tars() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, "b00010", false));
+    final PacketDispatcher dispatcher = new PacketDispatcher(TransportProtocol.SMS_PP);
+    for (int tar = 0; tar < 1000; tar++) {
+      dispatcher.register(tar * 4099, builder);
+    }
+    assertSame(builder, dispatcher.register(0, builder));
+    for (int tar = 0; tar < 1000; tar += 2) {
+      dispatcher.unregister(tar * 4099);
+    }
+    assertEquals(500, dispatcher.size());
+    assertSame(builder, dispatcher.getBuilder(999 * 4099));
+    assertNull(dispatcher.getBuilder(998 * 4099));
+  }
+
+  @Test(expected = Gsm0348Exception.class)
+  public void should_reject_other_framing() throws Exception {
+    new PacketDispatcher(TransportProtocol.USSD).peekResponseTAR(ByteBuffer.wrap(Hex.decode("020d0cb00010")));
+  }
+
+  @Test
+  public void should_reject_malformed_ber_length() throws Exception {
+    final PacketDispatcher dispatcher = new PacketDispatcher(TransportProtocol.CAT_TP);
+    try {
+      dispatcher.peekResponseTAR(ByteBuffer.wrap(Hex.decode("02850000000012b00010")));
+      fail("Expecting malformed length");
+    } catch (Gsm0348Exception e) {
+      assertEquals("Encoded length has too many octets", e.getMessage());
+    }
+    try {
+      dispatcher.recoverCommandPacket(Hex.decode("01850000000012b00010"), KEY, KEY);
+      fail("Expecting malformed length");
+    } catch (Gsm0348Exception e) {
+      assertEquals("Encoded length has too many octets", e.getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_builder_of_other_transport() throws Exception {
+    new PacketDispatcher(TransportProtocol.USSD)
+        .register(new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, "b00010", false)));
+  }
+
+  private static CardProfile createProfile(final TransportProtocol transportProtocol, final String tar, final boolean secured) {
+    final CardProfile cardProfile = TestProfiles.createProfile("Dispatched " + tar, 1, transportProtocol);
+    cardProfile.setTAR(Hex.decode(tar));
+    final CertificationMode certificationMode = secured ? CertificationMode.CC : CertificationMode.NO_SECURITY;
+    cardProfile.getSPI().getCommandSPI().setCertificationMode(certificationMode);
+    cardProfile.getSPI().getCommandSPI().setCiphered(secured);
+    cardProfile.getSPI().getCommandSPI().setSynchroCounterMode(SynchroCounterMode.COUNTER_NO_REPLAY_NO_CHECK);
+    cardProfile.getSPI().getResponseSPI().setCiphered(secured);
+    cardProfile.getSPI().getResponseSPI().setPoRCertificateMode(certificationMode);
+    return cardProfile;
+  }
+}
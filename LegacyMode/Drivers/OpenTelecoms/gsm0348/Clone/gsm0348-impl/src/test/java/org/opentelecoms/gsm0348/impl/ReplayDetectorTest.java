@@ -0,0 +1,109 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class ReplayDetectorTest {
+
+  private static final byte[] KEY = Hex.decode("0123456789abcdef");
+  private static final int TAR = 0xb00010;
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_require_increment_by_one() {
+    final ReplayDetector detector = new ReplayDetector();
+    final SynchroCounterMode mode = SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT;
+    assertEquals(ResponsePacketStatus.CNTR_HIGH, detector.check(1L, TAR, 1, mode, 2));
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, mode, 1));
+    assertEquals(ResponsePacketStatus.CNTR_LOW, detector.check(1L, TAR, 1, mode, 1));
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, mode, 2));
+    assertEquals(ResponsePacketStatus.CNTR_HIGH, detector.check(1L, TAR, 1, mode, 4));
+    assertEquals(2, detector.getCounter(1L, TAR, 1));
+  }
+
+  @Test
+  public void should_require_higher_counter() {
+    final ReplayDetector detector = new ReplayDetector(0, 100);
+    final SynchroCounterMode mode = SynchroCounterMode.COUNTER_REPLAY_OR_CHECK;
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, mode, 50));
+    assertEquals(ResponsePacketStatus.CNTR_LOW, detector.check(1L, TAR, 1, mode, 50));
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, mode, 150));
+    assertEquals(ResponsePacketStatus.CNTR_HIGH, detector.check(1L, TAR, 1, mode, 251));
+    assertEquals(150, detector.getCounter(1L, TAR, 1));
+  }
+
+  @Test
+  public void should_not_check_without_replay_detection() {
+    final ReplayDetector detector = new ReplayDetector();
+    detector.setCounter(1L, TAR, 1, 10);
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, SynchroCounterMode.COUNTER_NO_REPLAY_NO_CHECK, 3));
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(1L, TAR, 1, SynchroCounterMode.NO_COUNTER, 0));
+    assertEquals(10, detector.getCounter(1L, TAR, 1));
+  }
+
+  @Test
+  public void should_block_exhausted_counter() {
+    final ReplayDetector detector = new ReplayDetector();
+    detector.setCounter(1L, TAR, 1, CounterStore.MAX_COUNTER - 1);
+    assertEquals(ResponsePacketStatus.POR_OK,
+        detector.check(1L, TAR, 1, SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT, CounterStore.MAX_COUNTER));
+    assertEquals(ResponsePacketStatus.CNTR_BLOCKED,
+        detector.check(1L, TAR, 1, SynchroCounterMode.COUNTER_REPLAY_OR_CHECK, CounterStore.MAX_COUNTER));
+  }
+
+  @Test
+  public void should_keep_counters_per_card_tar_and_keyset() {
+    final ReplayDetector detector = new ReplayDetector(1000, 0);
+    final SynchroCounterMode mode = SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT;
+    for (int round = 1; round <= 3; round++) {
+      for (long card = 0; card < 5000; card++) {
+        assertEquals(ResponsePacketStatus.POR_OK, detector.check(card, TAR, 1, mode, round));
+        assertEquals(ResponsePacketStatus.POR_OK, detector.check(card, TAR + 1, 1, mode, round));
+        assertEquals(ResponsePacketStatus.POR_OK, detector.check(card, TAR, 2, mode, round));
+      }
+    }
+    assertEquals(15000, detector.size());
+    assertEquals(3, detector.getCounter(4999L, TAR, 2));
+    assertEquals(0, detector.getCounter(5000L, TAR, 2));
+  }
+
+  @Test
+  public void should_check_recovered_command() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile());
+    final ReplayDetector detector = new ReplayDetector();
+    final byte[] first = builder.buildCommandPacket(Hex.decode("01"), Hex.decode("0000000001"), KEY, KEY);
+    final byte[] third = builder.buildCommandPacket(Hex.decode("01"), Hex.decode("0000000003"), KEY, KEY);
+
+    assertEquals(ResponsePacketStatus.POR_OK, detector.check(7L, recover(builder, first)));
+    assertEquals(ResponsePacketStatus.CNTR_LOW, detector.check(7L, recover(builder, first)));
+    assertEquals(ResponsePacketStatus.CNTR_HIGH, detector.check(7L, recover(builder, third)));
+    assertEquals(1, detector.getCounter(7L, TAR, 3));
+  }
+
+  private static CommandPacketView recover(final ImmutablePacketBuilder builder, final byte[] packet) throws Exception {
+    return builder.recoverCommandPacket(ByteBuffer.wrap(packet.clone()), KEY, KEY, null);
+  }
+
+  private static CardProfile createProfile() {
+    final CardProfile cardProfile = TestProfiles.createProfile("Replay DES", 3, TransportProtocol.SMS_PP);
+    cardProfile.getSPI().getCommandSPI().setSynchroCounterMode(SynchroCounterMode.COUNTER_REPLAY_OR_CHECK_INCREMENT);
+    return cardProfile;
+  }
+}
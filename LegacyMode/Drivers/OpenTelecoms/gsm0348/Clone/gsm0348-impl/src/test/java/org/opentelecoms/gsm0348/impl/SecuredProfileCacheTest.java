@@ -0,0 +1,93 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.crypto.SignatureManager;
+
+public class SecuredProfileCacheTest {
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_pack_header() {
+    final byte[] packet = Hex.decode("1516091111b000100102");
+    assertEquals(0x16091111b00010L, SecuredProfileCache.pack(packet, 1));
+    assertEquals(0x16091111b00010L, SecuredProfileCache.pack(ByteBuffer.wrap(packet), 1));
+    assertEquals(0x1111b000100102L, SecuredProfileCache.pack(packet, 3));
+  }
+
+  @Test
+  public void should_intern_profiles() throws Exception {
+    final SecuredProfileCache cache = new SecuredProfileCache(TransportProtocol.SMS_PP);
+    final SecuredProfile profile = cache.get(Hex.decode("16091111b00010"), 0);
+
+    assertEquals(TransportProtocol.SMS_PP, profile.getTransportProtocol());
+    assertEquals("DES/CBC/NoPadding", profile.getCipheringAlgorithmName());
+    assertEquals(SignatureManager.DES_MAC8_ISO9797_M1, profile.getSignatureAlgorithmName());
+    assertEquals(0xb00010, profile.getTARValue());
+    assertSame(profile, cache.get(Hex.decode("0016091111b00010"), 1));
+    assertSame(profile, cache.get(ByteBuffer.wrap(Hex.decode("0016091111b00010")), 1));
+
+    final SecuredProfile other = cache.get(Hex.decode("16091111b00011"), 0);
+    assertNotSame(profile, other);
+    assertEquals(0xb00011, other.getTARValue());
+    assertEquals(2, cache.size());
+  }
+
+  @Test
+  public void should_intern_no_security_header() throws Exception {
+    final SecuredProfileCache cache = new SecuredProfileCache(TransportProtocol.CAT_TP);
+    final SecuredProfile profile = cache.get(0L);
+
+    assertFalse(profile.isCommandCiphering());
+    assertFalse(profile.isCommandSigning());
+    assertSame(profile, cache.get(new byte[7], 0));
+  }
+
+  @Test
+  public void should_use_configured_algorithms() throws Exception {
+    final SecuredProfileCache cache = new SecuredProfileCache(TransportProtocol.SMS_PP, null, SignatureManager.AES_CMAC_32, 16);
+    final SecuredProfile profile = cache.get(Hex.decode("16001212b00010"), 0);
+
+    assertEquals("AES/CBC/NoPadding", profile.getCipheringAlgorithmName());
+    assertEquals(SignatureManager.AES_CMAC_32, profile.getSignatureAlgorithmName());
+    assertEquals(SignatureManager.AES_CMAC_64,
+        new SecuredProfileCache(TransportProtocol.SMS_PP).get(Hex.decode("16001212b00010"), 0).getSignatureAlgorithmName());
+  }
+
+  @Test
+  public void should_not_keep_more_than_maximum_size() throws Exception {
+    final SecuredProfileCache cache = new SecuredProfileCache(TransportProtocol.SMS_PP, null, null, 4);
+    for (int tar = 0; tar < 10; tar++) {
+      cache.get(0x16091111b00000L | tar);
+    }
+    assertEquals(4, cache.size());
+    assertSame(cache.get(0x16091111b00000L), cache.get(0x16091111b00000L));
+    assertNotSame(cache.get(0x16091111b00009L), cache.get(0x16091111b00009L));
+    assertTrue(cache.get(0x16091111b00009L).isCommandCiphering());
+  }
+
+  @Test(expected = PacketBuilderConfigurationException.class)
+  public void should_reject_unsupported_header() throws Exception {
+    // Proprietary ciphering without a configured algorithm name
+    new SecuredProfileCache(TransportProtocol.SMS_PP).get(Hex.decode("04000300b00010"), 0);
+  }
+}
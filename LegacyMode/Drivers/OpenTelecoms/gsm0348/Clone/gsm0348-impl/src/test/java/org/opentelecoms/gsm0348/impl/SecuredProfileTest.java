@@ -0,0 +1,116 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.PoRProtocol;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class SecuredProfileTest {
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_precompute_sms_header() throws Exception {
+    final SecuredProfile profile = SecuredProfile.compile(createProfile(TransportProtocol.SMS_PP));
+
+    assertEquals("DES/CBC/NoPadding", profile.getCipheringAlgorithmName());
+    assertEquals("DES_MAC8_ISO9797_M1", profile.getSignatureAlgorithmName());
+    assertEquals(8, profile.getCipherBlockSize());
+    assertEquals(8, profile.getSignatureSize());
+    assertEquals(0x15, profile.getCommandHeaderLength());
+    assertEquals(0x12, profile.getResponseHeaderLength());
+    assertEquals(0xb00010, profile.getTARValue());
+    assertArrayEquals(Hex.decode("1516091111b00010"), profile.commandHeaderClear());
+    assertArrayEquals(Hex.decode("12b00010"), profile.responseHeaderClear());
+  }
+
+  @Test
+  public void should_ber_encode_command_header_length() throws Exception {
+    final SecuredProfile profile = SecuredProfile.compile(createProfile(TransportProtocol.CAT_TP));
+
+    assertArrayEquals(Hex.decode("1516091111b00010"), profile.commandHeaderClear());
+  }
+
+  @Test
+  public void should_not_be_affected_by_card_profile_changes() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    final SecuredProfile profile = SecuredProfile.compile(cardProfile);
+
+    cardProfile.getTAR()[0] = 0x01;
+    cardProfile.getSPI().getCommandSPI().setCiphered(false);
+
+    assertArrayEquals(Hex.decode("b00010"), profile.getTAR());
+    assertTrue(profile.isCommandCiphering());
+
+    final CardProfile copy = profile.toCardProfile();
+    assertNotSame(copy, profile.toCardProfile());
+    assertArrayEquals(Hex.decode("b00010"), copy.getTAR());
+    assertTrue(copy.getSPI().getCommandSPI().isCiphered());
+    assertEquals(cardProfile.getName(), copy.getName());
+    assertEquals(CertificationAlgorithmMode.DES_CBC, copy.getKID().getCertificationAlgorithmMode());
+  }
+
+  @Test
+  public void should_derive_profile_from_command_header() throws Exception {
+    final SecuredProfile profile = SecuredProfile.compile(createProfile(TransportProtocol.SMS_PP));
+
+    assertSame(profile, profile.withCommandHeader((byte) 0x16, (byte) 0x09, (byte) 0x11, (byte) 0x11));
+
+    final SecuredProfile plain = profile.withCommandHeader((byte) 0x00, (byte) 0x09, (byte) 0x00, (byte) 0x00);
+    assertFalse(plain.isCommandCiphering());
+    assertFalse(plain.isCommandSigning());
+    assertTrue(plain.isUsingCounter());
+    assertEquals(0x0d, plain.getCommandHeaderLength());
+    assertArrayEquals(Hex.decode("0d00090000b00010"), plain.commandHeaderClear());
+    assertSame(plain, profile.withCommandHeader((byte) 0x00, (byte) 0x09, (byte) 0x00, (byte) 0x00));
+  }
+
+  @Test(expected = PacketBuilderConfigurationException.class)
+  public void should_reject_missing_tar() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    cardProfile.setTAR(null);
+    SecuredProfile.compile(cardProfile);
+  }
+
+  @Test
+  public void should_not_resolve_algorithms_without_security() throws Exception {
+    final CardProfile cardProfile = createProfile(TransportProtocol.SMS_PP);
+    cardProfile.getSPI().getCommandSPI().setCiphered(false);
+    cardProfile.getSPI().getCommandSPI().setCertificationMode(CertificationMode.NO_SECURITY);
+    cardProfile.getSPI().getResponseSPI().setCiphered(false);
+    cardProfile.getSPI().getResponseSPI().setPoRCertificateMode(CertificationMode.NO_SECURITY);
+
+    final SecuredProfile profile = SecuredProfile.compile(cardProfile);
+    assertNull(profile.getCipheringAlgorithmName());
+    assertNull(profile.getSignatureAlgorithmName());
+    assertEquals(0, profile.getCommandSignatureLength());
+  }
+
+  private static CardProfile createProfile(final TransportProtocol transportProtocol) {
+    final CardProfile cardProfile = TestProfiles.createProfile(transportProtocol.value() + " DES", 1, transportProtocol);
+    cardProfile.getSPI().getResponseSPI().setPoRCertificateMode(CertificationMode.CC);
+    cardProfile.getSPI().getResponseSPI().setPoRProtocol(PoRProtocol.SMS_DELIVER_REPORT);
+    return cardProfile;
+  }
+}
@@ -0,0 +1,159 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class ShortMessageReassemblerTest {
+
+  private static final byte[] KEY = Hex.decode("0123456789abcdef");
+  private static final byte[] COUNTER = Hex.decode("0000000001");
+
+  private ImmutablePacketBuilder builder;
+
+  @Before
+  public void setup() throws Exception {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+    builder = new ImmutablePacketBuilder(TestProfiles.createProfile("Concatenated DES", 1, TransportProtocol.SMS_PP));
+  }
+
+  @Test
+  public void should_reassemble_interleaved_messages_in_any_order() throws Exception {
+    final byte[] first = new byte[500];
+    final byte[] second = new byte[300];
+    new Random(3).nextBytes(first);
+    new Random(4).nextBytes(second);
+    final List<ByteBuffer> firstMessages = segments(first, 0x12);
+    final List<ByteBuffer> secondMessages = segments(second, 0x12);
+    Collections.shuffle(firstMessages, new Random(5));
+    Collections.reverse(secondMessages);
+
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 60000);
+    ByteBuffer firstPacket = null;
+    ByteBuffer secondPacket = null;
+    for (int i = 0; i < firstMessages.size(); i++) {
+      firstPacket = reassembler.add(1L, firstMessages.get(i), 0);
+      if (i < secondMessages.size()) {
+        secondPacket = reassembler.add(2L, secondMessages.get(i), 0);
+      }
+      assertEquals(i == firstMessages.size() - 1, firstPacket != null);
+    }
+    assertNotNull(secondPacket);
+    assertEquals(0, reassembler.size());
+    assertEquals(0, reassembler.getOctets());
+
+    assertArrayEquals(first, builder.recoverCommandPacket(firstPacket, KEY, KEY, null).toCommandPacket().getData());
+    assertArrayEquals(second, builder.recoverCommandPacket(secondPacket, KEY, KEY, null).toCommandPacket().getData());
+  }
+
+  @Test
+  public void should_return_single_message_at_once() throws Exception {
+    final byte[] packet = builder.buildCommandPacket(Hex.decode("a0a40000023f00"), COUNTER, KEY, KEY);
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 60000);
+    final ByteBuffer userData = ByteBuffer.wrap(Hex.decode("027000" + Hex.toHexString(packet)));
+
+    assertArrayEquals(packet, reassembler.add(1L, userData).array());
+    assertEquals(0, reassembler.size());
+  }
+
+  @Test
+  public void should_return_message_without_header_at_once() throws Exception {
+    final byte[] packet = builder.buildCommandPacket(Hex.decode("a0a40000023f00"), COUNTER, KEY, KEY);
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 60000);
+
+    // The first octet of the packet would be taken as the length of a user data header
+    assertArrayEquals(packet, reassembler.add(1L, ByteBuffer.wrap(packet), false).array());
+    assertEquals(0, reassembler.size());
+  }
+
+  @Test
+  public void should_keep_8_and_16_bit_references_apart() throws Exception {
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 60000);
+
+    assertNull(reassembler.add(1L, ByteBuffer.wrap(Hex.decode("050003120201aa")), 0));
+    assertNull(reassembler.add(1L, ByteBuffer.wrap(Hex.decode("06080400120202bb")), 0));
+    assertEquals(2, reassembler.size());
+    assertArrayEquals(Hex.decode("aabb"), toArray(reassembler.add(1L, ByteBuffer.wrap(Hex.decode("050003120202bb")), 0)));
+  }
+
+  @Test
+  public void should_ignore_repeated_messages() throws Exception {
+    final byte[] data = new byte[200];
+    final List<ByteBuffer> messages = segments(data, 0x1234);
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 60000);
+
+    assertNull(reassembler.add(1L, messages.get(0), 0));
+    assertNull(reassembler.add(1L, messages.get(0), 0));
+    final ByteBuffer packet = reassembler.add(1L, messages.get(1), 0);
+    assertArrayEquals(data, builder.recoverCommandPacket(packet, KEY, KEY, null).toCommandPacket().getData());
+  }
+
+  @Test
+  public void should_expire_partial_packets() throws Exception {
+    final List<ByteBuffer> messages = segments(new byte[200], 1);
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(16, 1 << 20, 1000);
+
+    assertNull(reassembler.add(1L, messages.get(0), 0));
+    assertNull(reassembler.add(2L, messages.get(0), 500));
+    assertEquals(2, reassembler.size());
+    // The first packet expired before its last message
+    assertNull(reassembler.add(1L, messages.get(1), 1000));
+    assertEquals(1, reassembler.getExpiredCount());
+    assertNotNull(reassembler.add(2L, messages.get(1), 1000));
+    assertEquals(1, reassembler.size());
+  }
+
+  @Test
+  public void should_drop_oldest_partial_packets_when_full() throws Exception {
+    final List<ByteBuffer> messages = segments(new byte[200], 1);
+    final ShortMessageReassembler reassembler = new ShortMessageReassembler(3, 1 << 20, 60000);
+
+    for (long source = 0; source < 10; source++) {
+      assertNull(reassembler.add(source, messages.get(0), 0));
+    }
+    assertEquals(3, reassembler.size());
+    assertEquals(7, reassembler.getDroppedCount());
+    assertEquals(3 * 2 * ImmutablePacketBuilder.SMS_USER_DATA_SIZE, reassembler.getOctets());
+    assertNull(reassembler.add(0L, messages.get(1), 0));
+    assertNotNull(reassembler.add(9L, messages.get(1), 0));
+  }
+
+  @Test(expected = Gsm0348Exception.class)
+  public void should_reject_malformed_header() throws Exception {
+    new ShortMessageReassembler(16, 1 << 20, 60000).add(1L, ByteBuffer.wrap(Hex.decode("05000312")));
+  }
+
+  private static byte[] toArray(final ByteBuffer buffer) {
+    final byte[] result = new byte[buffer.remaining()];
+    buffer.duplicate().get(result);
+    return result;
+  }
+
+  private List<ByteBuffer> segments(final byte[] data, final int reference) throws Exception {
+    final ByteBuffer buffer = ByteBuffer.allocate(builder.getCommandSegmentsLength(data.length, reference));
+    final int count = builder.buildCommandSegments(data, COUNTER, KEY, KEY, reference, buffer);
+    final List<ByteBuffer> messages = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      final int start = i * ImmutablePacketBuilder.SMS_USER_DATA_SIZE;
+      messages.add(ByteBuffer.wrap(buffer.array(), start, Math.min(ImmutablePacketBuilder.SMS_USER_DATA_SIZE, buffer.limit() - start)));
+    }
+    return messages;
+  }
+}
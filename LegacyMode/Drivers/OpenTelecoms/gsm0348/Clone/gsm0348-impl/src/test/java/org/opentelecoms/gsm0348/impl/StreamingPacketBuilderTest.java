@@ -0,0 +1,170 @@
+package org.opentelecoms.gsm0348.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.PacketBuilderConfigurationException;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CipheringAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CommandPacket;
+import org.opentelecoms.gsm0348.api.model.CommandPacketHeader;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+public class StreamingPacketBuilderTest {
+
+  private static final byte[] CIPHERING_KEY = Hex.decode("11223344556677881122334455667788");
+  private static final byte[] SIGNATURE_KEY = Hex.decode("8877665544332211887766554433221188776655443322ff");
+  private static final byte[] COUNTER = Hex.decode("0000000102");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_build_same_packets_as_immutable_builder() throws Exception {
+    for (final TransportProtocol transportProtocol : new TransportProtocol[]{ TransportProtocol.SMS_PP, TransportProtocol.CAT_TP,
+        TransportProtocol.TCP_IP }) {
+      for (final boolean secured : new boolean[]{ true, false }) {
+        final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(transportProtocol, secured));
+        final StreamingPacketBuilder streaming = new StreamingPacketBuilder(builder, 64);
+        for (final int length : new int[]{ 0, 1, 63, 64, 65, 1000, transportProtocol == TransportProtocol.SMS_PP ? 60000 : 300000 }) {
+          final byte[] data = random(length);
+          final byte[] expected = builder.buildCommandPacket(data, COUNTER, CIPHERING_KEY, SIGNATURE_KEY);
+          final byte[] packet = build(streaming, data);
+          assertArrayEquals(transportProtocol + " " + secured + " " + length, expected, packet);
+
+          final ByteArrayOutputStream recovered = new ByteArrayOutputStream();
+          final CommandPacketHeader header = streaming.recoverCommandPacket(Channels.newChannel(new ByteArrayInputStream(packet)),
+              CIPHERING_KEY, SIGNATURE_KEY, Channels.newChannel(recovered));
+          final CommandPacket reference = builder.recoverCommandPacket(packet, CIPHERING_KEY, SIGNATURE_KEY);
+          assertArrayEquals(data, recovered.toByteArray());
+          assertEquals(reference.getHeader(), header);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void should_read_data_from_channel_position() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP, true));
+    final byte[] data = random(5000);
+    final File file = write(data);
+    final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      channel.position(1000);
+      final long length = new StreamingPacketBuilder(builder).buildCommandPacket(channel, COUNTER, CIPHERING_KEY, SIGNATURE_KEY,
+          Channels.newChannel(packet));
+      assertEquals(5000, channel.position());
+      assertEquals(packet.size(), length);
+    }
+    assertArrayEquals(builder.buildCommandPacket(Arrays.copyOfRange(data, 1000, 5000), COUNTER, CIPHERING_KEY, SIGNATURE_KEY),
+        packet.toByteArray());
+  }
+
+  @Test
+  public void should_reject_tampered_packet() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.TCP_IP, true));
+    final StreamingPacketBuilder streaming = new StreamingPacketBuilder(builder, 128);
+    final byte[] packet = build(streaming, random(10000));
+    packet[5000] ^= 0x01;
+    try {
+      streaming.recoverCommandPacket(Channels.newChannel(new ByteArrayInputStream(packet)), CIPHERING_KEY, SIGNATURE_KEY,
+          Channels.newChannel(new ByteArrayOutputStream()));
+      fail("Tampered packet recovered");
+    } catch (Gsm0348Exception e) {
+      assertEquals("Signatures don't match", e.getMessage());
+    }
+  }
+
+  @Test
+  public void should_reject_truncated_packet() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP, true));
+    final StreamingPacketBuilder streaming = new StreamingPacketBuilder(builder);
+    final byte[] packet = build(streaming, random(10000));
+    try {
+      streaming.recoverCommandPacket(Channels.newChannel(new ByteArrayInputStream(Arrays.copyOf(packet, packet.length - 8))),
+          CIPHERING_KEY, SIGNATURE_KEY, Channels.newChannel(new ByteArrayOutputStream()));
+      fail("Truncated packet recovered");
+    } catch (Gsm0348Exception e) {
+      assertEquals("Packet channel ended before the end of the packet", e.getMessage());
+    }
+  }
+
+  @Test(expected = PacketBuilderConfigurationException.class)
+  public void should_reject_data_too_long_for_sms() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, true));
+    build(new StreamingPacketBuilder(builder), new byte[0x10000]);
+  }
+
+  @Test
+  public void should_accept_longest_data_for_sms() throws Exception {
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(createProfile(TransportProtocol.SMS_PP, true));
+    // Clear header, counter, padding counter, signature and seven octets of padding at most
+    final byte[] data = random(0xffff - 8 - 5 - 1 - 8 - 7);
+    assertArrayEquals(builder.buildCommandPacket(data, COUNTER, CIPHERING_KEY, SIGNATURE_KEY),
+        build(new StreamingPacketBuilder(builder), data));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void should_reject_unaligned_chunk_size() throws Exception {
+    new StreamingPacketBuilder(new ImmutablePacketBuilder(createProfile(TransportProtocol.CAT_TP, true)), 100);
+  }
+
+  private byte[] build(final StreamingPacketBuilder streaming, final byte[] data) throws Gsm0348Exception, IOException {
+    final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    try (FileChannel channel = FileChannel.open(write(data).toPath(), StandardOpenOption.READ)) {
+      final long length = streaming.buildCommandPacket(channel, COUNTER, CIPHERING_KEY, SIGNATURE_KEY, Channels.newChannel(packet));
+      assertEquals(packet.size(), length);
+    }
+    return packet.toByteArray();
+  }
+
+  private File write(final byte[] data) throws IOException {
+    final File file = folder.newFile();
+    Files.write(file.toPath(), data);
+    return file;
+  }
+
+  private static byte[] random(final int length) {
+    final byte[] data = new byte[length];
+    new Random(length).nextBytes(data);
+    return data;
+  }
+
+  private static CardProfile createProfile(final TransportProtocol transportProtocol, final boolean secured) {
+    final CardProfile cardProfile = TestProfiles.createProfile(transportProtocol.value() + " streaming", 1, transportProtocol);
+    cardProfile.getKIC().setCipheringAlgorithmMode(CipheringAlgorithmMode.TRIPLE_DES_CBC_2_KEYS);
+    cardProfile.getKID().setCertificationAlgorithmMode(CertificationAlgorithmMode.TRIPLE_DES_CBC_3_KEYS);
+    cardProfile.getSPI().getCommandSPI().setCertificationMode(secured ? CertificationMode.CC : CertificationMode.NO_SECURITY);
+    cardProfile.getSPI().getCommandSPI().setCiphered(secured);
+    return cardProfile;
+  }
+}
@@ -0,0 +1,70 @@
+package org.opentelecoms.gsm0348.impl;
+
+import org.opentelecoms.gsm0348.api.model.AlgorithmImplementation;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CipheringAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CommandSPI;
+import org.opentelecoms.gsm0348.api.model.KIC;
+import org.opentelecoms.gsm0348.api.model.KID;
+import org.opentelecoms.gsm0348.api.model.PoRMode;
+import org.opentelecoms.gsm0348.api.model.PoRProtocol;
+import org.opentelecoms.gsm0348.api.model.ResponseSPI;
+import org.opentelecoms.gsm0348.api.model.SPI;
+import org.opentelecoms.gsm0348.api.model.SynchroCounterMode;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+
+/**
+ * Card profiles shared by the tests.
+ */
+public final class TestProfiles {
+
+  private TestProfiles() {
+  }
+
+  /**
+   * Creates a profile ciphering and signing the commands with single DES in CBC mode, with a counter, and always replying with a proof of
+   * receipt in clear. The tests needing another setting change it on the returned profile.
+   *
+   * @param name      - the name of the profile.
+   * @param keyset    - the keyset of both the KIC and the KID, 0 to 15.
+   * @param transport - the transport protocol.
+   * @return the profile
+   */
+  public static CardProfile createProfile(final String name, final int keyset, final TransportProtocol transport) {
+    CardProfile cardProfile = new CardProfile();
+    cardProfile.setName(name);
+    cardProfile.setTransportProtocol(transport);
+    cardProfile.setTAR(new byte[]{ (byte) 0xb0, 0x00, 0x10 });
+
+    KIC kic = new KIC();
+    kic.setAlgorithmImplementation(AlgorithmImplementation.DES);
+    kic.setCipheringAlgorithmMode(CipheringAlgorithmMode.DES_CBC);
+    kic.setKeysetID((byte) keyset);
+    cardProfile.setKIC(kic);
+
+    KID kid = new KID();
+    kid.setAlgorithmImplementation(AlgorithmImplementation.DES);
+    kid.setCertificationAlgorithmMode(CertificationAlgorithmMode.DES_CBC);
+    kid.setKeysetID((byte) keyset);
+    cardProfile.setKID(kid);
+
+    SPI spi = new SPI();
+    CommandSPI commandSPI = new CommandSPI();
+    commandSPI.setCertificationMode(CertificationMode.CC);
+    commandSPI.setCiphered(true);
+    commandSPI.setSynchroCounterMode(SynchroCounterMode.COUNTER_REPLAY_OR_CHECK);
+    spi.setCommandSPI(commandSPI);
+
+    ResponseSPI responseSPI = new ResponseSPI();
+    responseSPI.setCiphered(false);
+    responseSPI.setPoRCertificateMode(CertificationMode.NO_SECURITY);
+    responseSPI.setPoRMode(PoRMode.REPLY_ALWAYS);
+    responseSPI.setPoRProtocol(PoRProtocol.SMS_SUBMIT);
+    spi.setResponseSPI(responseSPI);
+
+    cardProfile.setSPI(spi);
+    return cardProfile;
+  }
+}
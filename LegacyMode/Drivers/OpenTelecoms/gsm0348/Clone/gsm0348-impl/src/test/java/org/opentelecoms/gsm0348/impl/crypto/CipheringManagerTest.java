@@ -1,10 +1,29 @@
 package org.opentelecoms.gsm0348.impl.crypto;
 
+import java.nio.ByteBuffer;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Test;
 
 public class CipheringManagerTest {
 
+  @Before
+  public void setUp() throws Exception {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
   @Test
   public void check_block_alignment() {
     Assert.assertEquals(0, CipheringManager.aligned(0, 8));
@@ -26,4 +45,87 @@ public class CipheringManagerTest {
     Assert.assertEquals(24, CipheringManager.aligned(24, 8));
   }
 
-}
\ No newline at end of file
+  @Test
+  public void cached_cipher_is_reinitialized_on_key_and_mode_change() throws Exception {
+    final byte[] key1 = Hex.decode("0123456789abcdef");
+    final byte[] key2 = Hex.decode("fedcba9876543210");
+    final byte[] data = Hex.decode("4e6f77206973207468652074696d6520");
+
+    final byte[] ciphered1 = CipheringManager.encipher("DES/CBC/NoPadding", key1, data);
+    final byte[] ciphered2 = CipheringManager.encipher("DES/CBC/NoPadding", key2, data);
+    Assert.assertFalse(Arrays.equals(ciphered1, ciphered2));
+
+    // Same key again must give the same result, the cached engine is reset after each doFinal
+    Assert.assertArrayEquals(ciphered1, CipheringManager.encipher("DES/CBC/NoPadding", key1, data));
+    Assert.assertArrayEquals(ciphered1, CipheringManager.encipher("DES/CBC/NoPadding", key1, data));
+
+    Assert.assertArrayEquals(data, CipheringManager.decipher("DES/CBC/NoPadding", key1, ciphered1));
+    Assert.assertArrayEquals(data, CipheringManager.decipher("DES/CBC/NoPadding", key2, ciphered2));
+    Assert.assertArrayEquals(ciphered2, CipheringManager.encipher("DES/CBC/NoPadding", key2, data));
+  }
+
+  @Test
+  public void cached_cipher_is_not_affected_by_caller_key_changes() throws Exception {
+    final byte[] key = Hex.decode("0123456789abcdef");
+    final byte[] data = Hex.decode("4e6f772069732074");
+
+    final byte[] ciphered = CipheringManager.encipher("DES/ECB/NoPadding", key, data);
+    key[0] = 0x11;
+    Assert.assertFalse(Arrays.equals(ciphered, CipheringManager.encipher("DES/ECB/NoPadding", key, data)));
+  }
+
+  @Test
+  public void failed_cipher_is_evicted() throws Exception {
+    final byte[] key = Hex.decode("0123456789abcdef");
+    final byte[] ciphered = CipheringManager.encipher("DES/CBC/NoPadding", key, new byte[8]);
+    final Cipher failed = CipheringManager.getCachedCipherInstance("DES/CBC/NoPadding");
+    Assert.assertNotNull(failed);
+    try {
+      CipheringManager.encipher("DES/CBC/NoPadding", key, new byte[5]);
+      Assert.fail("Unaligned data enciphered");
+    } catch (IllegalBlockSizeException e) {
+      // Expected
+    }
+    Assert.assertNull(CipheringManager.getCachedCipherInstance("DES/CBC/NoPadding"));
+
+    Assert.assertArrayEquals(ciphered, CipheringManager.encipher("DES/CBC/NoPadding", key, new byte[8]));
+    final Cipher fresh = CipheringManager.getCachedCipherInstance("DES/CBC/NoPadding");
+    Assert.assertNotNull(fresh);
+    Assert.assertNotSame(failed, fresh);
+  }
+
+  @Test
+  public void ciphers_buffer_ranges_in_place() throws Exception {
+    final byte[] key = Hex.decode("0123456789abcdeffedcba9876543210");
+    final byte[] data = new byte[1024 + 16];
+    new Random(1).nextBytes(data);
+    final byte[] ciphered = CipheringManager.encipher("DESede/CBC/NoPadding", key, data);
+
+    for (ByteBuffer buffer : new ByteBuffer[]{ ByteBuffer.allocate(data.length + 10), ByteBuffer.allocateDirect(data.length + 10) }) {
+      buffer.position(3);
+      buffer.put(data);
+      buffer.position(1);
+      final ByteBuffer slice = buffer.slice();
+      Assert.assertEquals(data.length, CipheringManager.encipher("DESede/CBC/NoPadding", key, slice, 2, data.length));
+      Assert.assertEquals(0, slice.position());
+      Assert.assertArrayEquals(ciphered, range(slice, 2, data.length));
+
+      Assert.assertEquals(data.length, CipheringManager.decipher("DESede/CBC/NoPadding", key, slice, 2, data.length));
+      Assert.assertArrayEquals(data, range(slice, 2, data.length));
+    }
+  }
+
+  @Test(expected = ShortBufferException.class)
+  public void rejects_output_beyond_buffer_limit() throws Exception {
+    final ByteBuffer buffer = ByteBuffer.allocate(16);
+    CipheringManager.encipher("DES/CBC/PKCS5Padding", Hex.decode("0123456789abcdef"), buffer, 0, 16);
+  }
+
+  private static byte[] range(final ByteBuffer buffer, final int offset, final int length) {
+    final byte[] bytes = new byte[length];
+    final ByteBuffer source = buffer.duplicate();
+    source.position(offset);
+    source.get(bytes);
+    return bytes;
+  }
+}
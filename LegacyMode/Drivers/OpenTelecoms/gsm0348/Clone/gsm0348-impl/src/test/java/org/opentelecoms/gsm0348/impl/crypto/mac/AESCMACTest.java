@@ -0,0 +1,90 @@
+package org.opentelecoms.gsm0348.impl.crypto.mac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AESCMACTest {
+
+  // RFC 4493, section 4
+  private static final byte[] KEY = Hex.decode("2b7e151628aed2a6abf7158809cf4f3c");
+
+  @Before
+  public void setUp() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void test_rfc4493_vectors() throws Exception {
+    final AESCMAC mac = new AESCMAC();
+    mac.init(KEY);
+    final byte[] output = new byte[16];
+    assertEquals(16, mac.doFinal(output, 0));
+    assertArrayEquals(Hex.decode("bb1d6929e95937287fa37d129b756746"), output);
+
+    final byte[] message = Hex.decode("6bc1bee22e409f96e93d7e117393172aae2d8a571e03ac9c9eb76fac45af8e5130c81c46a35ce411");
+    mac.update(message, 0, 16);
+    mac.doFinal(output, 0);
+    assertArrayEquals(Hex.decode("070a16b46b4d4144f79bdd9dd04a287c"), output);
+
+    mac.update(message, 0, 40);
+    mac.doFinal(output, 0);
+    assertArrayEquals(Hex.decode("dfa66747de9ae63030ca32611497c827"), output);
+  }
+
+  @Test
+  public void test_truncated_mac_written_at_offset() throws Exception {
+    final AESCMAC mac = new AESCMAC(8);
+    mac.init(KEY);
+    final byte[] output = new byte[12];
+    mac.update(Hex.decode("6bc1bee22e409f96e93d7e117393172a"), 0, 16);
+    assertEquals(8, mac.doFinal(output, 2));
+    assertArrayEquals(Hex.decode("0000070a16b46b4d41440000"), output);
+  }
+
+  @Test
+  public void test_matches_reference_for_any_split_and_key() throws Exception {
+    final Random random = new Random(4493);
+    final javax.crypto.Mac reference = javax.crypto.Mac.getInstance("AESCMAC", BouncyCastleProvider.PROVIDER_NAME);
+    final AESCMAC mac = new AESCMAC();
+    for (int keyLength : new int[]{ 16, 24, 32, 16 }) {
+      final byte[] key = new byte[keyLength];
+      random.nextBytes(key);
+      reference.init(new SecretKeySpec(key, "AES"));
+      mac.init(key);
+      for (int length = 0; length < 600; length += 1 + random.nextInt(7)) {
+        final byte[] data = new byte[length];
+        random.nextBytes(data);
+
+        int offset = 0;
+        while (offset < length) {
+          final int chunk = Math.min(length - offset, random.nextInt(40));
+          if (chunk == 1) {
+            mac.update(data[offset]);
+          } else {
+            mac.update(data, offset, chunk);
+          }
+          offset += chunk;
+        }
+        final byte[] output = new byte[16];
+        mac.doFinal(output, 0);
+        assertArrayEquals("Key " + keyLength + " length " + length, reference.doFinal(data), output);
+      }
+      // An abandoned message is dropped when the same key is set again
+      mac.update(new byte[20], 0, 20);
+      mac.init(Arrays.copyOf(key, keyLength));
+    }
+  }
+}
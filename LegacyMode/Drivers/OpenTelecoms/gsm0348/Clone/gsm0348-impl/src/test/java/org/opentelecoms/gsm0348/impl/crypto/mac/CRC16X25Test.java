@@ -3,8 +3,12 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Test;
 
+import com.github.snksoft.crc.CRC;
+
 public class CRC16X25Test {
 
   // ETSI 102 225
@@ -23,4 +27,28 @@ public class CRC16X25Test {
     assertEquals(2, bytesCopied);
     assertArrayEquals(new byte[]{ (byte) 0x22, (byte) 0xEC }, crc);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void test_crc16_x25_matches_reference_for_any_split() throws Exception {
+    final CRC.Parameters parameters = new CRC.Parameters(16, 4129L, 65535L, true, true, 0xFFFFFFFFL);
+    final Random random = new Random(16);
+    final CRC16X25 crc16X25 = new CRC16X25();
+    crc16X25.init(null);
+    for (int length = 0; length < 100; length++) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+      final long expected = CRC.calculateCRC(parameters, data) & 0xffff;
+
+      // Blocks of 8 octets, a tail, and single octets
+      final int split = length == 0 ? 0 : random.nextInt(length);
+      crc16X25.update(data, 0, split);
+      if (split < length) {
+        crc16X25.update(data[split]);
+        crc16X25.update(data, split + 1, length - split - 1);
+      }
+      final byte[] crc = new byte[2];
+      crc16X25.doFinal(crc, 0);
+      assertEquals("Length " + length, expected, (crc[0] & 0xff) << 8 | (crc[1] & 0xff));
+    }
+  }
+}
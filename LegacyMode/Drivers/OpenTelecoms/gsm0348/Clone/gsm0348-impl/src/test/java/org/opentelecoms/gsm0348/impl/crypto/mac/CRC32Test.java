@@ -3,6 +3,8 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Ignore;
 import org.junit.Test;
 
@@ -27,6 +29,29 @@ public class CRC32Test {
     assertArrayEquals(new byte[]{ (byte) 0x47, (byte) 0x0b, (byte) 0x99, (byte) 0xf4 }, crc);
   }
 
+  @Test
+  public void test_crc32_matches_reference_for_any_split() throws Exception {
+    final Random random = new Random(32);
+    final CRC32 crc32 = new CRC32();
+    crc32.init(null);
+    for (int length = 0; length < 100; length++) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+      final long expected = CRC.calculateCRC(CRC.Parameters.CRC32, data);
+
+      final int split = length == 0 ? 0 : random.nextInt(length);
+      crc32.update(data, 0, split);
+      if (split < length) {
+        crc32.update(data[split]);
+        crc32.update(data, split + 1, length - split - 1);
+      }
+      final byte[] crc = new byte[4];
+      crc32.doFinal(crc, 0);
+      assertEquals("Length " + length, expected,
+          ((crc[0] & 0xffL) << 24) | ((crc[1] & 0xff) << 16) | ((crc[2] & 0xff) << 8) | (crc[3] & 0xff));
+    }
+  }
+
   @Test
   public void test_crc32_c() throws Exception {
     CRC crc = new CRC(CRC.Parameters.CRC32);
@@ -0,0 +1,82 @@
+package org.opentelecoms.gsm0348.impl.crypto.mac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.impl.crypto.params.KeyParameter;
+import org.opentelecoms.gsm0348.impl.crypto.params.ParametersWithIV;
+
+public class DESMACISO9797M1Test {
+
+  private static final byte[] KEY = Hex.decode("0123456789abcdef");
+  private static final byte[] OTHER_KEY = Hex.decode("fedcba9876543210");
+
+  @Before
+  public void setUp() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void test_mac_is_last_block_of_zero_padded_cbc() throws Exception {
+    final Random random = new Random(9797);
+    final DESMACISO9797M1 mac = new DESMACISO9797M1();
+    mac.init(new ParametersWithIV(new KeyParameter(KEY), new byte[8]));
+    for (int length = 0; length < 50; length++) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+
+      // Split over several updates, including single octets
+      int offset = 0;
+      while (offset < length) {
+        final int chunk = Math.min(length - offset, random.nextInt(11));
+        if (chunk == 1) {
+          mac.update(data[offset]);
+        } else {
+          mac.update(data, offset, chunk);
+        }
+        offset += chunk;
+      }
+      final byte[] output = new byte[8];
+      assertEquals(8, mac.doFinal(output, 0));
+      assertArrayEquals("Length " + length, reference(KEY, data), output);
+    }
+  }
+
+  @Test
+  public void test_mac_reused_across_keys() throws Exception {
+    final byte[] data = Hex.decode("0102030405060708090a");
+    final DESMACISO9797M1 mac = new DESMACISO9797M1();
+    final byte[] output = new byte[8];
+    for (byte[] key : new byte[][]{ KEY, KEY, OTHER_KEY, KEY }) {
+      mac.init(key);
+      mac.update(data, 0, 3);
+      // Abandoned message, reset by the next init
+      mac.init(key);
+      mac.update(data, 0, data.length);
+      mac.doFinal(output, 0);
+      assertArrayEquals(reference(key, data), output);
+    }
+  }
+
+  private static byte[] reference(final byte[] key, final byte[] data) throws Exception {
+    final Cipher cipher = Cipher.getInstance("DES/CBC/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "DES"), new IvParameterSpec(new byte[8]));
+    final int padded = data.length == 0 ? 8 : (data.length + 7) / 8 * 8;
+    final byte[] enciphered = cipher.doFinal(Arrays.copyOf(data, padded));
+    return Arrays.copyOfRange(enciphered, padded - 8, padded);
+  }
+}
@@ -3,6 +3,8 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,4 +47,32 @@ public class XOR4Test {
     assertEquals(4, bytesCopied);
     assertArrayEquals(new byte[]{ (byte) 0x51, (byte) 0x62, (byte) 0x73, (byte) 0x84 }, output);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void test_xor4_carries_position_across_updates() throws Exception {
+    final Random random = new Random(4);
+    for (int length = 0; length < 64; length++) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+      final byte[] expected = new byte[4];
+      for (int i = 0; i < length; i++) {
+        expected[i % 4] ^= data[i];
+      }
+
+      // Unaligned head, word sized body and tail split over several updates
+      int offset = 0;
+      while (offset < length) {
+        final int chunk = Math.min(length - offset, random.nextInt(12));
+        if (chunk == 1) {
+          xor4.update(data[offset]);
+        } else {
+          xor4.update(data, offset, chunk);
+        }
+        offset += chunk;
+      }
+      final byte[] output = new byte[4];
+      xor4.doFinal(output, 0);
+      assertArrayEquals("Length " + length, expected, output);
+    }
+  }
+}
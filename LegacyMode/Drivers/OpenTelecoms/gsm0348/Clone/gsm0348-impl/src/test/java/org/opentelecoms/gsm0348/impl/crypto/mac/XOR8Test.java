@@ -3,6 +3,8 @@ package org.opentelecoms.gsm0348.impl.crypto.mac;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Random;
+
 import org.junit.Before;
 import org.junit.Test;
 
@@ -45,4 +47,31 @@ public class XOR8Test {
     assertArrayEquals(new byte[]{ (byte) 0x81, (byte) 0x92, (byte) 0xa3, (byte) 0xb4, (byte) 0xc5, (byte) 0xd6, (byte) 0xe7, (byte) 0xf8 }, output);
   }
 
-}
\ No newline at end of file
+  @Test
+  public void test_xor8_carries_position_across_updates() throws Exception {
+    final Random random = new Random(8);
+    for (int length = 0; length < 64; length++) {
+      final byte[] data = new byte[length];
+      random.nextBytes(data);
+      final byte[] expected = new byte[8];
+      for (int i = 0; i < length; i++) {
+        expected[i % 8] ^= data[i];
+      }
+
+      // Unaligned head, word sized body and tail split over several updates
+      int offset = 0;
+      while (offset < length) {
+        final int chunk = Math.min(length - offset, random.nextInt(12));
+        if (chunk == 1) {
+          xor8.update(data[offset]);
+        } else {
+          xor8.update(data, offset, chunk);
+        }
+        offset += chunk;
+      }
+      final byte[] output = new byte[8];
+      xor8.doFinal(output, 0);
+      assertArrayEquals("Length " + length, expected, output);
+    }
+  }
+}
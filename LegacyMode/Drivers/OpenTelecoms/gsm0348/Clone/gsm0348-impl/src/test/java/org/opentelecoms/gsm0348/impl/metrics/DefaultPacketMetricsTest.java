@@ -0,0 +1,185 @@
+package org.opentelecoms.gsm0348.impl.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.security.Security;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Test;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.CertificationAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.CertificationMode;
+import org.opentelecoms.gsm0348.api.model.CipheringAlgorithmMode;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.PacketBuilderImpl;
+import org.opentelecoms.gsm0348.impl.PacketMetrics.Phase;
+import org.opentelecoms.gsm0348.impl.SecuredProfile;
+import org.opentelecoms.gsm0348.impl.TestProfiles;
+
+public class DefaultPacketMetricsTest {
+
+  private static final byte[] CIPHERING_KEY = Hex.decode("11223344556677881122334455667788");
+  private static final byte[] SIGNATURE_KEY = Hex.decode("8877665544332211887766554433221188776655443322ff");
+  private static final byte[] COUNTER = Hex.decode("0000000102");
+  private static final byte[] DATA = Hex.decode("a0a40000023f00");
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_record_phases_of_built_and_recovered_packets() throws Exception {
+    final DefaultPacketMetrics metrics = new DefaultPacketMetrics();
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(SecuredProfile.compile(createProfile()), null, metrics);
+    final String signature = builder.getSecuredProfile().getSignatureAlgorithmName();
+    final String ciphering = builder.getSecuredProfile().getCipheringAlgorithmName();
+
+    builder.recoverCommandPacket(builder.buildCommandPacket(DATA, COUNTER, CIPHERING_KEY, SIGNATURE_KEY), CIPHERING_KEY, SIGNATURE_KEY);
+    builder.recoverResponsePacket(builder.buildResponsePacket(DATA, COUNTER, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.CNTR_LOW),
+        CIPHERING_KEY, SIGNATURE_KEY);
+
+    assertEquals(4, metrics.getPhaseMetrics(Phase.HEADER, TransportProtocol.CAT_TP, null).getCount());
+    for (final Phase phase : new Phase[]{ Phase.SIGNING, Phase.VERIFICATION }) {
+      assertEquals(2, metrics.getPhaseMetrics(phase, TransportProtocol.CAT_TP, signature).getCount());
+    }
+    for (final Phase phase : new Phase[]{ Phase.CIPHERING, Phase.DECIPHERING }) {
+      final PhaseMetricsMXBean phaseMetrics = metrics.getPhaseMetrics(phase, TransportProtocol.CAT_TP, ciphering);
+      assertEquals(2, phaseMetrics.getCount());
+      assertEquals(0, phaseMetrics.getFailures());
+      assertTrue(phaseMetrics.getMedianNanos() > 0);
+      assertTrue(phaseMetrics.getMedianNanos() <= phaseMetrics.getMaxNanos());
+    }
+    assertEquals(5, metrics.getPhaseMetrics().size());
+    assertNull(metrics.getPhaseMetrics(Phase.HEADER, TransportProtocol.SMS_PP, null));
+    assertEquals(Collections.singletonMap(ResponsePacketStatus.CNTR_LOW.name(), 2L),
+        metrics.getResponseStatusMetrics(TransportProtocol.CAT_TP).getCounts());
+  }
+
+  @Test
+  public void should_count_signature_mismatches() throws Exception {
+    final DefaultPacketMetrics metrics = new DefaultPacketMetrics();
+    final PacketBuilderImpl builder = new PacketBuilderImpl(createProfile());
+    builder.setMetrics(metrics);
+    final byte[] packet = builder.buildCommandPacket(DATA, COUNTER, CIPHERING_KEY, SIGNATURE_KEY);
+    packet[packet.length - 1] ^= 0x01;
+    try {
+      builder.recoverCommandPacket(packet, CIPHERING_KEY, SIGNATURE_KEY);
+      fail("Tampered packet recovered");
+    } catch (Gsm0348Exception e) {
+      assertEquals("Signatures don't match", e.getMessage());
+    }
+
+    final PhaseMetricsMXBean verification = metrics.getPhaseMetrics(Phase.VERIFICATION, TransportProtocol.CAT_TP,
+        builder.getSecuredProfile().getSignatureAlgorithmName());
+    assertEquals(1, verification.getFailures());
+    assertEquals(0, verification.getCount());
+    assertSame(metrics, builder.getMetrics());
+  }
+
+  @Test
+  public void should_register_mbeans() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final DefaultPacketMetrics metrics = new DefaultPacketMetrics("test");
+    final ImmutablePacketBuilder builder = new ImmutablePacketBuilder(SecuredProfile.compile(createProfile()), null, metrics);
+    builder.buildCommandPacket(DATA, COUNTER, CIPHERING_KEY, SIGNATURE_KEY);
+    metrics.register(server);
+    try {
+      final ObjectName header = new ObjectName(DefaultPacketMetrics.DOMAIN
+          + ":type=PacketMetrics,name=\"test\",phase=HEADER,transport=CAT_TP");
+      assertEquals(1L, server.getAttribute(header, "Count"));
+
+      // Registered as soon as seen
+      builder.buildResponsePacket(DATA, COUNTER, CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK);
+      final Set<ObjectName> names = server.queryNames(new ObjectName(DefaultPacketMetrics.DOMAIN + ":name=\"test\",*"), null);
+      assertEquals(4, names.size());
+      assertEquals(2L, server.getAttribute(header, "Count"));
+      assertTrue(server.isRegistered(new ObjectName(DefaultPacketMetrics.DOMAIN
+          + ":type=ResponseStatus,name=\"test\",transport=CAT_TP")));
+
+      server.invoke(header, "reset", null, null);
+      assertEquals(0L, server.getAttribute(header, "Count"));
+    } finally {
+      metrics.unregister();
+    }
+    assertTrue(server.queryNames(new ObjectName(DefaultPacketMetrics.DOMAIN + ":name=\"test\",*"), null).isEmpty());
+  }
+
+  @Test
+  public void should_record_concurrently() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int t = 0; t < 4; t++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 1; i <= 100000; i++) {
+            histogram.record(i);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+    assertEquals(400000, histogram.getCount());
+    assertEquals(100000, histogram.getMax());
+    assertEquals(50000.5, histogram.getMean(), 0.001);
+    final long median = histogram.getPercentile(50);
+    assertTrue(Long.toString(median), median >= 50000 && median <= 50000 * 1.125);
+    assertEquals(100000, histogram.getPercentile(100));
+    histogram.reset();
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.getMax());
+  }
+
+  @Test
+  public void should_compute_percentiles() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final LatencyHistogram other = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      (i % 2 == 0 ? histogram : other).record(i * 1000L);
+    }
+    histogram.add(other);
+    assertEquals(1000, histogram.getCount());
+    assertEquals(1000000, histogram.getMax());
+    final long median = histogram.getPercentile(50);
+    assertTrue(Long.toString(median), median >= 500000 && median <= 500000 * 1.125);
+    assertEquals(1000000, histogram.getPercentile(100));
+    for (long value = 0; value < 1 << 20; value += 37) {
+      final int index = LatencyHistogram.index(value);
+      assertTrue(value + " " + index, LatencyHistogram.upperBound(index) >= value);
+      assertTrue(value + " " + index, index == 0 || LatencyHistogram.upperBound(index - 1) < value);
+    }
+  }
+
+  private static CardProfile createProfile() {
+    final CardProfile cardProfile = TestProfiles.createProfile("metrics", 1, TransportProtocol.CAT_TP);
+    cardProfile.getKIC().setCipheringAlgorithmMode(CipheringAlgorithmMode.TRIPLE_DES_CBC_2_KEYS);
+    cardProfile.getKID().setCertificationAlgorithmMode(CertificationAlgorithmMode.TRIPLE_DES_CBC_3_KEYS);
+    // The responses are secured too, so that every phase is seen
+    cardProfile.getSPI().getResponseSPI().setCiphered(true);
+    cardProfile.getSPI().getResponseSPI().setPoRCertificateMode(CertificationMode.CC);
+    return cardProfile;
+  }
+}
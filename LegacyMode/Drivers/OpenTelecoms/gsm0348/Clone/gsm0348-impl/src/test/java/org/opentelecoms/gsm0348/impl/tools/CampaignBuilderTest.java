@@ -0,0 +1,165 @@
+package org.opentelecoms.gsm0348.impl.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentelecoms.gsm0348.api.Gsm0348Exception;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ICCIDKeyGenerator;
+import org.opentelecoms.gsm0348.impl.ICCIDKeyVault;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.coders.CardProfileCoder;
+
+public class CampaignBuilderTest {
+
+  private static final String HEADER = "16391111b00010";
+  private static final byte[] DATA = Hex.decode("a0a40000023f00");
+  private static final byte[] CIPHERING_MASTER_KEY = Hex.decode("0123456789abcdef");
+  private static final byte[] SIGNATURE_MASTER_KEY = Hex.decode("fedcba9876543210");
+  private static final byte[] KEY = Hex.decode("1122334455667788");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_build_ordered_packets_from_csv() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder();
+    final StringBuilder csv = new StringBuilder("iccid,counter,cipheringKey,signatureKey\n");
+    for (int i = 0; i < 1000; i++) {
+      csv.append(iccid(i)).append(',').append(Hex.toHexString(counter(i)));
+      csv.append(i % 7 == 0 ? "," + Hex.toHexString(KEY) + "," + Hex.toHexString(KEY) : "").append('\n');
+    }
+    final File input = folder.newFile();
+    Files.write(input.toPath(), csv.toString().getBytes(StandardCharsets.US_ASCII));
+    final File output = folder.newFile();
+
+    final CampaignBuilder.Report report = new CampaignBuilder(builder, DATA, CIPHERING_MASTER_KEY, SIGNATURE_MASTER_KEY, 4, 64)
+        .build(input.toPath(), CampaignBuilder.Format.CSV, output.toPath(), CampaignBuilder.Order.ORDERED);
+
+    assertEquals(1000, report.getRows());
+    assertTrue(report.getLatencyPercentile(50) <= report.getLatencyPercentile(99.9));
+    assertTrue(report.getLatencyPercentile(99.9) <= report.getMaxLatency());
+    final ByteBuffer packets = ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    for (int i = 0; i < 1000; i++) {
+      assertArrayEquals("Row " + i, expected(builder, i, i % 7 == 0), next(packets));
+    }
+    assertEquals(0, packets.remaining());
+  }
+
+  @Test
+  public void should_build_unordered_packets_from_binary() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder();
+    final File input = folder.newFile();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(input))) {
+      for (int i = 0; i < 1000; i++) {
+        out.writeLong(ICCIDKeyVault.pack(iccid(i)));
+        out.write(counter(i));
+        if (i % 5 == 0) {
+          out.write(KEY.length);
+          out.write(KEY);
+          out.write(KEY);
+        } else {
+          out.write(0);
+        }
+      }
+    }
+    final File output = folder.newFile();
+
+    new CampaignBuilder(builder, DATA, CIPHERING_MASTER_KEY, SIGNATURE_MASTER_KEY, 3, 100)
+        .build(input.toPath(), CampaignBuilder.Format.BINARY, output.toPath(), CampaignBuilder.Order.UNORDERED);
+
+    final ByteBuffer packets = ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    final boolean[] seen = new boolean[1000];
+    while (packets.hasRemaining()) {
+      final int row = (int) packets.getLong();
+      assertArrayEquals("Row " + row, expected(builder, row, row % 5 == 0), next(packets));
+      seen[row] = true;
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue("Row " + i, seen[i]);
+    }
+  }
+
+  @Test
+  public void should_tell_row_of_invalid_iccid() throws Exception {
+    final File input = folder.newFile();
+    Files.write(input.toPath(), (iccid(0) + ",0000000001\n" + "89000000000000000013,0000000002\n").getBytes(StandardCharsets.US_ASCII));
+    try {
+      new CampaignBuilder(createBuilder(), DATA, CIPHERING_MASTER_KEY, SIGNATURE_MASTER_KEY, 1, 16)
+          .build(input.toPath(), CampaignBuilder.Format.CSV, folder.newFile().toPath(), CampaignBuilder.Order.ORDERED);
+      fail("Invalid ICCID accepted");
+    } catch (Gsm0348Exception e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Invalid ICCID at index 1: "));
+    }
+  }
+
+  @Test
+  public void should_run_command_line() throws Exception {
+    final File input = folder.newFile();
+    Files.write(input.toPath(), (iccid(1) + ",0000000001\n").getBytes(StandardCharsets.US_ASCII));
+    final File output = new File(folder.getRoot(), "campaign.bin");
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    assertEquals(0, CampaignBuilder.run(new String[]{ "-i", input.getPath(), "-o", output.getPath(), "-H", HEADER, "-d",
+        Hex.toHexString(DATA), "-c", Hex.toHexString(CIPHERING_MASTER_KEY), "-s", Hex.toHexString(SIGNATURE_MASTER_KEY) }, System.out,
+        new PrintStream(err, true)));
+
+    assertTrue(err.toString(), err.toString().contains("1 rows in"));
+    assertArrayEquals(expected(createBuilder(), 1, false), next(ByteBuffer.wrap(Files.readAllBytes(output.toPath()))));
+    assertEquals(2, CampaignBuilder.run(new String[]{ "-i", input.getPath(), "-o", output.getPath() }, System.out,
+        new PrintStream(new ByteArrayOutputStream())));
+  }
+
+  private static byte[] expected(final ImmutablePacketBuilder builder, final int row, final boolean explicitKeys) throws Exception {
+    final String iccid = iccid(row);
+    return builder.buildCommandPacket(DATA, counter(row),
+        explicitKeys ? KEY : ICCIDKeyGenerator.getKey(CIPHERING_MASTER_KEY, iccid),
+        explicitKeys ? KEY : ICCIDKeyGenerator.getKey(SIGNATURE_MASTER_KEY, iccid));
+  }
+
+  private static byte[] next(final ByteBuffer packets) {
+    final byte[] packet = new byte[packets.getInt()];
+    packets.get(packet);
+    return packet;
+  }
+
+  private static String iccid(final int row) {
+    return ICCIDKeyVault.unpack(8900000000000000000L + row);
+  }
+
+  private static byte[] counter(final int value) {
+    return new byte[]{ 0, 0, 0, (byte) (value >>> 8), (byte) value };
+  }
+
+  private static ImmutablePacketBuilder createBuilder() throws Exception {
+    final CardProfile cardProfile = CardProfileCoder.encode(Hex.decode(HEADER));
+    cardProfile.setTransportProtocol(TransportProtocol.SMS_PP);
+    return new ImmutablePacketBuilder(cardProfile);
+  }
+}
@@ -0,0 +1,171 @@
+package org.opentelecoms.gsm0348.impl.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.List;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.util.encoders.Hex;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opentelecoms.gsm0348.api.model.CardProfile;
+import org.opentelecoms.gsm0348.api.model.ResponsePacketStatus;
+import org.opentelecoms.gsm0348.api.model.TransportProtocol;
+import org.opentelecoms.gsm0348.impl.ImmutablePacketBuilder;
+import org.opentelecoms.gsm0348.impl.coders.CardProfileCoder;
+import org.opentelecoms.gsm0348.impl.coders.ResponsePacketStatusCoder;
+
+public class PoRCaptureDecoderTest {
+
+  private static final String HEADER = "16391212b00010";
+  private static final String OTHER_HEADER = "16391212b00020";
+  private static final byte[] CIPHERING_KEY = Hex.decode("00112233445566778899aabbccddeeff");
+  private static final byte[] SIGNATURE_KEY = Hex.decode("ffeeddccbbaa99887766554433221100");
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() {
+    if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+      Security.addProvider(new BouncyCastleProvider());
+    }
+  }
+
+  @Test
+  public void should_count_status_per_tar() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder(HEADER);
+    final ImmutablePacketBuilder other = createBuilder(OTHER_HEADER);
+    final File capture = folder.newFile();
+    long corruptedOffset = 0;
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(capture))) {
+      for (int i = 0; i < 3000; i++) {
+        final byte[] packet = (i % 3 == 0 ? other : builder).buildResponsePacket(new byte[i % 40], counter(i), CIPHERING_KEY,
+            SIGNATURE_KEY, i % 5 == 0 ? ResponsePacketStatus.CNTR_LOW : ResponsePacketStatus.POR_OK);
+        if (i == 1234) {
+          corruptedOffset = out.size();
+          packet[packet.length - 1] ^= 0x01;
+        }
+        out.writeInt(packet.length);
+        out.write(packet);
+      }
+    }
+
+    final StringWriter failures = new StringWriter();
+    final PoRCaptureDecoder.Report report = new PoRCaptureDecoder(builder, CIPHERING_KEY, SIGNATURE_KEY, 4, 4096)
+        .decode(capture.toPath(), PoRCaptureDecoder.Format.BINARY, failures);
+
+    assertEquals(3000, report.getRecords());
+    assertEquals(1, report.getFailures());
+    assertEquals(1, report.getFailures(0xb00010));
+    assertEquals(1599, report.getCount(0xb00010, status(ResponsePacketStatus.POR_OK)));
+    assertEquals(400, report.getCount(0xb00010, status(ResponsePacketStatus.CNTR_LOW)));
+    assertEquals(800, report.getCount(0xb00020, status(ResponsePacketStatus.POR_OK)));
+    assertEquals(200, report.getCount(0xb00020, status(ResponsePacketStatus.CNTR_LOW)));
+    assertEquals("offset,tar,error\n" + corruptedOffset + ",B00010,Signatures don't match\n", failures.toString());
+
+    final StringWriter csv = new StringWriter();
+    report.write(csv);
+    assertEquals("tar,status,count\nB00010,POR_OK,1599\nB00010,CNTR_LOW,400\nB00010,FAILED,1\nB00020,POR_OK,800\nB00020,CNTR_LOW,200\n",
+        csv.toString());
+  }
+
+  @Test
+  public void should_decode_hex_lines() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder(HEADER);
+    final StringBuilder lines = new StringBuilder("# PoR capture\n");
+    for (int i = 0; i < 500; i++) {
+      lines.append(Hex.toHexString(builder.buildResponsePacket(new byte[i % 20], counter(i), CIPHERING_KEY, SIGNATURE_KEY,
+          ResponsePacketStatus.POR_OK))).append(i % 2 == 0 ? "\r\n" : "\n");
+      if (i % 100 == 0) {
+        lines.append("\n  \n");
+      }
+    }
+    lines.append("0123zz\n").append("b0");
+    final File capture = folder.newFile();
+    Files.write(capture.toPath(), lines.toString().getBytes(StandardCharsets.US_ASCII));
+
+    final StringWriter failures = new StringWriter();
+    final PoRCaptureDecoder.Report report = new PoRCaptureDecoder(builder, CIPHERING_KEY, SIGNATURE_KEY, 3, 4096)
+        .decode(capture.toPath(), PoRCaptureDecoder.Format.HEX, failures);
+
+    assertEquals(502, report.getRecords());
+    assertEquals(500, report.getCount(0xb00010, status(ResponsePacketStatus.POR_OK)));
+    assertEquals(2, report.getFailures(-1));
+    final String[] failed = failures.toString().split("\n");
+    assertEquals(3, failed.length);
+    assertTrue(failures.toString(), failures.toString().contains(",,Invalid hex digit"));
+  }
+
+  @Test(expected = IOException.class)
+  public void should_reject_truncated_binary_capture() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder(HEADER);
+    final File capture = folder.newFile();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(capture))) {
+      final byte[] packet = builder.buildResponsePacket(null, counter(1), CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK);
+      out.writeInt(packet.length);
+      out.write(packet, 0, packet.length - 1);
+    }
+    new PoRCaptureDecoder(builder, CIPHERING_KEY, SIGNATURE_KEY, 1, 4096).decode(capture.toPath(), PoRCaptureDecoder.Format.BINARY, null);
+  }
+
+  @Test
+  public void should_run_command_line() throws Exception {
+    final ImmutablePacketBuilder builder = createBuilder(HEADER);
+    final File capture = folder.newFile();
+    try (DataOutputStream out = new DataOutputStream(new FileOutputStream(capture))) {
+      for (int i = 0; i < 10; i++) {
+        final byte[] packet = builder.buildResponsePacket(null, counter(i), CIPHERING_KEY, SIGNATURE_KEY, ResponsePacketStatus.POR_OK);
+        out.writeInt(packet.length);
+        out.write(packet);
+      }
+    }
+    final File report = new File(folder.getRoot(), "report.csv");
+    final File failures = new File(folder.getRoot(), "failures.csv");
+    final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    assertEquals(0, PoRCaptureDecoder.run(new String[]{ "-i", capture.getPath(), "-H", HEADER, "-c", Hex.toHexString(CIPHERING_KEY),
+        "-s", Hex.toHexString(SIGNATURE_KEY), "-o", report.getPath(), "-e", failures.getPath(), "-n", "2" }, System.out,
+        new PrintStream(err, true)));
+
+    final List<String> lines = Files.readAllLines(report.toPath(), StandardCharsets.UTF_8);
+    assertEquals("B00010,POR_OK,10", lines.get(1));
+    assertEquals(1, Files.readAllLines(failures.toPath(), StandardCharsets.UTF_8).size());
+    assertTrue(err.toString(), err.toString().startsWith("Decoded 10 packets, 0 failed"));
+  }
+
+  @Test
+  public void should_reject_wrong_command_line() {
+    final PrintStream err = new PrintStream(new ByteArrayOutputStream());
+    assertEquals(2, PoRCaptureDecoder.run(new String[]{ "-i", "capture.bin" }, System.out, err));
+    assertEquals(2, PoRCaptureDecoder.run(new String[]{ "-i", "capture.bin", "-H", "1639" }, System.out, err));
+    assertEquals(2, PoRCaptureDecoder.run(new String[]{ "-i", "capture.bin", "-H", HEADER, "-f", "xml" }, System.out, err));
+  }
+
+  private static byte status(final ResponsePacketStatus status) throws Exception {
+    return ResponsePacketStatusCoder.decode(status);
+  }
+
+  private static byte[] counter(final int value) {
+    return new byte[]{ 0, 0, 0, (byte) (value >>> 8), (byte) value };
+  }
+
+  private static ImmutablePacketBuilder createBuilder(final String header) throws Exception {
+    final CardProfile cardProfile = CardProfileCoder.encode(Hex.decode(header));
+    cardProfile.setTransportProtocol(TransportProtocol.SMS_PP);
+    return new ImmutablePacketBuilder(cardProfile);
+  }
+}